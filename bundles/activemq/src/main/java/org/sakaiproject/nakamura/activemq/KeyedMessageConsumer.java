@@ -0,0 +1,343 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activemq;
+
+import org.apache.activemq.ActiveMQSession;
+import org.sakaiproject.nakamura.api.activemq.ConsumerRegistration;
+import org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.Session;
+
+/**
+ * One registration of the {@link MessageConsumerContainerImpl}. The consumer sessions
+ * hand every message to a lane chosen from the hash of its group key, each lane is a
+ * bounded queue drained by a single thread, so a group is delivered in order and a full
+ * lane blocks the session that is feeding it. A message is acknowledged on its own once
+ * the listener has returned, so messages still waiting in a lane when the consumer is
+ * closed or interrupted are redelivered by the broker rather than lost.
+ */
+class KeyedMessageConsumer implements ConsumerRegistration, MessageListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeyedMessageConsumer.class);
+
+  /**
+   * Placed on a lane to stop its thread once the messages ahead of it are delivered.
+   */
+  private static final Envelope STOP = new Envelope(null, 0L);
+
+  private final MessageConsumerContainerImpl container;
+  private final String destinationName;
+  private final String groupProperty;
+  private final MessageListener listener;
+  private final BlockingQueue<Envelope>[] lanes;
+  private final Thread[] workers;
+  private final long lagWarning;
+  private final long shutdownWait;
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private volatile long lastLagWarning;
+  private volatile boolean closed;
+  private Connection connection;
+
+  @SuppressWarnings("unchecked")
+  KeyedMessageConsumer(MessageConsumerContainerImpl container, String destinationName,
+      String groupProperty, MessageListener listener, int nlanes, int laneCapacity,
+      long lagWarning, long shutdownWait) {
+    this.container = container;
+    this.destinationName = destinationName;
+    this.groupProperty = groupProperty == null ? MessageConsumerContainer.GROUP_ID_PROPERTY
+        : groupProperty;
+    this.listener = listener;
+    this.lagWarning = lagWarning;
+    this.shutdownWait = shutdownWait;
+    lanes = new BlockingQueue[nlanes];
+    workers = new Thread[nlanes];
+    for (int i = 0; i < nlanes; i++) {
+      lanes[i] = new ArrayBlockingQueue<Envelope>(laneCapacity);
+    }
+  }
+
+  /**
+   * Start the lanes, then the consumer sessions.
+   * 
+   * @param connection
+   *          an unstarted connection, owned by this consumer from now on.
+   * @param topic
+   *          true if the destination is a topic, in which case only one session is used.
+   * @param sessions
+   *          the number of consumer sessions for a queue.
+   * @throws JMSException
+   */
+  void start(Connection connection, boolean topic, int sessions) throws JMSException {
+    this.connection = connection;
+    for (int i = 0; i < workers.length; i++) {
+      final BlockingQueue<Envelope> lane = lanes[i];
+      workers[i] = new Thread(new Runnable() {
+        public void run() {
+          drain(lane);
+        }
+      }, "jms-consumer " + destinationName + " lane " + i);
+      workers[i].setDaemon(true);
+      workers[i].start();
+    }
+    try {
+      int nsessions = topic ? 1 : Math.max(1, sessions);
+      for (int i = 0; i < nsessions; i++) {
+        Session session = connection.createSession(false,
+            ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE);
+        Destination destination = topic ? session.createTopic(destinationName) : session
+            .createQueue(destinationName);
+        MessageConsumer consumer = session.createConsumer(destination);
+        consumer.setMessageListener(this);
+      }
+      connection.start();
+    } catch (JMSException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * Called on the session thread, blocks while the lane for the message is full.
+   * 
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    long sent = System.currentTimeMillis();
+    String key = null;
+    try {
+      if (message.getJMSTimestamp() > 0) {
+        sent = message.getJMSTimestamp();
+      }
+      key = message.getStringProperty(groupProperty);
+      if (key == null) {
+        // no group, so no ordering to keep, spread the message by its id.
+        key = message.getJMSMessageID();
+      }
+    } catch (JMSException e) {
+      LOGGER.debug("Unable to read the group of a message on {}: {}", destinationName,
+          e.getMessage());
+    }
+    BlockingQueue<Envelope> lane = lanes[laneFor(key, lanes.length)];
+    Envelope envelope = new Envelope(message, sent);
+    if (!lane.offer(envelope)) {
+      LOGGER.debug("Lane full on {}, holding back the consumer ", destinationName);
+      try {
+        lane.put(envelope);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOGGER.warn("Interrupted while queueing a message on {}, left for redelivery ",
+            destinationName);
+      }
+    }
+  }
+
+  static int laneFor(String key, int nlanes) {
+    if (key == null) {
+      return 0;
+    }
+    return (key.hashCode() & Integer.MAX_VALUE) % nlanes;
+  }
+
+  private void drain(BlockingQueue<Envelope> lane) {
+    while (true) {
+      Envelope envelope;
+      try {
+        envelope = lane.take();
+      } catch (InterruptedException e) {
+        if (lane.size() > 0) {
+          LOGGER.warn("Stopped {} with {} messages left for redelivery ", destinationName,
+              lane.size());
+        }
+        return;
+      }
+      if (envelope == STOP) {
+        return;
+      }
+      long lag = System.currentTimeMillis() - envelope.sent;
+      if (lagWarning > 0 && lag > lagWarning
+          && System.currentTimeMillis() - lastLagWarning > lagWarning) {
+        lastLagWarning = System.currentTimeMillis();
+        LOGGER.warn("Consumer of {} is {} ms behind with {} messages waiting ",
+            new Object[] { destinationName, lag, getQueueDepth() });
+      }
+      try {
+        listener.onMessage(envelope.message);
+      } catch (RuntimeException e) {
+        failed.incrementAndGet();
+        LOGGER.error("Listener failed on message from " + destinationName, e);
+      } finally {
+        processed.incrementAndGet();
+      }
+      // a listener that failed is not retried, as before.
+      acknowledge(envelope.message);
+    }
+  }
+
+  private void acknowledge(Message message) {
+    try {
+      message.acknowledge();
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to acknowledge a message on {}, it may be delivered again: {}",
+          destinationName, e.getMessage());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activemq.ConsumerRegistration#getDestination()
+   */
+  public String getDestination() {
+    return destinationName;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activemq.ConsumerRegistration#getQueueDepth()
+   */
+  public int getQueueDepth() {
+    int depth = 0;
+    for (BlockingQueue<Envelope> lane : lanes) {
+      depth += lane.size();
+    }
+    return depth;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activemq.ConsumerRegistration#getLag()
+   */
+  public long getLag() {
+    long now = System.currentTimeMillis();
+    long lag = 0;
+    for (BlockingQueue<Envelope> lane : lanes) {
+      Envelope head = lane.peek();
+      if (head != null && head != STOP) {
+        lag = Math.max(lag, now - head.sent);
+      }
+    }
+    return lag;
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activemq.ConsumerRegistration#getProcessedCount()
+   */
+  public long getProcessedCount() {
+    return processed.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activemq.ConsumerRegistration#getFailedCount()
+   */
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activemq.ConsumerRegistration#close()
+   */
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    container.unregister(this);
+    if (connection != null) {
+      // stopping the connection waits for any session that is blocked on a lane, the
+      // lanes are still draining so that wait is bounded. The sessions stay open so the
+      // lanes can acknowledge what they deliver.
+      try {
+        connection.stop();
+      } catch (JMSException e) {
+        LOGGER.debug("Failed to stop the connection for {}: {}", destinationName,
+            e.getMessage());
+      }
+    }
+    long deadline = System.currentTimeMillis() + shutdownWait;
+    for (int i = 0; i < workers.length; i++) {
+      if (workers[i] == null) {
+        continue;
+      }
+      try {
+        if (!lanes[i].offer(STOP, Math.max(1L, deadline - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS)) {
+          workers[i].interrupt();
+        }
+        workers[i].join(Math.max(1L, deadline - System.currentTimeMillis()));
+        if (workers[i].isAlive()) {
+          workers[i].interrupt();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        workers[i].interrupt();
+      }
+    }
+    if (connection != null) {
+      // anything not acknowledged by now goes back to the broker.
+      try {
+        connection.close();
+      } catch (JMSException e) {
+        LOGGER.debug("Failed to close the connection for {}: {}", destinationName,
+            e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return destinationName + " depth:" + getQueueDepth() + " lag:" + getLag()
+        + " processed:" + getProcessedCount() + " failed:" + getFailedCount();
+  }
+
+  private static class Envelope {
+    private final Message message;
+    private final long sent;
+
+    Envelope(Message message, long sent) {
+      this.message = message;
+      this.sent = sent;
+    }
+  }
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activemq;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.activemq.ConsumerRegistration;
+import org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageListener;
+
+/**
+ * Runs keyed, bounded consumers over connections from the {@link ConnectionFactoryService}.
+ * The settings apply to registrations made after a change.
+ */
+@Component(immediate = true, metatype = true, label = "%consumer.container.name", description = "%consumer.container.description")
+@Service(value = MessageConsumerContainer.class)
+public class MessageConsumerContainerImpl implements MessageConsumerContainer {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(MessageConsumerContainerImpl.class);
+
+  @Property(intValue = 2)
+  static final String SESSIONS = "sakai.jms.consumer.sessions";
+
+  @Property(intValue = 4)
+  static final String LANES = "sakai.jms.consumer.lanes";
+
+  @Property(intValue = 100)
+  static final String LANE_CAPACITY = "sakai.jms.consumer.lane.capacity";
+
+  @Property(longValue = 60000L)
+  static final String LAG_WARNING = "sakai.jms.consumer.lag.warning";
+
+  @Property(longValue = 10000L)
+  static final String SHUTDOWN_WAIT = "sakai.jms.consumer.shutdown.wait";
+
+  @Reference
+  protected ConnectionFactoryService connFactoryService;
+
+  private final List<KeyedMessageConsumer> registrations = new CopyOnWriteArrayList<KeyedMessageConsumer>();
+
+  private int sessions = 2;
+  private int lanes = 4;
+  private int laneCapacity = 100;
+  private long lagWarning = 60000L;
+  private long shutdownWait = 10000L;
+
+  public MessageConsumerContainerImpl() {
+  }
+
+  MessageConsumerContainerImpl(ConnectionFactoryService connFactoryService) {
+    this.connFactoryService = connFactoryService;
+  }
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> props) {
+    sessions = Math.max(1, OsgiUtil.toInteger(props.get(SESSIONS), 2));
+    lanes = Math.max(1, OsgiUtil.toInteger(props.get(LANES), 4));
+    laneCapacity = Math.max(1, OsgiUtil.toInteger(props.get(LANE_CAPACITY), 100));
+    lagWarning = OsgiUtil.toLong(props.get(LAG_WARNING), 60000L);
+    shutdownWait = Math.max(1L, OsgiUtil.toLong(props.get(SHUTDOWN_WAIT), 10000L));
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    for (KeyedMessageConsumer consumer : registrations) {
+      LOGGER.info("Closing JMS consumer left open on {} ", consumer.getDestination());
+      consumer.close();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer#registerQueueListener(java.lang.String,
+   *      java.lang.String, javax.jms.MessageListener)
+   */
+  public ConsumerRegistration registerQueueListener(String queueName,
+      String groupProperty, MessageListener listener) throws JMSException {
+    return register(queueName, false, groupProperty, listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer#registerTopicListener(java.lang.String,
+   *      java.lang.String, javax.jms.MessageListener)
+   */
+  public ConsumerRegistration registerTopicListener(String topicName,
+      String groupProperty, MessageListener listener) throws JMSException {
+    return register(topicName, true, groupProperty, listener);
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer#getRegistrations()
+   */
+  public List<ConsumerRegistration> getRegistrations() {
+    return new ArrayList<ConsumerRegistration>(registrations);
+  }
+
+  private ConsumerRegistration register(String destination, boolean topic,
+      String groupProperty, MessageListener listener) throws JMSException {
+    KeyedMessageConsumer consumer = new KeyedMessageConsumer(this, destination,
+        groupProperty, listener, lanes, laneCapacity, lagWarning, shutdownWait);
+    Connection connection = connFactoryService.getDefaultConnectionFactory()
+        .createConnection();
+    registrations.add(consumer);
+    consumer.start(connection, topic, sessions);
+    LOGGER.info("Consuming {} with {} lanes ", destination, lanes);
+    return consumer;
+  }
+
+  void unregister(KeyedMessageConsumer consumer) {
+    registrations.remove(consumer);
+  }
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.activemq;
+
+/**
+ * A listener registered with the {@link MessageConsumerContainer}, with the metrics of
+ * its consumer.
+ */
+public interface ConsumerRegistration {
+
+  /**
+   * @return the name of the queue or topic being consumed.
+   */
+  String getDestination();
+
+  /**
+   * @return the number of messages taken from the broker that are waiting in the worker
+   *         lanes.
+   */
+  int getQueueDepth();
+
+  /**
+   * @return the age in ms of the oldest message waiting in the worker lanes, measured
+   *         from the time it was sent, 0 if nothing is waiting.
+   */
+  long getLag();
+
+  /**
+   * @return the number of messages delivered to the listener.
+   */
+  long getProcessedCount();
+
+  /**
+   * @return the number of messages where the listener threw an exception.
+   */
+  long getFailedCount();
+
+  /**
+   * Stop consuming. Messages already taken from the broker are delivered before the
+   * worker lanes stop.
+   */
+  void close();
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.activemq;
+
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.MessageListener;
+
+/**
+ * Runs JMS consumers on behalf of other components. Each registration gets its own
+ * connection, a set of consumer sessions and a fixed number of worker lanes. Messages
+ * are routed to a lane by their group key, so messages that share a key are delivered
+ * one at a time and in the order they arrived, while messages with different keys are
+ * delivered concurrently. Lanes are bounded; when a lane is full the consumer session
+ * stops taking messages from the broker until the lane drains.
+ */
+public interface MessageConsumerContainer {
+
+  /**
+   * The standard JMS message group property. When a producer sets it, the broker pins
+   * the group to a single consumer session, which keeps a group in order even when a
+   * queue is consumed by more than one session.
+   */
+  String GROUP_ID_PROPERTY = "JMSXGroupID";
+
+  /**
+   * Consume a queue, each message is delivered to exactly one listener across the
+   * cluster.
+   * 
+   * @param queueName
+   *          the queue to consume.
+   * @param groupProperty
+   *          the message property that holds the group key, if null
+   *          {@link #GROUP_ID_PROPERTY} is used.
+   * @param listener
+   *          the listener that messages are delivered to.
+   * @return the registration, which must be closed when the listener goes away.
+   * @throws JMSException
+   *           if the consumer could not be started.
+   */
+  ConsumerRegistration registerQueueListener(String queueName, String groupProperty,
+      MessageListener listener) throws JMSException;
+
+  /**
+   * Consume a topic. A topic is always consumed by a single session, since every
+   * subscriber to a topic receives every message; concurrency comes from the worker
+   * lanes.
+   * 
+   * @param topicName
+   *          the topic to subscribe to.
+   * @param groupProperty
+   *          the message property that holds the group key, if null
+   *          {@link #GROUP_ID_PROPERTY} is used.
+   * @param listener
+   *          the listener that messages are delivered to.
+   * @return the registration, which must be closed when the listener goes away.
+   * @throws JMSException
+   *           if the consumer could not be started.
+   */
+  ConsumerRegistration registerTopicListener(String topicName, String groupProperty,
+      MessageListener listener) throws JMSException;
+
+  /**
+   * @return the registrations that are currently open.
+   */
+  List<ConsumerRegistration> getRegistrations();
+
+}
@@ -0,0 +1,253 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activemq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.activemq.ConsumerRegistration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ *
+ */
+public class MessageConsumerContainerImplTest {
+
+  private static final String QUEUE = "test/consumer/container";
+
+  private ConnectionFactory connectionFactory;
+  private Connection producerConnection;
+  private MessageConsumerContainerImpl container;
+
+  @Before
+  public void before() throws Exception {
+    // the producer connection keeps the embedded broker up for the whole test.
+    connectionFactory = new ActiveMQConnectionFactory(
+        "vm://consumercontainer?broker.persistent=false&broker.useJmx=false");
+    producerConnection = connectionFactory.createConnection();
+    producerConnection.start();
+    ConnectionFactoryService connectionFactoryService = Mockito
+        .mock(ConnectionFactoryService.class);
+    Mockito.when(connectionFactoryService.getDefaultConnectionFactory()).thenReturn(
+        connectionFactory);
+    container = new MessageConsumerContainerImpl(connectionFactoryService);
+  }
+
+  @After
+  public void after() throws Exception {
+    container.deactivate();
+    producerConnection.close();
+  }
+
+  @Test
+  public void testKeepsOrderPerGroup() throws Exception {
+    activate(1, 4, 10);
+    final int users = 5;
+    final int perUser = 40;
+    final Map<String, List<Integer>> seen = new HashMap<String, List<Integer>>();
+    final CountDownLatch done = new CountDownLatch(users * perUser);
+    ConsumerRegistration registration = container.registerQueueListener(QUEUE, "user",
+        new MessageListener() {
+          public void onMessage(Message message) {
+            try {
+              String user = message.getStringProperty("user");
+              synchronized (seen) {
+                List<Integer> s = seen.get(user);
+                if (s == null) {
+                  s = new ArrayList<Integer>();
+                  seen.put(user, s);
+                }
+                s.add(message.getIntProperty("seq"));
+              }
+            } catch (JMSException e) {
+              throw new RuntimeException(e);
+            } finally {
+              done.countDown();
+            }
+          }
+        });
+    for (int i = 0; i < perUser; i++) {
+      for (int u = 0; u < users; u++) {
+        send("user" + u, i);
+      }
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(users, seen.size());
+    for (List<Integer> s : seen.values()) {
+      assertEquals(perUser, s.size());
+      for (int i = 0; i < perUser; i++) {
+        assertEquals(Integer.valueOf(i), s.get(i));
+      }
+    }
+    assertEquals(users * perUser, registration.getProcessedCount());
+    assertEquals(0, registration.getFailedCount());
+    registration.close();
+    assertTrue(container.getRegistrations().isEmpty());
+  }
+
+  @Test
+  public void testBoundsTheLanesAndReportsDepth() throws Exception {
+    activate(1, 1, 2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(6);
+    ConsumerRegistration registration = container.registerQueueListener(QUEUE, "user",
+        new MessageListener() {
+          public void onMessage(Message message) {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            done.countDown();
+          }
+        });
+    for (int i = 0; i < 6; i++) {
+      send("ieb", i);
+    }
+    // one message in the listener, two in the lane and the rest held back.
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (registration.getQueueDepth() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    Thread.sleep(200);
+    assertEquals(2, registration.getQueueDepth());
+    assertTrue(registration.getLag() > 0);
+    assertEquals(0, registration.getProcessedCount());
+
+    release.countDown();
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertEquals(6, registration.getProcessedCount());
+    assertEquals(0, registration.getQueueDepth());
+    assertEquals(0, registration.getLag());
+  }
+
+  @Test
+  public void testCountsListenerFailures() throws Exception {
+    activate(2, 2, 10);
+    final CountDownLatch done = new CountDownLatch(3);
+    ConsumerRegistration registration = container.registerQueueListener(QUEUE, null,
+        new MessageListener() {
+          public void onMessage(Message message) {
+            done.countDown();
+            throw new IllegalStateException("failed");
+          }
+        });
+    for (int i = 0; i < 3; i++) {
+      send("ieb", i);
+    }
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    registration.close();
+    assertEquals(3, registration.getProcessedCount());
+    assertEquals(3, registration.getFailedCount());
+  }
+
+  @Test
+  public void testRedeliversWhatTheLanesHeldOnClose() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(MessageConsumerContainerImpl.SHUTDOWN_WAIT, 200L);
+    activate(1, 1, 10, props);
+    final CountDownLatch never = new CountDownLatch(1);
+    ConsumerRegistration registration = container.registerQueueListener(QUEUE, "user",
+        new MessageListener() {
+          public void onMessage(Message message) {
+            try {
+              never.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+    for (int i = 0; i < 3; i++) {
+      send("ieb", i);
+    }
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (registration.getQueueDepth() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assertEquals(2, registration.getQueueDepth());
+    // the listener is stuck on the first message, the other two are waiting in the lane.
+    registration.close();
+
+    final Set<Integer> redelivered = new HashSet<Integer>();
+    final CountDownLatch done = new CountDownLatch(2);
+    container.registerQueueListener(QUEUE, "user", new MessageListener() {
+      public void onMessage(Message message) {
+        try {
+          synchronized (redelivered) {
+            if (redelivered.add(message.getIntProperty("seq"))
+                && message.getIntProperty("seq") > 0) {
+              done.countDown();
+            }
+          }
+        } catch (JMSException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    assertTrue(done.await(30, TimeUnit.SECONDS));
+    assertTrue(redelivered.contains(1));
+    assertTrue(redelivered.contains(2));
+  }
+
+  private void activate(int sessions, int lanes, int capacity) {
+    activate(sessions, lanes, capacity, new HashMap<String, Object>());
+  }
+
+  private void activate(int sessions, int lanes, int capacity, Map<String, Object> props) {
+    props.put(MessageConsumerContainerImpl.SESSIONS, sessions);
+    props.put(MessageConsumerContainerImpl.LANES, lanes);
+    props.put(MessageConsumerContainerImpl.LANE_CAPACITY, capacity);
+    container.activate(props);
+  }
+
+  private void send(String user, int seq) throws JMSException {
+    Session session = producerConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+    try {
+      MessageProducer producer = session.createProducer(session.createQueue(QUEUE));
+      Message message = session.createMessage();
+      message.setStringProperty("user", user);
+      message.setIntProperty("seq", seq);
+      producer.send(message);
+    } finally {
+      session.close();
+    }
+  }
+
+}
@@ -26,7 +26,8 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
-import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.activemq.ConsumerRegistration;
+import org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
@@ -37,6 +38,7 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,19 +46,16 @@ import java.util.List;
 import java.util.Map.Entry;
 
 import javax.jcr.RepositoryException;
-import javax.jms.Connection;
 import javax.jms.JMSException;
 import javax.jms.Message;
-import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
-import javax.jms.Topic;
 
 @Component(immediate = true)
 public class LiteActivityListener implements MessageListener {
 
   // References/properties need for JMS
   @Reference
-  protected ConnectionFactoryService connFactoryService;
+  protected MessageConsumerContainer consumerContainer;
 
   // References needed to actually deliver the activity.
   @Reference
@@ -67,41 +66,27 @@ public class LiteActivityListener implements MessageListener {
   public static final Logger LOG = LoggerFactory
       .getLogger(LiteActivityListener.class);
 
-  private Connection connection = null;
+  private ConsumerRegistration registration = null;
 
   /**
-   * Start a JMS connection.
+   * Start consuming activities, activities by the same actor are delivered in order.
    */
   public void activate(ComponentContext componentContext) {
     try {
-      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      javax.jms.Session session = connection.createSession(false,
-          javax.jms.Session.AUTO_ACKNOWLEDGE);
-      Topic dest = session.createTopic(ActivityConstants.LITE_EVENT_TOPIC);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
-      connection.start();
+      registration = consumerContainer.registerTopicListener(
+          ActivityConstants.LITE_EVENT_TOPIC, UserConstants.EVENT_PROP_USERID, this);
     } catch (JMSException e) {
       LOG.error(e.getMessage(), e);
-      if (connection != null) {
-        try {
-          connection.close();
-        } catch (JMSException e1) {
-        }
-      }
     }
   }
 
   /**
-   * Close the JMS connection
+   * Stop consuming activities.
    */
   protected void deactivate(ComponentContext ctx) {
-    if (connection != null) {
-      try {
-        connection.close();
-      } catch (JMSException e) {
-        LOG.error("Cannot close the activity JMS connection.", e);
-      }
+    if (registration != null) {
+      registration.close();
+      registration = null;
     }
   }
 
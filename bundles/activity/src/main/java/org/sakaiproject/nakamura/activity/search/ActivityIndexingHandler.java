@@ -31,13 +31,11 @@ import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
-import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
-import org.sakaiproject.nakamura.api.solr.IndexingHandler;
-import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler;
+import org.sakaiproject.nakamura.api.search.solr.IndexingBatch;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,7 +50,7 @@ import java.util.Set;
  * Indexing handler for activities.
  */
 @Component(immediate = true)
-public class ActivityIndexingHandler implements IndexingHandler {
+public class ActivityIndexingHandler extends AbstractBatchIndexingHandler {
 
   // list of properties to be indexed
   private static final Set<String> WHITELISTED_PROPS = ImmutableSet.of("_created");
@@ -84,19 +82,17 @@ public class ActivityIndexingHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDocuments(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDocuments(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<SolrInputDocument> getDocuments(IndexingBatch batch, Event event) {
     String path = (String) event.getProperty(FIELD_PATH);
 
     List<SolrInputDocument> documents = Lists.newArrayList();
     if (!StringUtils.isBlank(path)) {
       try {
-        Session session = repositorySession.adaptTo(Session.class);
-        ContentManager cm = session.getContentManager();
-        Content content = cm.get(path);
+        Content content = batch.getContent(path);
 
         if (content != null) {
           if (!CONTENT_TYPES.contains(content.getProperty("sling:resourceType"))) {
@@ -122,11 +118,11 @@ public class ActivityIndexingHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<String> getDeleteQueries(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<String> getDeleteQueries(IndexingBatch batch, Event event) {
     List<String> retval = Collections.emptyList();
     logger.debug("GetDelete for {} ", event);
     String path = (String) event.getProperty(FIELD_PATH);
@@ -64,7 +64,7 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
       .getLogger(LiteMostActiveContentSearchBatchResultProcessor.class);
 
   @Reference
-  private SolrSearchServiceFactory searchServiceFactory;
+  protected SolrSearchServiceFactory searchServiceFactory;
 
   /**
    * 
@@ -99,8 +99,8 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
             resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
                 (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
           }
-          // increment the count for this particular resource.
-          resources.get(resourceId).activityScore++;
+          // add the activity recorded by this item to the count for the resource.
+          resources.get(resourceId).activityScore += getActivityCount(node);
         }
       } catch (StorageClientException e) {
         // if something is wrong with this particular resourceNode,
@@ -170,6 +170,18 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
     write.endObject();
   }
 
+  /**
+   * @return the number of activities an item stands for, rollups carry a count and
+   *         individual activity items count once.
+   */
+  static int getActivityCount(Content activity) {
+    Object count = activity.getProperty("count");
+    if (count instanceof Number) {
+      return Math.max(1, ((Number) count).intValue());
+    }
+    return 1;
+  }
+
   public class ResourceActivity implements Comparable<ResourceActivity> {
     public final String id;
     public final String name;
@@ -127,8 +127,9 @@ public class MostActiveGroupsSearchBatchResultProcessor implements
           resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
               (Long) resourceContent.getProperty(FilesConstants.LAST_MODIFIED)));
         }
-        // increment the count for this particular resource.
-        resources.get(resourceId).activityScore++;
+        // add the activity recorded by this item to the count for the resource.
+        resources.get(resourceId).activityScore += LiteMostActiveContentSearchBatchResultProcessor
+            .getActivityCount(content);
       }
     }
 
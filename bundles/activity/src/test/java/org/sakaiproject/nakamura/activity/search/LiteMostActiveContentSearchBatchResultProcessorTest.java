@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class LiteMostActiveContentSearchBatchResultProcessorTest {
+
+  private LiteMostActiveContentSearchBatchResultProcessor processor;
+  private SlingHttpServletRequest request;
+  private ContentManager contentManager;
+  private List<Result> results;
+
+  @Before
+  public void setup() throws Exception {
+    processor = new LiteMostActiveContentSearchBatchResultProcessor();
+    processor.searchServiceFactory = mock(SolrSearchServiceFactory.class);
+    Repository repository = new BaseMemoryRepository().getRepository();
+    contentManager = repository.loginAdministrative().getContentManager();
+    javax.jcr.Session jcrSession = mock(javax.jcr.Session.class, Mockito.withSettings()
+        .extraInterfaces(SessionAdaptable.class));
+    when(((SessionAdaptable) jcrSession).getSession()).thenReturn(
+        repository.loginAdministrative());
+    request = mock(SlingHttpServletRequest.class, RETURNS_DEEP_STUBS);
+    when(request.getResourceResolver().adaptTo(javax.jcr.Session.class)).thenReturn(
+        jcrSession);
+    when(request.getRequestParameter(Mockito.anyString())).thenReturn(null);
+    results = new ArrayList<Result>();
+
+    contentManager.update(new Content("doc1", ImmutableMap.of(
+        FilesConstants.POOLED_CONTENT_FILENAME, (Object) "doc1.txt")));
+    contentManager.update(new Content("doc2", ImmutableMap.of(
+        FilesConstants.POOLED_CONTENT_FILENAME, (Object) "doc2.txt")));
+  }
+
+  @Test
+  public void testAddsTheCountsOfRollups() throws Exception {
+    addActivity("/activity/content/doc1/rollup-1", "doc1", 3L);
+    addActivity("/activity/content/doc1/rollup-2", "doc1", 2L);
+    // an individual item written before rollups counts once
+    addActivity("/activity/content/doc1/item", "doc1", null);
+    addActivity("/activity/content/doc2/rollup-1", "doc2", 4L);
+
+    StringWriter stringWriter = new StringWriter();
+    processor.writeResults(request, new JSONWriter(stringWriter), results.iterator());
+
+    JSONArray content = new JSONObject(stringWriter.toString()).getJSONArray("content");
+    Assert.assertEquals(2, content.length());
+    Assert.assertEquals("doc1", content.getJSONObject(0).getString("id"));
+    Assert.assertEquals(6, content.getJSONObject(0).getInt("count"));
+    Assert.assertEquals("doc2", content.getJSONObject(1).getString("id"));
+    Assert.assertEquals(4, content.getJSONObject(1).getInt("count"));
+  }
+
+  private void addActivity(String path, String resourceId, Long count) throws Exception {
+    if (count == null) {
+      contentManager.update(new Content(path, ImmutableMap.of("resourceId",
+          (Object) resourceId)));
+    } else {
+      contentManager.update(new Content(path, ImmutableMap.of("resourceId",
+          (Object) resourceId, "count", count)));
+    }
+    Result result = mock(Result.class);
+    when(result.getPath()).thenReturn(path);
+    results.add(result);
+  }
+}
@@ -23,8 +23,12 @@ import net.fortuna.ical4j.model.component.VEvent;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
+import java.util.Date;
+import java.util.List;
 
 /**
  * A service that allows one to fetch and store calendars.
@@ -63,6 +67,46 @@ public interface LiteCalendarService {
    */
   Calendar export(Session session, Content node, String[] types) throws CalendarException;
 
+  /**
+   * Finds the subnodes of a calendar {@link Content node} that match one of the types,
+   * the same way {@link #export(Session, Content, String[])} does, optionally only the
+   * ones that start within a range. Date hashed folders that lie outside the range are
+   * not read.
+   *
+   * @param node
+   *          The content that is a parent of all the underlying event nodes.
+   * @param types
+   *          An array of Strings that should be used to match the subnodes.
+   * @param start
+   *          The earliest start of a component, inclusive, or null.
+   * @param end
+   *          The latest start of a component, exclusive, or null.
+   * @return The component nodes in the order they are stored.
+   * @throws CalendarException
+   *           Failed to read the Sparse representation.
+   */
+  List<Content> find(Content node, String[] types, Date start, Date end)
+      throws CalendarException;
+
+  /**
+   * Writes a calendar as iCalendar data one component at a time, without building the
+   * {@link Calendar calendar} in memory.
+   *
+   * @param node
+   *          The calendar content, whose properties are written as calendar properties.
+   * @param components
+   *          The component nodes to write, usually found by
+   *          {@link #find(Content, String[], Date, Date)}.
+   * @param writer
+   *          Where to write the calendar.
+   * @throws CalendarException
+   *           Failed to convert a Sparse representation to iCalendar data.
+   * @throws IOException
+   *           Failed to write.
+   */
+  void export(Content node, Iterable<Content> components, Writer writer)
+      throws CalendarException, IOException;
+
   /**
    * Creates a Sparse based representation of a {@link Calendar calendar}.
    *
@@ -17,10 +17,7 @@
  */
 package org.sakaiproject.nakamura.calendar;
 
-import net.fortuna.ical4j.data.CalendarOutputter;
-import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Component;
-import net.fortuna.ical4j.model.ValidationException;
 
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
@@ -37,14 +34,20 @@ import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.util.ISO8601Date;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Date;
+import java.util.List;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 @ServiceDocumentation(
     bindings = {
@@ -63,10 +66,17 @@ import javax.servlet.ServletException;
                 "This servlet will generate the underlying JCR node structure into a valid iCal format.",
                 "If no selector is specified it will output components of type VEvent.",
                 "More components can be looked for by adding in the type as a selector.",
-                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics"
+                "eg: http://localhost:8080/path/to/calendar.vevent.vtodo.vjournal.ics",
+                "The feed is written as it is read and carries an ETag, unchanged calendars answer 304 to If-None-Match."
+            },
+            parameters = {
+                @ServiceParameter(name = "start", description = "Optional ISO8601 date, only components that start at or after it are exported."),
+                @ServiceParameter(name = "end", description = "Optional ISO8601 date, only components that start before it are exported.")
             },
             response = {
                 @ServiceResponse(code = 200, description = "Generates a calendar feed of the underlying JCR node structure."),
+                @ServiceResponse(code = 304, description = "The calendar has not changed since the ETag in If-None-Match."),
+                @ServiceResponse(code = 400, description = "The start or end is not a valid date."),
                 @ServiceResponse(code = 500, description = "Something went wrong trying the serialize the underlying node structure, the failure is placed in the HTML.")
             }
         ) 
@@ -109,24 +119,76 @@ public class CalendarIcsServlet extends SlingSafeMethodsServlet {
     try {
       Content content = resource.adaptTo(Content.class);
       if (content != null) {
-        // Construct the Calendar from the content tree.
-        Calendar iCal = liteCalendarService.export(null, content, types);
-        // Output the calendar, we don't do any validation.
-        CalendarOutputter outputter = new CalendarOutputter(false);
-        outputter.output(iCal, response.getOutputStream());
+        Date start = getDate(request, "start");
+        Date end = getDate(request, "end");
+        List<Content> components = liteCalendarService.find(content, types, start, end);
+
+        String etag = getETag(content, types, start, end, components);
+        response.setHeader("ETag", etag);
+        if (matches(request.getHeader("If-None-Match"), etag)) {
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          return;
+        }
+
+        // Write the components as they are converted, we don't do any validation.
+        liteCalendarService.export(content, components, response.getWriter());
       } else {
         response.sendError(404);
       }
+    } catch (IllegalArgumentException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
     } catch (CalendarException e) {
       LOGGER.warn(e.getMessage(),e);
       response.sendError(e.getCode(), e.getMessage());
-    } catch (ValidationException e) {
-      LOGGER.warn(e.getMessage(),e);
-      response.sendError(500, "Failed to output proper ical.");
     }
 
   }
 
+  private Date getDate(SlingHttpServletRequest request, String name) {
+    String value = request.getParameter(name);
+    if (value == null || value.length() == 0) {
+      return null;
+    }
+    try {
+      return new ISO8601Date(value).getTime();
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Invalid " + name + " date: " + value);
+    }
+  }
+
+  /**
+   * The ETag changes whenever a component is added, removed or modified, or the calendar
+   * itself is modified.
+   */
+  private String getETag(Content content, String[] types, Date start, Date end,
+      List<Content> components) {
+    StringBuilder sb = new StringBuilder(content.getPath());
+    sb.append(':').append(content.getProperty(Content.LASTMODIFIED_FIELD));
+    for (String type : types) {
+      sb.append(':').append(type);
+    }
+    sb.append(':').append(start == null ? "" : start.getTime());
+    sb.append(':').append(end == null ? "" : end.getTime());
+    for (Content component : components) {
+      sb.append('\n').append(component.getPath()).append(':')
+          .append(component.getProperty(Content.LASTMODIFIED_FIELD));
+    }
+    return "\"" + StorageClientUtils.insecureHash(sb.toString()) + "\"";
+  }
+
+  private boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals(etag) || candidate.equals("*")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   /**
    * @param request
    * @return
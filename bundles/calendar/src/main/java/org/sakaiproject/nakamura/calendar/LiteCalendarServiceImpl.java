@@ -27,9 +27,11 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 
 import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.FoldingWriter;
 import net.fortuna.ical4j.data.ParserException;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Date;
+import net.fortuna.ical4j.model.DateTime;
 import net.fortuna.ical4j.model.Property;
 import net.fortuna.ical4j.model.PropertyFactory;
 import net.fortuna.ical4j.model.PropertyFactoryImpl;
@@ -62,6 +64,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.Writer;
 import java.net.URISyntaxException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -70,6 +73,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
 
 /**
  * TODO Does not yet correctly distinguish between iCal4j Date and DateTime properties.
@@ -81,6 +86,14 @@ import java.util.Set;
 public class LiteCalendarServiceImpl implements LiteCalendarService {
   public static final Logger LOGGER = LoggerFactory.getLogger(LiteCalendarServiceImpl.class);
 
+  private static final String DTSTART = SAKAI_CALENDAR_PROPERTY_PREFIX + Property.DTSTART;
+
+  private static final TimeZone GMT = TimeZone.getTimeZone("GMT");
+
+  /** The year, month and day folders of the paths from {@link CalendarSubPathProducer} */
+  private static final Pattern[] DATE_FOLDERS = new Pattern[] {
+      Pattern.compile("\\d{4}"), Pattern.compile("\\d{2}"), Pattern.compile("\\d{2}") };
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(Session, org.sakaiproject.nakamura.api.lite.content.Content)
@@ -94,12 +107,7 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(Session, org.sakaiproject.nakamura.api.lite.content.Content, java.lang.String[])
    */
   public Calendar export(Session session, Content node, String[] types) throws CalendarException {
-    // Translate input type strings (e.g., "VEVENT") into Sling resource types
-    // (e.g., "sakai/calendar-vevent").
-    Set<String> wantedResourceTypes = Sets.newHashSetWithExpectedSize(types.length);
-    for (String type : types) {
-      wantedResourceTypes.add(SAKAI_CALENDAR_RT + "-" + type.toLowerCase());
-    }
+    List<Content> components = find(node, types, null, null);
 
     // Start constructing the iCal Calendar.
     Calendar calendar = new Calendar();
@@ -108,10 +116,8 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
       // Add any Calendar properties.
       addNodePropertiesToCal(node, calendar.getProperties(), propFactory);
 
-      // Traverse the tree.
-      Iterable<Content> children = node.listChildren();
-      for (Content childContent : children) {
-        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes);
+      for (Content component : components) {
+        calendar.getComponents().add(toEvent(component, propFactory));
       }
     } catch (IOException e) {
       LOGGER.error("Caught an IOException when trying to export a calendar", e);
@@ -127,6 +133,58 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
     return calendar;
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#find(org.sakaiproject.nakamura.api.lite.content.Content, java.lang.String[], java.util.Date, java.util.Date)
+   */
+  public List<Content> find(Content node, String[] types, java.util.Date start,
+      java.util.Date end) {
+    // Translate input type strings (e.g., "VEVENT") into Sling resource types
+    // (e.g., "sakai/calendar-vevent").
+    Set<String> wantedResourceTypes = Sets.newHashSetWithExpectedSize(types.length);
+    for (String type : types) {
+      wantedResourceTypes.add(SAKAI_CALENDAR_RT + "-" + type.toLowerCase());
+    }
+    long from = start == null ? Long.MIN_VALUE : start.getTime();
+    long to = end == null ? Long.MAX_VALUE : end.getTime();
+
+    // Traverse the tree.
+    List<Content> components = new ArrayList<Content>();
+    for (Content childContent : node.listChildren()) {
+      recurseForEvents(childContent, components, wantedResourceTypes, from, to,
+          new int[0]);
+    }
+    return components;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#export(org.sakaiproject.nakamura.api.lite.content.Content, java.lang.Iterable, java.io.Writer)
+   */
+  public void export(Content node, Iterable<Content> components, Writer writer)
+      throws CalendarException, IOException {
+    // The same output as CalendarOutputter, one component at a time.
+    FoldingWriter out = new FoldingWriter(writer);
+    PropertyFactory propFactory = PropertyFactoryImpl.getInstance();
+    try {
+      Calendar calendar = new Calendar();
+      addNodePropertiesToCal(node, calendar.getProperties(), propFactory);
+      out.write(Calendar.BEGIN + ':' + Calendar.VCALENDAR + "\r\n");
+      out.write(calendar.getProperties().toString());
+      for (Content component : components) {
+        out.write(toEvent(component, propFactory).toString());
+      }
+      out.write(Calendar.END + ':' + Calendar.VCALENDAR + "\r\n");
+      out.flush();
+    } catch (URISyntaxException e) {
+      LOGGER.error("Caught a URISyntaxException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    } catch (ParseException e) {
+      LOGGER.error("Caught a ParseException when trying to export a calendar", e);
+      throw new CalendarException(500, e.getMessage());
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.calendar.LiteCalendarService#store(net.fortuna.ical4j.model.Calendar, org.sakaiproject.nakamura.api.lite.Session, java.lang.String)
@@ -270,25 +328,85 @@ public class LiteCalendarServiceImpl implements LiteCalendarService {
     }
   }
 
-  private void recurseForEvents(Content node, Calendar calendar, PropertyFactory propFactory,
-      Set<String> wantedResourceTypes) throws IOException, URISyntaxException, ParseException {
+  private void recurseForEvents(Content node, List<Content> components,
+      Set<String> wantedResourceTypes, long from, long to, int[] dateParts) {
     final String resourceType = (String) node.getProperty(SLING_RESOURCE_TYPE_PROPERTY);
     if (resourceType != null && wantedResourceTypes.contains(resourceType)) {
       // Treat the content as event storage.
-      PropertyList eventProperties = new PropertyList();
-      addNodePropertiesToCal(node, eventProperties, propFactory);
-      VEvent event = new VEvent(eventProperties);
-
-      // Add the event to the calendar.
-      calendar.getComponents().add(event);
+      if (startsWithin(node, from, to)) {
+        components.add(node);
+      }
     } else {
+      int[] childParts = dateParts;
+      if (dateParts.length < DATE_FOLDERS.length
+          && (from != Long.MIN_VALUE || to != Long.MAX_VALUE)) {
+        String name = StorageClientUtils.getObjectName(node.getPath());
+        if (DATE_FOLDERS[dateParts.length].matcher(name).matches()) {
+          childParts = new int[dateParts.length + 1];
+          System.arraycopy(dateParts, 0, childParts, 0, dateParts.length);
+          childParts[dateParts.length] = Integer.parseInt(name);
+          if (!overlaps(childParts, from, to)) {
+            // nothing in this year, month or day starts within the range
+            return;
+          }
+        }
+      }
       Iterable<Content> children = node.listChildren();
       for (Content childContent : children) {
-        recurseForEvents(childContent, calendar, propFactory, wantedResourceTypes);
+        recurseForEvents(childContent, components, wantedResourceTypes, from, to,
+            childParts);
       }
     }
   }
 
+  /**
+   * @return true if the year, month or day of a date hashed folder overlaps the range.
+   */
+  private boolean overlaps(int[] dateParts, long from, long to) {
+    java.util.Calendar first = java.util.Calendar.getInstance(GMT);
+    first.clear();
+    first.set(dateParts[0], dateParts.length > 1 ? dateParts[1] - 1 : 0,
+        dateParts.length > 2 ? dateParts[2] : 1);
+    java.util.Calendar last = (java.util.Calendar) first.clone();
+    last.add(dateParts.length == 1 ? java.util.Calendar.YEAR
+        : dateParts.length == 2 ? java.util.Calendar.MONTH : java.util.Calendar.DATE, 1);
+    return first.getTimeInMillis() < to && last.getTimeInMillis() > from;
+  }
+
+  /**
+   * @return true if the component starts within the range, or has no start it can be
+   *         filtered on.
+   */
+  private boolean startsWithin(Content node, long from, long to) {
+    if (from == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+      return true;
+    }
+    Object start = node.getProperty(DTSTART);
+    long time;
+    if (start instanceof java.util.Calendar) {
+      time = ((java.util.Calendar) start).getTimeInMillis();
+    } else if (start instanceof String) {
+      try {
+        String value = (String) start;
+        time = value.indexOf('T') > 0 ? new DateTime(value).getTime() : new Date(value)
+            .getTime();
+      } catch (ParseException e) {
+        LOGGER.debug("Unable to parse the start of {} ", node.getPath());
+        return true;
+      }
+    } else {
+      return true;
+    }
+    return time >= from && time < to;
+  }
+
+  private VEvent toEvent(Content node, PropertyFactory propFactory) throws IOException,
+      URISyntaxException, ParseException {
+    PropertyList eventProperties = new PropertyList();
+    addNodePropertiesToCal(node, eventProperties, propFactory);
+    return new VEvent(eventProperties);
+  }
+
   private void addCalPropertiesToNode(PropertyList propertyList, Content node) {
     @SuppressWarnings("unchecked")
     Iterator<Property> propIter = (Iterator<Property>) propertyList.iterator();
@@ -37,14 +37,12 @@ import org.apache.sling.api.SlingConstants;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
-import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
-import org.sakaiproject.nakamura.api.solr.IndexingHandler;
-import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler;
+import org.sakaiproject.nakamura.api.search.solr.IndexingBatch;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
 import org.sakaiproject.nakamura.util.ISO8601Date;
 import org.slf4j.Logger;
@@ -60,7 +58,7 @@ import java.util.Set;
  *
  */
 @Component(immediate = true)
-public class CalendarIndexingHandler implements IndexingHandler {
+public class CalendarIndexingHandler extends AbstractBatchIndexingHandler {
 
   private static final Logger logger = LoggerFactory
       .getLogger(CalendarIndexingHandler.class);
@@ -88,19 +86,17 @@ public class CalendarIndexingHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDocuments(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDocuments(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<SolrInputDocument> getDocuments(IndexingBatch batch, Event event) {
     String path = (String) event.getProperty(FIELD_PATH);
 
     List<SolrInputDocument> documents = Lists.newArrayList();
     if (!StringUtils.isBlank(path)) {
       try {
-        Session session = repositorySession.adaptTo(Session.class);
-        ContentManager cm = session.getContentManager();
-        Content content = cm.get(path);
+        Content content = batch.getContent(path);
 
         if (content != null) {
           SolrInputDocument doc = null;
@@ -148,11 +144,11 @@ public class CalendarIndexingHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<String> getDeleteQueries(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<String> getDeleteQueries(IndexingBatch batch, Event event) {
     List<String> retval = Collections.emptyList();
     logger.debug("GetDelete for {} ", event);
     String path = (String) event.getProperty(FIELD_PATH);
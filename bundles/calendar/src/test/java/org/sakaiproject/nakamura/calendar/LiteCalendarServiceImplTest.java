@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.calendar;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 
 import com.google.common.collect.ImmutableMap;
@@ -45,12 +46,15 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.util.IOUtils;
+import org.sakaiproject.nakamura.util.ISO8601Date;
 
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Collections;
@@ -122,6 +126,54 @@ public class LiteCalendarServiceImplTest {
     assertEquals(veventUid, prop.getValue());
   }
 
+  @Test
+  public void testFindInRange() throws Exception {
+    ContentManager contentManager = session.getContentManager();
+    String calendarPath = testKey + "/range-calendar";
+    contentManager.update(new Content(calendarPath, ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar"
+    )));
+    contentManager.update(new Content(calendarPath + "/2011/01/07/05/20-00-january", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110107T172000Z",
+        "sakai:vcal-UID", "january"
+    )));
+    contentManager.update(new Content(calendarPath + "/2011/02/07/05/20-00-february", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-DTSTART", "20110207T172000Z",
+        "sakai:vcal-UID", "february"
+    )));
+    contentManager.update(new Content(calendarPath + "/undated", ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/calendar-vevent",
+        "sakai:vcal-UID", "undated"
+    )));
+    Content calendarContent = contentManager.get(calendarPath);
+    String[] types = new String[] { "vevent" };
+
+    assertEquals(3, liteCalendarService.find(calendarContent, types, null, null).size());
+
+    List<Content> february = liteCalendarService.find(calendarContent, types,
+        new ISO8601Date("20110201T000000Z").getTime(),
+        new ISO8601Date("20110301T000000Z").getTime());
+    assertEquals(2, february.size());
+    for (Content c : february) {
+      assertFalse("january".equals(c.getProperty("sakai:vcal-UID")));
+    }
+  }
+
+  @Test
+  public void testStreamingExport() throws Exception {
+    Calendar inputCalendar = loadTestCalendar();
+    String calendarPath = testKey + "/streaming-calendar";
+    Content createdContent = liteCalendarService.store(inputCalendar, session, calendarPath);
+
+    StringWriter writer = new StringWriter();
+    liteCalendarService.export(createdContent, liteCalendarService.find(createdContent,
+        new String[] { "vevent" }, null, null), writer);
+    Calendar streamed = new CalendarBuilder().build(new StringReader(writer.toString()));
+    assertEquivalentCalendar(liteCalendarService.export(session, createdContent), streamed);
+  }
+
   @Test
   public void testStoreAsCalendar() throws CalendarException, IOException, ParserException {
     Calendar inputCalendar = loadTestCalendar();
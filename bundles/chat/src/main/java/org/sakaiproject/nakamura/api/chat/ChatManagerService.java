@@ -20,7 +20,28 @@ package org.sakaiproject.nakamura.api.chat;
 public interface ChatManagerService {
 
   /**
-   * Adds a time for a user. Even if he/she is not in the cache already.
+   * Posted, and carried to every server over JMS, when the chat time of a user moves on.
+   */
+  public static final String CHAT_UPDATED_TOPIC = "org/sakaiproject/nakamura/chat/UPDATED";
+
+  /**
+   * The user whose chat was updated, on {@link #CHAT_UPDATED_TOPIC} events.
+   */
+  public static final String EVENT_USER = "user";
+
+  /**
+   * The time of the update in ms, on {@link #CHAT_UPDATED_TOPIC} events.
+   */
+  public static final String EVENT_TIME = "time";
+
+  /**
+   * The message bucket context clients wait on for chat updates.
+   */
+  public static final String BUCKET_CONTEXT = "chat";
+
+  /**
+   * Adds a time for a user. Even if he/she is not in the cache already. Clients waiting
+   * for the user's chat to update are woken.
    * 
    * @param userID
    *          The ID of the user you wish to add.
@@ -21,12 +21,19 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.chat.ChatManagerService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 
+import java.util.Dictionary;
+import java.util.Hashtable;
+
 /**
  * The <code>ChatManagerServiceImpl</code>
  */
@@ -42,6 +49,9 @@ public class ChatManagerServiceImpl implements ChatManagerService {
 
   private CacheManagerService cacheManagerService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile EventAdmin eventAdmin;
+
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
   }
@@ -89,6 +99,13 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    */
   public void put(String userID, long time) {
     getCachedMap().put(userID, time);
+    EventAdmin ea = eventAdmin;
+    if (ea != null) {
+      Dictionary<String, Object> properties = new Hashtable<String, Object>();
+      properties.put(EVENT_USER, userID);
+      properties.put(EVENT_TIME, time);
+      ea.postEvent(new Event(CHAT_UPDATED_TOPIC, properties));
+    }
   }
 
   /**
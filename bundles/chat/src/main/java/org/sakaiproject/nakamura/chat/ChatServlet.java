@@ -19,6 +19,9 @@ package org.sakaiproject.nakamura.chat;
 
 import org.apache.commons.lang.time.FastDateFormat;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
+import org.apache.felix.scr.annotations.References;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -34,6 +37,8 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,7 +51,9 @@ import javax.servlet.ServletException;
  * Will check if a user has any chat updates.
  */
 @SlingServlet(selectors = { "chatupdate" }, resourceTypes = { "sakai/messagestore" }, generateComponent = true, methods = { "GET" })
-@Reference(referenceInterface = ChatManagerService.class, name = "ChatManagerService")
+@References({
+    @Reference(referenceInterface = ChatManagerService.class, name = "ChatManagerService"),
+    @Reference(referenceInterface = MessageBucketService.class, name = "MessageBucketService", cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC) })
 @ServiceDocumentation(name = "ChatServlet", okForVersion = "0.11",
     shortDescription = "Check for new chat messages.",
     description = "Provides a mechanism to check if the currently logged in user has new chat messages awaiting.",
@@ -55,7 +62,7 @@ import javax.servlet.ServletException;
       @ServiceMethod(name = "GET",
         description = {
           "GETs to this servlet will produce a JSON object with 3 keys.",
-          "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The current server time in milliseconds.</li><li>pulltime: The current time in a JCR formatted date.<li></ul>"
+          "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The current server time in milliseconds.</li><li>pulltime: The current time in a JCR formatted date.<li><li>bucket: When available, a URL to long poll instead of polling this servlet. The request waits until the chat of the user is updated or it times out.</li></ul>"
         },
         parameters = @ServiceParameter(name = "t", description = "This variable should hold the last time value retrieved from this servlet. If this variable is omitted it uses the current time."),
         response = {
@@ -67,6 +74,7 @@ public class ChatServlet extends SlingSafeMethodsServlet {
   private static final Logger LOGGER = LoggerFactory.getLogger(ChatServlet.class);
   private static final long serialVersionUID = -4011626674940239621L;
   private transient ChatManagerService chatManagerService;
+  private transient volatile MessageBucketService messageBucketService;
 
   // We use this format rather than ISO8601 because Jackrabbit uses a subset (8601:2000)
   // See jsr170.pdf - 6.2.5.1
@@ -83,6 +91,14 @@ public class ChatServlet extends SlingSafeMethodsServlet {
     this.chatManagerService = null;
   }
 
+  protected void bindMessageBucketService(MessageBucketService messageBucketService) {
+    this.messageBucketService = messageBucketService;
+  }
+
+  protected void unbindMessageBucketService(MessageBucketService messageBucketService) {
+    this.messageBucketService = null;
+  }
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -118,7 +134,7 @@ public class ChatServlet extends SlingSafeMethodsServlet {
       }
     }
 
-    LOGGER.info("Returned time = {}, update = {}", time, hasUpdate);
+    LOGGER.debug("Returned time = {}, update = {}", time, hasUpdate);
 
     Calendar cal = Calendar.getInstance();
     cal.setTimeInMillis(time);
@@ -139,6 +155,11 @@ public class ChatServlet extends SlingSafeMethodsServlet {
       // (8601:2000)
       // See jsr170.pdf - 6.2.5.1
       write.value(dateFormat.format(cal));
+      String bucketUrl = getBucketUrl(request);
+      if (bucketUrl != null) {
+        write.key("bucket");
+        write.value(bucketUrl);
+      }
       write.endObject();
     } catch (JSONException e) {
       LOGGER.warn("Unable to parse JSON for user {} and time {}", userID, time);
@@ -148,4 +169,20 @@ public class ChatServlet extends SlingSafeMethodsServlet {
     // Make sure the connection is not keep-alive.
     response.setHeader("Connection", "close");
   }
+
+  /**
+   * @return the URL the client can wait on for its next chat update, null if there is
+   *         none, in which case the client keeps polling.
+   */
+  private String getBucketUrl(SlingHttpServletRequest request) {
+    MessageBucketService bucketService = messageBucketService;
+    if (bucketService != null) {
+      try {
+        return bucketService.getBucketUrl(request, ChatManagerService.BUCKET_CONTEXT);
+      } catch (MessageBucketException e) {
+        LOGGER.debug("No chat bucket for {}: {} ", request.getRemoteUser(), e.getMessage());
+      }
+    }
+    return null;
+  }
 }
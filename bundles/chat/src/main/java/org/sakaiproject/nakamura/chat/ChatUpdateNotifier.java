@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Reference;
+import org.sakaiproject.nakamura.api.activemq.ConsumerRegistration;
+import org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageListener;
+
+/**
+ * Wakes clients waiting on their chat message bucket when their chat is updated. Chat
+ * updated events are carried to every server over JMS, so a client is woken on whichever
+ * server it is waiting on, not only the server that delivered the message.
+ */
+@Component(immediate = true)
+public class ChatUpdateNotifier implements MessageListener {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatUpdateNotifier.class);
+
+  @Reference
+  protected MessageConsumerContainer consumerContainer;
+
+  @Reference
+  protected MessageBucketService messageBucketService;
+
+  private ConsumerRegistration registration;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    try {
+      registration = consumerContainer.registerTopicListener(
+          ChatManagerService.CHAT_UPDATED_TOPIC, ChatManagerService.EVENT_USER, this);
+    } catch (JMSException e) {
+      LOGGER.error("Unable to listen for chat updates, clients will wait until they time out ", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (registration != null) {
+      registration.close();
+      registration = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see javax.jms.MessageListener#onMessage(javax.jms.Message)
+   */
+  public void onMessage(Message message) {
+    try {
+      String userId = message.getStringProperty(ChatManagerService.EVENT_USER);
+      if (userId != null) {
+        Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("type", ChatManagerService.BUCKET_CONTEXT);
+        payload.put("update", true);
+        Object time = message.getObjectProperty(ChatManagerService.EVENT_TIME);
+        if (time != null) {
+          payload.put("time", time);
+        }
+        messageBucketService.markReady(userId, ChatManagerService.BUCKET_CONTEXT, payload);
+      }
+    } catch (JMSException e) {
+      LOGGER.warn("Unable to read chat update {} ", e.getMessage());
+    }
+  }
+
+}
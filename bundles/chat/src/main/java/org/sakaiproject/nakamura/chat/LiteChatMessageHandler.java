@@ -35,7 +35,6 @@ import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.LiteMessageProfileWriter;
@@ -44,6 +43,8 @@ import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.MessageRoute;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
+import org.sakaiproject.nakamura.api.message.ResolvingMessageProfileWriter;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
@@ -60,7 +61,7 @@ import java.io.IOException;
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = "service.description", value = "Handler for internally delivered chat messages") })
 public class LiteChatMessageHandler implements LiteMessageTransport,
-    LiteMessageProfileWriter {
+    ResolvingMessageProfileWriter {
   private static final Logger LOG = LoggerFactory.getLogger(LiteChatMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_CHAT;
   private static final Object CHAT_TRANSPORT = "chat";
@@ -161,9 +162,20 @@ public class LiteChatMessageHandler implements LiteMessageTransport,
    *      String, org.apache.sling.commons.json.io.JSONWriter)
    */
   public void writeProfileInformation(Session session, String recipient, JSONWriter write) {
+    writeProfileInformation(session, recipient, write, new BasicUserInfoResolver(session,
+        basicUserInfoService));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.ResolvingMessageProfileWriter#writeProfileInformation(Session,
+   *      String, JSONWriter, BasicUserInfoResolver)
+   */
+  public void writeProfileInformation(Session session, String recipient,
+      JSONWriter write, BasicUserInfoResolver resolver) {
     try {
-      Authorizable au = session.getAuthorizableManager().findAuthorizable(recipient);
-      ValueMap map = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+      ValueMap map = new ValueMapDecorator(resolver.getProperties(recipient));
       ExtendedJSONWriter.writeValueMapInternals(write, map);
     } catch (Exception e) {
       LOG.error("Failed to write profile information for " + recipient, e);
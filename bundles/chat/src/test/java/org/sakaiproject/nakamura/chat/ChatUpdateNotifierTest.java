@@ -0,0 +1,84 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
+
+import java.util.Map;
+
+import javax.jms.Message;
+
+/**
+ *
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ChatUpdateNotifierTest {
+
+  @Mock
+  private MessageBucketService messageBucketService;
+
+  @Mock
+  private Message message;
+
+  private ChatUpdateNotifier notifier;
+
+  @Before
+  public void setUp() {
+    notifier = new ChatUpdateNotifier();
+    notifier.messageBucketService = messageBucketService;
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testWakesTheUpdatedUser() throws Exception {
+    when(message.getStringProperty(ChatManagerService.EVENT_USER)).thenReturn("jack");
+    when(message.getObjectProperty(ChatManagerService.EVENT_TIME)).thenReturn(1234L);
+
+    notifier.onMessage(message);
+
+    ArgumentCaptor<Map> payload = ArgumentCaptor.forClass(Map.class);
+    verify(messageBucketService).markReady(eq("jack"),
+        eq(ChatManagerService.BUCKET_CONTEXT), payload.capture());
+    assertEquals(Boolean.TRUE, payload.getValue().get("update"));
+    assertEquals(1234L, payload.getValue().get("time"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testIgnoresUpdatesWithoutAUser() throws Exception {
+    notifier.onMessage(message);
+
+    verify(messageBucketService, never()).markReady(anyString(), anyString(),
+        any(Map.class));
+  }
+}
@@ -75,6 +75,12 @@ public interface ClusterTrackingService {
    */
   String getClusterUniqueId();
 
+  /**
+   * @return generate an ID that will be unique in the cluster, as a number. The String
+   *         ids from {@link #getClusterUniqueId()} are encodings of numbers like this.
+   */
+  long getClusterUniqueLongId();
+
   /**
    * @param trackingCookie
    * @return the ClusterServer originating this tracking Cookie.
@@ -488,4 +488,13 @@ public class ClusterTrackingServiceImpl implements ClusterTrackingService, Runna
     return uniqueIdGenerator.nextId();
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.cluster.ClusterTrackingService#getClusterUniqueLongId()
+   */
+  public long getClusterUniqueLongId() {
+    return uniqueIdGenerator.nextLongId();
+  }
+
 }
@@ -20,18 +20,15 @@ package org.sakaiproject.nakamura.cluster;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Reference;
 import org.osgi.service.component.ComponentContext;
-import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.activemq.ConsumerRegistration;
+import org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.jms.Connection;
 import javax.jms.JMSException;
 import javax.jms.Message;
-import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
-import javax.jms.Session;
-import javax.jms.Topic;
 
 /**
  *
@@ -43,11 +40,11 @@ public class ClusterUserMessageListener implements MessageListener {
       .getLogger(ClusterUserMessageListener.class);
 
   @Reference
-  protected ConnectionFactoryService connFactoryService;
+  protected MessageConsumerContainer consumerContainer;
   @Reference
   protected ClusterTrackingService clusterTrackingService;
 
-  private Connection connection;
+  private ConsumerRegistration registration;
   private ClusterTrackingServiceImpl clusterTrackingServiceImpl;
 
   protected void activate(ComponentContext componentContext) {
@@ -57,31 +54,19 @@ public class ClusterUserMessageListener implements MessageListener {
     clusterTrackingServiceImpl = (ClusterTrackingServiceImpl) clusterTrackingService;
 
     try {
-      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      Topic dest = session.createTopic(ClusterTrackingService.EVENT_PING_CLUSTER_USER
-          + "/" + serverId);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
-      connection.start();
+      registration = consumerContainer.registerTopicListener(
+          ClusterTrackingService.EVENT_PING_CLUSTER_USER + "/" + serverId,
+          ClusterTrackingService.EVENT_USER, this);
     } catch (JMSException e) {
       LOGGER.error(e.getMessage(), e);
-      if (connection != null) {
-        try {
-          connection.close();
-        } catch (JMSException e1) {
-        }
-      }
     }
 
   }
 
   protected void deactivate(ComponentContext ctx) {
-    if (connection != null) {
-      try {
-        connection.close();
-      } catch (JMSException e) {
-      }
+    if (registration != null) {
+      registration.close();
+      registration = null;
     }
   }
 
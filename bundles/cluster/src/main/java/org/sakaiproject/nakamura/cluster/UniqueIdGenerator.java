@@ -18,51 +18,81 @@
 package org.sakaiproject.nakamura.cluster;
 
 import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
 import java.util.GregorianCalendar;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class UniqueIdGenerator {
 
-  private Object lockObject = new Object();
-  private long next = 0;
+  private static final Logger LOGGER = LoggerFactory.getLogger(UniqueIdGenerator.class);
+  private static final long MICRO_PER_MS = 1000L;
+  private static final long SERVER_SPACE = 10000L;
+  /**
+   * The largest (ms since epoch * 1000 + micro) that still fits in a long once the server
+   * is added, about 29 years after the epoch.
+   */
+  static final long MAX_TIME = (Long.MAX_VALUE - SERVER_SPACE) / SERVER_SPACE;
+  private static final long YEAR_MS = 365L * 24L * 3600L * 1000L;
+
+  /**
+   * The last (ms since epoch * 1000 + micro) handed out. Updated with a CAS so minting an
+   * id never takes a lock.
+   */
+  private final AtomicLong last = new AtomicLong();
+  private final AtomicInteger rollover = new AtomicInteger();
   private long epoch;
-  private long last = 0;
-  private long micro = 0;
   private int serverId;
-  private int rollover;
 
   public UniqueIdGenerator(int serverId) {
+    this(serverId, new GregorianCalendar(2010, 8, 6).getTimeInMillis());
+  }
+
+  UniqueIdGenerator(int serverId, long epoch) {
     this.serverId = serverId;
-    GregorianCalendar calendar = new GregorianCalendar(2010, 8, 6);
-    epoch = calendar.getTimeInMillis();
+    this.epoch = epoch;
+    long left = MAX_TIME / MICRO_PER_MS - (System.currentTimeMillis() - epoch);
+    if (left < YEAR_MS) {
+      LOGGER.error("Ids run out of space in {} days, after that no id can be minted",
+          left / (24L * 3600L * 1000L));
+    }
   }
 
   public String nextId() {
-    return StringUtils.encode(nextIdNum().toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    return StringUtils.encode(toByteArray(nextLongId()), StringUtils.URL_SAFE_ENCODING);
   }
-  
+
   public BigInteger nextIdNum() {
-    // single threaded this benchmarks at 0.5 ns per invocation, so rollover is possible
-    synchronized (lockObject) {
-      next = System.currentTimeMillis() - epoch;
-      if (next == last) { // 2 in the same ms
-        micro++;
-      } else if (next < last) { // roll over happend in this ms
-        next = last;
-        micro++;
-      } else { // new ms
-        micro = 0;
-        last = next;
+    return BigInteger.valueOf(nextLongId());
+  }
+
+  /**
+   * @return the next id as a long, the same number {@link #nextIdNum()} would give.
+   */
+  public long nextLongId() {
+    long now = (System.currentTimeMillis() - epoch) * MICRO_PER_MS;
+    long next;
+    for (;;) {
+      long previous = last.get();
+      // a new ms starts the micro count at 0, 2 in the same ms, or the clock going back,
+      // carry on from the last one. When micro passes 999 it carries into the next ms,
+      // which is where the next ms would have started anyway.
+      next = now > previous ? now : previous + 1;
+      if (next > MAX_TIME) {
+        // moving the epoch would mint ids that were handed out before.
+        throw new IllegalStateException("Unique ids no longer fit in a long, "
+            + "the id format has to change");
       }
-      // catch any rollover in micro.
-      if (micro > 999) {
-        rollover++;
-        next++;
-        micro = 0;
-        last = next;
+      if (last.compareAndSet(previous, next)) {
+        break;
       }
     }
+    if (next != now && next % MICRO_PER_MS == 0) {
+      rollover.incrementAndGet();
+    }
     // Collision analysis
     // The server number is unique in the cluster so no 2 servers with the same number can
     // exist at the same time
@@ -72,14 +102,28 @@ public class UniqueIdGenerator {
     // the server part of the number is prefixed
     // by 1 as in 1SSSS therefore this ID can never collide in the cluster or by rollover
     // provided we have < 9001 servers in the cluster.
-    BigInteger idNum = BigInteger.valueOf(next*1000+micro);
-    idNum = idNum.multiply(BigInteger.valueOf(10000));
-    idNum = idNum.add(BigInteger.valueOf(serverId));
-    return idNum;
+    // The number fits in a long until 2039, 2^63 / 10^7 ms after the epoch, see MAX_TIME.
+    return next * SERVER_SPACE + serverId;
   }
-  
+
   public int getRollover() {
-    return rollover;
+    return rollover.get();
+  }
+
+  /**
+   * @param id
+   *          a positive id.
+   * @return the same bytes as BigInteger.valueOf(id).toByteArray(), so ids encode as they
+   *         always have.
+   */
+  static byte[] toByteArray(long id) {
+    int bitLength = 64 - Long.numberOfLeadingZeros(id);
+    byte[] b = new byte[bitLength / 8 + 1];
+    for (int i = b.length - 1; i >= 0; i--) {
+      b[i] = (byte) id;
+      id >>>= 8;
+    }
+    return b;
   }
 
 }
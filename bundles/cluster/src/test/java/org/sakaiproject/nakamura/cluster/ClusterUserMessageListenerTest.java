@@ -28,7 +28,9 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
-import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.activemq.ConsumerRegistration;
+import org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -38,12 +40,7 @@ import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Hashtable;
 
-import javax.jms.Connection;
-import javax.jms.ConnectionFactory;
 import javax.jms.Message;
-import javax.jms.MessageConsumer;
-import javax.jms.Session;
-import javax.jms.Topic;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanException;
@@ -66,7 +63,7 @@ public class ClusterUserMessageListenerTest extends AbstractEasyMockTest {
   private Capture<ClusterServerImpl> clusterServerCapture;
   private ClusterUserMessageListener clusterUserMessageListener;
   private ComponentContext componentContext;
-  private ConnectionFactoryService connectionFactoryService;
+  private MessageConsumerContainer consumerContainer;
 
   @SuppressWarnings("unchecked")
   @Before
@@ -81,11 +78,11 @@ public class ClusterUserMessageListenerTest extends AbstractEasyMockTest {
         cacheManagerService.getCache("server-tracking-cache",
             CacheScope.CLUSTERREPLICATED)).andReturn(serverTrackingCache).anyTimes();
     clusterTrackingServiceImpl = new ClusterTrackingServiceImpl(cacheManagerService);
-    connectionFactoryService = createMock(ConnectionFactoryService.class);
+    consumerContainer = createMock(MessageConsumerContainer.class);
 
     clusterUserMessageListener = new ClusterUserMessageListener();
     clusterUserMessageListener.clusterTrackingService = clusterTrackingServiceImpl;
-    clusterUserMessageListener.connFactoryService = connectionFactoryService;
+    clusterUserMessageListener.consumerContainer = consumerContainer;
     
     componentContext = createMock(ComponentContext.class);
     Hashtable<String, Object> dict = new Hashtable<String, Object>();
@@ -122,20 +119,11 @@ public class ClusterUserMessageListenerTest extends AbstractEasyMockTest {
   public void testNormalGet() throws Exception {
     activate();
     Message message = createMock(Message.class);
-    ConnectionFactory connectionFactory = createMock(ConnectionFactory.class);
-    Connection connection = createMock(Connection.class);
-    Session session = createMock(Session.class);
-    Topic topic = createMock(Topic.class);
-    MessageConsumer messageConsumer = createMock(MessageConsumer.class);
-    expect(connectionFactoryService.getDefaultConnectionFactory()).andReturn(connectionFactory);
-    expect(connectionFactory.createConnection()).andReturn(connection);
-    expect(connection.createSession(false, 1)).andReturn(session);
-    expect(session.createTopic((String) EasyMock.anyObject())).andReturn(topic);
-    expect(session.createConsumer(topic)).andReturn(messageConsumer);
-    messageConsumer.setMessageListener(clusterUserMessageListener);
-    EasyMock.expectLastCall();
-    connection.start();
-    EasyMock.expectLastCall();
+    ConsumerRegistration registration = createMock(ConsumerRegistration.class);
+    expect(
+        consumerContainer.registerTopicListener((String) EasyMock.anyObject(),
+            EasyMock.eq(ClusterTrackingService.EVENT_USER),
+            EasyMock.same(clusterUserMessageListener))).andReturn(registration);
     
     expect(message.getStringProperty("from-server")).andReturn("otherServerId");
     expect(message.getStringProperty("to-server")).andReturn("toserver");
@@ -25,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -95,6 +96,64 @@ public class IDTest {
 
   }
 
+  @Test
+  public void testSharedGenerator() throws Exception {
+    final UniqueIdGenerator idGenerator = new UniqueIdGenerator(1);
+    final Map<Long, Long> ids = new ConcurrentHashMap<Long, Long>();
+    Thread[] threads = new Thread[16];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+
+        public void run() {
+          for (int j = 0; j < 10000; j++) {
+            long id = idGenerator.nextLongId();
+            if (ids.put(id, id) != null) {
+              failed++;
+            }
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread t : threads) {
+      t.join();
+    }
+    Assert.assertEquals(0, failed);
+    Assert.assertEquals(16 * 10000, ids.size());
+  }
+
+  @Test
+  public void testEncodingMatchesBigInteger() {
+    long[] values = { 1L, 127L, 128L, 255L, 256L, 32768L, Long.MAX_VALUE };
+    for (long v : values) {
+      Assert.assertTrue(Arrays.equals(BigInteger.valueOf(v).toByteArray(),
+          UniqueIdGenerator.toByteArray(v)));
+    }
+    UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(1);
+    for (int i = 0; i < 1000; i++) {
+      long id = uniqueIdGenerator.nextLongId();
+      Assert.assertEquals(1L, id % 10000);
+      Assert.assertEquals(StringUtils.encode(BigInteger.valueOf(id).toByteArray(),
+          StringUtils.URL_SAFE_ENCODING), StringUtils.encode(UniqueIdGenerator
+          .toByteArray(id), StringUtils.URL_SAFE_ENCODING));
+    }
+  }
+
+  @Test
+  public void testLastIdBeforeOverflow() {
+    // an epoch that puts now a minute before the end of the id space.
+    long epoch = System.currentTimeMillis() - UniqueIdGenerator.MAX_TIME / 1000L + 60000L;
+    long id = new UniqueIdGenerator(1, epoch).nextLongId();
+    Assert.assertTrue(id > 0);
+    Assert.assertEquals(1L, id % 10000);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testOverflowFails() {
+    long epoch = System.currentTimeMillis() - UniqueIdGenerator.MAX_TIME / 1000L - 1000L;
+    new UniqueIdGenerator(1, epoch).nextLongId();
+  }
+
   @Test
   public void testRate() {
     UniqueIdGenerator uniqueIdGenerator = new UniqueIdGenerator(1);
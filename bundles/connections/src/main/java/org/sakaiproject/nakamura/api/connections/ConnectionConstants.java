@@ -63,4 +63,11 @@ public interface ConnectionConstants {
    */
   public static final String EVENT_TOPIC_BASE = "org/sakaiproject/nakamura/connections/";
 
+  /**
+   * Raised for a single connection whose contact changed, so that only the index
+   * document of that connection is rebuilt. The event carries the connection path in
+   * its <code>path</code> property.
+   */
+  public static final String PROPAGATE_TOPIC = EVENT_TOPIC_BASE + "PROPAGATE";
+
 }
@@ -0,0 +1,321 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections.search;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.commons.scheduler.Job;
+import org.apache.sling.commons.scheduler.JobContext;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.connections.ConnectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Keeps the contact fields that {@link ConnectionIndexingHandler} copies into connection
+ * documents in step with the contact. Connections are made in pairs, so the contact
+ * store of a user is the reverse index of the connection documents that embed that
+ * user: for every <code>other</code> in it there is a document at
+ * <code>other/contacts/user</code>. When a user whose copied fields changed is updated,
+ * those documents are refreshed a batch at a time on a schedule, so a user with
+ * thousands of connections does not flood the indexer. A connection whose stored sort
+ * names are stale is rewritten, which reindexes it; any other connection gets a
+ * {@link ConnectionConstants#PROPAGATE_TOPIC} event that rebuilds only its document.
+ * A hash of the copied fields is kept on the contact store, so an update that leaves them
+ * alone fans out to nothing, even after a restart or once the user has left the
+ * remembered fingerprints.
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = EventHandler.class)
+public class ConnectionFieldPropagator implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ConnectionFieldPropagator.class);
+
+  @Property(propertyPrivate = true, value = StoreListener.TOPIC_BASE + "authorizables/"
+      + StoreListener.UPDATED_TOPIC)
+  static final String TOPICS = EventConstants.EVENT_TOPIC;
+
+  @Property(longValue = 10L, label = "Propagation interval", description = "Seconds between batches of connection updates.")
+  static final String INTERVAL = "sakai.connections.propagation.interval";
+
+  @Property(intValue = 200, label = "Propagation batch", description = "Maximum number of connections refreshed per batch.")
+  static final String BATCH_SIZE = "sakai.connections.propagation.batch";
+
+  @Property(intValue = 10000, label = "Remembered contacts", description = "Number of users whose copied fields are remembered, so updates that do not change them are not propagated.")
+  static final String FINGERPRINTS = "sakai.connections.propagation.fingerprints";
+
+  private static final String JOB_NAME = "connectionFieldPropagationJob";
+
+  /** The hash of the copied fields last propagated, on the user's contact store. */
+  static final String FINGERPRINT_PROPERTY = "sakai:copiedFieldsHash";
+
+  private static final String FIRST_NAME = "firstName";
+  private static final String LAST_NAME = "lastName";
+
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected EventAdmin eventAdmin;
+
+  @Reference
+  protected Scheduler scheduler;
+
+  private final LinkedHashSet<String> pendingUsers = new LinkedHashSet<String>();
+  private final LinkedList<String> pendingConnections = new LinkedList<String>();
+  private Map<String, String> fingerprints = newFingerprints(10000);
+  private int batchSize = 200;
+
+  @Activate
+  protected void activate(Map<String, Object> props) {
+    long interval = Math.max(1L, OsgiUtil.toLong(props.get(INTERVAL), 10L));
+    batchSize = Math.max(1, OsgiUtil.toInteger(props.get(BATCH_SIZE), 200));
+    fingerprints = newFingerprints(OsgiUtil.toInteger(props.get(FINGERPRINTS), 10000));
+    try {
+      scheduler.addPeriodicJob(JOB_NAME, new Job() {
+        public void execute(JobContext context) {
+          propagate();
+        }
+      }, new HashMap<String, Serializable>(), interval, false);
+    } catch (Exception e) {
+      LOGGER.error("Failed to schedule connection field propagation", e);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> props) {
+    try {
+      scheduler.removeJob(JOB_NAME);
+    } catch (NoSuchElementException e) {
+      LOGGER.debug("Propagation job was not scheduled");
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Only notes the user; the work is done by the next batch.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object userId = event.getProperty(StoreListener.PATH_PROPERTY);
+    if (userId != null) {
+      synchronized (pendingUsers) {
+        pendingUsers.add(String.valueOf(userId));
+      }
+    }
+  }
+
+  /**
+   * Refresh up to one batch of connections, expanding pending users into their
+   * connections as needed.
+   */
+  void propagate() {
+    synchronized (pendingUsers) {
+      if (pendingUsers.isEmpty() && pendingConnections.isEmpty()) {
+        return;
+      }
+    }
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      Map<String, Authorizable> contacts = new HashMap<String, Authorizable>();
+      int done = 0;
+      while (done < batchSize) {
+        String path = nextConnection(session);
+        if (path == null) {
+          break;
+        }
+        refresh(session, path, contacts);
+        done++;
+      }
+      LOGGER.debug("Propagated contact fields to {} connections", done);
+    } catch (StorageClientException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.error(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the next connection to refresh or null if there is nothing left to do.
+   */
+  private String nextConnection(Session session) throws StorageClientException,
+      AccessDeniedException {
+    while (true) {
+      synchronized (pendingUsers) {
+        if (!pendingConnections.isEmpty()) {
+          return pendingConnections.removeFirst();
+        }
+      }
+      String userId = null;
+      synchronized (pendingUsers) {
+        Iterator<String> users = pendingUsers.iterator();
+        if (!users.hasNext()) {
+          return null;
+        }
+        userId = users.next();
+        users.remove();
+      }
+      expand(session, userId);
+    }
+  }
+
+  /**
+   * Queue the connections that embed the user, if the fields they copy from the user
+   * changed since the user was last seen.
+   */
+  private void expand(Session session, String userId) throws StorageClientException,
+      AccessDeniedException {
+    Authorizable user = session.getAuthorizableManager().findAuthorizable(userId);
+    if (user == null || user.isGroup()) {
+      return;
+    }
+    String fingerprint = fingerprint(user);
+    synchronized (fingerprints) {
+      if (fingerprint.equals(fingerprints.get(userId))) {
+        return;
+      }
+    }
+    ContentManager contentManager = session.getContentManager();
+    String contactStore = ConnectionUtils.getConnectionPathBase(userId);
+    Content store = contentManager.get(contactStore);
+    if (store == null || fingerprint.equals(store.getProperty(FINGERPRINT_PROPERTY))) {
+      remember(userId, fingerprint);
+      return;
+    }
+    LinkedList<String> connections = new LinkedList<String>();
+    for (Iterator<String> children = contentManager.listChildPaths(contactStore); children
+        .hasNext();) {
+      String other = StorageClientUtils.getObjectName(children.next());
+      connections.add(ConnectionUtils.getConnectionPath(other, userId));
+    }
+    LOGGER.debug("Queued {} connections embedding {} ", connections.size(), userId);
+    synchronized (pendingUsers) {
+      pendingConnections.addAll(connections);
+    }
+    store.setProperty(FINGERPRINT_PROPERTY, fingerprint);
+    contentManager.update(store);
+    remember(userId, fingerprint);
+  }
+
+  private void remember(String userId, String fingerprint) {
+    synchronized (fingerprints) {
+      fingerprints.put(userId, fingerprint);
+    }
+  }
+
+  private void refresh(Session session, String path, Map<String, Authorizable> contacts)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = session.getContentManager();
+    Content connection = contentManager.get(path);
+    if (connection == null
+        || !ConnectionConstants.SAKAI_CONTACT_RT.equals(connection
+            .getProperty("sling:resourceType"))) {
+      return;
+    }
+    String contactId = StorageClientUtils.getObjectName(path);
+    if (!contacts.containsKey(contactId)) {
+      contacts.put(contactId, session.getAuthorizableManager().findAuthorizable(contactId));
+    }
+    Authorizable contact = contacts.get(contactId);
+    if (contact == null) {
+      return;
+    }
+    String firstName = stringProperty(contact, FIRST_NAME);
+    String lastName = stringProperty(contact, LAST_NAME);
+    if (!firstName.equals(connection.getProperty(FIRST_NAME))
+        || !lastName.equals(connection.getProperty(LAST_NAME))) {
+      // the sort names (KERN-1924) are stale too; the update reindexes the connection.
+      connection.setProperty(FIRST_NAME, firstName);
+      connection.setProperty(LAST_NAME, lastName);
+      contentManager.update(connection);
+    } else {
+      Hashtable<String, Object> properties = new Hashtable<String, Object>();
+      properties.put(IndexingHandler.FIELD_PATH, path);
+      eventAdmin.postEvent(new Event(ConnectionConstants.PROPAGATE_TOPIC, properties));
+    }
+  }
+
+  private String stringProperty(Authorizable authorizable, String name) {
+    Object value = authorizable.getProperty(name);
+    return value == null ? "" : String.valueOf(value);
+  }
+
+  private String fingerprint(Authorizable user) {
+    Map<String, Object> properties = user.getSafeProperties();
+    StringBuilder sb = new StringBuilder();
+    for (String prop : ConnectionIndexingHandler.FLATTENED_PROPS) {
+      sb.append(properties.get(prop)).append('\u0000');
+    }
+    return StorageClientUtils.insecureHash(sb.toString());
+  }
+
+  private static Map<String, String> newFingerprints(final int maxSize) {
+    return new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+}
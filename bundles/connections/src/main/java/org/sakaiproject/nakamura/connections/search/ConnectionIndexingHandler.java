@@ -32,16 +32,14 @@ import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
-import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
-import org.sakaiproject.nakamura.api.solr.IndexingHandler;
-import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler;
+import org.sakaiproject.nakamura.api.search.solr.IndexingBatch;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
+import org.sakaiproject.nakamura.api.solr.TopicIndexer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,16 +60,19 @@ import java.util.Set;
  * <li>contact's last name: lastName</li>
  * <li>contact's email: email</li>
  * </ul>
+ * <p>The contact fields go stale when the contact changes; {@link ConnectionFieldPropagator}
+ * raises {@link ConnectionConstants#PROPAGATE_TOPIC} for each affected connection so
+ * that only those documents are rebuilt.</p>
  */
 @Component(immediate = true)
-public class ConnectionIndexingHandler implements IndexingHandler {
+public class ConnectionIndexingHandler extends AbstractBatchIndexingHandler {
 
   private static final Logger logger = LoggerFactory
       .getLogger(ConnectionIndexingHandler.class);
 
   private static final Map<String, String> WHITELISTED_PROPS = ImmutableMap.of(
       "sakai:state", "state");
-  private static final Set<String> FLATTENED_PROPS = ImmutableSet.of("name", "firstName",
+  static final Set<String> FLATTENED_PROPS = ImmutableSet.of("name", "firstName",
       "lastName", "email");
   private static final Set<String> CONTENT_TYPES = Sets
       .newHashSet(ConnectionConstants.SAKAI_CONTACT_RT);
@@ -79,11 +80,15 @@ public class ConnectionIndexingHandler implements IndexingHandler {
   @Reference(target = "(type=sparse)")
   private ResourceIndexingService resourceIndexingService;
 
+  @Reference
+  protected TopicIndexer topicIndexer;
+
   @Activate
   public void activate(Map<String, Object> properties) throws Exception {
     for (String type : CONTENT_TYPES) {
       resourceIndexingService.addHandler(type, this);
     }
+    topicIndexer.addHandler(ConnectionConstants.PROPAGATE_TOPIC, this);
   }
 
   @Deactivate
@@ -91,30 +96,25 @@ public class ConnectionIndexingHandler implements IndexingHandler {
     for (String type : CONTENT_TYPES) {
       resourceIndexingService.removeHandler(type, this);
     }
+    topicIndexer.removeHandler(ConnectionConstants.PROPAGATE_TOPIC, this);
   }
 
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDocuments(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDocuments(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<SolrInputDocument> getDocuments(IndexingBatch batch, Event event) {
     String path = (String) event.getProperty(FIELD_PATH);
 
-    logger.info("Indexing connections at path {}", path);
+    logger.debug("Indexing connections at path {}", path);
     List<SolrInputDocument> documents = Lists.newArrayList();
     if (!StringUtils.isBlank(path)) {
       try {
-        Session session = repositorySession.adaptTo(Session.class);
-        ContentManager cm = session.getContentManager();
-        Content content = cm.get(path);
-
-        int lastSlash = path.lastIndexOf('/');
-        String contactName = path.substring(lastSlash + 1);
-        AuthorizableManager am = session.getAuthorizableManager();
-        Authorizable contactAuth = am.findAuthorizable(contactName);
+        Content content = batch.getContent(path);
+        Authorizable contactAuth = batch.getAuthorizable(getContactName(path));
 
         if (content != null && contactAuth != null) {
           if (!CONTENT_TYPES.contains(content.getProperty("sling:resourceType"))) {
@@ -159,11 +159,11 @@ public class ConnectionIndexingHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<String> getDeleteQueries(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<String> getDeleteQueries(IndexingBatch batch, Event event) {
     List<String> retval = Collections.emptyList();
     logger.debug("GetDelete for {} ", event);
     String path = (String) event.getProperty(FIELD_PATH);
@@ -174,4 +174,13 @@ public class ConnectionIndexingHandler implements IndexingHandler {
     return retval;
   }
 
+  /**
+   * @param path
+   *          the path of a connection.
+   * @return the name of the contact, which is the last element of the path.
+   */
+  private String getContactName(String path) {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
 }
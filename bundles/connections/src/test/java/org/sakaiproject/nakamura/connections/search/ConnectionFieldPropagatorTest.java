@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections.search;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.connections.ConnectionUtils;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.lite.RepositoryImpl;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+public class ConnectionFieldPropagatorTest {
+
+  private RepositoryImpl repository;
+  private EventAdmin eventAdmin;
+  private ConnectionFieldPropagator propagator;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    Session session = repository.loginAdministrative();
+    AuthorizableManager am = session.getAuthorizableManager();
+    am.createUser("alice", "alice", "alice", names("Alice", "Smith"));
+    am.createUser("bob", "bob", "bob", names("Bob", "Jones"));
+    am.createUser("carol", "carol", "carol", names("Carol", "White"));
+    connect(session, "alice", "bob");
+    connect(session, "carol", "bob");
+    session.logout();
+
+    eventAdmin = mock(EventAdmin.class);
+    propagator = new ConnectionFieldPropagator();
+    propagator.repository = repository;
+    propagator.eventAdmin = eventAdmin;
+    propagator.scheduler = mock(Scheduler.class);
+    propagator.activate(new HashMap<String, Object>());
+  }
+
+  @Test
+  public void testUnchangedSortNamesRaisePropagateEvents() {
+    propagator.handleEvent(updated("bob"));
+    propagator.propagate();
+
+    ArgumentCaptor<Event> events = ArgumentCaptor.forClass(Event.class);
+    verify(eventAdmin, times(2)).postEvent(events.capture());
+    for (Event event : events.getAllValues()) {
+      Assert.assertEquals(ConnectionConstants.PROPAGATE_TOPIC, event.getTopic());
+      Assert.assertTrue(String.valueOf(event.getProperty(IndexingHandler.FIELD_PATH))
+          .endsWith("/bob"));
+    }
+  }
+
+  @Test
+  public void testUnchangedFieldsAreNotPropagatedTwice() {
+    propagator.handleEvent(updated("bob"));
+    propagator.propagate();
+    propagator.handleEvent(updated("bob"));
+    propagator.propagate();
+
+    verify(eventAdmin, times(2)).postEvent(any(Event.class));
+  }
+
+  @Test
+  public void testUnchangedFieldsAreNotPropagatedAfterARestart() {
+    propagator.handleEvent(updated("bob"));
+    propagator.propagate();
+
+    ConnectionFieldPropagator restarted = new ConnectionFieldPropagator();
+    restarted.repository = repository;
+    restarted.eventAdmin = eventAdmin;
+    restarted.scheduler = mock(Scheduler.class);
+    restarted.activate(new HashMap<String, Object>());
+    restarted.handleEvent(updated("bob"));
+    restarted.propagate();
+
+    verify(eventAdmin, times(2)).postEvent(any(Event.class));
+  }
+
+  @Test
+  public void testUnchangedFieldsAreNotPropagatedAfterEviction() {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(ConnectionFieldPropagator.FINGERPRINTS, 1);
+    propagator.activate(props);
+
+    propagator.handleEvent(updated("bob"));
+    propagator.propagate();
+    verify(eventAdmin, times(2)).postEvent(any(Event.class));
+    // alice takes bob's place in memory.
+    propagator.handleEvent(updated("alice"));
+    propagator.propagate();
+    verify(eventAdmin, times(3)).postEvent(any(Event.class));
+    propagator.handleEvent(updated("bob"));
+    propagator.propagate();
+    verify(eventAdmin, times(3)).postEvent(any(Event.class));
+  }
+
+  @Test
+  public void testChangedNameRewritesConnections() throws Exception {
+    propagator.handleEvent(updated("bob"));
+    propagator.propagate();
+
+    Session session = repository.loginAdministrative();
+    AuthorizableManager am = session.getAuthorizableManager();
+    Authorizable bob = am.findAuthorizable("bob");
+    bob.setProperty("firstName", "Robert");
+    am.updateAuthorizable(bob);
+    propagator.handleEvent(updated("bob"));
+    propagator.propagate();
+
+    ContentManager cm = session.getContentManager();
+    for (String owner : new String[] { "alice", "carol" }) {
+      Content connection = cm.get(ConnectionUtils.getConnectionPath(owner, "bob"));
+      Assert.assertEquals("Robert", connection.getProperty("firstName"));
+    }
+    session.logout();
+    // the first round only; the rewrite reindexes through the content events.
+    verify(eventAdmin, times(2)).postEvent(any(Event.class));
+  }
+
+  @Test
+  public void testBatchesAreBounded() {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(ConnectionFieldPropagator.BATCH_SIZE, 1);
+    propagator.activate(props);
+
+    propagator.handleEvent(updated("bob"));
+    propagator.propagate();
+    verify(eventAdmin, times(1)).postEvent(any(Event.class));
+    propagator.propagate();
+    verify(eventAdmin, times(2)).postEvent(any(Event.class));
+    propagator.propagate();
+    verify(eventAdmin, times(2)).postEvent(any(Event.class));
+  }
+
+  @Test
+  public void testUsersWithoutConnections() {
+    propagator.handleEvent(updated("nobody"));
+    propagator.propagate();
+
+    verify(eventAdmin, never()).postEvent(any(Event.class));
+  }
+
+  private Event updated(String userId) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, userId);
+    return new Event(StoreListener.TOPIC_BASE + "authorizables/"
+        + StoreListener.UPDATED_TOPIC, properties);
+  }
+
+  private Map<String, Object> names(String firstName, String lastName) {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("firstName", firstName);
+    props.put("lastName", lastName);
+    return props;
+  }
+
+  private void connect(Session session, String a, String b) throws Exception {
+    AuthorizableManager am = session.getAuthorizableManager();
+    contact(session, a, am.findAuthorizable(b));
+    contact(session, b, am.findAuthorizable(a));
+  }
+
+  private void contact(Session session, String owner, Authorizable contact)
+      throws Exception {
+    ContentManager cm = session.getContentManager();
+    String store = ConnectionUtils.getConnectionPathBase(owner);
+    if (!cm.exists(store)) {
+      cm.update(new Content(store, ImmutableMap.of("sling:resourceType",
+          (Object) ConnectionConstants.SAKAI_CONTACTSTORE_RT)));
+    }
+    cm.update(new Content(ConnectionUtils.getConnectionPath(owner, contact.getId()),
+        ImmutableMap.of("sling:resourceType", (Object) ConnectionConstants.SAKAI_CONTACT_RT,
+            "firstName", contact.getProperty("firstName"), "lastName",
+            contact.getProperty("lastName"))));
+  }
+}
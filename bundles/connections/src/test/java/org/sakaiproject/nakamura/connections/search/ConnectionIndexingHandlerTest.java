@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.connections.search;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.connections.ConnectionConstants;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.connections.ConnectionUtils;
+
+import java.util.Collection;
+import java.util.Hashtable;
+
+public class ConnectionIndexingHandlerTest {
+
+  private static final String UPDATED = StoreListener.TOPIC_BASE + "content/"
+      + StoreListener.UPDATED_TOPIC;
+
+  private ConnectionIndexingHandler handler;
+  private RepositorySession repositorySession;
+  private ContentManager contentManager;
+  private AuthorizableManager authorizableManager;
+  private String aliceBob;
+  private String carolBob;
+
+  @Before
+  public void setUp() throws Exception {
+    repositorySession = mock(RepositorySession.class);
+    Session session = mock(Session.class);
+    contentManager = mock(ContentManager.class);
+    authorizableManager = mock(AuthorizableManager.class);
+    when(repositorySession.adaptTo(Session.class)).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+
+    Authorizable bob = mock(Authorizable.class);
+    when(bob.getSafeProperties()).thenReturn(
+        ImmutableMap.of("firstName", (Object) "Bob", "lastName", "Jones"));
+    when(authorizableManager.findAuthorizable("bob")).thenReturn(bob);
+
+    aliceBob = ConnectionUtils.getConnectionPath("alice", "bob");
+    carolBob = ConnectionUtils.getConnectionPath("carol", "bob");
+    for (String path : new String[] { aliceBob, carolBob }) {
+      when(contentManager.get(path)).thenReturn(
+          new Content(path, ImmutableMap.of("sling:resourceType",
+              (Object) ConnectionConstants.SAKAI_CONTACT_RT, "sakai:state", "ACCEPTED")));
+    }
+
+    handler = new ConnectionIndexingHandler();
+  }
+
+  @Test
+  public void testWindowReadsEachConnectionAndContactOnce() throws Exception {
+    Collection<SolrInputDocument> docs = handler.getDocuments(repositorySession,
+        ImmutableList.of(event(aliceBob), event(carolBob), event(aliceBob)));
+
+    Assert.assertEquals(2, docs.size());
+    for (SolrInputDocument doc : docs) {
+      Assert.assertEquals("ACCEPTED", doc.getFieldValue("state"));
+      Assert.assertEquals("Bob", doc.getFieldValue("firstName"));
+      Assert.assertEquals("Jones", doc.getFieldValue("lastName"));
+    }
+    verify(contentManager, times(1)).get(aliceBob);
+    verify(contentManager, times(1)).get(carolBob);
+    // both connections are to bob
+    verify(authorizableManager, times(1)).findAuthorizable("bob");
+  }
+
+  @Test
+  public void testSingleEventIsAWindowOfOne() {
+    Collection<SolrInputDocument> single = handler.getDocuments(repositorySession,
+        event(aliceBob));
+    Collection<SolrInputDocument> window = handler.getDocuments(repositorySession,
+        ImmutableList.of(event(aliceBob)));
+
+    Assert.assertEquals(1, single.size());
+    Assert.assertEquals(1, window.size());
+    SolrInputDocument a = single.iterator().next();
+    SolrInputDocument b = window.iterator().next();
+    Assert.assertEquals(a.getFieldNames(), b.getFieldNames());
+    for (String field : ImmutableList.of("state", "firstName", "lastName")) {
+      Assert.assertEquals(a.getFieldValue(field), b.getFieldValue(field));
+    }
+  }
+
+  @Test
+  public void testOtherResourceTypesAreNotIndexed() throws Exception {
+    String path = ConnectionUtils.getConnectionPath("dave", "bob");
+    when(contentManager.get(path)).thenReturn(
+        new Content(path, ImmutableMap.of("sling:resourceType", (Object) "sakai/other")));
+
+    Assert.assertTrue(handler.getDocuments(repositorySession, event(path)).isEmpty());
+  }
+
+  @Test
+  public void testDeleteQueriesAreCollapsed() {
+    Collection<String> queries = handler.getDeleteQueries(repositorySession,
+        ImmutableList.of(deleted(aliceBob), deleted(aliceBob), deleted(carolBob)));
+
+    Assert.assertEquals(2, queries.size());
+  }
+
+  private Event event(String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(IndexingHandler.FIELD_PATH, path);
+    return new Event(UPDATED, properties);
+  }
+
+  private Event deleted(String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(IndexingHandler.FIELD_PATH, path);
+    properties.put("resourceType", ConnectionConstants.SAKAI_CONTACT_RT);
+    return new Event(StoreListener.TOPIC_BASE + "content/" + StoreListener.DELETE_TOPIC,
+        properties);
+  }
+}
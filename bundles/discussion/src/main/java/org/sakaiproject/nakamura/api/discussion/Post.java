@@ -26,12 +26,11 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
@@ -39,6 +38,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.jcr.RepositoryException;
@@ -130,10 +130,46 @@ public class Post {
     return retval;
   }
 
+  /**
+   * Collect the ids of the senders and editors of this post and all its replies, so their
+   * profiles can be loaded together.
+   *
+   * @param userIds
+   */
+  public void collectUserIds(Collection<String> userIds) {
+    if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
+      for (String editor : StringUtils.split((String) content
+          .getProperty(DiscussionConstants.PROP_EDITEDBY), ',')) {
+        userIds.add(editor);
+      }
+    }
+    if (content.hasProperty(MessageConstants.PROP_SAKAI_FROM)) {
+      for (String sender : StringUtils.split((String) content
+          .getProperty(MessageConstants.PROP_SAKAI_FROM), ',')) {
+        userIds.add(sender);
+      }
+    }
+    for (Post p : children) {
+      p.collectUserIds(userIds);
+    }
+  }
+
   public void outputPostAsJSON(ExtendedJSONWriter writer,
       PresenceService presenceService, BasicUserInfoService basicUserInfoService, Session session)
       throws JSONException, StorageClientException, AccessDeniedException,
       RepositoryException {
+    outputPostAsJSON(writer, presenceService, new BasicUserInfoResolver(session,
+        basicUserInfoService));
+  }
+
+  /**
+   * Output this post and its replies, looking up the profiles of senders and editors
+   * through a resolver so each is only loaded once.
+   */
+  public void outputPostAsJSON(ExtendedJSONWriter writer,
+      PresenceService presenceService, BasicUserInfoResolver userInfoResolver)
+      throws JSONException, StorageClientException, AccessDeniedException,
+      RepositoryException {
     boolean canEdit = checkEdit();
     boolean canDelete = checkDelete();
 
@@ -148,7 +184,7 @@ public class Post {
     if (isDeleted && !canDelete) {
       // This post has been deleted and we dont have sufficient rights to edit, so we just
       // show the replies.
-      outputChildrenAsJSON(writer, presenceService, basicUserInfoService, session);
+      outputChildrenAsJSON(writer, presenceService, userInfoResolver);
     } else {
       writer.object();
 
@@ -161,7 +197,6 @@ public class Post {
       writer.key("canDelete");
       writer.value(canDelete);
 
-      AuthorizableManager authMgr = session.getAuthorizableManager();
       // Show profile of editters.
       if (content.hasProperty(DiscussionConstants.PROP_EDITEDBY)) {
 
@@ -173,8 +208,8 @@ public class Post {
         writer.array();
         for (int i = 0; i < edittedBy.length; i++) {
           writer.object();
-          Authorizable au = authMgr.findAuthorizable(edittedBy[i]);
-          ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+          ValueMap profile = new ValueMapDecorator(userInfoResolver
+              .getProperties(edittedBy[i]));
           writer.valueMapInternals(profile);
           PresenceUtils.makePresenceJSON(writer, edittedBy[i], presenceService, true);
           writer.endObject();
@@ -189,8 +224,7 @@ public class Post {
       writer.array();
       for (String sender : senders) {
         writer.object();
-        Authorizable au = authMgr.findAuthorizable(sender);
-        ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+        ValueMap profile = new ValueMapDecorator(userInfoResolver.getProperties(sender));
         writer.valueMapInternals(profile);
         PresenceUtils.makePresenceJSON(writer, sender, presenceService, true);
         writer.endObject();
@@ -201,7 +235,7 @@ public class Post {
       // All the replies on this post.
       writer.key("replies");
       writer.array();
-      outputChildrenAsJSON(writer, presenceService, basicUserInfoService, session);
+      outputChildrenAsJSON(writer, presenceService, userInfoResolver);
       writer.endArray();
 
       writer.endObject();
@@ -212,9 +246,17 @@ public class Post {
       PresenceService presenceService, BasicUserInfoService basicUserInfoService, Session session)
       throws JSONException, StorageClientException, AccessDeniedException,
       RepositoryException {
-    LOG.info("this post {} has {} children", getPostId(), getChildren().size());
+    outputChildrenAsJSON(writer, presenceService, new BasicUserInfoResolver(session,
+        basicUserInfoService));
+  }
+
+  public void outputChildrenAsJSON(ExtendedJSONWriter writer,
+      PresenceService presenceService, BasicUserInfoResolver userInfoResolver)
+      throws JSONException, StorageClientException, AccessDeniedException,
+      RepositoryException {
+    LOG.debug("this post {} has {} children", getPostId(), getChildren().size());
     for (Post p : children) {
-      p.outputPostAsJSON(writer, presenceService, basicUserInfoService, session);
+      p.outputPostAsJSON(writer, presenceService, userInfoResolver);
     }
   }
 
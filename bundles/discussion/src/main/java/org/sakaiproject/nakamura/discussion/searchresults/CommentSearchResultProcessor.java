@@ -37,6 +37,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
@@ -77,7 +78,8 @@ public class CommentSearchResultProcessor implements SolrSearchResultProcessor {
     try {
       Content content = session.getContentManager().get(result.getPath());
       Post p = new Post(content, session);
-      p.outputPostAsJSON((ExtendedJSONWriter) write, presenceService, basicUserInfoService, session);
+      p.outputPostAsJSON((ExtendedJSONWriter) write, presenceService,
+          BasicUserInfoResolver.getResolver(request, session, basicUserInfoService));
     } catch (StorageClientException e) {
       throw new RuntimeException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
@@ -40,6 +40,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
@@ -47,9 +48,11 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 
@@ -129,10 +132,20 @@ public class DiscussionThreadedSearchBatchResultProcessor implements
         }
       }
 
+      // Load the profiles of everyone who wrote or edited a post on this page in one go,
+      // most threads have far fewer authors than posts.
+      BasicUserInfoResolver userInfoResolver = BasicUserInfoResolver.getResolver(request,
+          session, basicUserInfoService);
+      Set<String> userIds = new HashSet<String>();
+      for (String basePostId : basePosts) {
+        allPosts.get(basePostId).collectUserIds(userIds);
+      }
+      userInfoResolver.require(userIds);
+
       // The posts are sorted, now return them as json.
       for (String basePostId : basePosts) {
         allPosts.get(basePostId).outputPostAsJSON((ExtendedJSONWriter) writer,
-            presenceService, basicUserInfoService, session);
+            presenceService, userInfoResolver);
       }
     } catch (StorageClientException e) {
       throw new RuntimeException(e.getMessage(), e);
@@ -0,0 +1,353 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.disk;
+
+import org.sakaiproject.nakamura.api.docproxy.DocProxyException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of the file names and .json properties under the root of a disk
+ * repository. Names are kept sorted, forwards and reversed, so a prefix or suffix query
+ * is a seek into a sorted map instead of a walk over the disk.
+ *
+ * The index is built on the first search and then kept current incrementally: a refresh
+ * looks at the modification time of every directory it knows and only lists the ones that
+ * changed. Whether an entry is a directory is looked up once, when it is first listed.
+ * Documents written through the {@link DiskProcessor} are indexed straight away. Edits
+ * made in place to an existing .json file by something else are picked up the next time
+ * its directory changes.
+ */
+class DiskIndex {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DiskIndex.class);
+
+  private final File root;
+  private final long refreshInterval;
+  private long lastRefresh;
+
+  /** The last modified time of each directory when it was listed. */
+  private final Map<File, Long> directories = new HashMap<File, Long>();
+  /** The indexed entries of each directory. */
+  private final Map<File, Set<File>> children = new HashMap<File, Set<File>>();
+  /** The indexed entries that are directories. */
+  private final Set<File> folders = new HashSet<File>();
+  private final TreeMap<String, Set<File>> byName = new TreeMap<String, Set<File>>();
+  private final TreeMap<String, Set<File>> byReversedName = new TreeMap<String, Set<File>>();
+  /** Files by property name and value. */
+  private final Map<String, Map<String, Set<File>>> byProperty = new HashMap<String, Map<String, Set<File>>>();
+  /** The indexed properties of each file, to remove them again. */
+  private final Map<File, Map<String, String>> properties = new HashMap<File, Map<String, String>>();
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /**
+   * @param root
+   *          The root of the repository.
+   * @param refreshInterval
+   *          The least time in ms between two looks at the disk.
+   */
+  DiskIndex(File root, long refreshInterval) {
+    this.root = root;
+    this.refreshInterval = refreshInterval;
+  }
+
+  /**
+   * Bring the index up to date if it hasn't looked at the disk for a while.
+   */
+  void refreshIfStale() {
+    // most searches find the index fresh, so don't make them queue for the write lock.
+    lock.readLock().lock();
+    try {
+      if (!isStale()) {
+        return;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    lock.writeLock().lock();
+    try {
+      // another search may have refreshed it while we waited.
+      if (isStale()) {
+        refresh();
+        lastRefresh = System.currentTimeMillis();
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private boolean isStale() {
+    return lastRefresh == 0
+        || System.currentTimeMillis() - lastRefresh >= refreshInterval;
+  }
+
+  /**
+   * Index a file that was just written, and the directories that were made for it.
+   */
+  void update(File file) {
+    lock.writeLock().lock();
+    try {
+      if (lastRefresh == 0) {
+        // not built yet, the first search will find it.
+        return;
+      }
+      File dir = file.getParentFile();
+      if (dir != null && directories.containsKey(dir)) {
+        if (accept(file.getName())) {
+          if (children.get(dir).add(file) && file.isDirectory()) {
+            folders.add(file);
+          }
+          remove(file);
+          add(file);
+        }
+      } else {
+        // new directories, list them on the next search.
+        lastRefresh = -refreshInterval;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Find the entries matching all of the given criteria.
+   *
+   * @param startsWith
+   *          The start of the name, or null.
+   * @param endsWith
+   *          The end of the name, or null.
+   * @param props
+   *          Property values the .json properties of a file should have.
+   * @return The matching files and directories, ordered by path.
+   */
+  List<File> search(String startsWith, String endsWith, Map<String, String> props) {
+    lock.readLock().lock();
+    try {
+      Set<File> result = null;
+      if (startsWith != null) {
+        result = retain(result, collect(byName, startsWith));
+      }
+      if (endsWith != null) {
+        result = retain(result, collect(byReversedName, reverse(endsWith)));
+      }
+      for (Entry<String, String> prop : props.entrySet()) {
+        Map<String, Set<File>> values = byProperty.get(prop.getKey());
+        Set<File> files = values == null ? null : values.get(prop.getValue());
+        result = retain(result, files == null ? new HashSet<File>() : files);
+      }
+      if (result == null) {
+        result = new TreeSet<File>(properties.keySet());
+      }
+      return new ArrayList<File>(result);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  int size() {
+    lock.readLock().lock();
+    try {
+      return properties.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private Set<File> collect(TreeMap<String, Set<File>> names, String prefix) {
+    Set<File> files = new HashSet<File>();
+    SortedMap<String, Set<File>> matches = names.subMap(prefix, prefix
+        + Character.MAX_VALUE);
+    for (Set<File> f : matches.values()) {
+      files.addAll(f);
+    }
+    return files;
+  }
+
+  private Set<File> retain(Set<File> result, Collection<File> files) {
+    if (result == null) {
+      return new TreeSet<File>(files);
+    }
+    result.retainAll(files);
+    return result;
+  }
+
+  private void refresh() {
+    long start = System.currentTimeMillis();
+    int listed = 0;
+    LinkedList<File> toCheck = new LinkedList<File>();
+    toCheck.add(root);
+    while (!toCheck.isEmpty()) {
+      File dir = toCheck.removeFirst();
+      Long known = directories.get(dir);
+      long lastModified = dir.lastModified();
+      if (known == null || known.longValue() != lastModified) {
+        list(dir, lastModified);
+        listed++;
+      }
+      for (File child : children.get(dir)) {
+        if (folders.contains(child)) {
+          toCheck.add(child);
+        }
+      }
+    }
+    LOGGER.debug("Refreshed the index of {} in {}ms, listed {} directories, {} entries",
+        new Object[] { root, System.currentTimeMillis() - start, listed,
+            properties.size() });
+  }
+
+  private void list(File dir, long lastModified) {
+    Set<File> old = children.get(dir);
+    Set<File> current = new HashSet<File>();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (accept(f.getName())) {
+          current.add(f);
+        }
+      }
+    }
+    if (old != null) {
+      for (File f : old) {
+        if (!current.contains(f)) {
+          removeTree(f);
+        }
+      }
+    }
+    // a .json file may have come or gone, so reindex everything in the directory.
+    for (File f : current) {
+      if ((old == null || !old.contains(f)) && f.isDirectory()) {
+        folders.add(f);
+      }
+      remove(f);
+      add(f);
+    }
+    directories.put(dir, lastModified);
+    children.put(dir, current);
+  }
+
+  private boolean accept(String name) {
+    // We don't want any files starting with a . (hidden files)
+    // and we don't show our property files.
+    return !name.startsWith(".") && !name.endsWith(".json");
+  }
+
+  private void add(File f) {
+    String name = f.getName();
+    put(byName, name, f);
+    put(byReversedName, reverse(name), f);
+    Map<String, String> props = new HashMap<String, String>();
+    if (!folders.contains(f)) {
+      try {
+        for (Entry<String, Object> e : new DiskDocumentResult(f).getProperties().entrySet()) {
+          String value = String.valueOf(e.getValue());
+          props.put(e.getKey(), value);
+          Map<String, Set<File>> values = byProperty.get(e.getKey());
+          if (values == null) {
+            values = new HashMap<String, Set<File>>();
+            byProperty.put(e.getKey(), values);
+          }
+          Set<File> files = values.get(value);
+          if (files == null) {
+            files = new HashSet<File>();
+            values.put(value, files);
+          }
+          files.add(f);
+        }
+      } catch (DocProxyException e) {
+        LOGGER.warn("Unable to index the properties of {} ", f);
+      }
+    }
+    properties.put(f, props);
+  }
+
+  private void remove(File f) {
+    Map<String, String> props = properties.remove(f);
+    if (props == null) {
+      return;
+    }
+    String name = f.getName();
+    delete(byName, name, f);
+    delete(byReversedName, reverse(name), f);
+    for (Entry<String, String> e : props.entrySet()) {
+      Map<String, Set<File>> values = byProperty.get(e.getKey());
+      if (values != null) {
+        Set<File> files = values.get(e.getValue());
+        if (files != null) {
+          files.remove(f);
+          if (files.isEmpty()) {
+            values.remove(e.getValue());
+          }
+        }
+        if (values.isEmpty()) {
+          byProperty.remove(e.getKey());
+        }
+      }
+    }
+  }
+
+  private void removeTree(File f) {
+    remove(f);
+    folders.remove(f);
+    directories.remove(f);
+    Set<File> below = children.remove(f);
+    if (below != null) {
+      for (Iterator<File> i = below.iterator(); i.hasNext();) {
+        removeTree(i.next());
+      }
+    }
+  }
+
+  private static void put(Map<String, Set<File>> map, String key, File f) {
+    Set<File> files = map.get(key);
+    if (files == null) {
+      files = new HashSet<File>();
+      map.put(key, files);
+    }
+    files.add(f);
+  }
+
+  private static void delete(Map<String, Set<File>> map, String key, File f) {
+    Set<File> files = map.get(key);
+    if (files != null) {
+      files.remove(f);
+      if (files.isEmpty()) {
+        map.remove(key);
+      }
+    }
+  }
+
+  private static String reverse(String s) {
+    return new StringBuilder(s).reverse().toString();
+  }
+}
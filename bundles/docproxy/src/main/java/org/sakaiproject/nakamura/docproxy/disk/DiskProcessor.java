@@ -46,7 +46,6 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -55,10 +54,13 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -86,10 +88,22 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
   @Property(name = "createJCRNodes", description = "Wether or not nodes should be created in JCR for newly uploaded files.", boolValue = false)
   protected boolean createJCRNodes = false;
 
+  @Property(longValue = 10, description = "The least number of seconds between two looks at the disk to bring the search index up to date.")
+  static final String INDEX_REFRESH = "index.refresh";
+  private long indexRefresh = 10000L;
+
+  /** Search properties starting with this match .json properties of documents. */
+  static final String PROPERTY_PREFIX = "property-";
+
+  /** The search index of each repository root. */
+  private final ConcurrentMap<File, DiskIndex> indexes = new ConcurrentHashMap<File, DiskIndex>();
+
   protected void activate(ComponentContext context) {
     @SuppressWarnings("rawtypes")
     Dictionary properties = context.getProperties();
     createJCRNodes = OsgiUtil.toBoolean(properties.get("createJCRNodes"), false);
+    indexRefresh = OsgiUtil.toLong(properties.get(INDEX_REFRESH), 10) * 1000L;
+    indexes.clear();
   }
 
   /**
@@ -150,65 +164,52 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
       }
     }
 
-    final String start = startWith;
-    final String end = endsWith;
-    final boolean doStartWith = matchStartName;
-    final boolean doEndsWith = matchEndName;
+    Map<String, String> props = new HashMap<String, String>();
+    if (searchProperties != null) {
+      for (Entry<String, Object> e : searchProperties.entrySet()) {
+        if (e.getKey().startsWith(PROPERTY_PREFIX) && e.getValue() != null
+            && !"".equals(e.getValue())) {
+          props.put(e.getKey().substring(PROPERTY_PREFIX.length()), e.getValue()
+              .toString());
+        }
+      }
+    }
 
-    // The filter we will be using,
-    FilenameFilter filter = new FilenameFilter() {
+    DiskIndex index = getIndex(defaultFile);
+    index.refreshIfStale();
+    final List<File> files = index.search(matchStartName ? startWith : null,
+        matchEndName ? endsWith : null, props);
 
-      public boolean accept(File dir, String name) {
-        boolean accept = true;
-        // We don't want any files starting with a . (hidden files)
-        if (name.startsWith(".")) {
-          return false;
-        }
+    // Only look at the files of the page that is read.
+    Iterator<ExternalDocumentResult> results = new Iterator<ExternalDocumentResult>() {
+      private final Iterator<File> i = files.iterator();
 
-        // We don't show our property files.
-        if (name.endsWith(".json")) {
-          return false;
-        }
+      public boolean hasNext() {
+        return i.hasNext();
+      }
 
-        // If our files should start with a certain string.
-        if (doStartWith && !name.startsWith(start)) {
-          accept = false;
-        }
-        if (doEndsWith && !name.endsWith(end)) {
-          accept = false;
-        }
-        return accept;
+      public ExternalDocumentResult next() {
+        return new DiskDocumentResult(i.next());
       }
-    };
 
-    List<ExternalDocumentResult> results = new ArrayList<ExternalDocumentResult>();
-    // Get children.
-    getChildren(defaultFile, results, filter);
-    ExternalSearchResultSet resultSet = new ExternalSearchResultSetImpl(results.iterator(), results.size());
-    return resultSet;
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+    return new ExternalSearchResultSetImpl(results, files.size());
   }
 
-  /**
-   * Iterate over all the children of a "file".
-   * 
-   * @param parentFile
-   *          The file to list the children for.
-   * @param results
-   *          The list to add the results in
-   * @param filter
-   *          The filter to match the files against.
-   */
-  private void getChildren(File file, List<ExternalDocumentResult> results,
-      FilenameFilter filter) {
-    File[] files = file.listFiles();
-    for (File f : files) {
-      if (f.isDirectory()) {
-        getChildren(f, results, filter);
-      }
-      if (filter.accept(f.getParentFile(), f.getName())) {
-        results.add(new DiskDocumentResult(f));
+  private DiskIndex getIndex(File root) {
+    File key = root.getAbsoluteFile();
+    DiskIndex index = indexes.get(key);
+    if (index == null) {
+      index = new DiskIndex(key, indexRefresh);
+      DiskIndex existing = indexes.putIfAbsent(key, index);
+      if (existing != null) {
+        index = existing;
       }
     }
+    return index;
   }
 
   /**
@@ -270,6 +271,11 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
         throw new DocProxyException(500, "Unable to retrieve properties from request.");
       }
 
+      DiskIndex index = indexes.get(getRootFile(node).getAbsoluteFile());
+      if (index != null) {
+        index.update(file.getAbsoluteFile());
+      }
+
       // This implementation will also leave a node in JCR.
       // Note: This is optional.
       if (createJCRNodes) {
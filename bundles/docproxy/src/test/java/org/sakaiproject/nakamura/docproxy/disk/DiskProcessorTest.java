@@ -178,6 +178,61 @@ public class DiskProcessorTest {
     Assert.assertEquals(3, size);
   }
 
+  @Test
+  public void testSearchKeepsIndexCurrent() throws PathNotFoundException,
+      UnsupportedEncodingException, RepositoryException, DocProxyException {
+    Node proxyNode = createMock(Node.class);
+    Property locationProp = createMock(Property.class);
+    expect(locationProp.getString()).andReturn(currPath).anyTimes();
+    expect(proxyNode.getProperty(DocProxyConstants.REPOSITORY_LOCATION)).andReturn(
+        locationProp).anyTimes();
+    replay(locationProp, proxyNode);
+
+    Map<String, Object> searchProperties = new HashMap<String, Object>();
+    searchProperties.put("starts-with", "test-disk-index-");
+    searchProperties.put("property-color", "blue");
+    assertEquals(0, diskProcessor.search(proxyNode, searchProperties).getSize());
+
+    // Documents written after the index is built are found straight away.
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("color", "blue");
+    diskProcessor.updateDocument(proxyNode, "test-disk-index-blue", properties,
+        new ByteArrayInputStream("blue".getBytes("UTF-8")), -1);
+    properties.put("color", "red");
+    diskProcessor.updateDocument(proxyNode, "test-disk-index-red", properties,
+        new ByteArrayInputStream("red".getBytes("UTF-8")), -1);
+
+    ExternalSearchResultSet resultSet = diskProcessor.search(proxyNode, searchProperties);
+    assertEquals(1, resultSet.getSize());
+    Iterator<ExternalDocumentResult> results = resultSet.getResultIterator();
+    Assert.assertTrue(results.next().getUri().endsWith("test-disk-index-blue"));
+    Assert.assertFalse(results.hasNext());
+  }
+
+  @Test
+  public void testSearchFindsNewDirectories() throws PathNotFoundException,
+      UnsupportedEncodingException, RepositoryException, DocProxyException {
+    Node proxyNode = createMock(Node.class);
+    Property locationProp = createMock(Property.class);
+    expect(locationProp.getString()).andReturn(currPath).anyTimes();
+    expect(proxyNode.getProperty(DocProxyConstants.REPOSITORY_LOCATION)).andReturn(
+        locationProp).anyTimes();
+    replay(locationProp, proxyNode);
+
+    Map<String, Object> searchProperties = new HashMap<String, Object>();
+    searchProperties.put("starts-with", "test-disk-nested-");
+    assertEquals(0, diskProcessor.search(proxyNode, searchProperties).getSize());
+
+    // A document in a directory the index has not seen yet.
+    diskProcessor.updateDocument(proxyNode, "test-disk-dir/test-disk-nested-doc", null,
+        new ByteArrayInputStream("nested".getBytes("UTF-8")), -1);
+
+    ExternalSearchResultSet resultSet = diskProcessor.search(proxyNode, searchProperties);
+    assertEquals(1, resultSet.getSize());
+    Assert.assertTrue(resultSet.getResultIterator().next().getUri()
+        .endsWith("test-disk-nested-doc"));
+  }
+
   @Test
   public void testContentType() throws PathNotFoundException,
       UnsupportedEncodingException, RepositoryException, DocProxyException {
@@ -22,6 +22,7 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
 import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
@@ -87,6 +88,10 @@ public class LiteEmailMessageHandler implements LiteMessageTransport {
       props.put(EventDeliveryConstants.MESSAGE_MODE, EventMessageMode.PERSISTENT);
       props.put(LiteOutgoingEmailMessageListener.RECIPIENTS, recipients);
       props.put(LiteOutgoingEmailMessageListener.CONTENT_PATH_PROPERTY, message.getPath());
+      // keep mail from the same mailbox in order on the consumer side.
+      Object from = message.getProperty(MessageConstants.PROP_SAKAI_FROM);
+      props.put(MessageConsumerContainer.GROUP_ID_PROPERTY,
+          from == null ? message.getPath() : String.valueOf(from));
       Event emailEvent = new Event(LiteOutgoingEmailMessageListener.QUEUE_NAME, props);
 
       LOGGER.debug("Sending event [" + emailEvent + "]");
@@ -33,7 +33,8 @@ import org.apache.sling.jcr.api.SlingRepository;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
-import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.activemq.ConsumerRegistration;
+import org.sakaiproject.nakamura.api.activemq.MessageConsumerContainer;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -64,13 +65,9 @@ import java.util.Set;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
-import javax.jms.Connection;
 import javax.jms.JMSException;
 import javax.jms.Message;
-import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
-import javax.jms.Queue;
-import javax.jms.Session;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
@@ -102,7 +99,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   @Reference
   protected EventAdmin eventAdmin;
   @Reference
-  protected ConnectionFactoryService connFactoryService;
+  protected MessageConsumerContainer consumerContainer;
   @Reference
   protected TemplateService templateService;
   @Reference
@@ -121,7 +118,7 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   public static final String RECIPIENTS = "recipients";
 
-  private Connection connection = null;
+  private ConsumerRegistration registration = null;
   private Integer maxRetries;
   private Integer smtpPort;
   private String smtpServer;
@@ -133,8 +130,8 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   public LiteOutgoingEmailMessageListener() {
   }
 
-  public LiteOutgoingEmailMessageListener(ConnectionFactoryService connFactoryService) {
-    this.connFactoryService = connFactoryService;
+  public LiteOutgoingEmailMessageListener(MessageConsumerContainer consumerContainer) {
+    this.consumerContainer = consumerContainer;
   }
 
   @SuppressWarnings("unchecked")
@@ -548,30 +545,21 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("No reply-as email name set");
     }
 
-    try {
-      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      Queue dest = session.createQueue(QUEUE_NAME);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
-      connection.start();
-    } catch (JMSException e) {
-      LOGGER.error(e.getMessage(), e);
-      if (connection != null) {
-        try {
-          connection.close();
-        } catch (JMSException e1) {
-        }
+    if (registration == null) {
+      // mail from one mailbox is grouped by the handler, so it goes out in order.
+      try {
+        registration = consumerContainer.registerQueueListener(QUEUE_NAME,
+            MessageConsumerContainer.GROUP_ID_PROPERTY, this);
+      } catch (JMSException e) {
+        LOGGER.error(e.getMessage(), e);
       }
     }
   }
 
   protected void deactivate(ComponentContext ctx) {
-    if (connection != null) {
-      try {
-        connection.close();
-      } catch (JMSException e) {
-      }
+    if (registration != null) {
+      registration.close();
+      registration = null;
     }
   }
 
@@ -35,7 +35,6 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
@@ -45,6 +44,8 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -73,9 +74,14 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
   @Reference
   private ProfileService profileService;
 
-  public LiteFileSearchBatchResultProcessor(SolrSearchServiceFactory searchServiceFactory, ProfileService profileService) {
+  @Reference
+  private BasicUserInfoService basicUserInfoService;
+
+  public LiteFileSearchBatchResultProcessor(SolrSearchServiceFactory searchServiceFactory,
+      ProfileService profileService, BasicUserInfoService basicUserInfoService) {
     this.searchServiceFactory = searchServiceFactory;
     this.profileService = profileService;
+    this.basicUserInfoService = basicUserInfoService;
   }
 
   public LiteFileSearchBatchResultProcessor() {
@@ -125,13 +131,15 @@ public class LiteFileSearchBatchResultProcessor implements SolrSearchBatchResult
     try {
       javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
       final Session session = StorageClientUtils.adaptToSession(jcrSession);
+      final BasicUserInfoResolver userInfoResolver = BasicUserInfoResolver.getResolver(
+          request, session, basicUserInfoService);
       while (iterator.hasNext()) {
         final Result result = iterator.next();
         uniquePaths.add(result.getPath());
         try {
           if ("authorizable".equals(result.getFirstValue("resourceType"))) {
-            AuthorizableManager authManager = session.getAuthorizableManager();
-            Authorizable auth = authManager.findAuthorizable((String) result.getFirstValue("id"));
+            Authorizable auth = userInfoResolver.getAuthorizable((String) result
+                .getFirstValue("id"));
             if (auth != null) {
               write.object();
               ValueMap map = profileService.getProfileMap(auth, jcrSession);
@@ -45,8 +45,8 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.lite.util.Iterables;
-import org.sakaiproject.nakamura.api.solr.IndexingHandler;
-import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler;
+import org.sakaiproject.nakamura.api.search.solr.IndexingBatch;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
 import org.sakaiproject.nakamura.api.tika.TikaService;
 import org.sakaiproject.nakamura.util.PathUtils;
@@ -66,7 +66,7 @@ import java.util.Set;
  * Indexes content with the property sling:resourceType = "sakai/pooled-content".
  */
 @Component(immediate = true)
-public class PoolContentResourceTypeHandler implements IndexingHandler {
+public class PoolContentResourceTypeHandler extends AbstractBatchIndexingHandler {
 
   private static final Set<String> IGNORE_NAMESPACES = ImmutableSet.of("jcr", "rep");
   private static final Set<String> IGNORE_PROPERTIES = ImmutableSet.of();
@@ -122,15 +122,18 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
     }
   }
 
-  // ---------- IndexingHandler interface --------------------------------------
+  // ---------- AbstractBatchIndexingHandler -----------------------------------
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDocuments(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * Every page of a pooled content item indexes the item itself, so the item is only
+   * indexed once per window however many of its pages changed.
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDocuments(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<SolrInputDocument> getDocuments(IndexingBatch batch, Event event) {
     LOGGER.debug("GetDocuments for {} ", event);
     String path = (String) event.getProperty("path");
     if (ignorePath(path)) {
@@ -139,15 +142,20 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
     List<SolrInputDocument> documents = Lists.newArrayList();
     if (path != null) {
       try {
-        Session session = repositorySession.adaptTo(Session.class);
+        Session session = batch.getSession();
         ContentManager contentManager = session.getContentManager();
-        Content content = contentManager.get(path);
+        Content content = batch.getContent(path);
         if (content != null) {
           boolean isPageContent = content.hasProperty("page");
           if (isPageContent) {
-            content = contentManager.get(PathUtils.getParentReference(path));
+            content = batch.getContent(PathUtils.getParentReference(path));
+          }
+          if (content == null
+              || !CONTENT_TYPES.contains(content.getProperty("sling:resourceType"))) {
+            return documents;
           }
-          if (!CONTENT_TYPES.contains(content.getProperty("sling:resourceType"))) {
+          if (!batch.claim(content.getPath())) {
+            LOGGER.debug("Already indexed {} in this batch ", content.getPath());
             return documents;
           }
 
@@ -183,7 +191,7 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
               try {
                 InputStream contentStream = contentManager.getInputStream(path);
                 if (contentStream != null) {
-                  String extracted = tika.parseToString(contentManager.getInputStream(path));
+                  String extracted = tika.parseToString(contentStream);
                   doc.addField("content", extracted);
                 }
               } catch (TikaException e) {
@@ -230,10 +238,11 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<String> getDeleteQueries(RepositorySession repositorySession, Event event) {
+  @Override
+  protected Collection<String> getDeleteQueries(IndexingBatch batch, Event event) {
     List<String> retval = Collections.emptyList();
     LOGGER.debug("GetDelete for {} ", event);
     String path = (String) event.getProperty(FIELD_PATH);
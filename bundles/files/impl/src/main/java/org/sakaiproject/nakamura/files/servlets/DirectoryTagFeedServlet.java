@@ -50,6 +50,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.files.search.LiteFileSearchBatchResultProcessor;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
@@ -114,6 +115,9 @@ public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
   @Reference
   private ProfileService profileService;
 
+  @Reference
+  private BasicUserInfoService basicUserInfoService;
+
   /**
    * {@inheritDoc}
    *
@@ -209,7 +213,7 @@ public class DirectoryTagFeedServlet extends SlingSafeMethodsServlet {
     org.sakaiproject.nakamura.api.search.solr.Query solrQuery = new org.sakaiproject.nakamura.api.search.solr.Query(
         queryString, ImmutableMap.of("sort", sortRandom));
     final SolrSearchBatchResultProcessor rp = new LiteFileSearchBatchResultProcessor(
-        solrSearchServiceFactory, profileService);
+        solrSearchServiceFactory, profileService, basicUserInfoService);
     final SolrSearchResultSet srs = rp.getSearchResultSet(request, solrQuery);
     if (srs.getResultSetIterator().hasNext()) {
       rp.writeResults(request, write, selectOneResult(srs.getResultSetIterator()));
@@ -179,38 +179,7 @@ public class I18nFilter implements Filter {
       // load the default bundle
       Properties bndLangDefault = getLangBundle(bundlesNode, "default");
 
-      // check for message keys and replace them with the appropriate message
-      Matcher m = messageKeyPattern.matcher(output);
-      ArrayList<String> matchedKeys = new ArrayList<String>();
-      while (m.find()) {
-        String msgKey = m.group(0);
-        String key = m.group(1);
-        if (!matchedKeys.contains(key)) {
-          String message = "";
-
-          if (bndLang.containsKey(key)) {
-            message = bndLang.getProperty(key);
-          } else if (bndLangDefault.containsKey(key)) {
-            message = bndLangDefault.getProperty(key);
-          } else {
-            String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
-            logger.warn(msg);
-            if (showMissingKeys) {
-              message = msg;
-            }
-          }
-
-          // replace all instances of msgKey with the actual message
-          int keyStart = sb.indexOf(msgKey);
-          while (keyStart >= 0) {
-            sb.replace(keyStart, keyStart + msgKey.length(), message);
-            keyStart = sb.indexOf(msgKey, keyStart);
-          }
-
-          // track the group so we don't try to replace it again
-          matchedKeys.add(key);
-        }
-      }
+      sb = substituteMessages(output, bndLang, bndLangDefault);
     } catch (RepositoryException e) {
       logger.error(e.getMessage(), e);
     }
@@ -225,6 +194,53 @@ public class I18nFilter implements Filter {
     }
   }
 
+  /**
+   * Replace the message keys in <code>output</code> with the messages from the language
+   * bundle, falling back to the default bundle.
+   *
+   * @param output
+   * @param bndLang
+   * @param bndLangDefault
+   * @return the output with the message keys replaced.
+   */
+  StringBuilder substituteMessages(String output, Properties bndLang,
+      Properties bndLangDefault) {
+    StringBuilder sb = new StringBuilder(output);
+    // check for message keys and replace them with the appropriate message
+    Matcher m = messageKeyPattern.matcher(output);
+    ArrayList<String> matchedKeys = new ArrayList<String>();
+    while (m.find()) {
+      String msgKey = m.group(0);
+      String key = m.group(1);
+      if (!matchedKeys.contains(key)) {
+        String message = "";
+
+        if (bndLang.containsKey(key)) {
+          message = bndLang.getProperty(key);
+        } else if (bndLangDefault.containsKey(key)) {
+          message = bndLangDefault.getProperty(key);
+        } else {
+          String msg = "[MESSAGE KEY NOT FOUND '" + key + "']";
+          logger.warn(msg);
+          if (showMissingKeys) {
+            message = msg;
+          }
+        }
+
+        // replace all instances of msgKey with the actual message
+        int keyStart = sb.indexOf(msgKey);
+        while (keyStart >= 0) {
+          sb.replace(keyStart, keyStart + msgKey.length(), message);
+          keyStart = sb.indexOf(msgKey, keyStart);
+        }
+
+        // track the group so we don't try to replace it again
+        matchedKeys.add(key);
+      }
+    }
+    return sb;
+  }
+
   private Locale getLocale(SlingHttpServletRequest request) {
     Locale l = null;
     String lang = request.getParameter(PARAM_LANGUAGE);
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * An additive increase, multiplicative decrease limit on concurrent requests driven by
+ * the latency of completed requests. The lowest latency seen is taken as the latency of
+ * an unloaded server; while requests complete within a tolerance of that the limit creeps
+ * up, once they take longer the limit is cut back. The baseline drifts slowly towards
+ * recent latencies so a permanent change in the work done by a category is learnt.
+ */
+public class AdaptiveLimit {
+
+  private static final double DECREASE_FACTOR = 0.9;
+  private static final double SMOOTHING = 0.1;
+  private static final double BASELINE_DRIFT = 0.001;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final double tolerance;
+  private double limit;
+  private double baseline = -1;
+  private double smoothed = -1;
+  private long lastDecrease;
+
+  /**
+   * @param initialLimit
+   *          the limit to start with.
+   * @param minLimit
+   *          the limit will never go below this.
+   * @param maxLimit
+   *          the limit will never go above this.
+   * @param tolerance
+   *          how many times the baseline latency requests may take before the limit is
+   *          reduced.
+   */
+  public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, double tolerance) {
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.tolerance = tolerance;
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+  }
+
+  /**
+   * Feed the latency of a completed request into the limit.
+   *
+   * @param latency
+   *          the time in ms the request took.
+   * @param inFlight
+   *          the number of requests running when this one completed.
+   * @param now
+   *          the current time in ms.
+   * @return the new limit.
+   */
+  public synchronized int sample(long latency, int inFlight, long now) {
+    if (baseline < 0 || latency < baseline) {
+      baseline = latency;
+    } else {
+      baseline += (latency - baseline) * BASELINE_DRIFT;
+    }
+    if (smoothed < 0) {
+      smoothed = latency;
+    } else {
+      smoothed += (latency - smoothed) * SMOOTHING;
+    }
+    if (smoothed > Math.max(1.0, baseline) * tolerance) {
+      // only back off once per round trip, or a burst of slow requests collapses the limit.
+      if (now - lastDecrease > smoothed) {
+        limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+        lastDecrease = now;
+      }
+    } else if (inFlight >= (int) limit - 1) {
+      // only grow when the limit is actually being used.
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+    return (int) limit;
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized long getBaselineLatency() {
+    return Math.round(baseline);
+  }
+
+}
@@ -17,28 +17,74 @@
  */
 package org.sakaiproject.nakamura.http.qos;
 
-import org.mortbay.util.ajax.Continuation;
-
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletRequest;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 
-public class QoSControl {
+public class QoSControl implements QoSControlMBean {
 
-  private Semaphore semaphore;
+  private String name;
+  private ResizableSemaphore semaphore;
   private int priority;
-  private Queue<Continuation>[] priorityQueue;
+  private QoSQueue[] priorityQueue;
   private long timeout;
+  private volatile int limit;
+  private AdaptiveLimit adaptiveLimit;
+  private double userShare = 1.0;
+  private String userCookie;
+  private Map<String, AtomicInteger> userInFlight = new ConcurrentHashMap<String, AtomicInteger>();
+
+  private AtomicLong queued = new AtomicLong();
+  private AtomicLong accepted = new AtomicLong();
+  private AtomicLong rejections = new AtomicLong();
+  private AtomicLong dequeued = new AtomicLong();
+  private AtomicLong queueWait = new AtomicLong();
+  private AtomicLong completed = new AtomicLong();
+  private AtomicLong latency = new AtomicLong();
 
-  public QoSControl(Queue<Continuation>[] priorityQueue, int nRequests, int priority,
+  public QoSControl(String name, QoSQueue[] priorityQueue, int nRequests, int priority,
       long timeout) {
-    semaphore = new Semaphore(nRequests, true);
+    semaphore = new ResizableSemaphore(nRequests);
+    this.name = name;
+    this.limit = nRequests;
     this.priority = priority;
     this.priorityQueue = priorityQueue;
     this.timeout = timeout;
   }
 
+  /**
+   * Let the limit adapt to the latency of requests in this category.
+   *
+   * @param adaptiveLimit
+   *          the limit to follow, null for a fixed limit.
+   */
+  public void setAdaptiveLimit(AdaptiveLimit adaptiveLimit) {
+    this.adaptiveLimit = adaptiveLimit;
+    if (adaptiveLimit != null) {
+      resize(adaptiveLimit.getLimit());
+    }
+  }
+
+  /**
+   * Limit the share of the permits one user may hold at the same time.
+   *
+   * @param userShare
+   *          the fraction of the limit one user may hold, 1 or more for no limit.
+   * @param userCookie
+   *          the name of the cookie that identifies a user when there is no session.
+   */
+  public void setUserShare(double userShare, String userCookie) {
+    this.userShare = userShare;
+    this.userCookie = userCookie;
+  }
+
   public Semaphore getSemaphore() {
     return semaphore;
   }
@@ -47,7 +93,31 @@ public class QoSControl {
     return priority;
   }
 
-  public Queue<Continuation>[] getPriorityQueue() {
+  /**
+   * @param request
+   * @return a key identifying the user or session that made the request. This filter runs
+   *         before authentication so the remote user is not normally known.
+   */
+  public String getUserKey(ServletRequest request) {
+    HttpServletRequest hrequest = (HttpServletRequest) request;
+    if (hrequest.getRemoteUser() != null) {
+      return hrequest.getRemoteUser();
+    }
+    if (hrequest.getRequestedSessionId() != null) {
+      return hrequest.getRequestedSessionId();
+    }
+    Cookie[] cookies = hrequest.getCookies();
+    if (userCookie != null && cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (userCookie.equals(cookie.getName())) {
+          return cookie.getValue();
+        }
+      }
+    }
+    return request.getRemoteAddr();
+  }
+
+  public QoSQueue[] getPriorityQueue() {
     return priorityQueue;
   }
 
@@ -55,4 +125,179 @@ public class QoSControl {
     return timeout;
   }
 
+  /**
+   * Try to get a permit for the user, waiting at most waitMs for one to become free.
+   *
+   * @return true if the permit was granted.
+   * @throws InterruptedException
+   */
+  public boolean tryAcquire(String user, long waitMs) throws InterruptedException {
+    if (!reserveUser(user)) {
+      return false;
+    }
+    if (semaphore.tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+      accepted.incrementAndGet();
+      return true;
+    }
+    releaseUser(user);
+    return false;
+  }
+
+  /**
+   * Get a permit for a request that has already waited its turn in the queue, ignoring
+   * the share of the user.
+   *
+   * @throws InterruptedException
+   */
+  public void acquire(String user) throws InterruptedException {
+    semaphore.acquire();
+    if (userShare < 1.0) {
+      getUserCount(user).incrementAndGet();
+    }
+    accepted.incrementAndGet();
+  }
+
+  /**
+   * Give back a permit and feed the time the request took into the limit.
+   *
+   * @param user
+   *          the user that held the permit.
+   * @param requestLatency
+   *          the time in ms the request took.
+   */
+  public void release(String user, long requestLatency) {
+    releaseUser(user);
+    completed.incrementAndGet();
+    latency.addAndGet(requestLatency);
+    int inFlight = getInFlight();
+    semaphore.release();
+    AdaptiveLimit al = adaptiveLimit;
+    if (al != null) {
+      int newLimit = al.sample(requestLatency, inFlight, System.currentTimeMillis());
+      if (newLimit != limit) {
+        resize(newLimit);
+      }
+    }
+  }
+
+  public void queued() {
+    queued.incrementAndGet();
+  }
+
+  /**
+   * @param wait
+   *          the time in ms a suspended request waited before it came back.
+   */
+  public void dequeued(long wait) {
+    dequeued.incrementAndGet();
+    queueWait.addAndGet(wait);
+  }
+
+  public void rejected() {
+    rejections.incrementAndGet();
+  }
+
+  private synchronized void resize(int newLimit) {
+    int delta = newLimit - limit;
+    if (delta > 0) {
+      semaphore.release(delta);
+    } else if (delta < 0) {
+      // running requests keep their permits, the reduction takes effect as they finish.
+      semaphore.reducePermits(-delta);
+    }
+    limit = newLimit;
+  }
+
+  private boolean reserveUser(String user) {
+    if (userShare >= 1.0) {
+      return true;
+    }
+    AtomicInteger count = getUserCount(user);
+    int userLimit = Math.max(1, (int) Math.ceil(limit * userShare));
+    if (count.incrementAndGet() > userLimit) {
+      count.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private void releaseUser(String user) {
+    if (userShare >= 1.0) {
+      return;
+    }
+    AtomicInteger count = userInFlight.get(user);
+    if (count != null && count.decrementAndGet() <= 0) {
+      userInFlight.remove(user);
+    }
+  }
+
+  private AtomicInteger getUserCount(String user) {
+    AtomicInteger count = userInFlight.get(user);
+    if (count == null) {
+      synchronized (userInFlight) {
+        count = userInFlight.get(user);
+        if (count == null) {
+          count = new AtomicInteger();
+          userInFlight.put(user, count);
+        }
+      }
+    }
+    return count;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isAdaptive() {
+    return adaptiveLimit != null;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public int getInFlight() {
+    return limit - semaphore.availablePermits();
+  }
+
+  public long getQueued() {
+    return queued.get() - dequeued.get();
+  }
+
+  public long getAccepted() {
+    return accepted.get();
+  }
+
+  public long getRejections() {
+    return rejections.get();
+  }
+
+  public long getAverageQueueWait() {
+    long n = dequeued.get();
+    return n == 0 ? 0 : queueWait.get() / n;
+  }
+
+  public long getAverageLatency() {
+    long n = completed.get();
+    return n == 0 ? 0 : latency.get() / n;
+  }
+
+  /**
+   * A semaphore whose number of permits can be reduced as well as increased.
+   */
+  private static class ResizableSemaphore extends Semaphore {
+
+    private static final long serialVersionUID = -2744387547213640452L;
+
+    private ResizableSemaphore(int permits) {
+      super(permits, true);
+    }
+
+    @Override
+    protected void reducePermits(int reduction) {
+      super.reducePermits(reduction);
+    }
+  }
+
 }
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+/**
+ * Statistics for one QoS category, published over JMX.
+ */
+public interface QoSControlMBean {
+
+  /**
+   * @return the name of the category, the path spec or default.
+   */
+  String getName();
+
+  /**
+   * @return true if the limit adapts to latency.
+   */
+  boolean isAdaptive();
+
+  /**
+   * @return the current limit on concurrent requests.
+   */
+  int getLimit();
+
+  /**
+   * @return the number of requests currently running.
+   */
+  int getInFlight();
+
+  /**
+   * @return the number of requests currently suspended waiting to run.
+   */
+  long getQueued();
+
+  /**
+   * @return the number of requests that ran.
+   */
+  long getAccepted();
+
+  /**
+   * @return the number of requests rejected with a 503.
+   */
+  long getRejections();
+
+  /**
+   * @return the mean time in ms requests that were suspended spent waiting.
+   */
+  long getAverageQueueWait();
+
+  /**
+   * @return the mean time in ms requests took to run.
+   */
+  long getAverageLatency();
+
+}
@@ -34,12 +34,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Dictionary;
 import java.util.Map;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -51,6 +53,9 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Provides a configurable QoS filter that manages request in and out of the server, based on number of concurrent requests. Pending requests are prioritiezed into queue, taken out of the queue based on priority and time of entry. If the request does not match any Quality of Service Configuration, the default configuration will be used.
+ * Within a priority, waiting requests are taken from each user in turn. The limit of a category may be fixed, or may adapt to the latency of
+ * the requests in that category. The limit, queue and rejections of each category are published over JMX as
+ * org.sakaiproject.nakamura:type=QoS,category=&lt;pathSpec&gt;.
  * Configuration is via the
  */
 @Component(immediate = true, metatype = true)
@@ -102,9 +107,43 @@ public class QoSFilter implements Filter {
    * maxrequests is the maximum number of concurrent requests
    * priority is the queue the request is put into if suspended (0 is the lowest) (optional)
    * timeout is the time (ms) the request will wait if suspended. (optional)
+   * mode is adaptive or fixed, if not present qos.adaptive decides. (optional)
    */
   @Property(value={})
   private static final String QOS_CATEGORIES_CONFIG = "qos.categories";
+  /**
+   * If true the limit of categories that do not give a mode adapts to request latency,
+   * starting from the configured maxrequests.
+   */
+  @Property(boolValue=false)
+  private static final String QOS_ADAPTIVE_CONF = "qos.adaptive";
+  /**
+   * How many times the unloaded latency requests may take before an adaptive limit is reduced.
+   */
+  @Property(doubleValue=2.0)
+  private static final String QOS_ADAPTIVE_TOLERANCE_CONF = "qos.adaptive.tolerance";
+  /**
+   * An adaptive limit will not grow beyond this multiple of the configured maxrequests.
+   */
+  @Property(intValue=4)
+  private static final String QOS_ADAPTIVE_MAXFACTOR_CONF = "qos.adaptive.maxfactor";
+  /**
+   * An adaptive limit will not shrink below this.
+   */
+  @Property(intValue=1)
+  private static final String QOS_ADAPTIVE_MINLIMIT_CONF = "qos.adaptive.minlimit";
+  /**
+   * The fraction of a category limit that one user may hold at once, 1.0 or more for no limit.
+   */
+  @Property(doubleValue=1.0)
+  private static final String QOS_USER_SHARE_CONF = "qos.user.share";
+  /**
+   * Cookie that identifies a user when there is no session, used to share out the queue and permits.
+   */
+  @Property(value="sakai-trusted-authn")
+  private static final String QOS_USER_COOKIE_CONF = "qos.user.cookie";
+  private static final String DEFAULT_CATEGORY = "default";
+  private static final String MBEAN_NAME_PREFIX = "org.sakaiproject.nakamura:type=QoS,category=";
   private static final Logger LOGGER = LoggerFactory.getLogger(QoSFilter.class);
   private String suspendedAttributeName=this.getClass().getName()+this.hashCode();
 
@@ -112,9 +151,15 @@ public class QoSFilter implements Filter {
   protected ExtHttpService extHttpService;
 
   private long waitMs;
+  private boolean adaptive;
+  private double adaptiveTolerance;
+  private int adaptiveMaxFactor;
+  private int adaptiveMinLimit;
+  private double userShare;
+  private String userCookie;
 
 
-  private Queue<Continuation>[] priorityQueue;
+  private QoSQueue[] priorityQueue;
   private QoSControl defaultQoSControl;
   private Map<String, QoSControl> qoSControMap = new ConcurrentHashMap<String, QoSControl>();
 
@@ -138,8 +183,9 @@ public class QoSFilter implements Filter {
           LOGGER.debug("Suspending request");
           request.setAttribute(suspendedAttributeName, Boolean.TRUE);
           Continuation continuation = ContinuationSupport.getContinuation((HttpServletRequest)request, qoSToken.getMutex());
-          continuation.suspend(qoSToken.getSuspendTime());
+          // queue before suspending, suspend may not return.
           qoSToken.queue(continuation);
+          continuation.suspend(qoSToken.getSuspendTime());
           return;
         }
       } else {
@@ -218,24 +264,33 @@ public class QoSFilter implements Filter {
 
     long defaultTimeout = OsgiUtil.toInteger(properties.get(QOS_TIMEOUT_CONFIG),-1);
     int maxPriorityNumber = OsgiUtil.toInteger(properties.get(QOS_MAX_PRIORITY_CONF),2);
-    priorityQueue = new Queue[maxPriorityNumber+1];
+    priorityQueue = new QoSQueue[maxPriorityNumber+1];
     for ( int i = 0; i < priorityQueue.length; i++ ) {
-      priorityQueue[i] = new ConcurrentLinkedQueue<Continuation>();
+      priorityQueue[i] = new QoSQueue();
     }
 
-    // path, max requests, priority, timeout
+    adaptive = OsgiUtil.toBoolean(properties.get(QOS_ADAPTIVE_CONF), false);
+    adaptiveTolerance = OsgiUtil.toDouble(properties.get(QOS_ADAPTIVE_TOLERANCE_CONF), 2.0);
+    adaptiveMaxFactor = OsgiUtil.toInteger(properties.get(QOS_ADAPTIVE_MAXFACTOR_CONF), 4);
+    adaptiveMinLimit = OsgiUtil.toInteger(properties.get(QOS_ADAPTIVE_MINLIMIT_CONF), 1);
+    userShare = OsgiUtil.toDouble(properties.get(QOS_USER_SHARE_CONF), 1.0);
+    userCookie = OsgiUtil.toString(properties.get(QOS_USER_COOKIE_CONF), "sakai-trusted-authn");
+
+    // path, max requests, priority, timeout, mode
     qoSControMap.clear();
     String[] qosLocations = OsgiUtil.toStringArray(properties.get(QOS_CATEGORIES_CONFIG));
     if ( qosLocations != null ) {
       for ( String qosLocation : qosLocations ) {
         String[] settings = StringUtils.split(qosLocation,";");
         if ( settings != null ) {
-          if ( settings.length > 3 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3])));
+          if ( settings.length > 4 ) {
+            qoSControMap.put(settings[0], createQoSControl(settings[0], Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3]), "adaptive".equals(settings[4])));
+          } else if ( settings.length > 3 ) {
+            qoSControMap.put(settings[0], createQoSControl(settings[0], Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), Long.parseLong(settings[3]), adaptive));
           } else if ( settings.length > 2 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout));
+            qoSControMap.put(settings[0], createQoSControl(settings[0], Integer.parseInt(settings[1]), Integer.parseInt(settings[2]), defaultTimeout, adaptive));
           } else if ( settings.length > 1 ) {
-            qoSControMap.put(settings[0], new QoSControl(priorityQueue, Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout));
+            qoSControMap.put(settings[0], createQoSControl(settings[0], Integer.parseInt(settings[1]), maxPriorityNumber, defaultTimeout, adaptive));
           }
         }
       }
@@ -247,7 +302,12 @@ public class QoSFilter implements Filter {
     long qosDefaultTimeout = OsgiUtil.toLong(properties.get(QOS_DEFAULT_REQUEST_TIMEOUT_CONF),defaultTimeout);
     waitMs = OsgiUtil.toLong(properties.get(QOS_SEMAPHOREWAIT_CONF),50);
 
-    defaultQoSControl = new QoSControl(priorityQueue, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout);
+    defaultQoSControl = createQoSControl(DEFAULT_CATEGORY, qosDefaultLimit, qosDefaultPriority, qosDefaultTimeout, adaptive);
+
+    registerMBean(defaultQoSControl);
+    for ( QoSControl qoSControl : qoSControMap.values() ) {
+      registerMBean(qoSControl);
+    }
 
     int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF),10);
 
@@ -258,13 +318,53 @@ public class QoSFilter implements Filter {
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
+    unregisterMBean(defaultQoSControl);
+    for ( QoSControl qoSControl : qoSControMap.values() ) {
+      unregisterMBean(qoSControl);
+    }
     // resume any continuations held by the filter
     for (int p = priorityQueue.length; p-- > 0;) {
       Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();
-        break;
+      while (continutaion != null) {
+        if (continutaion.isPending()) {
+          continutaion.resume();
+        }
+        continutaion = priorityQueue[p].poll();
+      }
+    }
+  }
+
+  private QoSControl createQoSControl(String name, int nRequests, int priority, long timeout, boolean adaptiveLimit) {
+    QoSControl qoSControl = new QoSControl(name, priorityQueue, nRequests, priority, timeout);
+    if ( adaptiveLimit ) {
+      qoSControl.setAdaptiveLimit(new AdaptiveLimit(nRequests, adaptiveMinLimit, nRequests * adaptiveMaxFactor, adaptiveTolerance));
+    }
+    qoSControl.setUserShare(userShare, userCookie);
+    return qoSControl;
+  }
+
+  private void registerMBean(QoSControl qoSControl) {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME_PREFIX + ObjectName.quote(qoSControl.getName()));
+      if ( mbeanServer.isRegistered(name) ) {
+        mbeanServer.unregisterMBean(name);
+      }
+      mbeanServer.registerMBean(qoSControl, name);
+    } catch ( JMException e ) {
+      LOGGER.warn("Unable to publish QoS statistics for {} {} ", qoSControl.getName(), e.getMessage());
+    }
+  }
+
+  private void unregisterMBean(QoSControl qoSControl) {
+    try {
+      MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(MBEAN_NAME_PREFIX + ObjectName.quote(qoSControl.getName()));
+      if ( mbeanServer.isRegistered(name) ) {
+        mbeanServer.unregisterMBean(name);
       }
+    } catch ( JMException e ) {
+      LOGGER.debug("Unable to remove QoS statistics for {} {} ", qoSControl.getName(), e.getMessage());
     }
   }
 
@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import org.mortbay.util.ajax.Continuation;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A queue of suspended requests for one priority. Requests are grouped by the user that
+ * made them and taken out in turn from each user, so one user with many waiting requests
+ * does not starve the others waiting at the same priority.
+ */
+public class QoSQueue {
+
+  private final Map<String, LinkedList<Continuation>> queues = new HashMap<String, LinkedList<Continuation>>();
+  private final LinkedList<String> order = new LinkedList<String>();
+  private int size;
+
+  /**
+   * @param user
+   *          the key of the user that made the request.
+   * @param continuation
+   *          the continuation of the suspended request.
+   */
+  public synchronized void add(String user, Continuation continuation) {
+    LinkedList<Continuation> queue = queues.get(user);
+    if (queue == null) {
+      queue = new LinkedList<Continuation>();
+      queues.put(user, queue);
+      order.addLast(user);
+    }
+    queue.addLast(continuation);
+    size++;
+  }
+
+  /**
+   * @return the next continuation, taken from the user whose turn it is, or null if the
+   *         queue is empty.
+   */
+  public synchronized Continuation poll() {
+    String user = order.poll();
+    if (user == null) {
+      return null;
+    }
+    LinkedList<Continuation> queue = queues.get(user);
+    Continuation continuation = queue.removeFirst();
+    size--;
+    if (queue.isEmpty()) {
+      queues.remove(user);
+    } else {
+      // back of the line for the next one.
+      order.addLast(user);
+    }
+    return continuation;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+}
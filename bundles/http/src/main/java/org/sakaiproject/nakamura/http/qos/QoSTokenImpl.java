@@ -20,19 +20,20 @@ package org.sakaiproject.nakamura.http.qos;
 import org.mortbay.util.ajax.Continuation;
 import org.sakaiproject.nakamura.api.http.qos.QoSToken;
 
-import java.util.Queue;
-import java.util.concurrent.TimeUnit;
-
 import javax.servlet.ServletRequest;
 
 public class QoSTokenImpl implements QoSToken {
 
   private QoSControl qoSControl;
   private int priority;
+  private String user;
+  private long started;
+  private long queuedAt;
 
   public QoSTokenImpl(QoSControl qoSControl, ServletRequest request) {
     this.qoSControl = qoSControl;
     priority = qoSControl.getPriority(request);
+    user = qoSControl.getUserKey(request);
   }
 
 
@@ -41,15 +42,19 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void release() {
-    Queue<Continuation>[] priorityQueue = qoSControl.getPriorityQueue();
-    for (int p = priorityQueue.length; p-- > 0;) {
+    QoSQueue[] priorityQueue = qoSControl.getPriorityQueue();
+    resume: for (int p = priorityQueue.length; p-- > 0;) {
       Continuation continutaion = priorityQueue[p].poll();
-      if (continutaion != null && continutaion.isResumed()) {
-        continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
-        break;
+      while (continutaion != null) {
+        // suspended requests that have already timed out are no longer pending.
+        if (continutaion.isPending()) {
+          continutaion.resume();// this assumes only 1 will be resumed, that may not be right and we might want to think how the proprity queues are managed.
+          break resume;
+        }
+        continutaion = priorityQueue[p].poll();
       }
     }
-    qoSControl.getSemaphore().release();
+    qoSControl.release(user, System.currentTimeMillis() - started);
   }
 
   public long getSuspendTime() {
@@ -57,15 +62,36 @@ public class QoSTokenImpl implements QoSToken {
   }
 
   public void queue(Continuation continuation) {
-    qoSControl.getPriorityQueue()[priority].add(continuation);
+    queuedAt = System.currentTimeMillis();
+    qoSControl.queued();
+    qoSControl.getPriorityQueue()[priority].add(user, continuation);
   }
 
   public boolean acquire(long waitMs) throws InterruptedException {
-    return qoSControl.getSemaphore().tryAcquire(waitMs, TimeUnit.MILLISECONDS);
+    boolean wasQueued = dequeue();
+    boolean accepted = qoSControl.tryAcquire(user, waitMs);
+    if (accepted) {
+      started = System.currentTimeMillis();
+    } else if (wasQueued) {
+      // the last chance for a request that timed out in the queue.
+      qoSControl.rejected();
+    }
+    return accepted;
   }
 
   public void acquire() throws InterruptedException {
-    qoSControl.getSemaphore().acquire();
+    dequeue();
+    qoSControl.acquire(user);
+    started = System.currentTimeMillis();
+  }
+
+  private boolean dequeue() {
+    if (queuedAt > 0) {
+      qoSControl.dequeued(System.currentTimeMillis() - queuedAt);
+      queuedAt = 0;
+      return true;
+    }
+    return false;
   }
 
 }
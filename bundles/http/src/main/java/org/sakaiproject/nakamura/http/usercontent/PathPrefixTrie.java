@@ -0,0 +1,131 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.usercontent;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * An immutable set of path stems compiled into a character trie, so that asking whether a
+ * path starts with any of the stems costs one walk down the path rather than a
+ * <code>startsWith</code> against every configured stem. Matching is plain string prefix
+ * matching, exactly as <code>path.startsWith(stem)</code> would be.
+ */
+final class PathPrefixTrie {
+
+  private final Node root;
+  private final String[] prefixes;
+
+  PathPrefixTrie(String[] prefixes) {
+    this.prefixes = prefixes.clone();
+    Builder rootBuilder = new Builder();
+    for (String prefix : prefixes) {
+      if (prefix == null) {
+        continue;
+      }
+      Builder b = rootBuilder;
+      for (int i = 0; i < prefix.length(); i++) {
+        Character c = prefix.charAt(i);
+        Builder child = b.children.get(c);
+        if (child == null) {
+          child = new Builder();
+          b.children.put(c, child);
+        }
+        b = child;
+      }
+      b.prefix = prefix;
+    }
+    root = rootBuilder.build();
+  }
+
+  /**
+   * @param path
+   *          the path to test, may be null.
+   * @return true if the path starts with one of the stems.
+   */
+  boolean matches(String path) {
+    return getMatchingPrefix(path) != null;
+  }
+
+  /**
+   * @param path
+   *          the path to test, may be null.
+   * @return the shortest stem the path starts with, or null if there is none.
+   */
+  String getMatchingPrefix(String path) {
+    if (path == null) {
+      return null;
+    }
+    Node n = root;
+    if (n.prefix != null) {
+      return n.prefix;
+    }
+    for (int i = 0; i < path.length(); i++) {
+      n = n.child(path.charAt(i));
+      if (n == null) {
+        return null;
+      }
+      if (n.prefix != null) {
+        return n.prefix;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(prefixes);
+  }
+
+  private static final class Node {
+    private final char[] keys;
+    private final Node[] children;
+    private final String prefix;
+
+    private Node(char[] keys, Node[] children, String prefix) {
+      this.keys = keys;
+      this.children = children;
+      this.prefix = prefix;
+    }
+
+    private Node child(char c) {
+      int i = Arrays.binarySearch(keys, c);
+      return (i < 0) ? null : children[i];
+    }
+  }
+
+  private static final class Builder {
+    private final Map<Character, Builder> children = new TreeMap<Character, Builder>();
+    private String prefix;
+
+    private Node build() {
+      char[] keys = new char[children.size()];
+      Node[] nodes = new Node[children.size()];
+      int i = 0;
+      // the TreeMap keeps the keys sorted, ready for the binary search in Node.child
+      for (Entry<Character, Builder> e : children.entrySet()) {
+        keys[i] = e.getKey();
+        nodes[i] = e.getValue().build();
+        i++;
+      }
+      return new Node(keys, nodes, prefix);
+    }
+  }
+}
@@ -53,10 +53,7 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
-import java.security.Key;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Map;
@@ -64,7 +61,6 @@ import java.util.Map.Entry;
 import java.util.Set;
 
 import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import javax.jcr.Node;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -100,7 +96,6 @@ import javax.servlet.http.HttpServletResponse;
 @Component(immediate = true, metatype = true)
 @Service(value = ServerProtectionService.class)
 public class ServerProtectionServiceImpl implements ServerProtectionService {
-  private static final String HMAC_SHA512 = "HmacSHA512";
   private static final String HMAC_PARAM = ":hmac";
   private static final String[] DEFAULT_TRUSTED_HOSTS = { "localhost:8080 = http://localhost:8082" };
   private static final String[] DEFAULT_TRUSTED_PATHS = { "/dev", "/devwidgets", "/system", "/logout" };
@@ -166,26 +161,26 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
    */
   private Map<String, String> applicationReferrerHeaders;
   /**
-   * List of path stems its safe to stream content bodies from using a trusted host
+   * Path stems its safe to stream content bodies from using a trusted host
    */
-  private String[] safeToStreamPaths;
+  private PathPrefixTrie safeToStreamPaths;
   /**
    * List of path stems its safe to stream content bodies from using a trusted host
    */
   private Set<String> safeToStreamExactPaths;
   /**
-   * Array of keys created from the secret, indexed by the second digit of the timestamp
+   * Ring of keys created from the secret, indexed by the last digit of the timestamp
    */
-  private Key[] transferKeys;
+  private TransferKeyRing transferKeys;
   /**
    * List of url stems that are always Ok to accept posts from on any URL (eg
    * /system/console). You will want to add additional protection on these.
    */
-  private String[] postWhiteList;
+  private PathPrefixTrie postWhiteList;
   /**
    * list of paths where its safe for anon to post to.
    */
-  private String[] safeForAnonToPostPaths;
+  private PathPrefixTrie safeForAnonToPostPaths;
 
   @Reference(cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC, strategy = ReferenceStrategy.EVENT, bind = "bindServerProtectionValidator", unbind = "unbindServerProtectionValidator")
   private ServerProtectionValidator[] serverProtectionValidators = new ServerProtectionValidator[0];
@@ -276,14 +271,14 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
 		}
 		applicationContentRedirects = redirects.build();
 		applicationReferrerHeaders = referrers.build();
-    safeToStreamPaths = OsgiUtil.toStringArray(properties.get(TRUSTED_PATHS_CONF),
-        DEFAULT_TRUSTED_PATHS);
+    safeToStreamPaths = new PathPrefixTrie(OsgiUtil.toStringArray(
+        properties.get(TRUSTED_PATHS_CONF), DEFAULT_TRUSTED_PATHS));
     safeToStreamExactPaths = ImmutableSet.of(OsgiUtil.toStringArray(
         properties.get(TRUSTED_EXACT_PATHS_CONF), DEFAULT_TRUSTED_EXACT_PATHS));
-    postWhiteList = OsgiUtil.toStringArray(
-        properties.get(WHITELIST_POST_PATHS_CONF), DEFAULT_WHITELIST_POST_PATHS);
-    safeForAnonToPostPaths = OsgiUtil.toStringArray(
-        properties.get(ANON_WHITELIST_POST_PATHS_CONF), DEFAULT_ANON_WHITELIST_POST_PATHS);
+    postWhiteList = new PathPrefixTrie(OsgiUtil.toStringArray(
+        properties.get(WHITELIST_POST_PATHS_CONF), DEFAULT_WHITELIST_POST_PATHS));
+    safeForAnonToPostPaths = new PathPrefixTrie(OsgiUtil.toStringArray(
+        properties.get(ANON_WHITELIST_POST_PATHS_CONF), DEFAULT_ANON_WHITELIST_POST_PATHS));
     String transferSharedSecret = OsgiUtil.toString(properties.get(TRUSTED_SECRET_CONF),
         DEFAULT_TRUSTED_SECRET_VALUE);
     if (DEFAULT_TRUSTED_SECRET_VALUE.equals(transferSharedSecret)) {
@@ -294,23 +289,12 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     }
 
     LOGGER.info("Trusted Hosts {}", applicationContentRedirects);
-    LOGGER.info("Trusted Stream Paths {} ",Arrays.toString(safeToStreamPaths));
+    LOGGER.info("Trusted Stream Paths {} ",safeToStreamPaths);
     LOGGER.info("Trusted Stream Resources {} ",safeToStreamExactPaths);
     LOGGER.info("POST Whitelist {} ",postWhiteList);
     LOGGER.info("Content Shared Secret [{}] ",transferSharedSecret);
 
-    transferKeys = new Key[10];
-    MessageDigest md = MessageDigest.getInstance("SHA-512");
-    Base64 encoder = new Base64(true);
-    byte[] input = transferSharedSecret.getBytes("UTF-8");
-    // create a static ring of 10 keys by repeatedly hashing the last key seed
-    // starting with the transferSharedSecret
-    for (int i = 0; i < transferKeys.length; i++) {
-      md.reset();
-      byte[] data = md.digest(input);
-      transferKeys[i] = new SecretKeySpec(data, HMAC_SHA512);
-      input = encoder.encode(data);
-    }
+    transferKeys = new TransferKeyRing(transferSharedSecret);
 
     bundleContext = componentContext.getBundleContext();
     ServiceReference[] srs = bundleContext.getAllServiceReferences(
@@ -364,14 +348,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
       String userId = srequest.getRemoteUser();
       if ( User.ANON_USER.equals(userId) ) {
         String path = srequest.getRequestURI();
-        boolean safeForAnonToPost = false;
-        for (String safePath : safeForAnonToPostPaths) {
-          if (path.startsWith(safePath)) {
-            safeForAnonToPost = true;
-            break;
-          }
-        }
-        if ( ! safeForAnonToPost ) {
+        if ( ! safeForAnonToPostPaths.matches(path) ) {
           sresponse.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Anon users may not perform POST operations");
           return false;
         }
@@ -389,12 +366,10 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
         safeToStream = safeToStreamExactPaths.contains(path);
         if (!safeToStream) {
           LOGGER.debug("Checking [{}] looks like not safe to stream ", path );
-          for (String safePath : safeToStreamPaths) {
-            if (path.startsWith(safePath)) {
-              safeToStream = true;
-              LOGGER.debug("Safe To stream becuase starts with {} ",safePath);
-              break;
-            }
+          String safePath = safeToStreamPaths.getMatchingPrefix(path);
+          if (safePath != null) {
+            safeToStream = true;
+            LOGGER.debug("Safe To stream becuase starts with {} ",safePath);
           }
           if (!safeToStream) {
             Resource resource = srequest.getResource();
@@ -484,9 +459,8 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
       if (userId != null && !User.ANON_USER.equals(userId)) {
         try {
           long ts = System.currentTimeMillis();
-          int keyIndex = (int) (ts - ((ts / 10) * 10));
-          Mac m = Mac.getInstance(HMAC_SHA512);
-          m.init(transferKeys[keyIndex]);
+          int keyIndex = TransferKeyRing.getKeyIndex(ts);
+          Mac m = transferKeys.getMac(keyIndex);
 
           String message = createMessage(redirectUrl, userId, String.valueOf(ts));
           
@@ -500,7 +474,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
           }
           redirectUrl = redirectUrl + spacer + HMAC_PARAM + "=" + hmac;
           LOGGER.debug("Message was [{}] ", message);
-          LOGGER.debug("Key was [{}] [{}] ", keyIndex, transferKeys[keyIndex]);
+          LOGGER.debug("Key was [{}] [{}] ", keyIndex, transferKeys.getKey(keyIndex));
           LOGGER.debug("Transfer URL created as [{}] ",redirectUrl);
         } catch (Exception e) {
           LOGGER.warn(e.getMessage(), e);
@@ -565,9 +539,8 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
           String message = createMessage(finalUrl, requestUserId, requestTs);
           long requestTsL = Long.parseLong(requestTs);
           if (Math.abs(System.currentTimeMillis() - requestTsL) < 60000L) {
-            int keyIndex = (int) (requestTsL - ((requestTsL / 10) * 10));
-            Mac m = Mac.getInstance(HMAC_SHA512);
-            m.init(transferKeys[keyIndex]);
+            int keyIndex = TransferKeyRing.getKeyIndex(requestTsL);
+            Mac m = transferKeys.getMac(keyIndex);
             m.update(message.getBytes("UTF-8"));
             String testHmac = Base64.encodeBase64URLSafeString(m.doFinal());
             if (testHmac.equals(requestHmac)) {
@@ -575,7 +548,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
               return requestUserId;
             } else {
               LOGGER.debug("Message was [{}] ", message);
-              LOGGER.debug("Key was [{}] [{}] ", keyIndex, transferKeys[keyIndex]);
+              LOGGER.debug("Key was [{}] [{}] ", keyIndex, transferKeys.getKey(keyIndex));
               LOGGER.debug("Hmac did not validate testHmac was [{}], requestHmac [{}] ", testHmac, requestHmac); 
             }
           } else {
@@ -606,10 +579,8 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     // and no flash bug.
     if (!("GET".equals(method) || "HEAD".equals(method))) {
       String path = hrequest.getRequestURI();
-      for (String okPostStem : postWhiteList) {
-        if (path.startsWith(okPostStem)) {
-          return true;
-        }
+      if (postWhiteList.matches(path)) {
+        return true;
       }
       // check the Referer
       @SuppressWarnings("unchecked")
@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.usercontent;
+
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.UnsupportedEncodingException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The ring of keys used to sign transfers of trust to the content host, together with
+ * per-thread HMAC instances already initialized with those keys. Looking up a
+ * <code>Mac</code> provider and initializing it for each request is far more expensive
+ * than the signature itself. A new ring is created whenever the secret is reconfigured,
+ * which discards the per-thread instances made for the previous keys.
+ */
+final class TransferKeyRing {
+
+  static final String HMAC_SHA512 = "HmacSHA512";
+  private static final int RING_SIZE = 10;
+
+  private final Key[] keys;
+  private final ThreadLocal<Mac[]> macs = new ThreadLocal<Mac[]>() {
+    @Override
+    protected Mac[] initialValue() {
+      return new Mac[RING_SIZE];
+    }
+  };
+
+  TransferKeyRing(String sharedSecret) throws NoSuchAlgorithmException,
+      UnsupportedEncodingException {
+    keys = new Key[RING_SIZE];
+    MessageDigest md = MessageDigest.getInstance("SHA-512");
+    Base64 encoder = new Base64(true);
+    byte[] input = sharedSecret.getBytes("UTF-8");
+    // create a static ring of 10 keys by repeatedly hashing the last key seed
+    // starting with the sharedSecret
+    for (int i = 0; i < keys.length; i++) {
+      md.reset();
+      byte[] data = md.digest(input);
+      keys[i] = new SecretKeySpec(data, HMAC_SHA512);
+      input = encoder.encode(data);
+    }
+  }
+
+  /**
+   * @param ts
+   *          the timestamp of the transfer.
+   * @return the index of the key used for the timestamp, its last decimal digit.
+   */
+  static int getKeyIndex(long ts) {
+    return (int) (ts - ((ts / RING_SIZE) * RING_SIZE));
+  }
+
+  Key getKey(int keyIndex) {
+    return keys[keyIndex];
+  }
+
+  /**
+   * @param keyIndex
+   *          the key to use.
+   * @return a reset Mac initialized with the key, owned by the calling thread. It must
+   *         not be handed to another thread.
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   */
+  Mac getMac(int keyIndex) throws NoSuchAlgorithmException, InvalidKeyException {
+    Mac[] threadMacs = macs.get();
+    Mac m = threadMacs[keyIndex];
+    if (m == null) {
+      m = Mac.getInstance(HMAC_SHA512);
+      m.init(keys[keyIndex]);
+      threadMacs[keyIndex] = m;
+    } else {
+      // a previous use may have failed part way through an update
+      m.reset();
+    }
+    return m;
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.qos;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+import org.mortbay.util.ajax.Continuation;
+
+/**
+ *
+ */
+public class QoSControlTest {
+
+  @Test
+  public void testAdaptiveLimitBacksOffAndRecovers() {
+    AdaptiveLimit limit = new AdaptiveLimit(10, 1, 40, 2.0);
+    long now = 1000L;
+    // fast requests at full load let the limit grow.
+    for (int i = 0; i < 200; i++) {
+      limit.sample(10, limit.getLimit(), now++);
+    }
+    int grown = limit.getLimit();
+    assertTrue(grown > 10);
+
+    // slow requests cut it back.
+    for (int i = 0; i < 100; i++) {
+      now += 1000;
+      limit.sample(500, limit.getLimit(), now);
+    }
+    assertTrue(limit.getLimit() < grown);
+    assertTrue(limit.getLimit() >= 1);
+  }
+
+  @Test
+  public void testAdaptiveLimitBounds() {
+    AdaptiveLimit limit = new AdaptiveLimit(5, 2, 6, 2.0);
+    long now = 0L;
+    for (int i = 0; i < 1000; i++) {
+      limit.sample(1, limit.getLimit(), now++);
+    }
+    assertEquals(6, limit.getLimit());
+    for (int i = 0; i < 100; i++) {
+      now += 100000;
+      limit.sample(100000, limit.getLimit(), now);
+    }
+    assertEquals(2, limit.getLimit());
+  }
+
+  @Test
+  public void testUserShare() throws Exception {
+    QoSControl control = new QoSControl("test", new QoSQueue[] { new QoSQueue() }, 4, 0,
+        1000L);
+    control.setUserShare(0.5, null);
+    assertTrue(control.tryAcquire("heavy", 0));
+    assertTrue(control.tryAcquire("heavy", 0));
+    // heavy has used its share, others still get in.
+    assertFalse(control.tryAcquire("heavy", 0));
+    assertTrue(control.tryAcquire("light", 0));
+    assertEquals(3, control.getInFlight());
+    control.release("heavy", 10);
+    assertTrue(control.tryAcquire("heavy", 0));
+    assertEquals(4, control.getAccepted());
+  }
+
+  @Test
+  public void testAdaptiveResizesPermits() throws Exception {
+    QoSControl control = new QoSControl("test", new QoSQueue[] { new QoSQueue() }, 4, 0,
+        1000L);
+    control.setAdaptiveLimit(new AdaptiveLimit(4, 1, 16, 2.0));
+    assertTrue(control.isAdaptive());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(control.tryAcquire("user", 0));
+    }
+    assertFalse(control.tryAcquire("user", 0));
+    for (int i = 0; i < 50; i++) {
+      control.release("user", 10);
+      assertTrue(control.tryAcquire("user", 0));
+    }
+    assertTrue(control.getLimit() > 4);
+    assertEquals(control.getLimit() - 4, control.getSemaphore().availablePermits());
+  }
+
+  @Test
+  public void testQueueTakesUsersInTurn() {
+    QoSQueue queue = new QoSQueue();
+    Continuation heavy1 = mock(Continuation.class);
+    Continuation heavy2 = mock(Continuation.class);
+    Continuation heavy3 = mock(Continuation.class);
+    Continuation light = mock(Continuation.class);
+    queue.add("heavy", heavy1);
+    queue.add("heavy", heavy2);
+    queue.add("heavy", heavy3);
+    queue.add("light", light);
+    assertEquals(4, queue.size());
+    assertSame(heavy1, queue.poll());
+    assertSame(light, queue.poll());
+    assertSame(heavy2, queue.poll());
+    assertSame(heavy3, queue.poll());
+    assertNull(queue.poll());
+    assertEquals(0, queue.size());
+  }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.usercontent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class PathPrefixTrieTest {
+
+  @Test
+  public void testMatches() {
+    PathPrefixTrie trie = new PathPrefixTrie(new String[] { "/dev", "/devwidgets",
+        "/system", "/logout", "/system/console" });
+    Assert.assertTrue(trie.matches("/dev"));
+    Assert.assertTrue(trie.matches("/dev/index.html"));
+    Assert.assertTrue(trie.matches("/developer"));
+    Assert.assertTrue(trie.matches("/system/console/bundles"));
+    Assert.assertFalse(trie.matches("/de"));
+    Assert.assertFalse(trie.matches("/p/abc"));
+    Assert.assertFalse(trie.matches(""));
+    Assert.assertFalse(trie.matches(null));
+    Assert.assertEquals("/dev", trie.getMatchingPrefix("/devwidgets/x"));
+    Assert.assertEquals("/system", trie.getMatchingPrefix("/system/console"));
+    Assert.assertNull(trie.getMatchingPrefix("/logou"));
+  }
+
+  @Test
+  public void testEmptyStemMatchesEverything() {
+    PathPrefixTrie trie = new PathPrefixTrie(new String[] { "" });
+    Assert.assertTrue(trie.matches(""));
+    Assert.assertTrue(trie.matches("/anything"));
+  }
+
+  @Test
+  public void testNoStems() {
+    PathPrefixTrie trie = new PathPrefixTrie(new String[0]);
+    Assert.assertFalse(trie.matches("/"));
+    Assert.assertFalse(trie.matches(""));
+  }
+
+  @Test
+  public void testSameAnswersAsStartsWith() {
+    Random random = new Random(42);
+    String[] stems = stems(random, 300);
+    PathPrefixTrie trie = new PathPrefixTrie(stems);
+    List<String> paths = paths(random, stems, 5000);
+    for (String path : paths) {
+      Assert.assertEquals(path, linearMatches(stems, path), trie.matches(path));
+    }
+  }
+
+  private boolean linearMatches(String[] stems, String path) {
+    for (String stem : stems) {
+      if (path.startsWith(stem)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String[] stems(Random random, int n) {
+    String[] stems = new String[n];
+    for (int i = 0; i < n; i++) {
+      stems[i] = "/" + segment(random) + "/" + segment(random);
+    }
+    return stems;
+  }
+
+  private List<String> paths(Random random, String[] stems, int n) {
+    List<String> paths = new ArrayList<String>();
+    for (int i = 0; i < n; i++) {
+      if (random.nextBoolean()) {
+        paths.add(stems[random.nextInt(stems.length)] + "/" + segment(random) + ".html");
+      } else {
+        paths.add("/p/" + segment(random) + "/" + segment(random));
+      }
+    }
+    return paths;
+  }
+
+  private String segment(Random random) {
+    StringBuilder sb = new StringBuilder();
+    int len = 3 + random.nextInt(8);
+    for (int i = 0; i < len; i++) {
+      sb.append((char) ('a' + random.nextInt(26)));
+    }
+    return sb.toString();
+  }
+}
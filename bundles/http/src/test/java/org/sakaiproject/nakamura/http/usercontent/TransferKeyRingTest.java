@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.usercontent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+
+public class TransferKeyRingTest {
+
+  @Test
+  public void testKeyIndex() {
+    Assert.assertEquals(0, TransferKeyRing.getKeyIndex(1300000000000L));
+    Assert.assertEquals(7, TransferKeyRing.getKeyIndex(1300000000007L));
+  }
+
+  @Test
+  public void testReusedMacSignsLikeAFreshOne() throws Exception {
+    TransferKeyRing ring = new TransferKeyRing("secret");
+    byte[] message = "//localhost:8082/p/abc;ieb;1300000000003".getBytes("UTF-8");
+    for (int keyIndex = 0; keyIndex < 10; keyIndex++) {
+      Mac fresh = Mac.getInstance(TransferKeyRing.HMAC_SHA512);
+      fresh.init(ring.getKey(keyIndex));
+      byte[] expected = fresh.doFinal(message);
+
+      Mac m = ring.getMac(keyIndex);
+      Assert.assertTrue(Arrays.equals(expected, m.doFinal(message)));
+      // leave some state behind, the next caller must still get a clean Mac
+      m.update(message);
+      Mac again = ring.getMac(keyIndex);
+      Assert.assertSame(m, again);
+      Assert.assertTrue(Arrays.equals(expected, again.doFinal(message)));
+    }
+  }
+
+  @Test
+  public void testMacsAreNotSharedBetweenThreads() throws Exception {
+    final TransferKeyRing ring = new TransferKeyRing("secret");
+    final Mac[] other = new Mac[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          other[0] = ring.getMac(3);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    t.start();
+    t.join();
+    Assert.assertNotNull(other[0]);
+    Assert.assertNotSame(other[0], ring.getMac(3));
+  }
+
+  @Test
+  public void testReconfiguredSecretUsesNewKeys() throws Exception {
+    byte[] message = "message".getBytes("UTF-8");
+    byte[] first = new TransferKeyRing("secret").getMac(1).doFinal(message);
+    byte[] second = new TransferKeyRing("another").getMac(1).doFinal(message);
+    Assert.assertFalse(Arrays.equals(first, second));
+  }
+
+}
@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.image;
 
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -66,17 +67,23 @@ import javax.servlet.http.HttpServletResponse;
     @ServiceParameter(name = "width", description = "How many pixels to crop out starting from the x point. Must be an integer-value."),
     @ServiceParameter(name = "height", description = "How many pixels to crop out starting from the y point. Must be an integer-value."),
     @ServiceParameter(name = "dimensions", description = "A list of dimensions you want the cropped out image to be resized in. Example: 32x32;256x256;128x128."),
+    @ServiceParameter(name = "async", description = "Optional, if true the response is sent straight away and the images are generated in the background. Until they are ready the images have a sakai:derivativeStatus property of pending, or failed if they could not be generated."),
     @ServiceParameter(name = "_charset_", description = "Must be utf-8")}, response = {
     @ServiceResponse(code = 200, description = "Everything is OK, a JSON response is also provided with an array of all the created url's.<br />"
-        + "Example: {\"files\":[\"/test/16x16_gateway.png\",\"/test/32x32_gateway.png\"]}"),
+        + "Example: {\"files\":[\"/test/16x16_gateway.png\",\"/test/32x32_gateway.png\"]}<br />"
+        + "When async is true the response also has \"pending\": true."),
     @ServiceResponse(code = 400, description = "There is a missing (or invalid) parameter."),
     @ServiceResponse(code = 406, description = "The provided image is not a valid imagetype."),
+    @ServiceResponse(code = 503, description = "Too many images are being cropped at the moment, try again later."),
     @ServiceResponse(code = 500, description = "Failure, explanation is in the HTML.") }))
 public class CropItServlet extends SlingAllMethodsServlet {
 
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  @Reference
+  protected transient ImageDerivativeService derivativeService;
+
   /**
    * {@inheritDoc}
    * 
@@ -110,6 +117,8 @@ public class CropItServlet extends SlingAllMethodsServlet {
       return;
     }
 
+    boolean async = "true".equals(request.getParameter("async"));
+
     try {
       // Grab the session
       ResourceResolver resourceResolver = request.getResourceResolver();
@@ -148,8 +157,17 @@ public class CropItServlet extends SlingAllMethodsServlet {
 //      save = PathUtils.normalizePath(save) + "/";
 //      requestSave = PathUtils.normalizePath(requestSave) + "/";
 
-      String[] crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, requestImg,
-          save);
+      String[] crop = null;
+      if (derivativeService != null) {
+        crop = derivativeService.crop(resourceResolver, x, y, width, height, dimensions,
+            requestImg, save, async);
+      }
+      if (crop == null) {
+        // Not something the derivative service can stream, do it in this request.
+        async = false;
+        crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, requestImg,
+            save);
+      }
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -170,6 +188,10 @@ public class CropItServlet extends SlingAllMethodsServlet {
         output.value(url);
       }
       output.endArray();
+      if (async) {
+        output.key("pending");
+        output.value(true);
+      }
       output.endObject();
 
     } catch (ArrayIndexOutOfBoundsException e) {
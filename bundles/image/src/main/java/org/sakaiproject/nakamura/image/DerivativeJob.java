@@ -0,0 +1,390 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Generates the scaled derivatives of one region of a source image. The source is
+ * decoded once, subsampled while decoding down to about twice the largest requested
+ * size, and every smaller size is scaled from the previous derivative rather than from
+ * the source. Encoded output is spooled to a temporary file and streamed into the
+ * content store, so neither the source nor the derivatives are ever held as byte arrays.
+ */
+class DerivativeJob implements Callable<String[]> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DerivativeJob.class);
+
+  /**
+   * Property set on a derivative while it is waiting to be generated, and left behind
+   * with the value {@link #STATUS_FAILED} if generation failed.
+   */
+  static final String STATUS_PROPERTY = "sakai:derivativeStatus";
+  static final String STATUS_PENDING = "pending";
+  static final String STATUS_FAILED = "failed";
+
+  /**
+   * The parts of an image header needed to plan a job, read without decoding any pixels.
+   */
+  static class Header {
+    final String formatName;
+    final String mimeType;
+    final int width;
+    final int height;
+
+    Header(String formatName, String mimeType, int width, int height) {
+      this.formatName = formatName;
+      this.mimeType = mimeType;
+      this.width = width;
+      this.height = height;
+    }
+  }
+
+  private final String sourcePath;
+  private final Header header;
+  private final Rectangle region;
+  private final Dimension[] targets;
+  private final String[] paths;
+  private final Repository repository;
+  private final Semaphore memoryBudget;
+  private final int memoryBudgetKb;
+
+  /**
+   * @param sourcePath
+   *          the content path of the source image.
+   * @param header
+   *          the header of the source image, see {@link #readHeader(ContentManager, String)}.
+   * @param region
+   *          the region of the source to cut out, already clipped to the image.
+   * @param targets
+   *          the size of each derivative.
+   * @param paths
+   *          the content path of each derivative, in the same order as targets.
+   * @param repository
+   *          the repository to work in. Jobs always run in their own administrative
+   *          session, as they may outlive the request that created them and its session.
+   *          The caller must check that the user may write the derivatives.
+   * @param memoryBudget
+   *          the shared budget of decoded pixel memory, in KB.
+   * @param memoryBudgetKb
+   *          the size of the whole budget, so that a single oversized job can still run
+   *          on its own.
+   */
+  DerivativeJob(String sourcePath, Header header, Rectangle region, Dimension[] targets,
+      String[] paths, Repository repository, Semaphore memoryBudget, int memoryBudgetKb) {
+    this.sourcePath = sourcePath;
+    this.header = header;
+    this.region = region;
+    this.targets = targets;
+    this.paths = paths;
+    this.repository = repository;
+    this.memoryBudget = memoryBudget;
+    this.memoryBudgetKb = memoryBudgetKb;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see java.util.concurrent.Callable#call()
+   */
+  public String[] call() throws Exception {
+    Session workSession = repository.loginAdministrative();
+    try {
+      ContentManager contentManager = workSession.getContentManager();
+      try {
+        generate(contentManager);
+      } catch (Exception e) {
+        markFailed(contentManager, e);
+        throw e;
+      }
+      return paths;
+    } finally {
+      workSession.logout();
+    }
+  }
+
+  private void generate(ContentManager contentManager) throws ImageException,
+      StorageClientException, AccessDeniedException, IOException, InterruptedException {
+    Dimension largest = new Dimension();
+    for (Dimension d : targets) {
+      largest.width = Math.max(largest.width, d.width);
+      largest.height = Math.max(largest.height, d.height);
+    }
+    int subsampling = getSubsampling(region.width, region.height, largest.width,
+        largest.height);
+    int permits = getMemoryCostKb(region, subsampling, largest, memoryBudgetKb);
+    memoryBudget.acquire(permits);
+    try {
+      BufferedImage base = decode(contentManager, subsampling);
+      // JPEG and BMP writers can't handle an alpha channel.
+      boolean opaque = !base.getColorModel().hasAlpha()
+          || "image/jpeg".equals(header.mimeType) || "image/bmp".equals(header.mimeType);
+      base = toScalableImage(base, opaque);
+
+      BufferedImage previous = base;
+      for (int i : getLargestFirst(targets)) {
+        Dimension target = targets[i];
+        BufferedImage from = base;
+        if (previous.getWidth() >= target.width && previous.getHeight() >= target.height) {
+          from = previous;
+        }
+        BufferedImage scaled = CropItProcessor.getScaledInstance(from, target.width,
+            target.height);
+        write(contentManager, paths[i], scaled);
+        previous = scaled;
+      }
+    } finally {
+      memoryBudget.release(permits);
+    }
+  }
+
+  /**
+   * Decode the region of the source image, subsampling as it is read so the full
+   * resolution image never has to be held in memory.
+   */
+  private BufferedImage decode(ContentManager contentManager, int subsampling)
+      throws ImageException, StorageClientException, AccessDeniedException, IOException {
+    InputStream in = contentManager.getInputStream(sourcePath);
+    if (in == null) {
+      throw new ImageException(500, "Invalid image");
+    }
+    ImageInputStream iis = null;
+    ImageReader reader = null;
+    try {
+      iis = ImageIO.createImageInputStream(in);
+      reader = getReader(iis);
+      if (reader == null) {
+        throw new ImageException(406, "Can't parse this format.");
+      }
+      ImageReadParam param = reader.getDefaultReadParam();
+      param.setSourceRegion(region);
+      param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+      return reader.read(0, param);
+    } finally {
+      if (reader != null) {
+        reader.dispose();
+      }
+      if (iis != null) {
+        try {
+          iis.close();
+        } catch (IOException e) {
+          LOGGER.debug("Exception closing image stream.");
+        }
+      }
+      try {
+        in.close();
+      } catch (IOException e) {
+        LOGGER.debug("Exception closing inputstream.");
+      }
+    }
+  }
+
+  /**
+   * Encode an image to a temporary file and stream that into the body of a derivative.
+   */
+  private void write(ContentManager contentManager, String path, BufferedImage image)
+      throws ImageException, StorageClientException, AccessDeniedException, IOException {
+    File tmp = File.createTempFile("derivative", ".tmp");
+    try {
+      if (!ImageIO.write(image, header.formatName, tmp)) {
+        throw new ImageException(406, "Can't write images of type " + header.mimeType);
+      }
+      Content content = contentManager.get(path);
+      if (content == null) {
+        contentManager.update(new Content(path, ImmutableMap.of("mimeType",
+            (Object) header.mimeType)));
+      } else if (!header.mimeType.equals(content.getProperty("mimeType"))) {
+        content.setProperty("mimeType", header.mimeType);
+        contentManager.update(content);
+      }
+      InputStream in = new FileInputStream(tmp);
+      try {
+        contentManager.writeBody(path, in);
+      } finally {
+        in.close();
+      }
+      content = contentManager.get(path);
+      if (content != null && content.hasProperty(STATUS_PROPERTY)) {
+        content.removeProperty(STATUS_PROPERTY);
+        contentManager.update(content);
+      }
+    } finally {
+      if (!tmp.delete()) {
+        tmp.deleteOnExit();
+      }
+    }
+  }
+
+  private void markFailed(ContentManager contentManager, Exception cause) {
+    LOGGER.warn("Unable to generate derivatives of {}: {}", sourcePath, cause.getMessage());
+    LOGGER.debug("Cause: ", cause);
+    for (String path : paths) {
+      try {
+        Content content = contentManager.get(path);
+        if (content != null && content.hasProperty(STATUS_PROPERTY)) {
+          content.setProperty(STATUS_PROPERTY, STATUS_FAILED);
+          contentManager.update(content);
+        }
+      } catch (Exception e) {
+        LOGGER.warn("Unable to mark derivative {} as failed: {}", path, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Read the header of an image without decoding it.
+   *
+   * @return the header, or null if there is no ImageIO reader for this image.
+   */
+  static Header readHeader(ContentManager contentManager, String path)
+      throws StorageClientException, AccessDeniedException, IOException {
+    InputStream in = contentManager.getInputStream(path);
+    if (in == null) {
+      return null;
+    }
+    ImageInputStream iis = null;
+    ImageReader reader = null;
+    try {
+      iis = ImageIO.createImageInputStream(in);
+      reader = getReader(iis);
+      if (reader == null || reader.getOriginatingProvider() == null) {
+        return null;
+      }
+      String[] mimeTypes = reader.getOriginatingProvider().getMIMETypes();
+      if (mimeTypes == null || mimeTypes.length == 0) {
+        return null;
+      }
+      return new Header(reader.getFormatName(), mimeTypes[0], reader.getWidth(0),
+          reader.getHeight(0));
+    } finally {
+      if (reader != null) {
+        reader.dispose();
+      }
+      if (iis != null) {
+        iis.close();
+      }
+      in.close();
+    }
+  }
+
+  private static ImageReader getReader(ImageInputStream iis) {
+    if (iis == null) {
+      return null;
+    }
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+    if (!readers.hasNext()) {
+      return null;
+    }
+    ImageReader reader = readers.next();
+    reader.setInput(iis, true, true);
+    return reader;
+  }
+
+  /**
+   * The subsampling to decode with. The decoded image is kept at least twice the size of
+   * the largest target so the final scaling passes still smooth out the aliasing that
+   * subsampling introduces.
+   */
+  static int getSubsampling(int width, int height, int targetWidth, int targetHeight) {
+    int byWidth = width / (2 * Math.max(targetWidth, 1));
+    int byHeight = height / (2 * Math.max(targetHeight, 1));
+    return Math.max(1, Math.min(byWidth, byHeight));
+  }
+
+  /**
+   * Estimate the memory a job will need, in KB: the decoded region, a working copy of it
+   * and the first scaling pass. This is capped at the whole budget so that an oversized
+   * job waits for the pool to drain rather than forever.
+   */
+  static int getMemoryCostKb(Rectangle region, int subsampling, Dimension largest,
+      int budgetKb) {
+    long decodedWidth = (region.width + subsampling - 1) / subsampling;
+    long decodedHeight = (region.height + subsampling - 1) / subsampling;
+    long bytes = 4L * decodedWidth * decodedHeight * 2L;
+    bytes += 4L * Math.max(largest.width, decodedWidth / 2)
+        * Math.max(largest.height, decodedHeight / 2);
+    return (int) Math.max(1L, Math.min(budgetKb, bytes / 1024L + 1L));
+  }
+
+  /**
+   * @return the indexes of targets ordered from the largest area to the smallest.
+   */
+  static Integer[] getLargestFirst(final Dimension[] targets) {
+    Integer[] order = new Integer[targets.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long areaA = (long) targets[a].width * targets[a].height;
+        long areaB = (long) targets[b].width * targets[b].height;
+        return areaA > areaB ? -1 : (areaA == areaB ? 0 : 1);
+      }
+    });
+    return order;
+  }
+
+  /**
+   * {@link CropItProcessor#getScaledInstance(BufferedImage, int, int)} creates each pass
+   * with the type of its source, which fails for custom types and loses colour for
+   * indexed ones. Those are redrawn into a plain RGB or ARGB image first.
+   */
+  static BufferedImage toScalableImage(BufferedImage image, boolean opaque) {
+    int type = image.getType();
+    int wanted = opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB;
+    if (type == wanted
+        || (type != BufferedImage.TYPE_CUSTOM && type != BufferedImage.TYPE_BYTE_INDEXED
+            && type != BufferedImage.TYPE_BYTE_BINARY && (!opaque || !image
+            .getColorModel().hasAlpha()))) {
+      return image;
+    }
+    BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), wanted);
+    Graphics2D g2 = converted.createGraphics();
+    g2.drawImage(image, 0, 0, null);
+    g2.dispose();
+    return converted;
+  }
+}
@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates cropped and scaled derivatives of images held in sparse content on a
+ * bounded pool of workers. Each job reserves an estimate of the pixel memory it will
+ * decode from a shared budget before it starts, so a burst of large photos queues up
+ * rather than exhausting the heap.
+ */
+@Component(immediate = true, metatype = true, label = "Sakai Image Derivative Service", description = "Generates cropped and scaled images on a bounded pool of workers.")
+@Service(value = ImageDerivativeService.class)
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Generates cropped and scaled images on a bounded pool of workers.") })
+public class ImageDerivativeService {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ImageDerivativeService.class);
+
+  private static final int DEFAULT_WORKERS = 2;
+  @Property(intValue = DEFAULT_WORKERS, label = "Workers", description = "The number of images that can be processed at the same time.")
+  static final String WORKERS = "workers";
+
+  private static final int DEFAULT_QUEUE_SIZE = 100;
+  @Property(intValue = DEFAULT_QUEUE_SIZE, label = "Queue size", description = "The number of crop requests that can wait for a worker before new requests are refused.")
+  static final String QUEUE_SIZE = "queueSize";
+
+  private static final int DEFAULT_MEMORY_BUDGET = 256;
+  @Property(intValue = DEFAULT_MEMORY_BUDGET, label = "Memory budget", description = "The memory in MB that the workers may use for decoded images at any one time.")
+  static final String MEMORY_BUDGET = "memoryBudget";
+
+  private static final long DEFAULT_TIMEOUT = 60000L;
+  @Property(longValue = DEFAULT_TIMEOUT, label = "Timeout", description = "How long in ms a request that waits for its images will wait.")
+  static final String TIMEOUT = "timeout";
+
+  @Reference
+  protected transient Repository repository;
+
+  private ThreadPoolExecutor executor;
+  private Semaphore memoryBudget;
+  private int memoryBudgetKb;
+  private long timeout = DEFAULT_TIMEOUT;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    int workers = Math.max(1, OsgiUtil.toInteger(properties.get(WORKERS), DEFAULT_WORKERS));
+    int queueSize = Math.max(1, OsgiUtil.toInteger(properties.get(QUEUE_SIZE),
+        DEFAULT_QUEUE_SIZE));
+    memoryBudgetKb = Math.max(1, OsgiUtil.toInteger(properties.get(MEMORY_BUDGET),
+        DEFAULT_MEMORY_BUDGET)) * 1024;
+    timeout = OsgiUtil.toLong(properties.get(TIMEOUT), DEFAULT_TIMEOUT);
+    memoryBudget = new Semaphore(memoryBudgetKb, true);
+    executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "image-derivative-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Crop an image and scale it into each of the requested dimensions, see
+   * {@link CropItProcessor#crop(ResourceResolver, int, int, int, int, List, String, String)}
+   * for the meaning of the parameters.
+   *
+   * @param async
+   *          if true the paths are returned without waiting for the derivatives to be
+   *          generated. Either way the derivatives are created empty and marked as
+   *          pending until their job finishes.
+   * @return the paths of the derivatives, or null if the image is not in sparse content
+   *         or is in a format that can't be decoded incrementally. Those images should be
+   *         processed with {@link CropItProcessor}.
+   * @throws ImageException
+   * @throws AccessDeniedException
+   * @throws StorageClientException
+   */
+  public String[] crop(ResourceResolver resourceResolver, int x, int y, int width,
+      int height, List<Dimension> dimensions, String img, String save, boolean async)
+      throws ImageException, StorageClientException, AccessDeniedException {
+    Resource imgResource = resourceResolver.getResource(img);
+    if (!(imgResource instanceof SparseContentResource)) {
+      return null;
+    }
+    Content imgContent = imgResource.adaptTo(Content.class);
+    if (imgContent == null) {
+      return null;
+    }
+    if (!imgContent.hasProperty("_bodyLocation")) {
+      throw new ImageException(500, "Invalid image");
+    }
+    String imgPath = imgContent.getPath();
+    String imgName = imgPath.substring(imgPath.lastIndexOf("/") + 1);
+
+    Session session = StorageClientUtils.adaptToSession(resourceResolver
+        .adaptTo(javax.jcr.Session.class));
+    ContentManager contentManager = session.getContentManager();
+
+    DerivativeJob.Header header;
+    try {
+      header = DerivativeJob.readHeader(contentManager, imgPath);
+    } catch (IOException e) {
+      LOGGER.error("Unable to read image in order to crop it.", e);
+      throw new ImageException(500, "Unable to read image in order to crop it.");
+    }
+    if (header == null) {
+      return null;
+    }
+
+    // Set the correct width & height.
+    width = (width <= 0) ? header.width : width;
+    height = (height <= 0) ? header.height : height;
+    width = Math.min(width, header.width - x);
+    height = Math.min(height, header.height - y);
+    if (width <= 0 || height <= 0) {
+      throw new ImageException(400, "The area to crop lies outside the image.");
+    }
+    Rectangle region = new Rectangle(x, y, width, height);
+
+    Dimension[] targets = new Dimension[dimensions.size()];
+    String[] paths = new String[dimensions.size()];
+    for (int i = 0; i < targets.length; i++) {
+      Dimension d = dimensions.get(i);
+      int iWidth = (d.width <= 0) ? header.width : d.width;
+      int iHeight = (d.height <= 0) ? header.height : d.height;
+      targets[i] = new Dimension(iWidth, iHeight);
+      paths[i] = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
+    }
+
+    // Create the derivatives in the requesting session, so the request is refused if
+    // the user may not write there, before handing them to an administrative worker.
+    // The request session is never passed to the worker, as the job may outlive it.
+    for (String path : paths) {
+      Content content = contentManager.get(path);
+      if (content == null) {
+        content = new Content(path, ImmutableMap.of("mimeType", (Object) header.mimeType));
+      } else {
+        content.setProperty("mimeType", header.mimeType);
+      }
+      content.setProperty(DerivativeJob.STATUS_PROPERTY, DerivativeJob.STATUS_PENDING);
+      contentManager.update(content);
+    }
+    Future<String[]> future = submit(new DerivativeJob(imgPath, header, region, targets,
+        paths, repository, memoryBudget, memoryBudgetKb));
+    if (async) {
+      return paths;
+    }
+
+    try {
+      return future.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      // the job keeps running in its own session and clears the pending status when done
+      throw new ImageException(503, "Timed out waiting to crop image " + img);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ImageException(500, "Interrupted while cropping image " + img);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ImageException) {
+        throw (ImageException) cause;
+      } else if (cause instanceof StorageClientException) {
+        throw (StorageClientException) cause;
+      } else if (cause instanceof AccessDeniedException) {
+        throw (AccessDeniedException) cause;
+      }
+      LOGGER.error("Unable to crop image " + img, cause);
+      throw new ImageException(500, "Unable to crop image " + img);
+    }
+  }
+
+  private Future<String[]> submit(DerivativeJob job) throws ImageException {
+    try {
+      return executor.submit(job);
+    } catch (RejectedExecutionException e) {
+      throw new ImageException(503, "Too many images are being cropped, try again later.");
+    }
+  }
+}
@@ -97,6 +97,7 @@ public class CropItServletTest extends AbstractEasyMockTest {
     addStringRequestParameter(request, "height", "70");
     addStringRequestParameter(request, "dimensions", StringUtils.join(dimensions, 0, ';'));
     expect(request.getRemoteUser()).andReturn("johndoe");
+    expect(request.getParameter("async")).andReturn(null);
 
 
     String imagePath = "a:johndoe/people.png";
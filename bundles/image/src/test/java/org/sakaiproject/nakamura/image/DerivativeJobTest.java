@@ -0,0 +1,150 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.ImageIO;
+
+/**
+ *
+ */
+public class DerivativeJobTest {
+
+  private static final String IMG = "/foo/people.png";
+
+  private Repository repository;
+  private ContentManager contentManager;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    Session session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    contentManager.update(new Content(IMG, null));
+    contentManager.writeBody(IMG, getClass().getResourceAsStream("people.png"));
+  }
+
+  @Test
+  public void testReadHeader() throws Exception {
+    DerivativeJob.Header header = DerivativeJob.readHeader(contentManager, IMG);
+    assertNotNull(header);
+    assertEquals(256, header.width);
+    assertEquals(256, header.height);
+    assertEquals("image/png", header.mimeType);
+  }
+
+  @Test
+  public void testSubsampling() {
+    // keep at least twice the largest target
+    assertEquals(1, DerivativeJob.getSubsampling(100, 100, 50, 50));
+    assertEquals(2, DerivativeJob.getSubsampling(400, 400, 100, 100));
+    assertEquals(10, DerivativeJob.getSubsampling(4000, 3000, 200, 150));
+    // the tighter side wins
+    assertEquals(5, DerivativeJob.getSubsampling(4000, 3000, 200, 300));
+    // upscaling never subsamples
+    assertEquals(1, DerivativeJob.getSubsampling(100, 100, 400, 400));
+  }
+
+  @Test
+  public void testMemoryCostIsCapped() {
+    int budgetKb = 1024 * 1024;
+    Rectangle huge = new Rectangle(0, 0, 20000, 20000);
+    assertEquals(budgetKb, DerivativeJob.getMemoryCostKb(huge, 1, new Dimension(32, 32),
+        budgetKb));
+    // 400x400 decoded, a working copy and the first 200x200 pass
+    assertEquals(1407, DerivativeJob.getMemoryCostKb(huge, 50, new Dimension(32, 32),
+        budgetKb));
+  }
+
+  @Test
+  public void testLargestFirst() {
+    Dimension[] targets = new Dimension[] { new Dimension(16, 16), new Dimension(128, 128),
+        new Dimension(32, 32) };
+    assertArrayEquals(new Integer[] { 1, 2, 0 }, DerivativeJob.getLargestFirst(targets));
+  }
+
+  @Test
+  public void testGenerate() throws Exception {
+    DerivativeJob.Header header = DerivativeJob.readHeader(contentManager, IMG);
+    Dimension[] targets = new Dimension[] { new Dimension(16, 16), new Dimension(64, 64),
+        new Dimension(32, 32) };
+    String[] paths = new String[] { "/save/16x16_people.png", "/save/64x64_people.png",
+        "/save/32x32_people.png" };
+    contentManager.update(new Content(paths[0], null));
+    Content pending = contentManager.get(paths[0]);
+    pending.setProperty(DerivativeJob.STATUS_PROPERTY, DerivativeJob.STATUS_PENDING);
+    contentManager.update(pending);
+
+    DerivativeJob job = new DerivativeJob(IMG, header, new Rectangle(10, 10, 200, 200),
+        targets, paths, repository, new Semaphore(1024), 1024);
+    assertArrayEquals(paths, job.call());
+
+    for (int i = 0; i < paths.length; i++) {
+      Content content = contentManager.get(paths[i]);
+      assertEquals("image/png", content.getProperty("mimeType"));
+      assertFalse(content.hasProperty(DerivativeJob.STATUS_PROPERTY));
+      InputStream in = contentManager.getInputStream(paths[i]);
+      BufferedImage image = ImageIO.read(in);
+      in.close();
+      assertEquals(targets[i].width, image.getWidth());
+      assertEquals(targets[i].height, image.getHeight());
+    }
+  }
+
+  @Test
+  public void testInvalidImageMarksFailed() throws Exception {
+    contentManager.writeBody(IMG, getClass().getResourceAsStream("not.an.image"));
+    String path = "/save/16x16_people.png";
+    contentManager.update(new Content(path, null));
+    Content pending = contentManager.get(path);
+    pending.setProperty(DerivativeJob.STATUS_PROPERTY, DerivativeJob.STATUS_PENDING);
+    contentManager.update(pending);
+
+    DerivativeJob.Header header = new DerivativeJob.Header("png", "image/png", 256, 256);
+    DerivativeJob job = new DerivativeJob(IMG, header, new Rectangle(0, 0, 256, 256),
+        new Dimension[] { new Dimension(16, 16) }, new String[] { path }, repository,
+        new Semaphore(1024), 1024);
+    try {
+      job.call();
+      fail("A file that isn't an image should not be cropped.");
+    } catch (ImageException e) {
+      assertEquals(406, e.getCode());
+    }
+    assertEquals(DerivativeJob.STATUS_FAILED,
+        contentManager.get(path).getProperty(DerivativeJob.STATUS_PROPERTY));
+  }
+}
@@ -0,0 +1,46 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.message;
+
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
+
+/**
+ * A {@link LiteMessageProfileWriter} that can look recipients up through the
+ * {@link BasicUserInfoResolver} of the current request, so a page of messages sent by
+ * and to the same people only loads each of them once.
+ */
+public interface ResolvingMessageProfileWriter extends LiteMessageProfileWriter {
+
+  /**
+   * Same as {@link LiteMessageProfileWriter#writeProfileInformation(Session, String, JSONWriter)}
+   * but resolves the recipient through the request scoped resolver.
+   *
+   * @param session
+   *          A {@link Session session} to access the content repository.
+   * @param recipient
+   *          Identifies the recipient to write the information for.
+   * @param write
+   *          The {@link JSONWriter writer} to write to.
+   * @param resolver
+   *          The resolver of the current request.
+   */
+  void writeProfileInformation(Session session, String recipient, JSONWriter write,
+      BasicUserInfoResolver resolver);
+}
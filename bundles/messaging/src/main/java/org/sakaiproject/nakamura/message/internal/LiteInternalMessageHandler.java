@@ -50,8 +50,10 @@ import org.sakaiproject.nakamura.api.message.MessageRoute;
 import org.sakaiproject.nakamura.api.message.MessageRoutes;
 import org.sakaiproject.nakamura.api.message.MessageTransport;
 import org.sakaiproject.nakamura.api.message.MessagingException;
+import org.sakaiproject.nakamura.api.message.ResolvingMessageProfileWriter;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.PathUtils;
@@ -72,7 +74,7 @@ import java.util.List;
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = "service.description", value = "Handler for internally delivered messages.") })
 public class LiteInternalMessageHandler implements LiteMessageTransport,
-    LiteMessageProfileWriter {
+    ResolvingMessageProfileWriter {
   private static final Logger LOG = LoggerFactory.getLogger(LiteInternalMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
 
@@ -249,12 +251,24 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
    *      java.lang.String, org.apache.sling.commons.json.io.JSONWriter)
    */
   public void writeProfileInformation(Session session, String recipient, JSONWriter write) {
+    writeProfileInformation(session, recipient, write, new BasicUserInfoResolver(session,
+        basicUserInfoService));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.message.ResolvingMessageProfileWriter#writeProfileInformation(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, org.apache.sling.commons.json.io.JSONWriter,
+   *      org.sakaiproject.nakamura.api.user.BasicUserInfoResolver)
+   */
+  public void writeProfileInformation(Session session, String recipient,
+      JSONWriter write, BasicUserInfoResolver resolver) {
     try {
       // Look up the recipient and check if it is an authorizable.
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
-      Authorizable au = authorizableManager.findAuthorizable(recipient);
+      Authorizable au = resolver.getAuthorizable(recipient);
       if (au != null) {
-        ValueMap map = new ValueMapDecorator(basicUserInfoService.getProperties(au));
+        ValueMap map = new ValueMapDecorator(resolver.getProperties(recipient));
         ExtendedJSONWriter.writeValueMapInternals(write, map);
         if (au instanceof User) {
           // Pass in the presence.
@@ -263,13 +277,9 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
       }
     } catch (JSONException e) {
       LOG.error(e.getMessage(), e);
-    } catch (AccessDeniedException e) {
-      LOG.error(e.getMessage(), e);
     } catch (StorageClientException e) {
       LOG.error(e.getMessage(), e);
-    } /*catch (RepositoryException e) {
-      LOG.error(e.getMessage(), e);
-    }*/
+    }
   }
 
 }
\ No newline at end of file
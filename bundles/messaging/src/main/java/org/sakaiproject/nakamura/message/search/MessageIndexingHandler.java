@@ -34,16 +34,13 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
-import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
-import org.sakaiproject.nakamura.api.solr.IndexingHandler;
-import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler;
+import org.sakaiproject.nakamura.api.search.solr.IndexingBatch;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
@@ -60,7 +57,7 @@ import java.util.Set;
  * searching.
  */
 @Component(immediate = true)
-public class MessageIndexingHandler implements IndexingHandler {
+public class MessageIndexingHandler extends AbstractBatchIndexingHandler {
   private static final Logger LOGGER = LoggerFactory.getLogger(MessageIndexingHandler.class);
 
   private static final Map<String, String> WHITELISTED_PROPS;
@@ -109,19 +106,17 @@ public class MessageIndexingHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDocuments(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDocuments(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<SolrInputDocument> getDocuments(IndexingBatch batch, Event event) {
     String path = (String) event.getProperty(FIELD_PATH);
 
     List<SolrInputDocument> documents = Lists.newArrayList();
     if (!StringUtils.isBlank(path)) {
       try {
-        Session session = repositorySession.adaptTo(Session.class);
-        ContentManager cm = session.getContentManager();
-        Content content = cm.get(path);
+        Content content = batch.getContent(path);
 
         if (content != null) {
           if (!CONTENT_TYPES.contains(content.getProperty("sling:resourceType"))) {
@@ -139,8 +134,7 @@ public class MessageIndexingHandler implements IndexingHandler {
 
           // index for user,group searching
           String authId = PathUtils.getAuthorizableId(content.getPath());
-          AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable auth = am.findAuthorizable(authId);
+          Authorizable auth = batch.getAuthorizable(authId);
           if (auth == null) {
             LOGGER.warn("Unable to find auth (user,group) container for message [{}]; not indexing message for user,group searching", path);
           } else {
@@ -179,11 +173,11 @@ public class MessageIndexingHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    *
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<String> getDeleteQueries(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<String> getDeleteQueries(IndexingBatch batch, Event event) {
     List<String> retval = Collections.emptyList();
     logger.debug("GetDelete for {} ", event);
     String path = (String) event.getProperty(FIELD_PATH);
@@ -44,6 +44,7 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.message.LiteMessageProfileWriter;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.ResolvingMessageProfileWriter;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
 import org.sakaiproject.nakamura.api.search.SearchResponseDecorator;
 import org.sakaiproject.nakamura.api.search.solr.Query;
@@ -52,6 +53,8 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
@@ -87,6 +90,9 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor,
   @Reference
   protected SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  protected BasicUserInfoService basicUserInfoService;
+
   @Reference(referenceInterface = LiteMessageProfileWriter.class, cardinality = ReferenceCardinality.MANDATORY_MULTIPLE, policy = ReferencePolicy.DYNAMIC)
   protected Map<String, LiteMessageProfileWriter> writers = new ConcurrentHashMap<String, LiteMessageProfileWriter>();
 
@@ -143,12 +149,32 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor,
     javax.jcr.Session jcrSession =request.getResourceResolver().adaptTo(javax.jcr.Session.class);
     Session session = StorageClientUtils.adaptToSession(jcrSession);
 
+    // Every sender and recipient of the message is resolved in one go, and only once
+    // for all the messages of this request.
+    BasicUserInfoResolver userInfoResolver = BasicUserInfoResolver.getResolver(request,
+        session, basicUserInfoService);
+    String[] rcpts = new String[0];
+    if (content.hasProperty(PROP_SAKAI_TO)) {
+      String toVal = String.valueOf(content.getProperty(PROP_SAKAI_TO));
+      rcpts = StringUtils.split(toVal, ',');
+      for (String rcpt : rcpts) {
+        String[] values = StringUtils.split(rcpt, ':');
+        userInfoResolver.require(values[values.length == 2 ? 1 : 0]);
+      }
+    }
+    String[] senders = new String[0];
+    if (content.hasProperty(PROP_SAKAI_FROM)) {
+      String fromVal = String.valueOf(content.getProperty(PROP_SAKAI_FROM));
+      senders = StringUtils.split(fromVal, ',');
+      for (String sender : senders) {
+        userInfoResolver.require(sender);
+      }
+    }
+
     // Write out all the recipients their information on this message.
     // We always return this as an array, even if it is only 1 recipient.
     LiteMessageProfileWriter defaultProfileWriter = writers.get("internal");
     if (content.hasProperty(PROP_SAKAI_TO)) {
-      String toVal = String.valueOf(content.getProperty(PROP_SAKAI_TO));
-      String[] rcpts = StringUtils.split(toVal, ',');
       write.key("userTo");
       write.array();
       for (String rcpt : rcpts) {
@@ -165,7 +191,7 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor,
           writer = defaultProfileWriter;
         }
         write.object();
-        writer.writeProfileInformation(session, user, write);
+        writeProfileInformation(writer, session, user, write, userInfoResolver);
         decorateProfile(ProfileType.TO, session, user, write);
         write.endObject();
       }
@@ -176,13 +202,12 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor,
     // We add in the option to support multiple cases.
     // For now we expect it to always be the user who sends the message.
     if (content.hasProperty(PROP_SAKAI_FROM)) {
-      String fromVal = String.valueOf(content.getProperty(PROP_SAKAI_FROM));
-      String[] senders = StringUtils.split(fromVal, ',');
       write.key("userFrom");
       write.array();
       for (String sender : senders) {
         write.object();
-        defaultProfileWriter.writeProfileInformation(session, sender, write);
+        writeProfileInformation(defaultProfileWriter, session, sender, write,
+            userInfoResolver);
         decorateProfile(ProfileType.FROM, session, sender, write);
         write.endObject();
       }
@@ -196,6 +221,16 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor,
     }
   }
 
+  private void writeProfileInformation(LiteMessageProfileWriter writer, Session session,
+      String user, JSONWriter write, BasicUserInfoResolver userInfoResolver) {
+    if (writer instanceof ResolvingMessageProfileWriter) {
+      ((ResolvingMessageProfileWriter) writer).writeProfileInformation(session, user,
+          write, userInfoResolver);
+    } else {
+      writer.writeProfileInformation(session, user, write);
+    }
+  }
+
   protected void decorateProfile(ProfileType profileType, Session session,
       String otherUser, JSONWriter write) throws AccessDeniedException,
       StorageClientException, JSONException {
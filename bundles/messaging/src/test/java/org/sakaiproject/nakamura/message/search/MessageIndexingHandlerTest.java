@@ -0,0 +1,147 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.search;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Set;
+import java.util.TreeSet;
+
+public class MessageIndexingHandlerTest {
+
+  private static final String UPDATED = StoreListener.TOPIC_BASE + "content/"
+      + StoreListener.UPDATED_TOPIC;
+  private static final String M1 = "a:alice/message/inbox/m1";
+  private static final String M2 = "a:alice/message/inbox/m2";
+
+  private MessageIndexingHandler handler;
+  private RepositorySession repositorySession;
+  private ContentManager contentManager;
+  private AuthorizableManager authorizableManager;
+
+  @Before
+  public void setUp() throws Exception {
+    repositorySession = mock(RepositorySession.class);
+    Session session = mock(Session.class);
+    contentManager = mock(ContentManager.class);
+    authorizableManager = mock(AuthorizableManager.class);
+    when(repositorySession.adaptTo(Session.class)).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+
+    Authorizable alice = mock(Authorizable.class);
+    when(alice.isGroup()).thenReturn(false);
+    when(authorizableManager.findAuthorizable("alice")).thenReturn(alice);
+    for (String path : new String[] { M1, M2 }) {
+      when(contentManager.get(path)).thenReturn(
+          new Content(path, ImmutableMap.of("sling:resourceType",
+              (Object) MessageConstants.SAKAI_MESSAGE_RT, MessageConstants.PROP_SAKAI_SUBJECT,
+              "subject " + path, MessageConstants.PROP_SAKAI_BODY, "body")));
+    }
+
+    handler = new MessageIndexingHandler();
+  }
+
+  @Test
+  public void testWindowReadsEachMessageAndOwnerOnce() throws Exception {
+    Collection<SolrInputDocument> docs = handler.getDocuments(repositorySession,
+        ImmutableList.of(event(M1), event(M2), event(M1)));
+
+    // each message is indexed on its own and for user searching
+    Assert.assertEquals(4, docs.size());
+    Set<Object> ids = new TreeSet<Object>();
+    for (SolrInputDocument doc : docs) {
+      if (doc.getFieldValue(IndexingHandler.FIELD_ID) != null) {
+        ids.add(doc.getFieldValue(IndexingHandler.FIELD_ID));
+        Assert.assertEquals("u", doc.getFieldValue("type"));
+        Assert.assertEquals("alice", doc.getFieldValue("returnpath"));
+      }
+    }
+    Assert.assertEquals(ImmutableList.of(M1 + "-auth", M2 + "-auth"),
+        ImmutableList.copyOf(ids));
+    verify(contentManager, times(1)).get(M1);
+    verify(contentManager, times(1)).get(M2);
+    verify(authorizableManager, times(1)).findAuthorizable("alice");
+  }
+
+  @Test
+  public void testSingleEventIsAWindowOfOne() {
+    Collection<SolrInputDocument> single = handler.getDocuments(repositorySession,
+        event(M1));
+    Collection<SolrInputDocument> window = handler.getDocuments(repositorySession,
+        ImmutableList.of(event(M1)));
+
+    Assert.assertEquals(2, single.size());
+    Assert.assertEquals(single.size(), window.size());
+  }
+
+  @Test
+  public void testMissingOwnerStillIndexesTheMessage() throws Exception {
+    String path = "a:nobody/message/inbox/m3";
+    when(contentManager.get(path)).thenReturn(
+        new Content(path, ImmutableMap.of("sling:resourceType",
+            (Object) MessageConstants.SAKAI_MESSAGE_RT)));
+
+    Assert.assertEquals(1, handler.getDocuments(repositorySession, event(path)).size());
+  }
+
+  @Test
+  public void testDeleteQueriesAreCollapsed() {
+    Collection<String> queries = handler.getDeleteQueries(repositorySession,
+        ImmutableList.of(deleted(M1), deleted(M2), deleted(M1)));
+
+    Assert.assertEquals(2, queries.size());
+  }
+
+  private Event event(String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(IndexingHandler.FIELD_PATH, path);
+    return new Event(UPDATED, properties);
+  }
+
+  private Event deleted(String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(IndexingHandler.FIELD_PATH, path);
+    properties.put("resourceType", MessageConstants.SAKAI_MESSAGE_RT);
+    return new Event(StoreListener.TOPIC_BASE + "content/" + StoreListener.DELETE_TOPIC,
+        properties);
+  }
+}
@@ -30,15 +30,13 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.osgi.service.event.Event;
-import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
-import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler;
+import org.sakaiproject.nakamura.api.search.solr.IndexingBatch;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
-import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
@@ -56,8 +54,8 @@ import java.util.Set;
  * more details.
  */
 @Component(immediate = true)
-@Service
-public class WidgetDataIndexingHandler implements IndexingHandler {
+@Service(value = IndexingHandler.class)
+public class WidgetDataIndexingHandler extends AbstractBatchIndexingHandler {
 
   public static final String INDEXED_FIELDS = "sakai:indexed-fields";
 
@@ -86,19 +84,17 @@ public class WidgetDataIndexingHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    * 
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDocuments(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDocuments(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<SolrInputDocument> getDocuments(IndexingBatch batch, Event event) {
     String path = (String) event.getProperty(FIELD_PATH);
 
     Collection<SolrInputDocument> docs = Lists.newArrayList();
     if (!StringUtils.isBlank(path)) {
       try {
-        Session session = repositorySession.adaptTo(Session.class);
-        ContentManager cm = session.getContentManager();
-        Content content = cm.get(path);
+        Content content = batch.getContent(path);
 
         if (content == null || !CONTENT_TYPES.contains(content.getProperty("sling:resourceType"))) {
           return docs;
@@ -128,8 +124,7 @@ public class WidgetDataIndexingHandler implements IndexingHandler {
         }
 
         SolrInputDocument doc = new SolrInputDocument();
-        AuthorizableManager am = session.getAuthorizableManager();
-        Authorizable auth = am.findAuthorizable(authId);
+        Authorizable auth = batch.getAuthorizable(authId);
         if (auth.isGroup()) {
           doc.setField("type", "g");
         } else {
@@ -157,11 +152,11 @@ public class WidgetDataIndexingHandler implements IndexingHandler {
   /**
    * {@inheritDoc}
    * 
-   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   * @see org.sakaiproject.nakamura.api.search.solr.AbstractBatchIndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.search.solr.IndexingBatch,
    *      org.osgi.service.event.Event)
    */
-  public Collection<String> getDeleteQueries(RepositorySession repositorySession,
-      Event event) {
+  @Override
+  protected Collection<String> getDeleteQueries(IndexingBatch batch, Event event) {
     List<String> retval = Collections.emptyList();
     logger.debug("GetDelete for {} ", event);
     String path = (String) event.getProperty(FIELD_PATH);
@@ -17,106 +17,316 @@
  */
 package org.sakaiproject.nakamura.personal;
 
-import org.apache.commons.codec.binary.Base64;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.sling.commons.scheduler.Job;
+import org.apache.sling.commons.scheduler.JobContext;
+import org.apache.sling.commons.scheduler.Scheduler;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.personal.PersonalTrackingStore;
+import org.sakaiproject.nakamura.personal.TrackingLog.Rollup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.UUID;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
-@Component(immediate = true)
+/**
+ * Records activity in an append only log that is written out periodically. Each write
+ * adds to the total count on <code>/activity/&lt;type&gt;/&lt;id&gt;</code> and to one
+ * rollup child per time bucket. Rollups keep the <code>sakai/resource-update</code>
+ * resource type and carry a <code>count</code>, so the most active searches read one
+ * item per resource and bucket. Individual activity items left by earlier versions are
+ * folded into the rollups a batch at a time when their resource is next written, until
+ * the tracking item is marked as compacted. Rollups that could not be written are put
+ * back in the log for the next flush.
+ */
+@Component(immediate = true, metatype = true)
 @Service(value = PersonalTrackingStore.class)
 public class LitePersonalTrackingStore implements PersonalTrackingStore {
 
   private static final Logger LOG = LoggerFactory
       .getLogger(LitePersonalTrackingStore.class);
 
+  @Property(longValue = 30L, label = "Flush interval", description = "Seconds between writes of the buffered activity.")
+  static final String FLUSH_INTERVAL = "sakai.tracking.flush.interval";
+
+  @Property(longValue = 86400L, label = "Rollup bucket", description = "Size of the time bucket activity is rolled up into, in seconds.")
+  static final String BUCKET_SIZE = "sakai.tracking.bucket.size";
+
+  @Property(intValue = 5000, label = "Maximum pending rollups", description = "Write the buffer early once this many resource buckets are waiting.")
+  static final String MAX_PENDING = "sakai.tracking.max.pending";
+
+  @Property(intValue = 500, label = "Compaction batch", description = "Maximum number of individual activity items folded into rollups per resource on each write.")
+  static final String COMPACT_BATCH = "sakai.tracking.compact.batch";
+
+  static final String RESOURCE_ACTIVITY_RT = "sakai/resource-activity";
+  static final String RESOURCE_UPDATE_RT = "sakai/resource-update";
+  static final String ROLLUP_PREFIX = "rollup-";
+  static final String COUNT = "count";
+  static final String BUCKET = "bucket";
+  static final String COMPACTED = "compacted";
+
+  private static final String JOB_NAME = "personalTrackingFlushJob";
+
   @Reference
-  private transient Repository repository;
+  protected transient Repository repository;
+
+  @Reference
+  protected Scheduler scheduler;
+
+  private TrackingLog log = new TrackingLog(86400000L);
+  private int maxPending = 5000;
+  private int compactBatch = 500;
+  private final Object flushLock = new Object();
+
+  @Activate
+  protected void activate(Map<String, Object> props) {
+    long bucketSize = OsgiUtil.toLong(props.get(BUCKET_SIZE), 86400L) * 1000L;
+    long flushInterval = Math.max(1L, OsgiUtil.toLong(props.get(FLUSH_INTERVAL), 30L));
+    maxPending = OsgiUtil.toInteger(props.get(MAX_PENDING), 5000);
+    compactBatch = OsgiUtil.toInteger(props.get(COMPACT_BATCH), 500);
+    log = new TrackingLog(bucketSize);
+    try {
+      scheduler.addPeriodicJob(JOB_NAME, new Job() {
+        public void execute(JobContext context) {
+          flush();
+        }
+      }, new HashMap<String, Serializable>(), flushInterval, false);
+    } catch (Exception e) {
+      LOG.error("Failed to schedule the activity tracking flush, writing on every event", e);
+      maxPending = 0;
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> props) {
+    try {
+      scheduler.removeJob(JOB_NAME);
+    } catch (NoSuchElementException e) {
+      LOG.debug("Flush job was not scheduled");
+    }
+    flush();
+  }
 
   /**
    * {@inheritDoc}
    * 
+   * Buffers the activity; it is written out by the next flush.
+   * 
    * @see org.sakaiproject.nakamura.api.personal.PersonalTrackingStore#recordActivity(java.lang.String,
    *      java.lang.String, java.lang.String, java.lang.String, java.util.Date)
    */
   public void recordActivity(String resourceId, String resourceType, String activityType,
       String userId, Calendar timestamp) {
-    Session session = null;
-    try {
-      session = repository.loginAdministrative();
-      final ContentManager cm = session.getContentManager();
-      final String trackingNodePath = "/activity/" + resourceType + "/" + resourceId;
-      Content trackingNode = cm.get(trackingNodePath);
-      if (trackingNode == null) {
-        trackingNode = new Content(trackingNodePath, new HashMap<String, Object>());
+    if (resourceId == null || resourceType == null) {
+      LOG.debug("Not tracking activity without a resource {} {} ", resourceType,
+          resourceId);
+      return;
+    }
+    long when = (timestamp == null) ? System.currentTimeMillis() : timestamp
+        .getTimeInMillis();
+    if (log.record(resourceId, resourceType, activityType, userId, when) > maxPending) {
+      flush();
+    }
+  }
+
+  /**
+   * Write out everything buffered so far. Only one flush runs at a time.
+   */
+  protected void flush() {
+    synchronized (flushLock) {
+      Collection<Rollup> rollups = log.drain();
+      if (rollups.isEmpty()) {
+        return;
       }
-      if (!trackingNode.hasProperty("count")) {
-        trackingNode.setProperty("count", BigDecimal.ZERO);
+      List<Rollup> written = new ArrayList<Rollup>(rollups.size());
+      Session session = null;
+      try {
+        session = repository.loginAdministrative();
+        final ContentManager cm = session.getContentManager();
+        for (List<Rollup> resource : TrackingLog.byResource(rollups)) {
+          try {
+            writeResource(cm, resource, written);
+          } catch (StorageClientException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+          } catch (AccessDeniedException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+          }
+        }
+      } catch (ClientPoolException e) {
+        LOG.error(e.getLocalizedMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getLocalizedMessage(), e);
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getLocalizedMessage(), e);
+      } finally {
+        if (session != null) {
+          try {
+            session.logout();
+          } catch (ClientPoolException e) {
+            LOG.error(e.getLocalizedMessage(), e);
+          }
+        }
+        if (written.size() < rollups.size()) {
+          List<Rollup> failed = new ArrayList<Rollup>(rollups);
+          failed.removeAll(written);
+          LOG.warn("Keeping {} activity rollups that were not written for the next flush",
+              failed.size());
+          log.restore(failed);
+        }
       }
-      if (!trackingNode.hasProperty("sling:resourceType")) {
-        trackingNode.setProperty("sling:resourceType", "sakai/resource-activity");
+    }
+  }
+
+  /**
+   * Write the rollups of one resource, adding each one to written once it is stored.
+   */
+  private void writeResource(ContentManager cm, List<Rollup> rollups, List<Rollup> written)
+      throws StorageClientException, AccessDeniedException {
+    final Rollup first = rollups.get(0);
+    final String trackingNodePath = getTrackingPath(first.getResourceType(),
+        first.getResourceId());
+    Content trackingNode = cm.get(trackingNodePath);
+    if (trackingNode == null) {
+      trackingNode = new Content(trackingNodePath, new HashMap<String, Object>());
+    }
+    if (!trackingNode.hasProperty("sling:resourceType")) {
+      trackingNode.setProperty("sling:resourceType", RESOURCE_ACTIVITY_RT);
+    }
+    BigDecimal activityCount = BigDecimal.ZERO;
+    if (trackingNode.getProperty(COUNT) instanceof BigDecimal) {
+      activityCount = (BigDecimal) trackingNode.getProperty(COUNT);
+    }
+    long added = 0;
+    boolean compacted = false;
+    try {
+      for (Rollup rollup : rollups) {
+        addToRollup(cm, trackingNodePath, rollup.getResourceId(), rollup.getResourceType(),
+            rollup.getBucket(), rollup.getCount(), rollup.getActivityType(),
+            rollup.getUserId(), rollup.getLastTimestamp());
+        written.add(rollup);
+        added += rollup.getCount();
       }
-      final String generatedNodeName = Base64
-          .encodeBase64URLSafeString(asShorterByteArray(UUID.randomUUID()));
-      final String activityNodePath = trackingNodePath + "/" + generatedNodeName;
-      Content activityNode = null;
-      if (cm.exists(activityNodePath)) {
-        activityNode = cm.get(activityNodePath);
-      } else {
-        activityNode = new Content(activityNodePath, new HashMap<String, Object>());
+      if (!Boolean.TRUE.equals(trackingNode.getProperty(COMPACTED))) {
+        compacted = compact(cm, trackingNodePath);
       }
-      BigDecimal activityCount = (BigDecimal) trackingNode.getProperty("count");
-      activityNode.setProperty("sling:resourceType", "sakai/resource-update");
-      trackingNode.setProperty("count", activityCount.add(BigDecimal.ONE));
-      activityNode.setProperty("resourceId", resourceId);
-      activityNode.setProperty("resourcetype", resourceType);
-      activityNode.setProperty("activitytype", activityType);
-      activityNode.setProperty("timestamp", timestamp);
-      activityNode.setProperty("userid", userId);
-      cm.update(activityNode);
-      cm.update(trackingNode);
-    } catch (AccessDeniedException e) {
-      LOG.error(e.getLocalizedMessage(), e);
-    } catch (StorageClientException e) {
-      LOG.error(e.getLocalizedMessage(), e);
     } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          LOG.error(e.getLocalizedMessage(), e);
-          throw new IllegalStateException(e);
+      // count whatever made it into a rollup, even if a later write failed
+      if (added > 0 || compacted) {
+        trackingNode.setProperty(COUNT, activityCount.add(BigDecimal.valueOf(added)));
+        if (compacted) {
+          trackingNode.setProperty(COMPACTED, true);
         }
+        cm.update(trackingNode);
       }
     }
-
   }
 
-  private byte[] asShorterByteArray(UUID uuid) {
-
-    long msb = uuid.getMostSignificantBits();
-    byte[] buffer = new byte[8];
-
-    for (int i = 0; i < 8; i++) {
-      buffer[i] = (byte) (msb >>> 8 * (7 - i));
+  /**
+   * Fold up to a batch of individual activity items under a tracking item into
+   * rollups. The items are already part of the tracking count. Rollups are told apart by
+   * name, so only the individual items are loaded.
+   *
+   * @return true if no individual items are left.
+   */
+  private boolean compact(ContentManager cm, String trackingNodePath)
+      throws StorageClientException, AccessDeniedException {
+    Iterator<String> children = cm.listChildPaths(trackingNodePath);
+    int n = 0;
+    while (children.hasNext()) {
+      String childPath = children.next();
+      if (StorageClientUtils.getObjectName(childPath).startsWith(ROLLUP_PREFIX)) {
+        continue;
+      }
+      if (n >= compactBatch) {
+        LOG.debug("Compacted {} activity items under {} ", n, trackingNodePath);
+        return false;
+      }
+      Content child = cm.get(childPath);
+      if (child == null || child.hasProperty(BUCKET)
+          || !RESOURCE_UPDATE_RT.equals(child.getProperty("sling:resourceType"))) {
+        continue;
+      }
+      long when = System.currentTimeMillis();
+      if (child.getProperty("timestamp") instanceof Calendar) {
+        when = ((Calendar) child.getProperty("timestamp")).getTimeInMillis();
+      }
+      addToRollup(cm, trackingNodePath, (String) child.getProperty("resourceId"),
+          (String) child.getProperty("resourcetype"), log.getBucket(when), 1L,
+          (String) child.getProperty("activitytype"),
+          (String) child.getProperty("userid"), when);
+      cm.delete(childPath);
+      n++;
+    }
+    if (n > 0) {
+      LOG.debug("Compacted {} activity items under {} ", n, trackingNodePath);
     }
+    return true;
+  }
 
-    return buffer;
+  private void addToRollup(ContentManager cm, String trackingNodePath, String resourceId,
+      String resourceType, long bucket, long count, String activityType, String userId,
+      long lastTimestamp) throws StorageClientException, AccessDeniedException {
+    final String rollupPath = trackingNodePath + "/" + ROLLUP_PREFIX + bucket;
+    Content rollupNode = cm.get(rollupPath);
+    long total = count;
+    if (rollupNode == null) {
+      rollupNode = new Content(rollupPath, new HashMap<String, Object>());
+    } else {
+      Object existing = rollupNode.getProperty(COUNT);
+      if (existing instanceof Number) {
+        total += ((Number) existing).longValue();
+      }
+      Object existingTimestamp = rollupNode.getProperty("timestamp");
+      if (existingTimestamp instanceof Calendar
+          && ((Calendar) existingTimestamp).getTimeInMillis() > lastTimestamp) {
+        // keep the latest activity on the rollup, so range queries on timestamp include
+        // the bucket while any of its activity is in range.
+        lastTimestamp = ((Calendar) existingTimestamp).getTimeInMillis();
+        activityType = (String) rollupNode.getProperty("activitytype");
+        userId = (String) rollupNode.getProperty("userid");
+      }
+    }
+    Calendar timestamp = Calendar.getInstance();
+    timestamp.setTimeInMillis(lastTimestamp);
+    rollupNode.setProperty("sling:resourceType", RESOURCE_UPDATE_RT);
+    rollupNode.setProperty("resourceId", resourceId);
+    rollupNode.setProperty("resourcetype", resourceType);
+    if (activityType != null) {
+      rollupNode.setProperty("activitytype", activityType);
+    }
+    rollupNode.setProperty("timestamp", timestamp);
+    if (userId != null) {
+      rollupNode.setProperty("userid", userId);
+    }
+    rollupNode.setProperty(BUCKET, bucket);
+    rollupNode.setProperty(COUNT, total);
+    cm.update(rollupNode);
+  }
 
+  static String getTrackingPath(String resourceType, String resourceId) {
+    return "/activity/" + resourceType + "/" + resourceId;
   }
 
 }
@@ -66,22 +66,32 @@ public class ResourceChangeCounter implements EventHandler {
   public void handleEvent(Event event) {
     // be fast
     final String path = (String) event.getProperty("path");
+    // sparse puts the resource type on the event, when it is there most events can be
+    // dropped without touching the repository.
+    final Object eventResourceType = event.getProperty("resourceType");
+    if (eventResourceType instanceof String
+        && !resourceIsOfInterest((String) eventResourceType)) {
+      return;
+    }
     if (path != null) {
       Session adminSession = null;
       try {
         adminSession = repository.loginAdministrative();
-        final Content content = adminSession.getContentManager().get(path);
-        if (content == null) {
-          LOG.warn("Unable to record change for nonexistent content: " + path);
+        String resourceType = null;
+        if (eventResourceType instanceof String) {
+          resourceType = (String) eventResourceType;
         } else {
-          if (content.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
-            final String resourceType = (String) content
-            .getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY);
-            if (resourceIsOfInterest(resourceType)) {
-              countThisEvent(event, resourceType, adminSession);
-            }
+          final Content content = adminSession.getContentManager().get(path);
+          if (content == null) {
+            LOG.warn("Unable to record change for nonexistent content: " + path);
+          } else if (content.hasProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY)) {
+            resourceType = (String) content
+                .getProperty(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY);
           }
         }
+        if (resourceType != null && resourceIsOfInterest(resourceType)) {
+          countThisEvent(event, resourceType, adminSession);
+        }
       } catch (ClientPoolException e) {
         LOG.error(e.getLocalizedMessage(), e);
       } catch (StorageClientException e) {
@@ -112,10 +122,14 @@ public class ResourceChangeCounter implements EventHandler {
     if (path != null) {
       if (path.startsWith("a:")) {
         resourceId = PathUtils.getAuthorizableId(path);
-        final Authorizable az = session.getAuthorizableManager().findAuthorizable(
-            resourceId);
-        if (az != null) {
-          resourceType = (az instanceof Group) ? "group" : "user";
+        if ("sakai/group-profile".equals(eventResourceType)) {
+          resourceType = "group";
+        } else {
+          final Authorizable az = session.getAuthorizableManager().findAuthorizable(
+              resourceId);
+          if (az != null) {
+            resourceType = (az instanceof Group) ? "group" : "user";
+          }
         }
       } else {
         if (SAKAI_POOLED_CONTENT.equals(eventResourceType)) {
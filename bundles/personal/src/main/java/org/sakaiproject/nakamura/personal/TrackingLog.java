@@ -0,0 +1,211 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory log of activity waiting to be written. Activity is folded into one
+ * {@link Rollup} per resource and time bucket as it arrives, so the log grows with the
+ * number of active resources rather than the number of events.
+ */
+class TrackingLog {
+
+  private final long bucketSize;
+  /**
+   * Recorders share the read lock, draining takes the write lock to swap the map, so no
+   * increment lands in a map that has already been drained.
+   */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private ConcurrentMap<String, Rollup> pending = new ConcurrentHashMap<String, Rollup>();
+
+  TrackingLog(long bucketSize) {
+    this.bucketSize = Math.max(1L, bucketSize);
+  }
+
+  /**
+   * Append one activity.
+   * 
+   * @return the number of rollups waiting to be written.
+   */
+  int record(String resourceId, String resourceType, String activityType, String userId,
+      long timestamp) {
+    long bucket = getBucket(timestamp);
+    String key = resourceType + "/" + resourceId + "/" + bucket;
+    lock.readLock().lock();
+    try {
+      Rollup rollup = pending.get(key);
+      if (rollup == null) {
+        Rollup newRollup = new Rollup(resourceId, resourceType, bucket);
+        rollup = pending.putIfAbsent(key, newRollup);
+        if (rollup == null) {
+          rollup = newRollup;
+        }
+      }
+      rollup.add(activityType, userId, timestamp);
+      return pending.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Take everything recorded so far, leaving the log empty.
+   */
+  Collection<Rollup> drain() {
+    ConcurrentMap<String, Rollup> drained;
+    lock.writeLock().lock();
+    try {
+      if (pending.isEmpty()) {
+        return Collections.emptyList();
+      }
+      drained = pending;
+      pending = new ConcurrentHashMap<String, Rollup>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    return new ArrayList<Rollup>(drained.values());
+  }
+
+  /**
+   * Put back rollups that could not be written, adding them to anything recorded since
+   * they were drained.
+   */
+  void restore(Collection<Rollup> rollups) {
+    lock.readLock().lock();
+    try {
+      for (Rollup rollup : rollups) {
+        String key = rollup.getResourceType() + "/" + rollup.getResourceId() + "/"
+            + rollup.getBucket();
+        Rollup existing = pending.putIfAbsent(key, rollup);
+        if (existing != null) {
+          existing.merge(rollup);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  int size() {
+    return pending.size();
+  }
+
+  long getBucket(long timestamp) {
+    return timestamp - (timestamp % bucketSize);
+  }
+
+  /**
+   * The activity of one resource within one time bucket.
+   */
+  static class Rollup {
+    private final String resourceId;
+    private final String resourceType;
+    private final long bucket;
+    private final AtomicLong count = new AtomicLong();
+    private String activityType;
+    private String userId;
+    private long lastTimestamp;
+
+    Rollup(String resourceId, String resourceType, long bucket) {
+      this.resourceId = resourceId;
+      this.resourceType = resourceType;
+      this.bucket = bucket;
+    }
+
+    void add(String activityType, String userId, long timestamp) {
+      count.incrementAndGet();
+      synchronized (this) {
+        if (timestamp >= lastTimestamp) {
+          this.lastTimestamp = timestamp;
+          this.activityType = activityType;
+          this.userId = userId;
+        }
+      }
+    }
+
+    void merge(Rollup other) {
+      count.addAndGet(other.getCount());
+      String otherActivityType = other.getActivityType();
+      String otherUserId = other.getUserId();
+      long otherTimestamp = other.getLastTimestamp();
+      synchronized (this) {
+        if (otherTimestamp >= lastTimestamp) {
+          this.lastTimestamp = otherTimestamp;
+          this.activityType = otherActivityType;
+          this.userId = otherUserId;
+        }
+      }
+    }
+
+    String getResourceId() {
+      return resourceId;
+    }
+
+    String getResourceType() {
+      return resourceType;
+    }
+
+    long getBucket() {
+      return bucket;
+    }
+
+    long getCount() {
+      return count.get();
+    }
+
+    synchronized String getActivityType() {
+      return activityType;
+    }
+
+    synchronized String getUserId() {
+      return userId;
+    }
+
+    synchronized long getLastTimestamp() {
+      return lastTimestamp;
+    }
+  }
+
+  /**
+   * Group rollups by resource so each tracking item is written once.
+   */
+  static List<List<Rollup>> byResource(Collection<Rollup> rollups) {
+    Map<String, List<Rollup>> grouped = new LinkedHashMap<String, List<Rollup>>();
+    for (Rollup rollup : rollups) {
+      String key = rollup.getResourceType() + "/" + rollup.getResourceId();
+      List<Rollup> l = grouped.get(key);
+      if (l == null) {
+        l = new ArrayList<Rollup>();
+        grouped.put(key, l);
+      }
+      l.add(rollup);
+    }
+    return new ArrayList<List<Rollup>>(grouped.values());
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.math.BigDecimal;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class LitePersonalTrackingStoreTest {
+
+  private static final long DAY = 86400000L;
+
+  private Repository repository;
+  private ContentManager contentManager;
+  private LitePersonalTrackingStore store;
+  private String trackingPath;
+
+  @Before
+  public void before() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    contentManager = repository.loginAdministrative().getContentManager();
+    trackingPath = LitePersonalTrackingStore.getTrackingPath("content", "doc1");
+    store = newStore(repository);
+  }
+
+  private LitePersonalTrackingStore newStore(Repository repository) {
+    LitePersonalTrackingStore store = new LitePersonalTrackingStore();
+    store.repository = repository;
+    store.scheduler = Mockito.mock(Scheduler.class);
+    store.activate(new HashMap<String, Object>());
+    return store;
+  }
+
+  @Test
+  public void testWritesOneRollupPerBucketAndTheTotal() throws Exception {
+    store.recordActivity("doc1", "content", "CHANGE", "ieb", at(10 * DAY + 1));
+    store.recordActivity("doc1", "content", "CHANGE", "zach", at(10 * DAY + 2));
+    store.recordActivity("doc1", "content", "CHANGE", "ieb", at(11 * DAY));
+    store.flush();
+
+    assertEquals(new BigDecimal(3), contentManager.get(trackingPath).getProperty(
+        LitePersonalTrackingStore.COUNT));
+    Content rollup = contentManager.get(rollupPath(10 * DAY));
+    assertEquals(2L, ((Number) rollup.getProperty(LitePersonalTrackingStore.COUNT))
+        .longValue());
+    assertEquals("zach", rollup.getProperty("userid"));
+    assertEquals(LitePersonalTrackingStore.RESOURCE_UPDATE_RT, rollup
+        .getProperty("sling:resourceType"));
+    assertEquals(1L, ((Number) contentManager.get(rollupPath(11 * DAY)).getProperty(
+        LitePersonalTrackingStore.COUNT)).longValue());
+
+    // a later flush adds to the same rollup
+    store.recordActivity("doc1", "content", "CHANGE", "ieb", at(10 * DAY + 3));
+    store.flush();
+    assertEquals(3L, ((Number) contentManager.get(rollupPath(10 * DAY)).getProperty(
+        LitePersonalTrackingStore.COUNT)).longValue());
+    assertEquals(new BigDecimal(4), contentManager.get(trackingPath).getProperty(
+        LitePersonalTrackingStore.COUNT));
+  }
+
+  @Test
+  public void testKeepsRollupsThatFailedToWrite() throws Exception {
+    Repository failing = Mockito.mock(Repository.class);
+    Mockito.when(failing.loginAdministrative()).thenThrow(
+        new StorageClientException("unavailable")).thenReturn(
+        repository.loginAdministrative());
+    store = newStore(failing);
+
+    store.recordActivity("doc1", "content", "CHANGE", "ieb", at(10 * DAY + 1));
+    store.flush();
+    assertNull(contentManager.get(trackingPath));
+
+    store.recordActivity("doc1", "content", "CHANGE", "ieb", at(10 * DAY + 2));
+    store.flush();
+    assertEquals(2L, ((Number) contentManager.get(rollupPath(10 * DAY)).getProperty(
+        LitePersonalTrackingStore.COUNT)).longValue());
+    assertEquals(new BigDecimal(2), contentManager.get(trackingPath).getProperty(
+        LitePersonalTrackingStore.COUNT));
+  }
+
+  @Test
+  public void testCompactsIndividualItemsOnce() throws Exception {
+    contentManager.update(new Content(trackingPath, ImmutableMap.of("sling:resourceType",
+        (Object) LitePersonalTrackingStore.RESOURCE_ACTIVITY_RT,
+        LitePersonalTrackingStore.COUNT, new BigDecimal(2))));
+    addIndividualItem("a", 10 * DAY + 5);
+    addIndividualItem("b", 10 * DAY + 6);
+
+    store.recordActivity("doc1", "content", "CHANGE", "ieb", at(10 * DAY + 1));
+    store.flush();
+
+    assertNull(contentManager.get(trackingPath + "/a"));
+    assertNull(contentManager.get(trackingPath + "/b"));
+    Content tracking = contentManager.get(trackingPath);
+    assertEquals(new BigDecimal(3), tracking.getProperty(LitePersonalTrackingStore.COUNT));
+    assertTrue((Boolean) tracking.getProperty(LitePersonalTrackingStore.COMPACTED));
+    Content rollup = contentManager.get(rollupPath(10 * DAY));
+    assertEquals(3L, ((Number) rollup.getProperty(LitePersonalTrackingStore.COUNT))
+        .longValue());
+    assertEquals("user-b", rollup.getProperty("userid"));
+
+    // once compacted the children are not listed again
+    addIndividualItem("c", 10 * DAY + 7);
+    store.recordActivity("doc1", "content", "CHANGE", "ieb", at(10 * DAY + 2));
+    store.flush();
+    assertNotNull(contentManager.get(trackingPath + "/c"));
+  }
+
+  @Test
+  public void testCompactsABatchAtATime() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(LitePersonalTrackingStore.COMPACT_BATCH, 1);
+    store.activate(props);
+    addIndividualItem("a", 10 * DAY + 5);
+    addIndividualItem("b", 10 * DAY + 6);
+
+    store.recordActivity("doc1", "content", "CHANGE", "ieb", at(10 * DAY + 1));
+    store.flush();
+    assertFalse(Boolean.TRUE.equals(contentManager.get(trackingPath).getProperty(
+        LitePersonalTrackingStore.COMPACTED)));
+
+    store.recordActivity("doc1", "content", "CHANGE", "ieb", at(10 * DAY + 2));
+    store.flush();
+    assertNull(contentManager.get(trackingPath + "/a"));
+    assertNull(contentManager.get(trackingPath + "/b"));
+    assertTrue((Boolean) contentManager.get(trackingPath).getProperty(
+        LitePersonalTrackingStore.COMPACTED));
+  }
+
+  private void addIndividualItem(String name, long when) throws Exception {
+    contentManager.update(new Content(trackingPath + "/" + name, ImmutableMap
+        .<String, Object> builder()
+        .put("sling:resourceType", LitePersonalTrackingStore.RESOURCE_UPDATE_RT)
+        .put("resourceId", "doc1").put("resourcetype", "content")
+        .put("activitytype", "CHANGE").put("userid", "user-" + name)
+        .put("timestamp", at(when)).build()));
+  }
+
+  private String rollupPath(long bucket) {
+    return trackingPath + "/" + LitePersonalTrackingStore.ROLLUP_PREFIX + bucket;
+  }
+
+  private Calendar at(long when) {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(when);
+    return calendar;
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.personal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.personal.TrackingLog.Rollup;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ *
+ */
+public class TrackingLogTest {
+
+  private static final long HOUR = 3600000L;
+
+  @Test
+  public void testFoldsActivityPerResourceAndBucket() {
+    TrackingLog log = new TrackingLog(HOUR);
+    long t = 10 * HOUR;
+    log.record("doc1", "content", "CHANGE", "ieb", t + 1);
+    log.record("doc1", "content", "CHANGE", "zach", t + 2);
+    log.record("doc1", "content", "CHANGE", "ieb", t + HOUR);
+    log.record("doc2", "content", "CHANGE", "ieb", t + 3);
+    assertEquals(3, log.size());
+
+    Collection<Rollup> rollups = log.drain();
+    assertEquals(3, rollups.size());
+    assertEquals(0, log.size());
+    for (Rollup rollup : rollups) {
+      if ("doc1".equals(rollup.getResourceId()) && rollup.getBucket() == t) {
+        assertEquals(2, rollup.getCount());
+        assertEquals("zach", rollup.getUserId());
+        assertEquals(t + 2, rollup.getLastTimestamp());
+      } else {
+        assertEquals(1, rollup.getCount());
+      }
+    }
+
+    List<List<Rollup>> byResource = TrackingLog.byResource(rollups);
+    assertEquals(2, byResource.size());
+    assertTrue(log.drain().isEmpty());
+  }
+
+  @Test
+  public void testCountsConcurrentRecords() throws Exception {
+    final TrackingLog log = new TrackingLog(HOUR);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            log.record("doc1", "content", "CHANGE", "ieb", 5L);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    long total = 0;
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    for (Rollup rollup : log.drain()) {
+      total += rollup.getCount();
+    }
+    assertEquals(4000, total);
+  }
+}
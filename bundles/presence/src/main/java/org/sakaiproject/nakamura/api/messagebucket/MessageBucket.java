@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.api.messagebucket;
 
 
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -57,4 +58,11 @@ public interface MessageBucket {
 
   void bind(String token, HttpServletRequest request);
 
+  /**
+   * Fill the bucket and wake anything waiting on it. The bucket empties again once the
+   * payload has been sent.
+   * @param messagePayload the payload to send to the next waiter.
+   */
+  void markReady(Map<String, Object> messagePayload);
+
 }
@@ -18,6 +18,7 @@
 package org.sakaiproject.nakamura.api.messagebucket;
 
 
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -45,4 +46,13 @@ public interface MessageBucketService {
   String getBucketUrl(HttpServletRequest request, String context)
       throws MessageBucketException;
 
+  /**
+   * Fill the bucket for the user in the context, if that user has a bucket on this
+   * server. Users without a bucket are ignored.
+   * @param userId
+   * @param context
+   * @param messagePayload
+   */
+  void markReady(String userId, String context, Map<String, Object> messagePayload);
+
 }
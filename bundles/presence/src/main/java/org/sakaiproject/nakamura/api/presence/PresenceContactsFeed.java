@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.presence;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Tracks changes to the presence and compact profile of users so that clients polling
+ * for the presence of their contacts only need to be sent what changed since their last
+ * poll.
+ */
+public interface PresenceContactsFeed {
+
+  /**
+   * The message bucket context used to wake clients waiting for their contacts to change.
+   */
+  public static final String BUCKET_CONTEXT = "presencecontacts";
+
+  /**
+   * @param userId
+   *          the user id.
+   * @param authorizableManager
+   *          used to load the user if the compact profile is not cached.
+   * @return the compact profile of the user, as produced by the basic user info service,
+   *         or null if the user does not exist.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  Map<String, Object> getCompactProfile(String userId,
+      AuthorizableManager authorizableManager) throws StorageClientException,
+      AccessDeniedException;
+
+  /**
+   * @param userId
+   *          the user id.
+   * @return the time in ms at which the presence or compact profile of the user last
+   *         changed, 0 if not known.
+   */
+  long getLastModified(String userId);
+
+  /**
+   * Register interest in changes to contacts, replacing any previous registration for
+   * the user. Registrations expire if they are not renewed.
+   *
+   * @param userId
+   *          the user that wants to be told about changes.
+   * @param contacts
+   *          the contacts of that user.
+   * @return true if the user will be woken through their message bucket when a contact
+   *         changes, false if there is no room for more watchers on this server.
+   */
+  boolean watch(String userId, Collection<String> contacts);
+}
@@ -36,6 +36,16 @@ public interface PresenceService {
 
   public static final String PRESENCE_CLEAR = "delete";
 
+  /**
+   * Topic of the event posted when the visible status or location of a user changes.
+   */
+  public static final String PRESENCE_CHANGED_TOPIC = "org/sakaiproject/nakamura/presence/CHANGED";
+
+  /**
+   * Event property holding the id of the user whose presence changed.
+   */
+  public static final String PRESENCE_USER_PROPERTY = "user";
+
   /**
    * keep presence for this user alive.
    * 
@@ -99,4 +109,13 @@ public interface PresenceService {
   Map<String, String> online(String location);
 
   String[] getCurrentStatus(String uuid);
+
+  /**
+   * @param uuid
+   *          the user id.
+   * @return the time in ms at which the visible status or location of the user last
+   *         changed, including the lapse to offline when the user stopped pinging, 0 if
+   *         it has never been seen to change.
+   */
+  long getLastModified(String uuid);
 }
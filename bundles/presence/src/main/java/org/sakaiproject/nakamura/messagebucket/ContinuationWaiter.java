@@ -35,4 +35,19 @@ public class ContinuationWaiter implements Waiter {
     continuation.resume();    
   }
 
+  /**
+   * Waiters for the same continuation are equal, so a retried request replaces the waiter
+   * it registered on its first pass rather than adding another.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    return (obj instanceof ContinuationWaiter)
+        && ((ContinuationWaiter) obj).continuation == continuation;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(continuation);
+  }
+
 }
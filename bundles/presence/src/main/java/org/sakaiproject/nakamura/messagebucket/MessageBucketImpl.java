@@ -36,7 +36,7 @@ public class MessageBucketImpl implements MessageBucket {
 
   private Map<Waiter, Waiter> waiters = Maps.newConcurrentMap();
   private Map<String, HttpServletRequest> bound = Maps.newConcurrentMap();
-  private boolean ready = false;
+  private volatile boolean ready = false;
   private Map<String, Object> messagePayload;
 
   public boolean isReady() {
@@ -56,6 +56,9 @@ public class MessageBucketImpl implements MessageBucket {
       if (ready) {
         ExtendedJSONWriter e = new ExtendedJSONWriter(response.getWriter());
         e.valueMap(messagePayload);
+        // the payload has been delivered, empty the bucket ready for the next one.
+        ready = false;
+        messagePayload = null;
       } else {
         throw new MessageBucketException("Message not ready");
       }
@@ -34,6 +34,7 @@ import org.sakaiproject.nakamura.api.messagebucket.Waiter;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -52,6 +53,9 @@ public class UIEventServlet extends HttpServlet {
 
   @Property(longValue=120000L)
   private static final String TIMEOUT_CONFIG = "polltimeout";
+
+  @Property(intValue=5000)
+  private static final String MAX_WAITERS_CONFIG = "maxwaiters";
   
   @Reference
   private HttpService httpService;
@@ -61,9 +65,20 @@ public class UIEventServlet extends HttpServlet {
 
   private long timeout;
 
+  private int maxWaiters;
+
+  /**
+   * Requests parked on this server, each holds a connection open until it is woken or
+   * times out.
+   */
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  private static final String WAITING_ATTRIBUTE = UIEventServlet.class.getName() + ".waiting";
+
   @Activate
   public void activate(Map<String, Object> properties) throws ServletException, NamespaceException {
     timeout = OsgiUtil.toLong(properties.get(TIMEOUT_CONFIG), 120000L);
+    maxWaiters = OsgiUtil.toInteger(properties.get(MAX_WAITERS_CONFIG), 5000);
      httpService.registerServlet("/system/uievent/default", this, null, null);
   }
   
@@ -87,10 +102,19 @@ public class UIEventServlet extends HttpServlet {
           mb.send(response);
         } else {
           Continuation continuation = ContinuationSupport.getContinuation(request, mb);
-          Waiter waiter = new ContinuationWaiter(continuation);
-          mb.addWaiter(waiter);
+          if ( request.getAttribute(WAITING_ATTRIBUTE) == null ) {
+            // a retried continuation comes back through here once it is resumed or times
+            // out, it keeps the slot it took on its first pass.
+            if ( waiting.incrementAndGet() > maxWaiters ) {
+              waiting.decrementAndGet();
+              response.setHeader("Retry-After", String.valueOf(timeout / 1000L));
+              response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,"Too many requests waiting, poll instead");
+              return;
+            }
+            request.setAttribute(WAITING_ATTRIBUTE, Boolean.TRUE);
+          }
+          mb.addWaiter(new ContinuationWaiter(continuation));
           continuation.suspend(timeout);
-          mb.removeWaiter(waiter);
           if ( mb.isReady() ) {
             mb.send(response);
           } else {
@@ -100,11 +124,26 @@ public class UIEventServlet extends HttpServlet {
       }
       } finally {
         mb.unbind(token, request);
+        release(request, mb);
       }
     } catch ( MessageBucketException e ) {
       response.sendError(HttpServletResponse.SC_BAD_REQUEST,e.getMessage());
     }
   }
 
+  /**
+   * Give back the slot and the waiter of a request that is no longer parked.
+   */
+  private void release(HttpServletRequest request, MessageBucket mb) {
+    if ( request.getAttribute(WAITING_ATTRIBUTE) != null ) {
+      Continuation continuation = ContinuationSupport.getContinuation(request, mb);
+      if ( !continuation.isPending() ) {
+        request.removeAttribute(WAITING_ATTRIBUTE);
+        mb.removeWaiter(new ContinuationWaiter(continuation));
+        waiting.decrementAndGet();
+      }
+    }
+  }
+
   
 }
@@ -89,6 +89,13 @@ public class UntrustedMessageBucketServiceImpl implements MessageBucketService {
     }
   }
 
+  public void markReady(String userId, String context, Map<String, Object> messagePayload) {
+    MessageBucket mb = messageBuckets.get(userId + "-" + context);
+    if (mb != null) {
+      mb.markReady(messagePayload);
+    }
+  }
+
   public String getKey(String token) throws MessageBucketException {
     try {
       String bareToken = new String(Base64.decodeBase64(token), "UTF8");
@@ -0,0 +1,268 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
+import org.sakaiproject.nakamura.api.presence.PresenceContactsFeed;
+import org.sakaiproject.nakamura.api.presence.PresenceService;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Keeps a cache of compact profiles and the time each user last changed, and wakes the
+ * message buckets of users watching their contacts when one of those contacts changes.
+ * Compact profiles are built from the authorizable alone, so they are invalidated on
+ * authorizable update events. Watches are held in memory on the server the client polls,
+ * a change made on another server is picked up when the client next polls.
+ */
+@Component(immediate = true, metatype = true, label = "Sakai Presence Contacts Feed", description = "Tracks changes to contacts so presence polls only return what changed.")
+@Service(value = { PresenceContactsFeed.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Tracks changes to contacts so presence polls only return what changed."),
+    @Property(name = "event.topics", value = {
+        PresenceService.PRESENCE_CHANGED_TOPIC,
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class PresenceContactsFeedImpl implements PresenceContactsFeed, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(PresenceContactsFeedImpl.class);
+
+  private static final String PROFILE_CACHE = "presence.compactprofile";
+  private static final String PROFILE_MODIFIED_CACHE = "presence.profilemodified";
+  private static final String CONTACTS_GROUP_PREFIX = "g-contacts-";
+
+  private static final int DEFAULT_MAX_WATCHERS = 10000;
+  @Property(intValue = DEFAULT_MAX_WATCHERS, label = "Maximum watchers", description = "The maximum number of users on this server that can wait for changes to their contacts.")
+  static final String MAX_WATCHERS = "maxWatchers";
+
+  private static final long DEFAULT_WATCH_TTL = 300000L;
+  @Property(longValue = DEFAULT_WATCH_TTL, label = "Watch TTL", description = "How long in ms a user stays registered for changes without polling again.")
+  static final String WATCH_TTL = "watchTtl";
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
+  @Reference
+  protected transient PresenceService presenceService;
+
+  @Reference
+  protected transient BasicUserInfoService basicUserInfoService;
+
+  @Reference
+  protected transient MessageBucketService messageBucketService;
+
+  private int maxWatchers = DEFAULT_MAX_WATCHERS;
+  private long watchTtl = DEFAULT_WATCH_TTL;
+
+  /**
+   * The contacts each user is watching, keyed by the watching user.
+   */
+  private final Map<String, Watch> watches = Maps.newConcurrentMap();
+
+  /**
+   * The users watching each contact, keyed by contact. This may hold users whose watch
+   * has expired or moved on, those are cleaned out when the contact next changes.
+   */
+  private final Map<String, Set<String>> watchers = Maps.newConcurrentMap();
+
+  @Activate
+  @Modified
+  protected void activate(Map<String, Object> properties) {
+    maxWatchers = OsgiUtil.toInteger(properties.get(MAX_WATCHERS), DEFAULT_MAX_WATCHERS);
+    watchTtl = OsgiUtil.toLong(properties.get(WATCH_TTL), DEFAULT_WATCH_TTL);
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.presence.PresenceContactsFeed#getCompactProfile(java.lang.String, org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager)
+   */
+  public Map<String, Object> getCompactProfile(String userId,
+      AuthorizableManager authorizableManager) throws StorageClientException,
+      AccessDeniedException {
+    Cache<Map<String, Object>> profileCache = getProfileCache();
+    Map<String, Object> profile = profileCache.get(userId);
+    if (profile == null) {
+      Authorizable authorizable = authorizableManager.findAuthorizable(userId);
+      if (authorizable == null) {
+        return null;
+      }
+      profile = basicUserInfoService.getProperties(authorizable);
+      profileCache.put(userId, profile);
+    }
+    return profile;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.presence.PresenceContactsFeed#getLastModified(java.lang.String)
+   */
+  public long getLastModified(String userId) {
+    long lastModified = presenceService.getLastModified(userId);
+    Long profileModified = getProfileModifiedCache().get(userId);
+    if (profileModified != null && profileModified > lastModified) {
+      lastModified = profileModified;
+    }
+    return lastModified;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.presence.PresenceContactsFeed#watch(java.lang.String, java.util.Collection)
+   */
+  public boolean watch(String userId, Collection<String> contacts) {
+    long now = System.currentTimeMillis();
+    if (!watches.containsKey(userId) && watches.size() >= maxWatchers) {
+      purgeExpired(now);
+      if (watches.size() >= maxWatchers) {
+        LOGGER.debug("No room to watch contacts of {}, {} watchers", userId,
+            watches.size());
+        return false;
+      }
+    }
+    Watch watch = new Watch(ImmutableSet.copyOf(contacts), now + watchTtl);
+    watches.put(userId, watch);
+    for (String contact : watch.contacts) {
+      Set<String> contactWatchers = watchers.get(contact);
+      if (contactWatchers == null) {
+        synchronized (watchers) {
+          contactWatchers = watchers.get(contact);
+          if (contactWatchers == null) {
+            contactWatchers = Sets.newSetFromMap(Maps.<String, Boolean> newConcurrentMap());
+            watchers.put(contact, contactWatchers);
+          }
+        }
+      }
+      contactWatchers.add(userId);
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String topic = event.getTopic();
+    if (PresenceService.PRESENCE_CHANGED_TOPIC.equals(topic)) {
+      notifyWatchers((String) event.getProperty(PresenceService.PRESENCE_USER_PROPERTY));
+    } else {
+      String authorizableId = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+      if (authorizableId == null) {
+        return;
+      }
+      if (authorizableId.startsWith(CONTACTS_GROUP_PREFIX)) {
+        // the contacts of a user changed, wake that user up so they collect the new list.
+        String userId = authorizableId.substring(CONTACTS_GROUP_PREFIX.length());
+        if (watches.containsKey(userId)) {
+          wake(userId, userId);
+        }
+      } else {
+        getProfileCache().remove(authorizableId);
+        getProfileModifiedCache().put(authorizableId, System.currentTimeMillis());
+        notifyWatchers(authorizableId);
+      }
+    }
+  }
+
+  private void notifyWatchers(String contact) {
+    if (contact == null) {
+      return;
+    }
+    Set<String> contactWatchers = watchers.get(contact);
+    if (contactWatchers == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (String userId : contactWatchers) {
+      Watch watch = watches.get(userId);
+      if (watch == null || watch.expires < now || !watch.contacts.contains(contact)) {
+        contactWatchers.remove(userId);
+      } else {
+        wake(userId, contact);
+      }
+    }
+    if (contactWatchers.isEmpty()) {
+      watchers.remove(contact);
+    }
+  }
+
+  private void wake(String userId, String contact) {
+    Map<String, Object> payload = Maps.newHashMap();
+    payload.put("type", BUCKET_CONTEXT);
+    payload.put("user", contact);
+    messageBucketService.markReady(userId, BUCKET_CONTEXT, payload);
+  }
+
+  private void purgeExpired(long now) {
+    for (Entry<String, Watch> e : watches.entrySet()) {
+      if (e.getValue().expires < now) {
+        watches.remove(e.getKey());
+      }
+    }
+  }
+
+  private Cache<Map<String, Object>> getProfileCache() {
+    // invalidations are replicated, the profiles themselves are rebuilt where needed.
+    return cacheManagerService.getCache(PROFILE_CACHE, CacheScope.CLUSTERINVALIDATED);
+  }
+
+  private Cache<Long> getProfileModifiedCache() {
+    return cacheManagerService.getCache(PROFILE_MODIFIED_CACHE,
+        CacheScope.CLUSTERREPLICATED);
+  }
+
+  private static class Watch {
+    private final Set<String> contacts;
+    private final long expires;
+
+    private Watch(Set<String> contacts, long expires) {
+      this.contacts = contacts;
+      this.expires = expires;
+    }
+  }
+}
@@ -25,7 +25,11 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -34,6 +38,8 @@ import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Dictionary;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -50,7 +56,9 @@ public class PresenceServiceImpl implements PresenceService {
 
   private static final String LOCATION_CACHE = "presence.location";
   private static final String USER_STATUS_CACHE = "presence.status";
+  private static final String MODIFIED_CACHE = "presence.modified";
   private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
+  private static final long TIMESTAMP_RESOLUTION = 20000L;
   // private static final int USER_ELEMENT = 0;
   private static final int TIMESTAMP_ELEMENT = 1;
   private static final int LOCATION_ELEMENT = 2;
@@ -59,10 +67,14 @@ public class PresenceServiceImpl implements PresenceService {
 
   private Cache<String> userStatusCache;
   private Cache<Map<String, String>> locationCache;
+  private Cache<Long> modifiedCache;
 
   @Reference
   protected transient CacheManagerService cacheManagerService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected transient EventAdmin eventAdmin;
+
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
     // the caches must be replicating in the cluster.
@@ -70,6 +82,8 @@ public class PresenceServiceImpl implements PresenceService {
         CacheScope.CLUSTERREPLICATED);
     userStatusCache = cacheManagerService.getCache(USER_STATUS_CACHE,
         CacheScope.CLUSTERREPLICATED);
+    modifiedCache = cacheManagerService.getCache(MODIFIED_CACHE,
+        CacheScope.CLUSTERREPLICATED);
   }
 
   protected void unbindCacheManagerService(
@@ -77,10 +91,21 @@ public class PresenceServiceImpl implements PresenceService {
     if (this.cacheManagerService == cacheManagerService) {
       locationCache = null;
       userStatusCache = null;
+      modifiedCache = null;
       this.cacheManagerService = null;
     }
   }
 
+  protected void bindEventAdmin(EventAdmin eventAdmin) {
+    this.eventAdmin = eventAdmin;
+  }
+
+  protected void unbindEventAdmin(EventAdmin eventAdmin) {
+    if (this.eventAdmin == eventAdmin) {
+      this.eventAdmin = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#setStatus(java.lang.String,
@@ -119,6 +144,7 @@ public class PresenceServiceImpl implements PresenceService {
           }
         }
       }
+      markModified(uuid);
     }
   }
 
@@ -179,6 +205,36 @@ public class PresenceServiceImpl implements PresenceService {
     return result;
   }
 
+  /**
+   * {@inheritDoc}
+   * @see org.sakaiproject.nakamura.api.presence.PresenceService#getLastModified(java.lang.String)
+   */
+  public long getLastModified(String uuid) {
+    long lastModified = 0L;
+    if (modifiedCache != null) {
+      Long modified = modifiedCache.get(uuid);
+      if (modified != null) {
+        lastModified = modified;
+      }
+    }
+    if (userStatusCache != null) {
+      String currentStatus = userStatusCache.get(uuid);
+      if (currentStatus != null) {
+        String[] locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
+        if (locationStatus.length > TIMESTAMP_ELEMENT) {
+          // a status lapses without anyone writing to it, so work out when that happened
+          // using the same test as getCurrentStatus.
+          long lapsed = (Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]) + PRESENCE_TTL)
+              * TIMESTAMP_RESOLUTION;
+          if (lapsed <= System.currentTimeMillis() && lapsed > lastModified) {
+            lastModified = lapsed;
+          }
+        }
+      }
+    }
+    return lastModified;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -260,7 +316,25 @@ public class PresenceServiceImpl implements PresenceService {
   private long getTimeStamp() {
     long now = System.currentTimeMillis();
     // make now slow changing, 20s resolution
-    return now / 20000;
+    return now / TIMESTAMP_RESOLUTION;
+  }
+
+  /**
+   * Record that the visible presence of a user changed and let anyone listening know.
+   *
+   * @param uuid
+   *          the user id
+   */
+  private void markModified(String uuid) {
+    if (modifiedCache != null) {
+      modifiedCache.put(uuid, System.currentTimeMillis());
+    }
+    EventAdmin ea = eventAdmin;
+    if (ea != null) {
+      Dictionary<String, Object> eventProps = new Hashtable<String, Object>();
+      eventProps.put(PRESENCE_USER_PROPERTY, uuid);
+      ea.postEvent(new Event(PRESENCE_CHANGED_TOPIC, eventProps));
+    }
   }
 
   /**
@@ -280,6 +354,8 @@ public class PresenceServiceImpl implements PresenceService {
       String status) {
     boolean update = false;
     if (userStatusCache != null) {
+      String previousStatus = getStatus(uuid);
+      String previousLocation = getLocation(uuid);
       String currentStatus = userStatusCache.get(uuid);
       // load the current status or the defaults.
       String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
@@ -309,6 +385,11 @@ public class PresenceServiceImpl implements PresenceService {
         String newStatus = ':' + StringUtils.join(ls, ':');
         if (!newStatus.equals(currentStatus)) {
           userStatusCache.put(uuid, newStatus);
+          // only changes the user can see count, not the ping timestamp.
+          if (!previousStatus.equals(getStatus(uuid))
+              || !previousLocation.equals(getLocation(uuid))) {
+            markModified(uuid);
+          }
         } else {
           update = false;
         }
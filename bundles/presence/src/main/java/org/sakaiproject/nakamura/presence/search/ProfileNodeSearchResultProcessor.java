@@ -31,11 +31,10 @@ import org.osgi.framework.Constants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.search.SearchConstants;
 import org.sakaiproject.nakamura.api.search.solr.Query;
@@ -119,16 +118,17 @@ public class ProfileNodeSearchResultProcessor implements SolrSearchResultProcess
     Session session = StorageClientUtils.adaptToSession(jcrSession);
 
     try {
-      AuthorizableManager authMgr = session.getAuthorizableManager();
+      BasicUserInfoResolver resolver = BasicUserInfoResolver.getResolver(request, session,
+          basicUserInfoService);
 
       String authorizableId = (String) result.getFirstValue("path");
-      Authorizable auth = authMgr.findAuthorizable(authorizableId);
+      Authorizable auth = resolver.getAuthorizable(authorizableId);
 
       if (!objectInProgress) {
         write.object();
       }
       if (auth != null) {
-        Map<String,Object> map = basicUserInfoService.getProperties(auth);
+        Map<String,Object> map = resolver.getProperties(authorizableId);
 
         ExtendedJSONWriter.writeValueMapInternals(write, map);
 
@@ -142,8 +142,6 @@ public class ProfileNodeSearchResultProcessor implements SolrSearchResultProcess
       }
     } catch (StorageClientException e) {
       LOGGER.error(e.getMessage(), e);
-    } catch (AccessDeniedException e) {
-      LOGGER.error(e.getMessage(), e);
     }
   }
 }
@@ -36,9 +36,17 @@ import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceExtension;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketException;
+import org.sakaiproject.nakamura.api.messagebucket.MessageBucketService;
+import org.sakaiproject.nakamura.api.presence.PresenceContactsFeed;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.presence.PresenceUtils;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
@@ -48,7 +56,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -110,7 +121,16 @@ import javax.servlet.http.HttpServletResponse;
                    "            \"sakai:excludeSearch\": false\n" +
                    "        }\n" +
                    "    }]\n" +
-                   "}</pre>"
+                   "}</pre>",
+                 "If the since parameter is present the response is a feed. The profile of each contact is the compact " +
+                 "profile, the response carries a version token, and when since holds the version token from an earlier " +
+                 "response only the contacts whose presence or compact profile changed after that response are listed " +
+                 "and delta is true. If the list of contacts has changed, or the token is not recognised, all contacts are " +
+                 "listed and delta is false. Where possible an eventbus URL is included which can be long polled through " +
+                 "the UI event servlet and returns when a contact changes."
+         },
+        parameters = {
+           @ServiceParameter(name = "since", description = "Optional, the version token returned by the previous feed response, empty for the first.")
          },
         response = {
            @ServiceResponse(code=200,description="On success a a json tree of the presence for contacts."),
@@ -136,6 +156,12 @@ public class PresenceContactsServlet extends SlingSafeMethodsServlet {
   @Reference
   protected transient ProfileService profileService;
 
+  @Reference
+  protected transient PresenceContactsFeed presenceContactsFeed;
+
+  @Reference
+  protected transient MessageBucketService messageBucketService;
+
   @Override
   protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
@@ -155,6 +181,23 @@ public class PresenceContactsServlet extends SlingSafeMethodsServlet {
     response.setCharacterEncoding("UTF-8");
 
 
+    String since = request.getParameter("since");
+    if (since != null) {
+      try {
+        writeFeed(request, response, session, user, since);
+      } catch (JSONException e) {
+        LOGGER.error(e.getMessage(), e);
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      } catch (StorageClientException e) {
+        LOGGER.error(e.getMessage(), e);
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
+      } catch (AccessDeniedException e) {
+        LOGGER.error(e.getMessage(), e);
+        response.sendError(HttpServletResponse.SC_FORBIDDEN, e.getMessage());
+      }
+      return;
+    }
+
     try {
       Writer writer = response.getWriter();
       ExtendedJSONWriter output = new ExtendedJSONWriter(writer);
@@ -194,4 +237,78 @@ public class PresenceContactsServlet extends SlingSafeMethodsServlet {
     return;
   }
 
+  /**
+   * Write the contacts as a feed, listing only the contacts that changed since the
+   * version token when that token still matches the current list of contacts.
+   */
+  private void writeFeed(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, Session session, String user, String since)
+      throws IOException, JSONException, StorageClientException, AccessDeniedException {
+    // take the version before reading anything so changes made while writing are resent.
+    long version = System.currentTimeMillis();
+    List<String> userIds = connectionManager.getConnectedUsers(request, user,
+        ConnectionState.ACCEPTED);
+    List<String> sortedIds = new ArrayList<String>(userIds);
+    Collections.sort(sortedIds);
+    String contactsHash = Integer.toHexString(sortedIds.hashCode());
+    long sinceVersion = parseVersion(since, contactsHash);
+    boolean delta = sinceVersion > 0L;
+
+    AuthorizableManager authorizableManager = StorageClientUtils.adaptToSession(session)
+        .getAuthorizableManager();
+    ExtendedJSONWriter output = new ExtendedJSONWriter(response.getWriter());
+    output.object();
+    PresenceUtils.makePresenceJSON(output, user, presenceService, true);
+    output.key("version");
+    output.value(version + "-" + contactsHash);
+    output.key("delta");
+    output.value(delta);
+    if (presenceContactsFeed.watch(user, userIds)) {
+      try {
+        String bucketUrl = messageBucketService.getBucketUrl(request,
+            PresenceContactsFeed.BUCKET_CONTEXT);
+        if (bucketUrl != null) {
+          output.key("eventbus");
+          output.value(bucketUrl);
+        }
+      } catch (MessageBucketException e) {
+        LOGGER.debug("No message bucket for contacts feed {} ", e.getMessage());
+      }
+    }
+    output.key("contacts");
+    output.array();
+    for (String userId : userIds) {
+      if (delta && presenceContactsFeed.getLastModified(userId) < sinceVersion) {
+        continue;
+      }
+      output.object();
+      PresenceUtils.makePresenceJSON(output, userId, presenceService, true);
+      Map<String, Object> profile = presenceContactsFeed.getCompactProfile(userId,
+          authorizableManager);
+      if (profile != null) {
+        output.key("profile");
+        output.valueMap(profile);
+      }
+      output.endObject();
+    }
+    output.endArray();
+    output.endObject();
+  }
+
+  /**
+   * @return the time of the version token, or 0 if the token does not belong to this
+   *         list of contacts.
+   */
+  private long parseVersion(String since, String contactsHash) {
+    int sep = since.indexOf('-');
+    if (sep > 0 && contactsHash.equals(since.substring(sep + 1))) {
+      try {
+        return Long.parseLong(since.substring(0, sep));
+      } catch (NumberFormatException e) {
+        LOGGER.debug("Ignoring bad version token {} ", since);
+      }
+    }
+    return 0L;
+  }
+
 }
@@ -49,6 +49,7 @@ public class PresenceServiceImplTest {
   private PresenceServiceImpl presenceService;
   private Cache<Object> presenceLocationCache;
   private Cache<Object> presenceStatusCache;
+  private Cache<Object> presenceModifiedCache;
 
   /**
    * @throws java.lang.Exception
@@ -58,6 +59,7 @@ public class PresenceServiceImplTest {
 
     presenceLocationCache = new MapCacheImpl<Object>();
     presenceStatusCache = new MapCacheImpl<Object>();
+    presenceModifiedCache = new MapCacheImpl<Object>();
 
     cacheManagerService = createMock(CacheManagerService.class);
     expect(
@@ -68,6 +70,10 @@ public class PresenceServiceImplTest {
         cacheManagerService.getCache("presence.status",
             CacheScope.CLUSTERREPLICATED)).andReturn(presenceStatusCache)
         .anyTimes();
+    expect(
+        cacheManagerService.getCache("presence.modified",
+            CacheScope.CLUSTERREPLICATED)).andReturn(presenceModifiedCache)
+        .anyTimes();
     replay(cacheManagerService);
 
     presenceService = new PresenceServiceImpl();
@@ -168,6 +174,26 @@ public class PresenceServiceImplTest {
     }
   }
   
+  @Test
+  public void testLastModified() {
+    String uuid = "jack";
+    assertEquals(0L, presenceService.getLastModified(uuid));
+    long before = System.currentTimeMillis();
+    presenceService.ping(uuid, "locationA");
+    long pinged = presenceService.getLastModified(uuid);
+    Assert.assertTrue(pinged >= before);
+
+    // pinging from the same place changes nothing the contacts can see.
+    presenceService.ping(uuid, "locationA");
+    assertEquals(pinged, presenceService.getLastModified(uuid));
+
+    presenceService.setStatus(uuid, "busy");
+    Assert.assertTrue(presenceService.getLastModified(uuid) >= pinged);
+
+    presenceService.clear(uuid);
+    Assert.assertTrue(presenceService.getLastModified(uuid) >= pinged);
+  }
+
   public PresenceService getPresenceService() {
     return this.presenceService;
   }
@@ -18,6 +18,8 @@
 package org.sakaiproject.nakamura.presence.servlets;
 
 import static org.easymock.EasyMock.expect;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 import junit.framework.Assert;
 
@@ -28,12 +30,16 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.sakaiproject.nakamura.api.connections.ConnectionManager;
 import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.presence.PresenceContactsFeed;
 import org.sakaiproject.nakamura.api.presence.PresenceService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.presence.PresenceServiceImplTest;
@@ -43,7 +49,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.PropertyIterator;
@@ -117,6 +125,7 @@ public class PresenceContactsServletTest extends AbstractEasyMockTest {
     expect(resourceResolver.adaptTo(Session.class)).andReturn(session);
     expect(request.getResourceResolver()).andReturn(resourceResolver);
 
+    expect(request.getParameter("since")).andReturn(null);
     expect(response.getWriter()).andReturn(printWriter);
     List<String> contacts = new ArrayList<String>();
     connectionManager = createMock(ConnectionManager.class);
@@ -160,4 +169,82 @@ public class PresenceContactsServletTest extends AbstractEasyMockTest {
     }
   }
 
+  @Test
+  public void testFeed() throws Exception {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Session session = mock(Session.class, Mockito.withSettings().extraInterfaces(
+        SessionAdaptable.class));
+    org.sakaiproject.nakamura.api.lite.Session sparseSession = mock(org.sakaiproject.nakamura.api.lite.Session.class);
+    AuthorizableManager authorizableManager = mock(AuthorizableManager.class);
+    PresenceContactsFeed feed = mock(PresenceContactsFeed.class);
+    connectionManager = mock(ConnectionManager.class);
+
+    when(request.getRemoteUser()).thenReturn(CURRENT_USER);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.adaptTo(Session.class)).thenReturn(session);
+    when(session.getUserID()).thenReturn(CURRENT_USER);
+    when(((SessionAdaptable) session).getSession()).thenReturn(sparseSession);
+    when(sparseSession.getAuthorizableManager()).thenReturn(authorizableManager);
+
+    List<String> contacts = new ArrayList<String>();
+    for (int i = 0; i < 3; i++) {
+      String uuid = "user-" + i;
+      contacts.add(uuid);
+      presenceService.setStatus(uuid, "busy");
+      Map<String, Object> profile = new HashMap<String, Object>();
+      profile.put("userid", uuid);
+      when(feed.getCompactProfile(uuid, authorizableManager)).thenReturn(profile);
+    }
+    when(connectionManager.getConnectedUsers(request, CURRENT_USER,
+        ConnectionState.ACCEPTED)).thenReturn(contacts);
+    // only user-1 changes after the first poll.
+    when(feed.getLastModified("user-1")).thenReturn(Long.MAX_VALUE);
+
+    servlet.connectionManager = connectionManager;
+    servlet.presenceContactsFeed = feed;
+
+    // first poll gets everyone.
+    when(request.getParameter("since")).thenReturn("");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter printWriter = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(printWriter);
+    servlet.doGet(request, response);
+    printWriter.flush();
+
+    JSONObject o = new JSONObject(baos.toString("UTF-8"));
+    Assert.assertFalse(o.getBoolean("delta"));
+    Assert.assertEquals(3, o.getJSONArray("contacts").length());
+    Assert.assertEquals("user-0", o.getJSONArray("contacts").getJSONObject(0)
+        .getJSONObject("profile").getString("userid"));
+    String version = o.getString("version");
+
+    // the next poll only gets the changes.
+    when(request.getParameter("since")).thenReturn(version);
+    baos = new ByteArrayOutputStream();
+    printWriter = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(printWriter);
+    servlet.doGet(request, response);
+    printWriter.flush();
+
+    o = new JSONObject(baos.toString("UTF-8"));
+    Assert.assertTrue(o.getBoolean("delta"));
+    JSONArray changed = o.getJSONArray("contacts");
+    Assert.assertEquals(1, changed.length());
+    Assert.assertEquals("user-1", changed.getJSONObject(0).getString("user"));
+
+    // a different list of contacts gets everyone again.
+    contacts.add("user-3");
+    baos = new ByteArrayOutputStream();
+    printWriter = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(printWriter);
+    servlet.doGet(request, response);
+    printWriter.flush();
+
+    o = new JSONObject(baos.toString("UTF-8"));
+    Assert.assertFalse(o.getBoolean("delta"));
+    Assert.assertEquals(4, o.getJSONArray("contacts").length());
+  }
+
 }
@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.profile;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * A shared, bounded pool for {@link ProfileProvider}s to run their lookups on, so that
+ * providers need not compute synchronously or start their own threads.
+ */
+public interface ProfileProviderExecutionService {
+
+  /**
+   * Run a lookup for a provider. Each provider may only have a limited number of lookups
+   * running or queued at once, beyond that this waits for up to the provider's timeout
+   * and then returns a future that has failed.
+   *
+   * @param provider
+   *          the name the provider is registered under, see
+   *          {@link ProfileProvider#PROVIDER_NAME}.
+   * @param task
+   *          the lookup.
+   * @return the future result of the lookup.
+   */
+  <T> Future<T> submit(String provider, Callable<T> task);
+
+  /**
+   * Wait for the provided sections of one profile together. Every section gets its
+   * provider's timeout counted from the first lookup this thread submitted for the
+   * profile, rather than one after another. A section that fails or times out gets the
+   * last value its provider gave for it to the same viewer, or is left out if there is
+   * none. Lookups that time out are cancelled.
+   *
+   * @param viewer
+   *          the id of the user the profile is resolved for.
+   * @param sections
+   *          for each provider name, the futures keyed by the path of the profile node
+   *          they provide.
+   * @return the sections keyed by the path of the profile node.
+   * @throws InterruptedException
+   */
+  Map<String, Map<String, Object>> awaitSections(String viewer,
+      Map<String, Map<String, Future<Map<String, Object>>>> sections)
+      throws InterruptedException;
+
+  /**
+   * Forget when this thread submitted its first lookup, so that the timeouts of the next
+   * profile it resolves are not counted from then. {@link #awaitSections} does this
+   * already, callers that may stop before waiting call this in a finally.
+   */
+  void endLookups();
+}
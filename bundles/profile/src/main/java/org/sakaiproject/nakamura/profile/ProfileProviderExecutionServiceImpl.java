@@ -0,0 +1,312 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.sakaiproject.nakamura.api.profile.ProfileProviderExecutionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs profile provider lookups on a bounded pool, with a cap on the lookups each
+ * provider may have at once, and keeps the last good value of every provided section, as
+ * seen by each viewer, to fall back on when a provider is slow or failing.
+ */
+@Component(immediate = true, metatype = true)
+@Service
+public class ProfileProviderExecutionServiceImpl implements
+    ProfileProviderExecutionService {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(ProfileProviderExecutionServiceImpl.class);
+
+  static final int DEFAULT_THREADS = 8;
+  @Property(intValue = DEFAULT_THREADS, label = "Threads", description = "The number of threads running provider lookups.")
+  static final String THREADS = "sakai.profile.provider.threads";
+
+  static final int DEFAULT_QUEUE_SIZE = 200;
+  @Property(intValue = DEFAULT_QUEUE_SIZE, label = "Queue size", description = "The number of lookups that may wait for a thread, beyond this lookups fail straight away.")
+  static final String QUEUE_SIZE = "sakai.profile.provider.queue.size";
+
+  static final int DEFAULT_CONCURRENCY = 4;
+  @Property(intValue = DEFAULT_CONCURRENCY, label = "Lookups per provider", description = "The number of lookups a provider may have running or queued at once, unless set for the provider. Further lookups wait for up to the provider's timeout.")
+  static final String CONCURRENCY = "sakai.profile.provider.concurrency";
+
+  @Property(value = {}, label = "Lookups by provider", description = "The lookups a provider may have at once, as providername=count.")
+  static final String CONCURRENCY_BY_PROVIDER = "sakai.profile.provider.concurrency.byname";
+
+  static final long DEFAULT_TIMEOUT = 2000;
+  @Property(longValue = DEFAULT_TIMEOUT, label = "Timeout", description = "The milliseconds to wait for a provided section before using its last good value, unless set for the provider.")
+  static final String TIMEOUT = "sakai.profile.provider.timeout";
+
+  @Property(value = {}, label = "Timeout by provider", description = "The milliseconds to wait for a provider's sections, as providername=ms.")
+  static final String TIMEOUT_BY_PROVIDER = "sakai.profile.provider.timeout.byname";
+
+  static final int DEFAULT_FALLBACK_SIZE = 5000;
+  @Property(intValue = DEFAULT_FALLBACK_SIZE, label = "Last good values", description = "The number of provided sections whose last good value is kept.")
+  static final String FALLBACK_SIZE = "sakai.profile.provider.fallback.size";
+
+  private ThreadPoolExecutor executor;
+  private int defaultConcurrency;
+  private Map<String, Long> concurrencyByProvider;
+  private long defaultTimeout;
+  private Map<String, Long> timeoutByProvider;
+  private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+  private Map<String, Map<String, Object>> lastGood;
+  /**
+   * When the current thread submitted the first lookup of the profile it is resolving,
+   * the timeouts of that profile are counted from then. Cleared by
+   * {@link #awaitSections} and {@link #endLookups()}.
+   */
+  private final ThreadLocal<Long> lookupStart = new ThreadLocal<Long>();
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int threads = OsgiUtil.toInteger(props.get(THREADS), DEFAULT_THREADS);
+    int queueSize = OsgiUtil.toInteger(props.get(QUEUE_SIZE), DEFAULT_QUEUE_SIZE);
+    final AtomicInteger threadCount = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "profile-provider-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    modified(props);
+  }
+
+  @Modified
+  protected void modified(Map<?, ?> props) {
+    defaultConcurrency = OsgiUtil.toInteger(props.get(CONCURRENCY), DEFAULT_CONCURRENCY);
+    concurrencyByProvider = parseByProvider(props.get(CONCURRENCY_BY_PROVIDER));
+    defaultTimeout = OsgiUtil.toLong(props.get(TIMEOUT), DEFAULT_TIMEOUT);
+    timeoutByProvider = parseByProvider(props.get(TIMEOUT_BY_PROVIDER));
+    // new caps apply to permits created from now on.
+    permits.clear();
+    final int fallbackSize = OsgiUtil.toInteger(props.get(FALLBACK_SIZE),
+        DEFAULT_FALLBACK_SIZE);
+    lastGood = Collections.synchronizedMap(new LinkedHashMap<String, Map<String, Object>>(
+        16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, Map<String, Object>> eldest) {
+        return size() > fallbackSize;
+      }
+    });
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProfileProviderExecutionService#submit(java.lang.String,
+   *      java.util.concurrent.Callable)
+   */
+  public <T> Future<T> submit(String provider, final Callable<T> task) {
+    final Semaphore semaphore = getPermits(provider);
+    long now = System.currentTimeMillis();
+    long timeout = getTimeout(provider);
+    Long start = lookupStart.get();
+    if (start == null || now - start > timeout) {
+      start = now;
+      lookupStart.set(start);
+    }
+    try {
+      if (!semaphore.tryAcquire(Math.max(0L, start + timeout - now), TimeUnit.MILLISECONDS)) {
+        return failed(new RejectedExecutionException("Provider " + provider
+            + " has too many lookups running"));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return failed(e);
+    }
+    // the permit is given back once, by the lookup when it ends or by a cancel that
+    // stopped it from starting.
+    final AtomicBoolean started = new AtomicBoolean();
+    FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+      public T call() throws Exception {
+        if (!started.compareAndSet(false, true)) {
+          return null;
+        }
+        try {
+          return task.call();
+        } finally {
+          semaphore.release();
+        }
+      }
+    }) {
+      @Override
+      protected void done() {
+        if (started.compareAndSet(false, true)) {
+          semaphore.release();
+        }
+      }
+    };
+    try {
+      executor.execute(future);
+    } catch (RejectedExecutionException e) {
+      semaphore.release();
+      return failed(e);
+    }
+    return future;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProfileProviderExecutionService#awaitSections(java.util.Map)
+   */
+  public Map<String, Map<String, Object>> awaitSections(String viewer,
+      Map<String, Map<String, Future<Map<String, Object>>>> sections)
+      throws InterruptedException {
+    long start = System.currentTimeMillis();
+    Long submitted = lookupStart.get();
+    if (submitted != null) {
+      start = Math.min(start, submitted);
+    }
+    try {
+      Map<String, Map<String, Object>> resolved = new HashMap<String, Map<String, Object>>();
+      for (Entry<String, Map<String, Future<Map<String, Object>>>> p : sections.entrySet()) {
+        String provider = p.getKey();
+        long deadline = start + getTimeout(provider);
+        for (Entry<String, Future<Map<String, Object>>> section : p.getValue().entrySet()) {
+          String key = provider + ";" + viewer + ";" + section.getKey();
+          Future<Map<String, Object>> future = section.getValue();
+          Map<String, Object> value = null;
+          try {
+            value = future.get(Math.max(0L, deadline - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+            if (value != null) {
+              lastGood.put(key, value);
+            }
+          } catch (TimeoutException e) {
+            // nobody will read it, so stop it holding a thread and a permit.
+            future.cancel(true);
+            LOGGER.debug("Provider {} timed out on {}, using its last good value", provider,
+                section.getKey());
+            value = lastGood.get(key);
+          } catch (CancellationException e) {
+            LOGGER.debug("Provider {} was cancelled on {}, using its last good value",
+                provider, section.getKey());
+            value = lastGood.get(key);
+          } catch (ExecutionException e) {
+            LOGGER.debug("Provider {} failed on {}, using its last good value: {}",
+                new Object[] { provider, section.getKey(), e.getMessage() });
+            value = lastGood.get(key);
+          }
+          if (value != null) {
+            resolved.put(section.getKey(), value);
+          }
+        }
+      }
+      return resolved;
+    } finally {
+      lookupStart.remove();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.profile.ProfileProviderExecutionService#endLookups()
+   */
+  public void endLookups() {
+    lookupStart.remove();
+  }
+
+  private Semaphore getPermits(String provider) {
+    Semaphore semaphore = permits.get(provider);
+    if (semaphore == null) {
+      Long cap = concurrencyByProvider.get(provider);
+      semaphore = new Semaphore(cap == null ? defaultConcurrency : cap.intValue());
+      Semaphore existing = permits.putIfAbsent(provider, semaphore);
+      if (existing != null) {
+        semaphore = existing;
+      }
+    }
+    return semaphore;
+  }
+
+  private long getTimeout(String provider) {
+    Long timeout = timeoutByProvider.get(provider);
+    return timeout == null ? defaultTimeout : timeout;
+  }
+
+  private static <T> Future<T> failed(final Exception e) {
+    FutureTask<T> future = new FutureTask<T>(new Callable<T>() {
+      public T call() throws Exception {
+        throw e;
+      }
+    });
+    future.run();
+    return future;
+  }
+
+  private static Map<String, Long> parseByProvider(Object value) {
+    Map<String, Long> byProvider = new HashMap<String, Long>();
+    for (String setting : OsgiUtil.toStringArray(value, new String[0])) {
+      String[] kv = setting.split("=", 2);
+      if (kv.length == 2) {
+        try {
+          byProvider.put(kv[0].trim(), Long.parseLong(kv[1].trim()));
+        } catch (NumberFormatException e) {
+          LOGGER.warn("Ignoring invalid provider setting {} ", setting);
+        }
+      }
+    }
+    return byProvider;
+  }
+}
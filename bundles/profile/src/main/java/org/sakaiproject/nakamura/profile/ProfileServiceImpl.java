@@ -31,13 +31,18 @@ import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.ReferenceStrategy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
@@ -47,23 +52,27 @@ import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.profile.ProfileConstants;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
+import org.sakaiproject.nakamura.api.profile.ProfileProviderExecutionService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
 import org.sakaiproject.nakamura.api.resource.lite.LiteJsonImporter;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+import org.sakaiproject.nakamura.profile.ResolvedProfileCache.CachedProfile;
+import org.sakaiproject.nakamura.profile.ResolvedProfileCache.ProvidedSection;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -74,7 +83,7 @@ import javax.jcr.Session;
 @Component(immediate = true, metatype = true, specVersion="1.1")
 @Service
 @Reference(name = "ProfileProviders", referenceInterface = ProfileProvider.class, policy = ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, strategy = ReferenceStrategy.EVENT, bind = "bindProfileProvider", unbind = "unbindProfileProvider")
-public class ProfileServiceImpl implements ProfileService {
+public class ProfileServiceImpl implements ProfileService, EventHandler {
 
   private Map<String, ProfileProvider> providers = new ConcurrentHashMap<String, ProfileProvider>();
   private ProviderSettingsFactory providerSettingsFactory = new ProviderSettingsFactory();
@@ -84,12 +93,116 @@ public class ProfileServiceImpl implements ProfileService {
   static final String EMAIL_LOCATION = "sakai.profile.email.location";
   private String emailLocation;
 
+  static final int DEFAULT_CACHE_SIZE = 1000;
+  @Property(intValue = DEFAULT_CACHE_SIZE, label = "Resolved profile cache size", description = "The number of resolved profiles to cache, each viewer and set of group memberships has its own entry. 0 disables the cache.")
+  static final String CACHE_SIZE = "sakai.profile.cache.size";
+
+  static final long DEFAULT_CACHE_TTL = 60;
+  @Property(longValue = DEFAULT_CACHE_TTL, label = "Resolved profile TTL", description = "The most seconds a resolved profile is cached for. Updates to the profile or its owner on this server drop it sooner, access control changes and updates on other servers are seen once it expires.")
+  static final String CACHE_TTL = "sakai.profile.cache.ttl";
+
+  static final long DEFAULT_PROVIDER_TTL = 60;
+  @Property(longValue = DEFAULT_PROVIDER_TTL, label = "Provided section TTL", description = "The seconds sections from external profile providers are cached for, unless set for the provider.")
+  static final String PROVIDER_DEFAULT_TTL = "sakai.profile.cache.provider.ttl.default";
+
+  @Property(value = {}, label = "Provided section TTL by provider", description = "The seconds sections from a provider are cached for, as providername=seconds.")
+  static final String PROVIDER_TTLS = "sakai.profile.cache.provider.ttl";
+
+  @Property(propertyPrivate = true, value = {
+      "org/sakaiproject/nakamura/lite/content/ADDED",
+      "org/sakaiproject/nakamura/lite/content/UPDATED",
+      "org/sakaiproject/nakamura/lite/content/DELETE",
+      "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+      "org/sakaiproject/nakamura/lite/authorizables/DELETE",
+      SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+      SlingConstants.TOPIC_RESOURCE_REMOVED })
+  static final String TOPICS = EventConstants.EVENT_TOPIC;
+
+  /**
+   * Provider settings and their configuration live in the JCR below here.
+   */
+  private static final String PROVIDER_CONFIG_ROOT = "/var/profile";
+
+  private static final String AUTHORIZABLES_TOPIC = StoreListener.TOPIC_BASE
+      + "authorizables/";
+
+  private ResolvedProfileCache profileCache;
+  private long cacheTtl;
+  private long defaultProviderTtl;
+  private Map<String, Long> providerTtls = new HashMap<String, Long>();
+  /**
+   * Changes whenever the providers or their settings change, cached profiles resolved
+   * under an older version are not used.
+   */
+  private final AtomicLong settingsVersion = new AtomicLong();
+
   @Reference
-  private BasicUserInfoService basicUserInfoService;
+  protected BasicUserInfoService basicUserInfoService;
+
+  @Reference
+  protected ProfileProviderExecutionService executionService;
 
   @Activate @Modified
   protected void activate(Map<?, ?> props) {
     emailLocation = OsgiUtil.toString(props.get(EMAIL_LOCATION), null);
+
+    int cacheSize = OsgiUtil.toInteger(props.get(CACHE_SIZE), DEFAULT_CACHE_SIZE);
+    cacheTtl = OsgiUtil.toLong(props.get(CACHE_TTL), DEFAULT_CACHE_TTL) * 1000L;
+    defaultProviderTtl = OsgiUtil.toLong(props.get(PROVIDER_DEFAULT_TTL),
+        DEFAULT_PROVIDER_TTL) * 1000L;
+    Map<String, Long> ttls = new HashMap<String, Long>();
+    for (String ttl : OsgiUtil.toStringArray(props.get(PROVIDER_TTLS), new String[0])) {
+      String[] kv = ttl.split("=", 2);
+      if (kv.length == 2) {
+        try {
+          ttls.put(kv[0].trim(), Long.parseLong(kv[1].trim()) * 1000L);
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring invalid provider TTL {} ", ttl);
+        }
+      }
+    }
+    providerTtls = ttls;
+    profileCache = cacheSize > 0 ? new ResolvedProfileCache(cacheSize) : null;
+    settingsVersion.incrementAndGet();
+  }
+
+  /**
+   * {@inheritDoc}
+   * Drops cached profiles when their content or their owner changes, and every cached
+   * profile when the provider settings change.
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    if (event.getTopic().startsWith(AUTHORIZABLES_TOPIC)) {
+      String authorizableId = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+      ResolvedProfileCache cache = profileCache;
+      if (cache != null && authorizableId != null) {
+        cache.invalidate(LitePersonalUtils.getProfilePath(authorizableId));
+      }
+    } else if (event.getTopic().startsWith(StoreListener.TOPIC_BASE)) {
+      invalidateProfile((String) event.getProperty(StoreListener.PATH_PROPERTY));
+    } else {
+      String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+      if (path != null && path.startsWith(PROVIDER_CONFIG_ROOT)) {
+        settingsVersion.incrementAndGet();
+      }
+    }
+  }
+
+  private void invalidateProfile(String path) {
+    ResolvedProfileCache cache = profileCache;
+    if (cache == null || path == null) {
+      return;
+    }
+    path = PathUtils.toUserContentPath(path);
+    String authorizableId = PathUtils.getAuthorizableId(path);
+    if (authorizableId != null) {
+      String profilePath = LitePersonalUtils.getProfilePath(authorizableId);
+      if (path.startsWith(profilePath)) {
+        cache.invalidate(profilePath);
+      }
+    }
   }
 
   public String getEmailLocation() {
@@ -190,16 +303,110 @@ public class ProfileServiceImpl implements ProfileService {
    * @see org.sakaiproject.nakamura.api.profile.ProfileService#getProfileMap(javax.jcr.Node)
    */
   public ValueMap getResolvedProfileMap(Authorizable authorizable, Content profileContent, Session jcrSession) throws RepositoryException {
-    // Get the data from our external providers.
-    Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileContent, jcrSession);
-    Map<Content, Future<Map<String, Object>>> providedNodeData = new HashMap<Content, Future<Map<String, Object>>>();
-    for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
-      ProfileProvider pp = providers.get(e.getKey());
-      if (pp != null) {
-        providedNodeData.putAll(pp.getProvidedMap(e.getValue()));
+    String profilePath = profileContent.getPath();
+    ResolvedProfileCache cache = profileCache;
+    String viewer = cache == null ? null : getViewerKey(jcrSession);
+    if (cache == null || viewer == null) {
+      List<ProvidedSection> sections = new ArrayList<ProvidedSection>();
+      Map<String, List<ProviderSettings>> providersMap = scanForProviders(profileContent,
+          jcrSession, sections);
+      return new ValueMapDecorator(resolveProfile(profileContent, providersMap, null,
+          sections, jcrSession));
+    }
+
+    long now = System.currentTimeMillis();
+    Object lastModified = profileContent.getProperty(Content.LASTMODIFIED_FIELD);
+    long version = settingsVersion.get();
+    CachedProfile cached = cache.get(viewer, profilePath, lastModified, version, now);
+    if (cached != null && cached.isProvidedFresh(now)) {
+      return new ValueMapDecorator(cached.copyMap());
+    }
+
+    List<ProvidedSection> sections;
+    Map<String, List<ProviderSettings>> providersMap;
+    if (cached == null) {
+      sections = new ArrayList<ProvidedSection>();
+      providersMap = scanForProviders(profileContent, jcrSession, sections);
+    } else {
+      // the profile itself has not changed, only the provided sections need fetching.
+      sections = cached.getProvidedSections();
+      providersMap = getProviderSettings(profileContent, sections, jcrSession);
+    }
+    Map<String, Object> map = resolveProfile(profileContent, providersMap, cached,
+        sections, jcrSession);
+
+    long providedExpires = Long.MAX_VALUE;
+    for (ProvidedSection section : sections) {
+      providedExpires = Math.min(providedExpires, now + getProviderTtl(section.getProvider()));
+    }
+    long expires = cached == null ? now + cacheTtl : cached.getExpires();
+    cache.put(viewer, new CachedProfile(profilePath, lastModified, version, sections,
+        ResolvedProfileCache.copy(map), expires, providedExpires));
+    return new ValueMapDecorator(map);
+  }
+
+  /**
+   * What a viewer may read of a profile depends on the viewer and the groups they are in,
+   * so both are part of the key of a cached profile. The memberships are read with the
+   * viewer's session on every call, so a change on any server takes effect at once.
+   *
+   * @return the key of the viewer, or null if their memberships could not be read.
+   */
+  private String getViewerKey(Session jcrSession) {
+    if (jcrSession == null || jcrSession.getUserID() == null) {
+      return null;
+    }
+    String viewer = jcrSession.getUserID();
+    try {
+      Authorizable authorizable = StorageClientUtils.adaptToSession(jcrSession)
+          .getAuthorizableManager().findAuthorizable(viewer);
+      if (authorizable == null) {
+        return null;
+      }
+      String[] principals = authorizable.getPrincipals();
+      if (principals == null || principals.length == 0) {
+        return viewer;
+      }
+      principals = principals.clone();
+      Arrays.sort(principals);
+      StringBuilder key = new StringBuilder(viewer);
+      for (String principal : principals) {
+        key.append(',').append(principal);
       }
+      return key.toString();
+    } catch (StorageClientException e) {
+      LOG.debug("Unable to read the memberships of {}, not caching: {}", viewer,
+          e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOG.debug("Unable to read the memberships of {}, not caching: {}", viewer,
+          e.getMessage());
     }
+    return null;
+  }
+
+  /**
+   * Builds the resolved profile map, either by walking the whole profile or, when a
+   * cached copy is given, by replacing only its provided sections.
+   */
+  private Map<String, Object> resolveProfile(Content profileContent,
+      Map<String, List<ProviderSettings>> providersMap, CachedProfile cached,
+      List<ProvidedSection> sections, Session jcrSession) throws RepositoryException {
     try {
+      // wait for every provider at once, so a slow one only delays the profile once.
+      Map<String, Map<String, Object>> providedNodeData = executionService.awaitSections(
+          jcrSession == null ? null : jcrSession.getUserID(),
+          getProvidedData(providersMap));
+      if (cached != null) {
+        Map<String, Object> map = cached.copyMap();
+        for (ProvidedSection section : sections) {
+          Map<String, Object> provided = providedNodeData.get(ResolvedProfileCache
+              .getSectionPath(profileContent.getPath(), section.getRelativePath()));
+          if (provided != null) {
+            ResolvedProfileCache.putSection(map, section.getRelativePath(), provided);
+          }
+        }
+        return map;
+      }
       // Return it as a ValueMap.
       ValueMap map = new ValueMapDecorator(new HashMap<String, Object>());
       handleNode(profileContent, providedNodeData, map);
@@ -213,9 +420,65 @@ public class ProfileServiceImpl implements ProfileService {
       return map;
     } catch (InterruptedException e) {
       throw new RuntimeException(e.getMessage(),e);
-    } catch (ExecutionException e) {
-      throw new RuntimeException(e.getMessage(),e);
+    } finally {
+      // a provider that throws while submitting leaves the start of this profile behind.
+      executionService.endLookups();
+    }
+  }
+
+  /**
+   * Ask our external providers for their data, by provider name and then by the path of
+   * the profile node it replaces.
+   */
+  private Map<String, Map<String, Future<Map<String, Object>>>> getProvidedData(
+      Map<String, List<ProviderSettings>> providersMap) {
+    Map<String, Map<String, Future<Map<String, Object>>>> providedNodeData = new HashMap<String, Map<String, Future<Map<String, Object>>>>();
+    for (Entry<String, List<ProviderSettings>> e : providersMap.entrySet()) {
+      ProfileProvider pp = providers.get(e.getKey());
+      if (pp != null) {
+        Map<String, Future<Map<String, Object>>> sections = new HashMap<String, Future<Map<String, Object>>>();
+        for (Entry<Content, ? extends Future<Map<String, Object>>> provided : pp
+            .getProvidedMap(e.getValue()).entrySet()) {
+          sections.put(provided.getKey().getPath(), provided.getValue());
+        }
+        providedNodeData.put(e.getKey(), sections);
+      }
     }
+    return providedNodeData;
+  }
+
+  /**
+   * Recreates the provider settings for the sections found by an earlier scan, without
+   * walking the rest of the profile.
+   */
+  private Map<String, List<ProviderSettings>> getProviderSettings(Content profileContent,
+      List<ProvidedSection> sections, Session jcrSession) throws RepositoryException {
+    Map<String, List<ProviderSettings>> providerMap = new HashMap<String, List<ProviderSettings>>();
+    if (sections.isEmpty()) {
+      return providerMap;
+    }
+    try {
+      ContentManager contentManager = StorageClientUtils.adaptToSession(jcrSession)
+          .getContentManager();
+      for (ProvidedSection section : sections) {
+        Content sectionContent = contentManager.get(ResolvedProfileCache.getSectionPath(
+            profileContent.getPath(), section.getRelativePath()));
+        if (sectionContent != null) {
+          addProviderSettings(providerMap, providerSettingsFactory.newProviderSettings(
+              section.getRelativePath(), sectionContent, jcrSession));
+        }
+      }
+    } catch (StorageClientException e) {
+      throw new RepositoryException(e.getMessage(), e);
+    } catch (AccessDeniedException e) {
+      throw new RepositoryException(e.getMessage(), e);
+    }
+    return providerMap;
+  }
+
+  private long getProviderTtl(String provider) {
+    Long ttl = providerTtls.get(provider);
+    return ttl == null ? defaultProviderTtl : ttl;
   }
 
   /**
@@ -225,21 +488,18 @@ public class ProfileServiceImpl implements ProfileService {
    *          The node that should be merged with the external info. The entire nodetree
    *          will be checked.
    * @param baseMap
-   *          The map that contains the external information.
+   *          The map that contains the external information, keyed by node path.
    * @param map
    *          The map that should be filled.
    * @throws RepositoryException
-   * @throws InterruptedException
-   * @throws ExecutionException
    */
-  protected void handleNode(Content profileContent, Map<Content, Future<Map<String, Object>>> baseMap,
-      Map<String, Object> map) throws RepositoryException, InterruptedException,
-      ExecutionException {
+  protected void handleNode(Content profileContent, Map<String, Map<String, Object>> baseMap,
+      Map<String, Object> map) throws RepositoryException {
     // If our map contains this node, that means one of the provides had some information
     // for it.
     // We will use the provider.
     if (baseMap.containsKey(profileContent.getPath())) {
-      map.putAll(baseMap.get(profileContent.getPath()).get());
+      map.putAll(baseMap.get(profileContent.getPath()));
     } else {
 
       // The node wasn't found in the baseMap.
@@ -272,13 +532,15 @@ public class ProfileServiceImpl implements ProfileService {
    * @param profileContent
    *          The top node of a profile.
    * @param jcrSession 
+   * @param sections
+   *          filled with the external nodes found, so the scan can be reused.
    * @return
    * @throws RepositoryException
    */
-  private Map<String, List<ProviderSettings>> scanForProviders(Content profileContent, Session jcrSession)
-      throws RepositoryException {
+  private Map<String, List<ProviderSettings>> scanForProviders(Content profileContent, Session jcrSession,
+      List<ProvidedSection> sections) throws RepositoryException {
     Map<String, List<ProviderSettings>> providerMap = new HashMap<String, List<ProviderSettings>>();
-    return scanForProviders("", profileContent, providerMap, jcrSession);
+    return scanForProviders("", profileContent, providerMap, jcrSession, sections);
   }
 
   /**
@@ -286,27 +548,37 @@ public class ProfileServiceImpl implements ProfileService {
    * @param profileContent
    * @param providerMap
    * @param jcrSession 
+   * @param sections
    * @return
    * @throws RepositoryException
    */
   private Map<String, List<ProviderSettings>> scanForProviders(String path, Content profileContent,
-      Map<String, List<ProviderSettings>> providerMap, Session jcrSession) throws RepositoryException {
+      Map<String, List<ProviderSettings>> providerMap, Session jcrSession,
+      List<ProvidedSection> sections) throws RepositoryException {
     ProviderSettings settings = providerSettingsFactory.newProviderSettings(path, profileContent, jcrSession);
     if (settings == null) {
       for (Content childProfileContent : profileContent.listChildren()) {
-        scanForProviders(StorageClientUtils.newPath(path, StorageClientUtils.getObjectName(childProfileContent.getPath())), childProfileContent, providerMap, jcrSession);
+        scanForProviders(StorageClientUtils.newPath(path, StorageClientUtils.getObjectName(childProfileContent.getPath())), childProfileContent, providerMap, jcrSession, sections);
       }
     } else {
+      addProviderSettings(providerMap, settings);
+      sections.add(new ProvidedSection(path, settings.getProvider()));
+    }
+    return providerMap;
+  }
 
-      List<ProviderSettings> l = providerMap.get(settings.getProvider());
+  private void addProviderSettings(Map<String, List<ProviderSettings>> providerMap,
+      ProviderSettings settings) {
+    if (settings == null) {
+      return;
+    }
+    List<ProviderSettings> l = providerMap.get(settings.getProvider());
 
-      if (l == null) {
-        l = new ArrayList<ProviderSettings>();
-        providerMap.put(settings.getProvider(), l);
-      }
-      l.add(settings);
+    if (l == null) {
+      l = new ArrayList<ProviderSettings>();
+      providerMap.put(settings.getProvider(), l);
     }
-    return providerMap;
+    l.add(settings);
   }
 
 
@@ -316,6 +588,7 @@ public class ProfileServiceImpl implements ProfileService {
     System.err.println("Bound reference with name: " + name);
     if (name != null) {
       providers.put(name, provider);
+      settingsVersion.incrementAndGet();
     }
   }
 
@@ -325,6 +598,7 @@ public class ProfileServiceImpl implements ProfileService {
     System.err.println("Unbound reference with name: " + name);
     if (name != null) {
       providers.remove(name);
+      settingsVersion.incrementAndGet();
     }
   }
 
@@ -373,6 +647,7 @@ public class ProfileServiceImpl implements ProfileService {
       importer.importContent(contentManager, json, profilePath, replace, replaceProperties,
           removeTree, accessControlManger);
     }
+    invalidateProfile(profilePath);
   }
 
   private void processBasic(JSONObject basic, Authorizable a)
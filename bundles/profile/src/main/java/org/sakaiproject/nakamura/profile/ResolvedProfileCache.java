@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A bounded cache of resolved profile maps. An entry is only used while the profile's
+ * last modified time and the provider settings version it was resolved with still match,
+ * and until it expires. Sections supplied by external providers carry their own, usually
+ * shorter, expiry so they can be fetched again without walking the profile tree.
+ */
+class ResolvedProfileCache {
+
+  /**
+   * A profile node that is backed by an external provider, by its path relative to the
+   * profile.
+   */
+  static class ProvidedSection {
+    private final String relativePath;
+    private final String provider;
+
+    ProvidedSection(String relativePath, String provider) {
+      this.relativePath = relativePath;
+      this.provider = provider;
+    }
+
+    String getRelativePath() {
+      return relativePath;
+    }
+
+    String getProvider() {
+      return provider;
+    }
+  }
+
+  /**
+   * A resolved profile as seen by one user with one set of group memberships.
+   */
+  static class CachedProfile {
+    private final String profilePath;
+    private final Object lastModified;
+    private final long settingsVersion;
+    private final List<ProvidedSection> providedSections;
+    private final Map<String, Object> map;
+    private final long expires;
+    private final long providedExpires;
+
+    CachedProfile(String profilePath, Object lastModified, long settingsVersion,
+        List<ProvidedSection> providedSections, Map<String, Object> map, long expires,
+        long providedExpires) {
+      this.profilePath = profilePath;
+      this.lastModified = lastModified;
+      this.settingsVersion = settingsVersion;
+      this.providedSections = providedSections;
+      this.map = map;
+      this.expires = expires;
+      this.providedExpires = providedExpires;
+    }
+
+    /**
+     * @return the result of the provider scan this profile was resolved with.
+     */
+    List<ProvidedSection> getProvidedSections() {
+      return providedSections;
+    }
+
+    /**
+     * @return true if the sections from external providers may still be used.
+     */
+    boolean isProvidedFresh(long now) {
+      return now < providedExpires;
+    }
+
+    long getExpires() {
+      return expires;
+    }
+
+    /**
+     * @return a copy of the resolved map that the caller may modify.
+     */
+    Map<String, Object> copyMap() {
+      return copy(map);
+    }
+  }
+
+  private final int maxEntries;
+  private final Map<String, CachedProfile> entries;
+
+  ResolvedProfileCache(final int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, CachedProfile>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Entry<String, CachedProfile> eldest) {
+        return size() > ResolvedProfileCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @return the profile resolved for the viewer if it is still current, otherwise null.
+   */
+  synchronized CachedProfile get(String viewer, String profilePath, Object lastModified,
+      long settingsVersion, long now) {
+    String key = getKey(viewer, profilePath);
+    CachedProfile cached = entries.get(key);
+    if (cached == null) {
+      return null;
+    }
+    if (now >= cached.expires || cached.settingsVersion != settingsVersion
+        || !equal(cached.lastModified, lastModified)) {
+      entries.remove(key);
+      return null;
+    }
+    return cached;
+  }
+
+  synchronized void put(String viewer, CachedProfile profile) {
+    entries.put(getKey(viewer, profile.profilePath), profile);
+  }
+
+  /**
+   * Drop every viewer's copy of a profile.
+   */
+  synchronized void invalidate(String profilePath) {
+    Iterator<CachedProfile> i = entries.values().iterator();
+    while (i.hasNext()) {
+      if (profilePath.equals(i.next().profilePath)) {
+        i.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Replace the section at a path relative to the profile in a resolved map.
+   */
+  static void putSection(Map<String, Object> map, String relativePath,
+      Map<String, Object> section) {
+    String path = trimSlashes(relativePath);
+    if (path.length() == 0) {
+      // the whole profile is provided.
+      map.putAll(section);
+      return;
+    }
+    String[] names = path.split("/");
+    Map<String, Object> parent = map;
+    for (int i = 0; i < names.length - 1; i++) {
+      Object child = parent.get(names[i]);
+      if (!(child instanceof Map<?, ?>)) {
+        child = new ValueMapDecorator(new HashMap<String, Object>());
+        parent.put(names[i], child);
+      }
+      @SuppressWarnings("unchecked")
+      Map<String, Object> childMap = (Map<String, Object>) child;
+      parent = childMap;
+    }
+    parent.put(names[names.length - 1], new ValueMapDecorator(
+        new HashMap<String, Object>(section)));
+  }
+
+  @SuppressWarnings("unchecked")
+  static Map<String, Object> copy(Map<String, Object> map) {
+    Map<String, Object> copy = new ValueMapDecorator(new HashMap<String, Object>());
+    for (Entry<String, Object> e : map.entrySet()) {
+      if (e.getValue() instanceof Map<?, ?>) {
+        copy.put(e.getKey(), copy((Map<String, Object>) e.getValue()));
+      } else {
+        copy.put(e.getKey(), e.getValue());
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * @return the path of a section in the content store.
+   */
+  static String getSectionPath(String profilePath, String relativePath) {
+    String path = trimSlashes(relativePath);
+    return path.length() == 0 ? profilePath : profilePath + "/" + path;
+  }
+
+  private static String trimSlashes(String path) {
+    int start = 0;
+    int end = path.length();
+    while (start < end && path.charAt(start) == '/') {
+      start++;
+    }
+    while (end > start && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    return path.substring(start, end);
+  }
+
+  private static String getKey(String viewer, String profilePath) {
+    return viewer + ";" + profilePath;
+  }
+
+  private static boolean equal(Object a, Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.util.ImmediateFuture;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ProfileProviderExecutionServiceImplTest {
+
+  private ProfileProviderExecutionServiceImpl service;
+  private CountDownLatch release;
+
+  @Before
+  public void setUp() {
+    service = new ProfileProviderExecutionServiceImpl();
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(ProfileProviderExecutionServiceImpl.CONCURRENCY_BY_PROVIDER,
+        new String[] { "slow=1" });
+    props.put(ProfileProviderExecutionServiceImpl.TIMEOUT, 100L);
+    service.activate(props);
+    release = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    service.deactivate();
+  }
+
+  @Test
+  public void testProviderConcurrencyIsCapped() throws Exception {
+    Future<String> first = service.submit("slow", blocked());
+    Future<String> second = service.submit("slow", blocked());
+    try {
+      second.get();
+      fail("the second lookup should have been refused");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    // other providers are not affected.
+    assertEquals("done", service.submit("other", done()).get());
+
+    release.countDown();
+    assertEquals("done", first.get());
+    assertEquals("done", service.submit("slow", done()).get());
+  }
+
+  @Test
+  public void testSlowSectionsFallBackToLastGoodValue() throws Exception {
+    Map<String, Object> good = new HashMap<String, Object>();
+    good.put("mail", "ieb@example.com");
+    assertEquals(good, service.awaitSections("ieb", sections("a:ieb/public/authprofile/ldap",
+        new ImmediateFuture<Map<String, Object>>(good))).get(
+        "a:ieb/public/authprofile/ldap"));
+
+    Future<Map<String, Object>> slow = service.submit("slow",
+        new Callable<Map<String, Object>>() {
+          public Map<String, Object> call() throws Exception {
+            release.await();
+            return new HashMap<String, Object>();
+          }
+        });
+    long start = System.currentTimeMillis();
+    Map<String, Map<String, Object>> resolved = service.awaitSections("ieb", sections(
+        "a:ieb/public/authprofile/ldap", slow));
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    assertEquals(good, resolved.get("a:ieb/public/authprofile/ldap"));
+    assertTrue(slow.isCancelled());
+
+    // what ieb was given is not shown to another viewer.
+    assertTrue(service.awaitSections("joe", sections("a:ieb/public/authprofile/ldap", slow))
+        .isEmpty());
+
+    // with nothing to fall back on the section is left out.
+    assertTrue(service.awaitSections("ieb", sections("a:other/public/authprofile/ldap", slow))
+        .isEmpty());
+  }
+
+  @Test
+  public void testWaitsForAPermitWithinTheTimeout() throws Exception {
+    Future<String> first = service.submit("slow", blocked());
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(10);
+        } catch (InterruptedException e) {
+          // released below anyway
+        }
+        release.countDown();
+      }
+    }.start();
+    // waits for the first lookup rather than failing straight away.
+    assertEquals("done", service.submit("slow", done()).get());
+    assertEquals("done", first.get());
+  }
+
+  @Test
+  public void testTimedOutLookupsGiveBackTheirPermit() throws Exception {
+    Future<Map<String, Object>> stuck = service.submit("slow",
+        new Callable<Map<String, Object>>() {
+          public Map<String, Object> call() throws Exception {
+            // only an interrupt ends this.
+            release.await();
+            return new HashMap<String, Object>();
+          }
+        });
+    assertTrue(service.awaitSections("ieb", sections("a:ieb/public/authprofile/ldap", stuck))
+        .isEmpty());
+    assertTrue(stuck.isCancelled());
+    // the cancel interrupted the stuck lookup, so the only permit of slow is free again.
+    assertEquals("done", service.submit("slow", done()).get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testEndLookupsForgetsTheStart() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(ProfileProviderExecutionServiceImpl.CONCURRENCY_BY_PROVIDER,
+        new String[] { "slow=1" });
+    props.put(ProfileProviderExecutionServiceImpl.TIMEOUT, 1000L);
+    service.modified(props);
+    Future<String> first = service.submit("slow", blocked());
+    // the caller gives up without waiting, and resolves another profile later.
+    service.endLookups();
+    Thread.sleep(600);
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          // released below anyway
+        }
+        release.countDown();
+      }
+    }.start();
+    // a fresh deadline, so this waits for the permit instead of failing at once.
+    assertEquals("done", service.submit("slow", done()).get());
+    assertEquals("done", first.get());
+  }
+
+  private Map<String, Map<String, Future<Map<String, Object>>>> sections(String path,
+      Future<Map<String, Object>> future) {
+    Map<String, Future<Map<String, Object>>> byPath = new HashMap<String, Future<Map<String, Object>>>();
+    byPath.put(path, future);
+    Map<String, Map<String, Future<Map<String, Object>>>> sections = new HashMap<String, Map<String, Future<Map<String, Object>>>>();
+    sections.put("slow", byPath);
+    return sections;
+  }
+
+  private Callable<String> blocked() {
+    return new Callable<String>() {
+      public String call() throws Exception {
+        release.await(10, TimeUnit.SECONDS);
+        return "done";
+      }
+    };
+  }
+
+  private Callable<String> done() {
+    return new Callable<String>() {
+      public String call() {
+        return "done";
+      }
+    };
+  }
+}
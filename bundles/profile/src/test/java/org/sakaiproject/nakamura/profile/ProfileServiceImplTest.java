@@ -27,11 +27,20 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.SessionAdaptable;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
+import org.sakaiproject.nakamura.api.profile.ProfileProviderExecutionService;
 import org.sakaiproject.nakamura.api.profile.ProfileService;
 
 import java.io.Writer;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -118,6 +127,69 @@ public class ProfileServiceImplTest {
     */
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testResolvedProfileIsCachedAndInvalidated() throws Exception {
+    ProfileServiceImpl profileService = new ProfileServiceImpl();
+    profileService.executionService = Mockito.mock(ProfileProviderExecutionService.class);
+    Mockito.when(profileService.executionService.awaitSections(Mockito.anyString(),
+        Mockito.anyMap()))
+        .thenReturn(new HashMap<String, Map<String, Object>>());
+    profileService.activate(new HashMap<String, Object>());
+
+    Authorizable ieb = Mockito.mock(Authorizable.class);
+    Mockito.when(ieb.getPrincipals()).thenReturn(new String[] { "g-course101" });
+    AuthorizableManager authorizableManager = Mockito.mock(AuthorizableManager.class);
+    Mockito.when(authorizableManager.findAuthorizable("ieb")).thenReturn(ieb);
+    org.sakaiproject.nakamura.api.lite.Session sparseSession = Mockito
+        .mock(org.sakaiproject.nakamura.api.lite.Session.class);
+    Mockito.when(sparseSession.getAuthorizableManager()).thenReturn(authorizableManager);
+    Session jcrSession = Mockito.mock(Session.class, Mockito.withSettings()
+        .extraInterfaces(SessionAdaptable.class));
+    Mockito.when(((SessionAdaptable) jcrSession).getSession()).thenReturn(sparseSession);
+    Mockito.when(jcrSession.getUserID()).thenReturn("ieb");
+
+    Content profile = Mockito.mock(Content.class);
+    Mockito.when(profile.getPath()).thenReturn("a:ieb/public/authprofile");
+    Mockito.when(profile.getProperty(Content.LASTMODIFIED_FIELD)).thenReturn(1L);
+    Mockito.when(profile.getProperties()).thenReturn(
+        Collections.singletonMap("name", (Object) "Ian"));
+    Mockito.when(profile.listChildren()).thenReturn(Collections.<Content> emptyList());
+
+    Assert.assertEquals("Ian", profileService.getResolvedProfileMap(ieb, profile, jcrSession)
+        .get("name"));
+    Assert.assertEquals("Ian", profileService.getResolvedProfileMap(ieb, profile, jcrSession)
+        .get("name"));
+    // the second call was served from the cache.
+    Mockito.verify(profile, Mockito.times(1)).getProperties();
+
+    // a section of the profile changed
+    profileService.handleEvent(newEvent("org/sakaiproject/nakamura/lite/content/UPDATED",
+        "a:ieb/public/authprofile/basic"));
+    profileService.getResolvedProfileMap(ieb, profile, jcrSession);
+    Mockito.verify(profile, Mockito.times(2)).getProperties();
+
+    // the viewer joined a group, which may let them read more of the profile
+    Mockito.when(ieb.getPrincipals()).thenReturn(
+        new String[] { "g-course101", "g-course102" });
+    profileService.getResolvedProfileMap(ieb, profile, jcrSession);
+    Mockito.verify(profile, Mockito.times(3)).getProperties();
+    profileService.getResolvedProfileMap(ieb, profile, jcrSession);
+    Mockito.verify(profile, Mockito.times(3)).getProperties();
+
+    // the owner of the profile changed
+    profileService.handleEvent(newEvent(
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED", "ieb"));
+    profileService.getResolvedProfileMap(ieb, profile, jcrSession);
+    Mockito.verify(profile, Mockito.times(4)).getProperties();
+  }
+
+  private Event newEvent(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, path);
+    return new Event(topic, properties);
+  }
+
   /**
    * @return
    */
@@ -0,0 +1,122 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.profile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.profile.ResolvedProfileCache.CachedProfile;
+import org.sakaiproject.nakamura.profile.ResolvedProfileCache.ProvidedSection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ResolvedProfileCacheTest {
+
+  private static final String PROFILE = "a:ieb/public/authprofile";
+
+  @Test
+  public void testEntryMustMatchLastModifiedAndSettings() {
+    ResolvedProfileCache cache = new ResolvedProfileCache(10);
+    cache.put("viewer", newProfile(1L, 1L, 1000L, 1000L));
+
+    assertNotNull(cache.get("viewer", PROFILE, 1L, 1L, 0L));
+    assertNull(cache.get("someoneelse", PROFILE, 1L, 1L, 0L));
+    assertNull(cache.get("viewer", PROFILE, 2L, 1L, 0L));
+    // the mismatch dropped the entry.
+    assertNull(cache.get("viewer", PROFILE, 1L, 1L, 0L));
+
+    cache.put("viewer", newProfile(1L, 1L, 1000L, 1000L));
+    assertNull(cache.get("viewer", PROFILE, 1L, 2L, 0L));
+
+    cache.put("viewer", newProfile(1L, 1L, 1000L, 1000L));
+    assertNull(cache.get("viewer", PROFILE, 1L, 1L, 1000L));
+  }
+
+  @Test
+  public void testProvidedSectionsExpireFirst() {
+    ResolvedProfileCache cache = new ResolvedProfileCache(10);
+    cache.put("viewer", newProfile(1L, 1L, 1000L, 100L));
+
+    CachedProfile cached = cache.get("viewer", PROFILE, 1L, 1L, 500L);
+    assertNotNull(cached);
+    assertFalse(cached.isProvidedFresh(500L));
+    assertTrue(cached.isProvidedFresh(50L));
+    assertEquals("/ldap", cached.getProvidedSections().get(0).getRelativePath());
+  }
+
+  @Test
+  public void testInvalidateDropsEveryViewer() {
+    ResolvedProfileCache cache = new ResolvedProfileCache(10);
+    cache.put("viewer", newProfile(1L, 1L, 1000L, 1000L));
+    cache.put("other", newProfile(1L, 1L, 1000L, 1000L));
+    assertEquals(2, cache.size());
+
+    cache.invalidate(PROFILE);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testBounded() {
+    ResolvedProfileCache cache = new ResolvedProfileCache(2);
+    cache.put("a", newProfile(1L, 1L, 1000L, 1000L));
+    cache.put("b", newProfile(1L, 1L, 1000L, 1000L));
+    cache.put("c", newProfile(1L, 1L, 1000L, 1000L));
+    assertEquals(2, cache.size());
+    assertNull(cache.get("a", PROFILE, 1L, 1L, 0L));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testCopiesAreIndependentAndSectionsReplaced() {
+    ResolvedProfileCache cache = new ResolvedProfileCache(10);
+    cache.put("viewer", newProfile(1L, 1L, 1000L, 1000L));
+    CachedProfile cached = cache.get("viewer", PROFILE, 1L, 1L, 0L);
+
+    Map<String, Object> map = cached.copyMap();
+    ((Map<String, Object>) map.get("ldap")).put("mail", "changed");
+    assertEquals("old@example.com", ((Map<String, Object>) cached.copyMap().get("ldap"))
+        .get("mail"));
+
+    Map<String, Object> section = new HashMap<String, Object>();
+    section.put("mail", "new@example.com");
+    ResolvedProfileCache.putSection(map, "/ldap", section);
+    assertEquals("new@example.com", ((Map<String, Object>) map.get("ldap")).get("mail"));
+    assertEquals("ieb", map.get("userid"));
+    assertEquals(PROFILE + "/ldap", ResolvedProfileCache.getSectionPath(PROFILE, "/ldap"));
+  }
+
+  private CachedProfile newProfile(long lastModified, long settingsVersion, long expires,
+      long providedExpires) {
+    List<ProvidedSection> sections = new ArrayList<ProvidedSection>();
+    sections.add(new ProvidedSection("/ldap", "ldap"));
+    Map<String, Object> ldap = new HashMap<String, Object>();
+    ldap.put("mail", "old@example.com");
+    Map<String, Object> map = new HashMap<String, Object>();
+    map.put("userid", "ieb");
+    map.put("ldap", ldap);
+    return new CachedProfile(PROFILE, lastModified, settingsVersion, sections,
+        ResolvedProfileCache.copy(map), expires, providedExpires);
+  }
+}
@@ -51,6 +51,13 @@ public interface ProxyClientService {
    */
   public static final String SAKAI_PROXY_REQUEST_TEMPLATE = "sakai:proxy-request-template";
 
+  /**
+   * Specification property: true if GET responses from this end point are the same for
+   * every user and may be kept in the shared response cache. Defaults to false. Ignored
+   * when the node has a pre processor, or the request carries credentials or cookies.
+   */
+  public static final String SAKAI_PROXY_CACHEABLE = "sakai:proxy-cacheable";
+
   /**
    * A multi value property containing a list of headers to add to the request.
    */
@@ -20,10 +20,12 @@ package org.sakaiproject.nakamura.proxy;
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.httpclient.Credentials;
 import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
 import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
@@ -45,6 +47,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -57,11 +60,14 @@ import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
 import org.sakaiproject.nakamura.api.proxy.ProxyMethod;
 import org.sakaiproject.nakamura.api.proxy.ProxyNodeSource;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
+import org.sakaiproject.nakamura.api.proxy.ProxyPreProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 import org.sakaiproject.nakamura.proxy.velocity.JcrResourceLoader;
 import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -88,9 +94,11 @@ import javax.servlet.http.HttpServletResponse;
  *
  */
 @Service
-@Component(immediate = true)
+@Component(immediate = true, metatype = true)
 public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSource {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyClientServiceImpl.class);
+
   /**
    *
    */
@@ -114,6 +122,29 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  private static final int DEFAULT_MAX_CONNECTIONS = 200;
+  @Property(intValue = DEFAULT_MAX_CONNECTIONS, label = "Maximum connections", description = "The maximum number of connections open to all proxied hosts.")
+  static final String MAX_CONNECTIONS = "http.max.connections";
+
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+  @Property(intValue = DEFAULT_MAX_CONNECTIONS_PER_HOST, label = "Maximum connections per host", description = "The maximum number of connections open to any one proxied host.")
+  static final String MAX_CONNECTIONS_PER_HOST = "http.max.connections.per.host";
+
+  @Property(value = { "" }, cardinality = 2147483647, label = "Host connection limits", description = "Maximum connections for particular hosts, overriding the per host maximum, eg http://feeds.example.com:80=50")
+  static final String HOST_MAX_CONNECTIONS = "http.host.max.connections";
+
+  private static final long DEFAULT_IDLE_TIMEOUT = 60000L;
+  @Property(longValue = DEFAULT_IDLE_TIMEOUT, label = "Idle connection timeout", description = "Pooled connections idle for longer than this, in ms, are closed.")
+  static final String IDLE_TIMEOUT = "http.idle.timeout";
+
+  private static final long DEFAULT_CACHE_MAX_BYTES = 16L * 1024L * 1024L;
+  @Property(longValue = DEFAULT_CACHE_MAX_BYTES, label = "Response cache size", description = "The number of bytes of GET responses to cache for proxy nodes marked sakai:proxy-cacheable, 0 disables the cache.")
+  static final String CACHE_MAX_BYTES = "http.cache.max.bytes";
+
+  private static final int DEFAULT_CACHE_MAX_ENTRY_BYTES = 1024 * 1024;
+  @Property(intValue = DEFAULT_CACHE_MAX_ENTRY_BYTES, label = "Largest cached response", description = "Responses with a body larger than this many bytes are not cached.")
+  static final String CACHE_MAX_ENTRY_BYTES = "http.cache.max.entry.bytes";
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -130,6 +161,17 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    */
   private HttpClient httpClient;
 
+  /**
+   * Closes connections that have been idle in the pool for too long, before the far end
+   * drops them.
+   */
+  private IdleConnectionTimeoutThread idleConnectionTimeoutThread;
+
+  /**
+   * The shared cache of GET responses, null if caching is disabled.
+   */
+  private ProxyResponseCache responseCache;
+
   /**
    * A Thread local holder to bind the resource being processed to this thread.
    */
@@ -187,9 +229,37 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
     httpClientConnectionManager = new MultiThreadedHttpConnectionManager();
     HttpConnectionManagerParams params = new HttpConnectionManagerParams();
-    // could set a whole load of connection properties
+    params.setMaxTotalConnections(OsgiUtil.toInteger(configProperties
+        .get(MAX_CONNECTIONS), DEFAULT_MAX_CONNECTIONS));
+    params.setDefaultMaxConnectionsPerHost(OsgiUtil.toInteger(configProperties
+        .get(MAX_CONNECTIONS_PER_HOST), DEFAULT_MAX_CONNECTIONS_PER_HOST));
+    for (String hostMax : OsgiUtil.toStringArray(configProperties
+        .get(HOST_MAX_CONNECTIONS), new String[0])) {
+      setHostMaxConnections(params, hostMax);
+    }
+    // check pooled connections have not been closed by the far end before reusing them.
+    params.setStaleCheckingEnabled(true);
     httpClientConnectionManager.setParams(params);
 
+    long idleTimeout = OsgiUtil.toLong(configProperties.get(IDLE_TIMEOUT),
+        DEFAULT_IDLE_TIMEOUT);
+    if (idleTimeout > 0) {
+      idleConnectionTimeoutThread = new IdleConnectionTimeoutThread();
+      idleConnectionTimeoutThread.addConnectionManager(httpClientConnectionManager);
+      idleConnectionTimeoutThread.setConnectionTimeout(idleTimeout);
+      idleConnectionTimeoutThread.setTimeoutInterval(Math.max(1000L, idleTimeout / 2));
+      idleConnectionTimeoutThread.start();
+    }
+
+    long cacheMaxBytes = OsgiUtil.toLong(configProperties.get(CACHE_MAX_BYTES),
+        DEFAULT_CACHE_MAX_BYTES);
+    if (cacheMaxBytes > 0) {
+      responseCache = new ProxyResponseCache(cacheMaxBytes, OsgiUtil.toInteger(
+          configProperties.get(CACHE_MAX_ENTRY_BYTES), DEFAULT_CACHE_MAX_ENTRY_BYTES));
+    } else {
+      responseCache = null;
+    }
+
     httpClient = new HttpClient(httpClientConnectionManager);
 
     // allow communications via a proxy server if command line
@@ -221,9 +291,40 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
    * @throws Exception
    */
   protected void deactivate(ComponentContext ctx) throws Exception {
+    if (idleConnectionTimeoutThread != null) {
+      idleConnectionTimeoutThread.shutdown();
+      idleConnectionTimeoutThread = null;
+    }
     httpClientConnectionManager.shutdown();
   }
 
+  /**
+   * @param hostMax
+   *          a host limit of the form protocol://host:port=max
+   */
+  private void setHostMaxConnections(HttpConnectionManagerParams params, String hostMax) {
+    int split = hostMax.lastIndexOf('=');
+    if (split < 0) {
+      if (hostMax.trim().length() > 0) {
+        LOGGER.warn("Ignoring host connection limit {}, expected protocol://host:port=max",
+            hostMax);
+      }
+      return;
+    }
+    try {
+      URL url = new URL(hostMax.substring(0, split).trim());
+      int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+      HostConfiguration hostConfiguration = new HostConfiguration();
+      hostConfiguration.setHost(url.getHost(), port, url.getProtocol());
+      params.setMaxConnectionsPerHost(hostConfiguration, Integer.parseInt(hostMax
+          .substring(split + 1).trim()));
+    } catch (MalformedURLException e) {
+      LOGGER.warn("Ignoring host connection limit {}, {} ", hostMax, e.getMessage());
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Ignoring host connection limit {}, {} ", hostMax, e.getMessage());
+    }
+  }
+
   /**
    * Executes a HTTP call using a path in the JCR to point to a template and a map of
    * properties to populate that template with. An example might be a SOAP call.
@@ -330,8 +431,22 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
         HttpMethod method = null;
+        Map<String, String> requestHeaders = null;
+        ProxyResponseCache.CacheEntry cached = null;
         switch (proxyMethod) {
         case GET:
+          if (responseCache != null && isCacheable(node)) {
+            requestHeaders = getRequestHeaders(node, headers);
+            if (ProxyResponseCache.isCacheableRequest(requestHeaders)) {
+              cached = responseCache.get(endpointURL, requestHeaders);
+              if (cached != null && cached.isFresh()
+                  && !ProxyResponseCache.requiresRevalidation(requestHeaders)) {
+                return cached.toResponse();
+              }
+            } else {
+              requestHeaders = null;
+            }
+          }
           if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
             long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
             method = new HeadMethod(endpointURL);
@@ -453,12 +568,26 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
 
+        if (cached != null) {
+          cached.addConditionalHeaders(method);
+        }
+
         int result = httpClient.executeMethod(method);
         if (externalAuthenticatingProxy && result == 407) {
           method.releaseConnection();
           method.setDoAuthentication(true);
           result = httpClient.executeMethod(method);
         }
+        if (requestHeaders != null) {
+          if (result == HttpServletResponse.SC_NOT_MODIFIED && cached != null) {
+            return responseCache.revalidated(cached, method);
+          }
+          ProxyResponse stored = responseCache.store(endpointURL, requestHeaders, result,
+              method);
+          if (stored != null) {
+            return stored;
+          }
+        }
         if (result == 302 && method instanceof EntityEnclosingMethod) {
           // handle redirects on post and put
           String url = method.getResponseHeader("Location").getValue();
@@ -527,6 +656,30 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
   }
 
+  /**
+   * Responses are only shared between users when the proxy node says they may be. A pre
+   * processor may add headers for the current user, so its nodes are never cached.
+   */
+  private boolean isCacheable(Node node) throws RepositoryException {
+    return node.hasProperty(SAKAI_PROXY_CACHEABLE)
+        && node.getProperty(SAKAI_PROXY_CACHEABLE).getBoolean()
+        && !node.hasProperty(ProxyPreProcessor.SAKAI_PREPROCESSOR);
+  }
+
+  /**
+   * @return the headers a request will be sent with, the headers passed in plus those
+   *         configured on the proxy node.
+   */
+  private Map<String, String> getRequestHeaders(Node node, Map<String, String> headers)
+      throws RepositoryException {
+    Map<String, String> requestHeaders = new HashMap<String, String>(headers);
+    for (Value v : JcrUtils.getValues(node, SAKAI_PROXY_HEADER)) {
+      String[] keyVal = StringUtils.split(v.getString(), ':', 2);
+      requestHeaders.put(keyVal[0].trim(), keyVal[1].trim());
+    }
+    return requestHeaders;
+  }
+
   public HttpConnectionManager getHttpConnectionManager() {
     return httpClientConnectionManager;
   }
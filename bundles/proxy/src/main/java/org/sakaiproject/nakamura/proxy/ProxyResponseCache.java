@@ -0,0 +1,469 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * A shared cache of GET responses from proxied endpoints, bounded by the number of bytes
+ * it holds. Only requests that carry nothing identifying the user are answered from or
+ * stored in the cache. Responses are stored and reused following the shared cache rules
+ * of HTTP/1.1:
+ * <code>Cache-Control</code> and <code>Expires</code> decide how long an entry is fresh,
+ * <code>Vary</code> decides which request headers form part of the key, and stale
+ * entries with an <code>ETag</code> or <code>Last-Modified</code> are revalidated with a
+ * conditional request rather than fetched again.
+ */
+class ProxyResponseCache {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ProxyResponseCache.class);
+
+  /**
+   * When a response only has a Last-Modified date it is considered fresh for a tenth of
+   * its age, but never longer than this.
+   */
+  private static final long MAX_HEURISTIC_LIFETIME = 24L * 60L * 60L * 1000L;
+
+  /**
+   * Request headers that make a request conditional or partial, the response to those
+   * is meant for the client's own cache.
+   */
+  private static final String[] CONDITIONAL_HEADERS = new String[] { "If-None-Match",
+      "If-Modified-Since", "If-Match", "If-Unmodified-Since", "If-Range", "Range" };
+
+  /**
+   * Request headers that identify the user, the upstream may answer each user
+   * differently without saying so in Vary or Cache-Control.
+   */
+  private static final String[] USER_HEADERS = new String[] { "Authorization", "Cookie",
+      TrustedLoginTokenProxyPreProcessor.SECURE_TOKEN_HEADER_NAME };
+
+  /**
+   * Connection level headers that describe the origin connection, not the response.
+   */
+  private static final String[] HOP_BY_HOP_HEADERS = new String[] { "Connection",
+      "Keep-Alive", "Transfer-Encoding", "Proxy-Authenticate", "Trailer", "Upgrade" };
+
+  /**
+   * A cached response.
+   */
+  static class CacheEntry {
+    private final String url;
+    private final String key;
+    private final byte[] body;
+    private final String charset;
+    private final int size;
+    private volatile Map<String, String[]> headers;
+    private volatile long expires;
+    private volatile String etag;
+    private volatile String lastModified;
+
+    CacheEntry(String url, String key, Map<String, String[]> headers, byte[] body,
+        String charset) {
+      this.url = url;
+      this.key = key;
+      this.body = body;
+      this.charset = charset;
+      int headerSize = 0;
+      for (Entry<String, String[]> h : headers.entrySet()) {
+        for (String v : h.getValue()) {
+          headerSize += h.getKey().length() + v.length();
+        }
+      }
+      // strings are 2 bytes a character, plus a rough allowance for the objects.
+      this.size = body.length + 2 * (headerSize + key.length()) + 256;
+      setHeaders(headers);
+    }
+
+    private void setHeaders(Map<String, String[]> headers) {
+      this.headers = headers;
+      this.etag = getFirst(headers, "ETag");
+      this.lastModified = getFirst(headers, "Last-Modified");
+    }
+
+    boolean isFresh() {
+      return System.currentTimeMillis() < expires;
+    }
+
+    /**
+     * Make a request conditional on this entry having changed.
+     */
+    void addConditionalHeaders(HttpMethod method) {
+      if (etag != null) {
+        method.setRequestHeader("If-None-Match", etag);
+      }
+      if (lastModified != null) {
+        method.setRequestHeader("If-Modified-Since", lastModified);
+      }
+    }
+
+    ProxyResponse toResponse() {
+      return new CachedProxyResponse(200, new HashMap<String, String[]>(headers), body,
+          charset);
+    }
+  }
+
+  private final long maxBytes;
+  private final int maxEntryBytes;
+  private long bytes;
+  private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<String, CacheEntry>(
+      16, 0.75f, true);
+  /**
+   * The names of the request headers each URL varies on, as given by the last response
+   * stored for it.
+   */
+  private final Map<String, String[]> varyByUrl = new HashMap<String, String[]>();
+
+  /**
+   * @param maxBytes
+   *          the most the cache will hold.
+   * @param maxEntryBytes
+   *          the largest response body that will be cached.
+   */
+  ProxyResponseCache(long maxBytes, int maxEntryBytes) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+  }
+
+  /**
+   * @return true if the cache may be used to answer a request with these headers.
+   */
+  static boolean isCacheableRequest(Map<String, String> requestHeaders) {
+    for (String name : CONDITIONAL_HEADERS) {
+      if (getHeader(requestHeaders, name) != null) {
+        return false;
+      }
+    }
+    for (String name : USER_HEADERS) {
+      if (getHeader(requestHeaders, name) != null) {
+        return false;
+      }
+    }
+    return !getDirectives(getHeader(requestHeaders, "Cache-Control")).containsKey(
+        "no-store");
+  }
+
+  /**
+   * @return true if the request insists on an entry being revalidated before it is used,
+   *         which is what browsers send on a reload.
+   */
+  static boolean requiresRevalidation(Map<String, String> requestHeaders) {
+    Map<String, String> directives = getDirectives(getHeader(requestHeaders,
+        "Cache-Control"));
+    String pragma = getHeader(requestHeaders, "Pragma");
+    return directives.containsKey("no-cache") || "0".equals(directives.get("max-age"))
+        || (pragma != null && pragma.toLowerCase().contains("no-cache"));
+  }
+
+  /**
+   * @return the entry for the url and the request headers it varies on, fresh or stale,
+   *         or null if there is none.
+   */
+  synchronized CacheEntry get(String url, Map<String, String> requestHeaders) {
+    String[] vary = varyByUrl.get(url);
+    if (vary == null || !isCacheableRequest(requestHeaders)) {
+      return null;
+    }
+    return entries.get(getKey(url, vary, requestHeaders));
+  }
+
+  /**
+   * Store a response if it may be cached. The response body is read when it is stored,
+   * so if this returns a response the caller should use it in place of the method.
+   *
+   * @return the response to hand back to the caller, or null if the response was not
+   *         cached and has not been read.
+   */
+  ProxyResponse store(String url, Map<String, String> requestHeaders, int result,
+      HttpMethod method) throws IOException {
+    if (result != 200 || !isCacheableRequest(requestHeaders)) {
+      return null;
+    }
+    long lifetime = getLifetime(method);
+    if (lifetime < 0) {
+      return null;
+    }
+    Header contentLength = method.getResponseHeader("Content-Length");
+    if (contentLength != null) {
+      try {
+        if (Long.parseLong(contentLength.getValue().trim()) > maxEntryBytes) {
+          return null;
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    Map<String, String[]> headers = getCacheHeaders(result, method);
+    String[] vary = getVary(method);
+
+    byte[] body = new byte[0];
+    InputStream in = method.getResponseBodyAsStream();
+    if (in != null) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = in.read(buffer, 0, Math.min(buffer.length, maxEntryBytes + 1
+          - baos.size()))) > 0) {
+        baos.write(buffer, 0, n);
+        if (baos.size() > maxEntryBytes) {
+          // too big to cache, hand back what has been read followed by the rest.
+          return new ProxyResponseImpl(result, method, new SequenceInputStream(
+              new ByteArrayInputStream(baos.toByteArray()), in));
+        }
+      }
+      body = baos.toByteArray();
+    }
+    String charset = "ISO-8859-1";
+    if (method instanceof HttpMethodBase) {
+      charset = ((HttpMethodBase) method).getResponseCharSet();
+    }
+    method.releaseConnection();
+
+    CacheEntry entry = new CacheEntry(url, getKey(url, vary, requestHeaders), headers,
+        body, charset);
+    entry.expires = System.currentTimeMillis() + lifetime;
+    put(entry, vary);
+    return entry.toResponse();
+  }
+
+  /**
+   * Refresh an entry from a 304 Not Modified response to its revalidation.
+   *
+   * @return the refreshed response.
+   */
+  ProxyResponse revalidated(CacheEntry entry, HttpMethod method) {
+    Map<String, String[]> headers = new HashMap<String, String[]>(entry.headers);
+    Map<String, String[]> updated = getCacheHeaders(200, method);
+    // the body has not changed, so neither has its length.
+    updated.remove("Content-Length");
+    headers.putAll(updated);
+    long lifetime = getLifetime(method);
+    entry.setHeaders(headers);
+    entry.expires = System.currentTimeMillis() + Math.max(0L, lifetime);
+    method.releaseConnection();
+    return entry.toResponse();
+  }
+
+  synchronized long getSize() {
+    return bytes;
+  }
+
+  synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  private synchronized void put(CacheEntry entry, String[] vary) {
+    if (entry.size > maxBytes) {
+      return;
+    }
+    CacheEntry old = entries.put(entry.key, entry);
+    if (old != null) {
+      bytes -= old.size;
+    }
+    bytes += entry.size;
+    varyByUrl.put(entry.url, vary);
+    Iterator<CacheEntry> lru = entries.values().iterator();
+    while (bytes > maxBytes && lru.hasNext()) {
+      CacheEntry eldest = lru.next();
+      lru.remove();
+      bytes -= eldest.size;
+      if (!eldest.url.equals(entry.url)) {
+        varyByUrl.remove(eldest.url);
+      }
+    }
+  }
+
+  /**
+   * Work out how long a response may be served from the cache without revalidation.
+   *
+   * @return the lifetime in ms, which is 0 if the response must always be revalidated,
+   *         or -1 if the response must not be stored.
+   */
+  private long getLifetime(HttpMethod method) {
+    Map<String, String> directives = getDirectives(getFirst(method, "Cache-Control"));
+    if (directives.containsKey("no-store") || directives.containsKey("private")) {
+      return -1L;
+    }
+    if (method.getResponseHeader("Set-Cookie") != null) {
+      return -1L;
+    }
+    String vary = getFirst(method, "Vary");
+    if (vary != null && vary.trim().equals("*")) {
+      return -1L;
+    }
+
+    boolean validator = method.getResponseHeader("ETag") != null
+        || method.getResponseHeader("Last-Modified") != null;
+    if (directives.containsKey("no-cache")) {
+      return validator ? 0L : -1L;
+    }
+
+    long now = System.currentTimeMillis();
+    long date = getDate(method, "Date", now);
+    long lifetime = 0L;
+    if (directives.containsKey("s-maxage")) {
+      lifetime = getSeconds(directives.get("s-maxage"));
+    } else if (directives.containsKey("max-age")) {
+      lifetime = getSeconds(directives.get("max-age"));
+    } else if (method.getResponseHeader("Expires") != null) {
+      // an invalid Expires, such as 0, means already expired.
+      lifetime = getDate(method, "Expires", date) - date;
+    } else if (method.getResponseHeader("Last-Modified") != null) {
+      long lastModified = getDate(method, "Last-Modified", date);
+      lifetime = Math.min(MAX_HEURISTIC_LIFETIME, (date - lastModified) / 10L);
+    }
+    String age = getFirst(method, "Age");
+    if (age != null) {
+      lifetime -= getSeconds(age);
+    }
+    lifetime = Math.max(0L, lifetime);
+    if (lifetime == 0L && !validator) {
+      return -1L;
+    }
+    return lifetime;
+  }
+
+  /**
+   * The headers of a response as they should be handed to callers.
+   */
+  private Map<String, String[]> getCacheHeaders(int result, HttpMethod method) {
+    Map<String, String[]> headers = new HashMap<String, String[]>(new ProxyResponseImpl(
+        result, method).getResponseHeaders());
+    for (String name : HOP_BY_HOP_HEADERS) {
+      for (Iterator<String> i = headers.keySet().iterator(); i.hasNext();) {
+        if (i.next().equalsIgnoreCase(name)) {
+          i.remove();
+        }
+      }
+    }
+    return headers;
+  }
+
+  private String[] getVary(HttpMethod method) {
+    Header[] varyHeaders = method.getResponseHeaders("Vary");
+    StringBuilder names = new StringBuilder();
+    for (Header h : varyHeaders) {
+      names.append(h.getValue()).append(',');
+    }
+    String[] vary = names.toString().split(",");
+    int n = 0;
+    for (String name : vary) {
+      if (name.trim().length() > 0) {
+        vary[n++] = name.trim().toLowerCase();
+      }
+    }
+    String[] result = new String[n];
+    System.arraycopy(vary, 0, result, 0, n);
+    Arrays.sort(result);
+    return result;
+  }
+
+  private static String getKey(String url, String[] vary, Map<String, String> requestHeaders) {
+    if (vary.length == 0) {
+      return url;
+    }
+    StringBuilder key = new StringBuilder(url);
+    for (String name : vary) {
+      String value = getHeader(requestHeaders, name);
+      key.append('\n').append(name).append(':').append(value == null ? "" : value);
+    }
+    return key.toString();
+  }
+
+  private static long getSeconds(String value) {
+    try {
+      return Long.parseLong(value.trim()) * 1000L;
+    } catch (Exception e) {
+      return 0L;
+    }
+  }
+
+  private static long getDate(HttpMethod method, String name, long defaultValue) {
+    String value = getFirst(method, name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return DateUtil.parseDate(value).getTime();
+    } catch (DateParseException e) {
+      LOGGER.debug("Invalid {} header {} ", name, value);
+      return "Expires".equals(name) ? 0L : defaultValue;
+    }
+  }
+
+  private static Map<String, String> getDirectives(String cacheControl) {
+    Map<String, String> directives = new HashMap<String, String>();
+    if (cacheControl != null) {
+      for (String directive : cacheControl.split(",")) {
+        String[] nameValue = directive.split("=", 2);
+        String name = nameValue[0].trim().toLowerCase();
+        if (name.length() > 0) {
+          String value = nameValue.length > 1 ? nameValue[1].trim().replace("\"", "")
+              : null;
+          directives.put(name, value);
+        }
+      }
+    }
+    return directives;
+  }
+
+  private static String getFirst(HttpMethod method, String name) {
+    Header header = method.getResponseHeader(name);
+    return header == null ? null : header.getValue();
+  }
+
+  private static String getFirst(Map<String, String[]> headers, String name) {
+    for (Entry<String, String[]> h : headers.entrySet()) {
+      if (h.getKey().equalsIgnoreCase(name) && h.getValue().length > 0) {
+        return h.getValue()[0];
+      }
+    }
+    return null;
+  }
+
+  private static String getHeader(Map<String, String> headers, String name) {
+    String value = headers.get(name);
+    if (value == null) {
+      for (Entry<String, String> h : headers.entrySet()) {
+        if (h.getKey().equalsIgnoreCase(name)) {
+          return h.getValue();
+        }
+      }
+    }
+    return value;
+  }
+}
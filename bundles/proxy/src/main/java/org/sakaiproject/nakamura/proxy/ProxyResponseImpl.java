@@ -19,8 +19,10 @@ package org.sakaiproject.nakamura.proxy;
 
 import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpMethodBase;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.HashMap;
@@ -35,6 +37,7 @@ public class ProxyResponseImpl implements ProxyResponse {
   private HttpMethod method;
   private Map<String, String[]> headers = new HashMap<String, String[]>();
   private String cause;
+  private InputStream body;
 
   /**
    * @param result
@@ -82,6 +85,18 @@ public class ProxyResponseImpl implements ProxyResponse {
     this.cause = cause;
   }
 
+  /**
+   * @param result
+   * @param method
+   * @param body
+   *          the body of the response, where some of it has already been read from the
+   *          method.
+   */
+  ProxyResponseImpl(int result, HttpMethod method, InputStream body) {
+    this(result, method);
+    this.body = body;
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResultCode()
@@ -103,6 +118,15 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBody()
    */
   public byte[] getResponseBody() throws IOException {
+    if (body != null) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int n;
+      while ((n = body.read(buffer)) > 0) {
+        baos.write(buffer, 0, n);
+      }
+      return baos.toByteArray();
+    }
     return method.getResponseBody();
   }
 
@@ -111,6 +135,9 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsInputStream()
    */
   public InputStream getResponseBodyAsInputStream() throws IOException {
+    if (body != null) {
+      return body;
+    }
     return method.getResponseBodyAsStream();
   }
 
@@ -119,6 +146,13 @@ public class ProxyResponseImpl implements ProxyResponse {
    * @see org.sakaiproject.nakamura.api.proxy.ProxyResponse#getResponseBodyAsString()
    */
   public String getResponseBodyAsString() throws IOException {
+    if (body != null) {
+      String charset = "ISO-8859-1";
+      if (method instanceof HttpMethodBase) {
+        charset = ((HttpMethodBase) method).getResponseCharSet();
+      }
+      return new String(getResponseBody(), charset);
+    }
     return method.getResponseBodyAsString();
   }
 
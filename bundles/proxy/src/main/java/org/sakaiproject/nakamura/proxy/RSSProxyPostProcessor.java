@@ -35,9 +35,11 @@ import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -67,19 +69,27 @@ import javax.xml.stream.events.XMLEvent;
     @Property(name = "service.vendor", value = "The Sakai foundation"),
     @Property(name = "service.description", value = "Post processor who checks if requests are valid RSS requests."),
     @Property(name = RSSProxyPostProcessor.EVENTS_THRESHOLD, intValue = RSSProxyPostProcessor.DEFAULT_EVENTS_THRESHOLD),
-    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH)
+    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH),
+    @Property(name = RSSProxyPostProcessor.STREAMING, boolValue = RSSProxyPostProcessor.DEFAULT_STREAMING)
 })
 public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
   public static final int DEFAULT_MAX_LENGTH = 10000000;
   public static final int DEFAULT_EVENTS_THRESHOLD = 100;
+  public static final boolean DEFAULT_STREAMING = true;
 
   static final String EVENTS_THRESHOLD = "sakai.rss.elements.threshold";
   static final String MAX_LENGTH = "sakai.rss.length.max";
+  /**
+   * When true the feed is validated from the first events only and then copied straight
+   * through to the client, rather than being buffered and re-serialized in full.
+   */
+  static final String STREAMING = "sakai.rss.streaming";
 
   private XMLInputFactory xmlInputFactory;
   private int eventsThreshold;
   private int maxLength;
+  private boolean streaming;
 
   // Maximum size is 10 megabyte.
   public static final Logger logger = LoggerFactory
@@ -94,6 +104,7 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     eventsThreshold = OsgiUtil.toInteger(props.get(EVENTS_THRESHOLD),
         DEFAULT_EVENTS_THRESHOLD);
     maxLength = OsgiUtil.toInteger(props.get(MAX_LENGTH), DEFAULT_MAX_LENGTH);
+    streaming = OsgiUtil.toBoolean(props.get(STREAMING), DEFAULT_STREAMING);
 
     xmlInputFactory = new WstxInputFactory();
     xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
@@ -193,6 +204,11 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
       }
     }
 
+    if (streaming) {
+      processStreaming(response, proxyResponse);
+      return;
+    }
+
     boolean isValid = false;
     InputStream in = proxyResponse.getResponseBodyAsInputStream();
     InputStreamReader reader = new InputStreamReader(in);
@@ -222,16 +238,7 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
             StartElement el = e.asStartElement();
             String name = el.getName().getLocalPart().toLowerCase();
             if (checkedElements == null) {
-              // get the right format to validate against
-              String formatKey = name;
-              Attribute attr = el.getAttributeByName(new QName("version"));
-              if (attr != null) {
-                formatKey += "-" + attr.getValue();
-              }
-              Set<String> format = formats.get(formatKey);
-              if (format != null) {
-                checkedElements = new HashSet<String>(format);
-              }
+              checkedElements = getRequiredElements(el);
             } else {
               checkedElements.remove(name);
 
@@ -293,4 +300,181 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     }
 
   }
+
+  /**
+   * Validates the feed from its first events while holding only the bytes read so far,
+   * then copies the rest of the upstream body to the client unparsed, aborting if it
+   * grows past the maximum length. Every body is validated, an upstream ETag says nothing
+   * about the bytes that were actually sent.
+   */
+  private void processStreaming(SlingHttpServletResponse response,
+      ProxyResponse proxyResponse) throws IOException {
+    InputStream in = proxyResponse.getResponseBodyAsInputStream();
+    PrefixRecordingInputStream prefix = new PrefixRecordingInputStream(in, maxLength);
+    try {
+      XMLEventReader eventReader = xmlInputFactory.createXMLEventReader(prefix);
+      String error = validate(eventReader);
+      if (error != null) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, error);
+        return;
+      }
+
+      for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
+        if ("Transfer-Encoding".equalsIgnoreCase(h.getKey())) {
+          continue;
+        }
+        for (String v : h.getValue()) {
+          response.setHeader(h.getKey(), v);
+        }
+      }
+      // We always return 200 when we get to this point.
+      response.setStatus(200);
+
+      OutputStream out = response.getOutputStream();
+      byte[] recorded = prefix.stopRecording();
+      out.write(recorded);
+      long length = recorded.length;
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) >= 0) {
+        length += n;
+        if (length > maxLength) {
+          if (response.isCommitted()) {
+            logger.warn("RSS feed passed {} bytes while streaming, truncated.", maxLength);
+          } else {
+            response.reset();
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "This file is too big.");
+          }
+          return;
+        }
+        out.write(buffer, 0, n);
+      }
+    } catch (PrefixTooLongException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "This file is too big.");
+    } catch (XMLStreamException e) {
+      if (e.getNestedException() instanceof PrefixTooLongException) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "This file is too big.");
+      } else {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+            "This is not a valid XML file.");
+      }
+    } catch (Exception e) {
+      logger.warn("Exception reading RSS feed.", e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "General exception caught.");
+    } finally {
+      if (in != null) {
+        in.close();
+      }
+    }
+  }
+
+  /**
+   * Reads events until the feed has shown all the elements its format requires.
+   *
+   * @return null if the feed is valid, otherwise the reason it is not.
+   */
+  private String validate(XMLEventReader eventReader) throws XMLStreamException {
+    Set<String> checkedElements = null;
+    int i = 0;
+    while (eventReader.hasNext()) {
+      XMLEvent e = eventReader.nextEvent();
+      if (e.getEventType() == XMLEvent.START_ELEMENT) {
+        StartElement el = e.asStartElement();
+        if (checkedElements == null) {
+          checkedElements = getRequiredElements(el);
+        } else {
+          checkedElements.remove(el.getName().getLocalPart().toLowerCase());
+          if (checkedElements.isEmpty()) {
+            return null;
+          }
+        }
+      }
+      if (i > eventsThreshold) {
+        return "This file is too complex.";
+      }
+      i++;
+    }
+    return "Invalid RSS file.";
+  }
+
+  /**
+   * @return the elements required by the format that starts with this element, or null
+   *         if it does not start a known format.
+   */
+  private Set<String> getRequiredElements(StartElement el) {
+    String formatKey = el.getName().getLocalPart().toLowerCase();
+    Attribute attr = el.getAttributeByName(new QName("version"));
+    if (attr != null) {
+      formatKey += "-" + attr.getValue();
+    }
+    Set<String> format = formats.get(formatKey);
+    return format == null ? null : new HashSet<String>(format);
+  }
+
+  /**
+   * Thrown when the bytes needed to validate a feed pass the maximum length.
+   */
+  static class PrefixTooLongException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    PrefixTooLongException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Keeps a copy of every byte read through it until recording is stopped, so that the
+   * bytes consumed by the parser while validating can still be sent to the client.
+   */
+  static class PrefixRecordingInputStream extends FilterInputStream {
+    private final int limit;
+    private ByteArrayOutputStream recorded = new ByteArrayOutputStream();
+
+    PrefixRecordingInputStream(InputStream in, int limit) {
+      super(in);
+      this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0 && recorded != null) {
+        recorded.write(b);
+        checkLimit();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+      if (n > 0 && recorded != null) {
+        recorded.write(b, off, n);
+        checkLimit();
+      }
+      return n;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    /**
+     * @return the bytes read so far, nothing read after this is kept.
+     */
+    byte[] stopRecording() {
+      byte[] bytes = recorded.toByteArray();
+      recorded = null;
+      return bytes;
+    }
+
+    private void checkLimit() throws PrefixTooLongException {
+      if (recorded.size() > limit) {
+        throw new PrefixTooLongException("Feed passed " + limit
+            + " bytes before it was validated");
+      }
+    }
+  }
 }
@@ -48,6 +48,9 @@ import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Value;
 import javax.jcr.nodetype.PropertyDefinition;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  *
@@ -373,6 +376,107 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
     testRequest(null, "GET", RESPONSE_BODY, -1);
   }
 
+  @Test
+  public void testCacheableNodeIsServedFromTheCache() throws Exception {
+    DummyServer server = new CachingDummyServer();
+    try {
+      Node node = getNode(server.getUrl(), true);
+      replay();
+      server.setResponseBody("first");
+      assertEquals("first", get(node, null));
+      server.setResponseBody("second");
+      assertEquals("first", get(node, null));
+      verify();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testNodesAreNotCachedUnlessMarked() throws Exception {
+    DummyServer server = new CachingDummyServer();
+    try {
+      Node node = getNode(server.getUrl(), false);
+      replay();
+      server.setResponseBody("first");
+      assertEquals("first", get(node, null));
+      server.setResponseBody("second");
+      assertEquals("second", get(node, null));
+      verify();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void testOneUsersResponseIsNotServedToAnother() throws Exception {
+    DummyServer server = new CachingDummyServer();
+    try {
+      Node node = getNode(server.getUrl(), true);
+      replay();
+      server.setResponseBody("alice's feed");
+      assertEquals("alice's feed", get(node, "SAKAI-TRACKING=alice"));
+      server.setResponseBody("bob's feed");
+      assertEquals("bob's feed", get(node, "SAKAI-TRACKING=bob"));
+      verify();
+    } finally {
+      server.close();
+    }
+  }
+
+  /**
+   * A GET through a proxy node, as the resource proxy servlet makes it for a browser
+   * with the given cookie.
+   */
+  private String get(Node node, String cookie) throws Exception {
+    Map<String, String> headers = new HashMap<String, String>();
+    if (cookie != null) {
+      headers.put("Cookie", cookie);
+    }
+    ProxyResponse response = proxyClientServiceImpl.executeCall(node, headers,
+        new HashMap<String, Object>(), null, 0, null);
+    try {
+      return response.getResponseBodyAsString();
+    } finally {
+      response.close();
+    }
+  }
+
+  private Node getNode(String url, boolean cacheable) throws RepositoryException {
+    Node node = createNiceMock(Node.class);
+    Property endpointProperty = createNiceMock(Property.class);
+    PropertyDefinition propertyDefinition = createNiceMock(PropertyDefinition.class);
+    Value value = createNiceMock(Value.class);
+    Property cacheableProperty = createNiceMock(Property.class);
+    expect(node.getPath()).andReturn("/var/proxy/feed").anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        true).anyTimes();
+    expect(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).andReturn(
+        endpointProperty).anyTimes();
+    expect(endpointProperty.getDefinition()).andReturn(propertyDefinition).anyTimes();
+    expect(propertyDefinition.isMultiple()).andReturn(false).anyTimes();
+    expect(endpointProperty.getValue()).andReturn(value).anyTimes();
+    expect(value.getString()).andReturn(url).anyTimes();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHEABLE)).andReturn(true)
+        .anyTimes();
+    expect(node.getProperty(ProxyClientService.SAKAI_PROXY_CACHEABLE)).andReturn(
+        cacheableProperty).anyTimes();
+    expect(cacheableProperty.getBoolean()).andReturn(cacheable).anyTimes();
+    return node;
+  }
+
+  /**
+   * Says every response may be cached for a minute, as many feeds do whoever asks.
+   */
+  private static class CachingDummyServer extends DummyServer {
+    @Override
+    public void handle(String target, HttpServletRequest request,
+        HttpServletResponse response, int dispatch) throws IOException, ServletException {
+      response.setHeader("Cache-Control", "max-age=60");
+      super.handle(target, request, response, dispatch);
+    }
+  }
+
   private void testRequest(String type, String expectedMethod, String body, long limit)
       throws ProxyClientException, RepositoryException, IOException {
     Node node = createMock(Node.class);
@@ -396,6 +500,8 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
         endpointProperty);
     expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(false)
         .atLeastOnce();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHEABLE)).andReturn(false)
+        .anyTimes();
 
     if (limit == -1) {
       expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(false)
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethod;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ProxyResponseCacheTest {
+
+  private static final String URL = "http://feeds.example.com/course.rss";
+  private static final String BODY = "<rss><channel><title>Course</title></channel></rss>";
+
+  @Test
+  public void testStoresFreshResponse() throws IOException {
+    ProxyResponseCache cache = new ProxyResponseCache(1024 * 1024, 1024);
+    Map<String, String> requestHeaders = new HashMap<String, String>();
+    ProxyResponse stored = cache.store(URL, requestHeaders, 200, method(BODY,
+        "Cache-Control", "max-age=60", "Content-Type", "application/rss+xml"));
+    assertNotNull(stored);
+    assertEquals(BODY, stored.getResponseBodyAsString());
+
+    ProxyResponseCache.CacheEntry entry = cache.get(URL, requestHeaders);
+    assertNotNull(entry);
+    assertTrue(entry.isFresh());
+    ProxyResponse cached = entry.toResponse();
+    assertEquals(200, cached.getResultCode());
+    assertEquals(BODY, cached.getResponseBodyAsString());
+    assertEquals("application/rss+xml", cached.getResponseHeaders().get("Content-Type")[0]);
+  }
+
+  @Test
+  public void testNotStored() throws IOException {
+    ProxyResponseCache cache = new ProxyResponseCache(1024 * 1024, 1024);
+    Map<String, String> requestHeaders = new HashMap<String, String>();
+    assertNull(cache.store(URL, requestHeaders, 200, method(BODY, "Cache-Control",
+        "no-store")));
+    assertNull(cache.store(URL, requestHeaders, 200, method(BODY, "Cache-Control",
+        "private, max-age=60")));
+    assertNull(cache.store(URL, requestHeaders, 200, method(BODY, "Cache-Control",
+        "max-age=60", "Set-Cookie", "JSESSIONID=1")));
+    assertNull(cache.store(URL, requestHeaders, 200, method(BODY, "Cache-Control",
+        "max-age=60", "Vary", "*")));
+    // nothing to say how long it is fresh and no way to revalidate.
+    assertNull(cache.store(URL, requestHeaders, 200, method(BODY)));
+    assertNull(cache.store(URL, requestHeaders, 404, method(BODY, "Cache-Control",
+        "max-age=60")));
+
+    // whatever the upstream says, requests that identify the user are not stored.
+    for (String header : new String[] { "Authorization", "Cookie", "x-sakai-token" }) {
+      Map<String, String> user = new HashMap<String, String>();
+      user.put(header, "alice");
+      assertNull(cache.store(URL, user, 200, method(BODY, "Cache-Control",
+          "public, max-age=60")));
+    }
+    assertEquals(0, cache.getEntryCount());
+  }
+
+  @Test
+  public void testRequests() {
+    Map<String, String> requestHeaders = new HashMap<String, String>();
+    assertTrue(ProxyResponseCache.isCacheableRequest(requestHeaders));
+    assertFalse(ProxyResponseCache.requiresRevalidation(requestHeaders));
+    requestHeaders.put("cache-control", "max-age=0");
+    assertTrue(ProxyResponseCache.requiresRevalidation(requestHeaders));
+    requestHeaders.put("If-None-Match", "\"abc\"");
+    assertFalse(ProxyResponseCache.isCacheableRequest(requestHeaders));
+
+    Map<String, String> cookie = new HashMap<String, String>();
+    cookie.put("cookie", "JSESSIONID=1");
+    assertFalse(ProxyResponseCache.isCacheableRequest(cookie));
+  }
+
+  @Test
+  public void testUserRequestsAreNotAnsweredFromTheCache() throws IOException {
+    ProxyResponseCache cache = new ProxyResponseCache(1024 * 1024, 1024);
+    cache.store(URL, new HashMap<String, String>(), 200, method(BODY, "Cache-Control",
+        "max-age=60"));
+    Map<String, String> user = new HashMap<String, String>();
+    user.put("Cookie", "SAKAI-TRACKING=bob");
+    assertNull(cache.get(URL, user));
+  }
+
+  @Test
+  public void testVary() throws IOException {
+    ProxyResponseCache cache = new ProxyResponseCache(1024 * 1024, 1024);
+    Map<String, String> english = new HashMap<String, String>();
+    english.put("Accept-Language", "en");
+    Map<String, String> french = new HashMap<String, String>();
+    french.put("accept-language", "fr");
+
+    cache.store(URL, english, 200, method(BODY, "Cache-Control", "max-age=60", "Vary",
+        "Accept-Language"));
+    assertNotNull(cache.get(URL, english));
+    assertNull(cache.get(URL, french));
+  }
+
+  @Test
+  public void testRevalidation() throws IOException {
+    ProxyResponseCache cache = new ProxyResponseCache(1024 * 1024, 1024);
+    Map<String, String> requestHeaders = new HashMap<String, String>();
+    cache.store(URL, requestHeaders, 200, method(BODY, "Cache-Control", "no-cache",
+        "ETag", "\"v1\""));
+    ProxyResponseCache.CacheEntry entry = cache.get(URL, requestHeaders);
+    assertNotNull(entry);
+    assertFalse(entry.isFresh());
+
+    HttpMethod get = mock(HttpMethod.class);
+    entry.addConditionalHeaders(get);
+    verify(get).setRequestHeader("If-None-Match", "\"v1\"");
+
+    ProxyResponse response = cache.revalidated(entry, method(null,
+        "Cache-Control", "max-age=60", "ETag", "\"v1\""));
+    assertEquals(BODY, response.getResponseBodyAsString());
+    assertTrue(entry.isFresh());
+  }
+
+  @Test
+  public void testByteBound() throws IOException {
+    // room for one entry but not two.
+    ProxyResponseCache cache = new ProxyResponseCache(1024, 1024);
+    Map<String, String> requestHeaders = new HashMap<String, String>();
+    String body = BODY + BODY + BODY + BODY + BODY + BODY;
+    cache.store(URL, requestHeaders, 200, method(body, "Cache-Control", "max-age=60"));
+    cache.store(URL + "?2", requestHeaders, 200, method(body, "Cache-Control",
+        "max-age=60"));
+    assertEquals(1, cache.getEntryCount());
+    assertTrue(cache.getSize() <= 1024);
+    assertNull(cache.get(URL, requestHeaders));
+    assertNotNull(cache.get(URL + "?2", requestHeaders));
+  }
+
+  @Test
+  public void testOversizedBody() throws IOException {
+    ProxyResponseCache cache = new ProxyResponseCache(1024 * 1024, 16);
+    Map<String, String> requestHeaders = new HashMap<String, String>();
+    ProxyResponse response = cache.store(URL, requestHeaders, 200, method(BODY,
+        "Cache-Control", "max-age=60"));
+    // the part read while trying to cache is handed back with the rest.
+    assertNotNull(response);
+    assertEquals(BODY, new String(response.getResponseBody(), "UTF-8"));
+    assertEquals(0, cache.getEntryCount());
+
+    assertNull(cache.store(URL, requestHeaders, 200, method(BODY, "Cache-Control",
+        "max-age=60", "Content-Length", String.valueOf(BODY.length()))));
+  }
+
+  private HttpMethod method(String body, String... headers) throws IOException {
+    HttpMethod method = mock(HttpMethod.class);
+    List<Header> all = new ArrayList<Header>();
+    Header[] vary = new Header[0];
+    for (int i = 0; i < headers.length; i += 2) {
+      Header header = new Header(headers[i], headers[i + 1]);
+      all.add(header);
+      when(method.getResponseHeader(headers[i])).thenReturn(header);
+      if ("Vary".equals(headers[i])) {
+        vary = new Header[] { header };
+      }
+    }
+    when(method.getResponseHeaders("Vary")).thenReturn(vary);
+    when(method.getResponseHeaders()).thenReturn(all.toArray(new Header[all.size()]));
+    if (body != null) {
+      when(method.getResponseBodyAsStream()).thenReturn(
+          new ByteArrayInputStream(body.getBytes("UTF-8")));
+    }
+    return method;
+  }
+}
@@ -17,9 +17,12 @@
  */
 package org.sakaiproject.nakamura.proxy;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -31,6 +34,9 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -139,6 +145,62 @@ public class RSSProxyPostProcessorTest {
     verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
   }
 
+  @Test
+  public void streamsTheUpstreamBytesUnchanged() throws Exception {
+    //given
+    proxyResponseCanReturnHeaders();
+    proxyResponseHasSampleRss();
+    ByteArrayOutputStream written = responseWritesTo();
+
+    //when
+    proxyPostProcessor.activate(new HashMap<String, Object>());
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(response, never()).sendError(anyInt(), anyString());
+    assertArrayEquals(readResource("sample-rss.xml"), written.toByteArray());
+  }
+
+  @Test
+  public void rejectsInvalidXmlForAnETagAlreadyValidated() throws Exception {
+    //given
+    proxyResponseCanReturnHeaders();
+    when(proxyResponseHeaders.get("ETag")).thenReturn(new String[] { "\"v1\"" });
+    Map<String, Object> templateParams = new HashMap<String, Object>();
+    proxyResponseHasSampleRss();
+    responseWritesTo();
+    proxyPostProcessor.activate(new HashMap<String, Object>());
+    proxyPostProcessor.process(templateParams, response, proxyResponse);
+
+    //when
+    // the same ETag with a body that would fail validation
+    proxyResponseHasIllFormedXml();
+    ByteArrayOutputStream written = responseWritesTo();
+    proxyPostProcessor.process(templateParams, response, proxyResponse);
+
+    //then
+    verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+    assertEquals(0, written.size());
+  }
+
+  @Test
+  public void abortsAStreamedFeedPastTheMaximumLength() throws Exception {
+    //given
+    proxyResponseCanReturnHeaders();
+    proxyResponseHasSampleRss();
+    responseWritesTo();
+    Map<String, Object> config = new HashMap<String, Object>();
+    // smaller than the whole feed.
+    config.put(RSSProxyPostProcessor.MAX_LENGTH, 5000);
+
+    //when
+    proxyPostProcessor.activate(config);
+    proxyPostProcessor.process(null, response, proxyResponse);
+
+    //then
+    verify(response).sendError(eq(HttpServletResponse.SC_BAD_REQUEST), anyString());
+  }
+
   private void proxyResponseHeaderContainsUnsupportedContentType() {
     when(proxyResponseHeaders.get("Content-Type")).thenReturn(new String[]{"application/foo"});
   }
@@ -163,6 +225,29 @@ public class RSSProxyPostProcessorTest {
     when(proxyResponse.getResponseBodyAsInputStream()).thenReturn(this.getClass().getClassLoader().getResourceAsStream("invalid-xml.xml"));
   }
 
+  private ByteArrayOutputStream responseWritesTo() throws Exception {
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        written.write(b);
+      }
+    });
+    return written;
+  }
+
+  private byte[] readResource(String name) throws IOException {
+    InputStream in = this.getClass().getClassLoader().getResourceAsStream(name);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) >= 0) {
+      bytes.write(buffer, 0, n);
+    }
+    in.close();
+    return bytes.toByteArray();
+  }
+
   private void responseHasOutputStreamAvailable() throws Exception {
     when(response.getOutputStream()).thenReturn(responseOutputStream);
   }
@@ -0,0 +1,176 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.resource.lite;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves authorizable ids to home paths, remembering both the ids that exist and the
+ * ids that do not, so that resolving a <code>~id</code> URL does not load the
+ * authorizable on every request. Entries are dropped when an authorizable with the id is
+ * added or deleted, and the least recently used entries are dropped once the cache is
+ * full. Ids that do not exist are only remembered for a short time, since the add event
+ * that drops them is only seen on the server the authorizable was added on.
+ */
+class HomeResolutionCache {
+
+  /**
+   * The outcome of one resolution.
+   */
+  static class Resolution {
+    private final String homePath;
+    private final boolean loaded;
+
+    Resolution(String homePath, boolean loaded) {
+      this.homePath = homePath;
+      this.loaded = loaded;
+    }
+
+    /**
+     * @return the home path of the authorizable, or null if there is no such authorizable.
+     */
+    String getHomePath() {
+      return homePath;
+    }
+
+    /**
+     * @return true if the authorizable had to be loaded, false if the cache answered.
+     */
+    boolean isLoaded() {
+      return loaded;
+    }
+  }
+
+  private static class CachedHome {
+    /** null if there is no authorizable with the id. */
+    private final String homePath;
+    private final long expires;
+
+    CachedHome(String homePath, long expires) {
+      this.homePath = homePath;
+      this.expires = expires;
+    }
+  }
+
+  private final Map<String, CachedHome> homePaths;
+  private final long notFoundTtl;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong authorizableLoads = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  /**
+   * @param maxSize
+   *          the number of ids to remember.
+   * @param notFoundTtl
+   *          ms to remember that an id has no authorizable, 0 to not remember it.
+   */
+  HomeResolutionCache(final int maxSize, long notFoundTtl) {
+    this.notFoundTtl = notFoundTtl;
+    homePaths = new LinkedHashMap<String, CachedHome>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedHome> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param authorizableManager
+   *          used to load the authorizable when the id is not in the cache.
+   * @param id
+   *          the authorizable id from the URL.
+   * @return the home path of the authorizable, and whether it had to be loaded.
+   * @throws AccessDeniedException
+   *           if the authorizable had to be loaded and the session may not read it.
+   * @throws StorageClientException
+   */
+  Resolution resolve(AuthorizableManager authorizableManager, String id)
+      throws AccessDeniedException, StorageClientException {
+    CachedHome cached;
+    synchronized (homePaths) {
+      cached = homePaths.get(id);
+      if (cached != null && cached.expires < System.currentTimeMillis()) {
+        homePaths.remove(id);
+        cached = null;
+      }
+    }
+    if (cached != null) {
+      hits.incrementAndGet();
+      return new Resolution(cached.homePath, false);
+    }
+    authorizableLoads.incrementAndGet();
+    long generation = invalidations.get();
+    Authorizable a = authorizableManager.findAuthorizable(id);
+    String homePath = (a == null) ? null : LitePersonalUtils.getHomePath(a.getId());
+    if (a != null || notFoundTtl > 0) {
+      long expires = (a == null) ? System.currentTimeMillis() + notFoundTtl : Long.MAX_VALUE;
+      synchronized (homePaths) {
+        // dont remember an answer that an add or delete may have overtaken while loading
+        if (generation == invalidations.get()) {
+          homePaths.put(id, new CachedHome(homePath, expires));
+        }
+      }
+    }
+    return new Resolution(homePath, true);
+  }
+
+  /**
+   * @return the home path of the authorizable, or null if there is no such authorizable.
+   * @see #resolve(AuthorizableManager, String)
+   */
+  String getHomePath(AuthorizableManager authorizableManager, String id)
+      throws AccessDeniedException, StorageClientException {
+    return resolve(authorizableManager, id).getHomePath();
+  }
+
+  /**
+   * @param id
+   *          the authorizable that was added or deleted.
+   */
+  void invalidate(String id) {
+    synchronized (homePaths) {
+      invalidations.incrementAndGet();
+      homePaths.remove(id);
+    }
+  }
+
+  /**
+   * @return the number of resolutions answered from the cache since the cache was created.
+   */
+  long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of resolutions that had to load the authorizable since the cache
+   *         was created.
+   */
+  long getAuthorizableLoads() {
+    return authorizableLoads.get();
+  }
+}
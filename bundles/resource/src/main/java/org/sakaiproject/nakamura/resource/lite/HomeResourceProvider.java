@@ -18,47 +18,91 @@
 package org.sakaiproject.nakamura.resource.lite;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceProvider;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
-import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletRequest;
 
 @Component(name = "org.sakaiproject.nakamura.privacy.HomeResourceProvider", immediate = true, metatype = true, description = "%homeprovider.description", label = "%homeprovider.name")
-@Service(value = ResourceProvider.class)
-@Property(name = ResourceProvider.ROOTS, value = { "/", "/group" })
-public class HomeResourceProvider implements ResourceProvider {
+@Service(value = { ResourceProvider.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = ResourceProvider.ROOTS, value = { "/", "/group" }),
+    @Property(name = EventConstants.EVENT_TOPIC, value = {
+        "org/sakaiproject/nakamura/lite/authorizables/ADDED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }, propertyPrivate = true) })
+public class HomeResourceProvider implements ResourceProvider, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(HomeResourceProvider.class);
   public static final String HOME_RESOURCE_PROVIDER = HomeResourceProvider.class
       .getName();
 
+  private static final int DEFAULT_CACHE_SIZE = 10000;
+  @Property(intValue = DEFAULT_CACHE_SIZE, label = "Home resolution cache size", description = "The number of authorizable ids whose home path, or absence, is remembered when resolving ~ paths.")
+  static final String CACHE_SIZE = "home.resolution.cache.size";
+
+  private static final long DEFAULT_NOT_FOUND_TTL = 10L;
+  @Property(longValue = DEFAULT_NOT_FOUND_TTL, label = "Home resolution not found TTL", description = "Seconds to remember that an id has no authorizable. Authorizables added on another server are found once this expires. 0 does not remember missing ids.")
+  static final String NOT_FOUND_TTL = "home.resolution.notfound.ttl";
+
+  private HomeResolutionCache homeResolutionCache = new HomeResolutionCache(
+      DEFAULT_CACHE_SIZE, DEFAULT_NOT_FOUND_TTL * 1000L);
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    homeResolutionCache = new HomeResolutionCache(OsgiUtil.toInteger(
+        properties.get(CACHE_SIZE), DEFAULT_CACHE_SIZE), OsgiUtil.toLong(
+        properties.get(NOT_FOUND_TTL), DEFAULT_NOT_FOUND_TTL) * 1000L);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object id = event.getProperty(StoreListener.PATH_PROPERTY);
+    if (id != null) {
+      homeResolutionCache.invalidate(String.valueOf(id));
+    }
+  }
+
   public Resource getResource(ResourceResolver resourceResolver,
       HttpServletRequest request, String path) {
-    LOGGER.info("Got Resource URI [{}]  Path [{}] ", request.getRequestURI(), path);
-    return getResource(resourceResolver, path);
+    return resolve(resourceResolver, request, path);
   }
 
   public Resource getResource(ResourceResolver resourceResolver, String path) {
+    return resolve(resourceResolver, null, path);
+  }
+
+  private Resource resolve(ResourceResolver resourceResolver,
+      HttpServletRequest request, String path) {
     if (path == null || path.length() < 2) {
       return null;
     }
@@ -70,7 +114,7 @@ public class HomeResourceProvider implements ResourceProvider {
       return null;
     }
     try {
-      return resolveMappedResource(resourceResolver, path);
+      return resolveMappedResource(resourceResolver, request, path);
     } catch (AccessDeniedException e) {
       if ( LOGGER.isDebugEnabled()) {
         LOGGER.debug(e.getMessage(),e);
@@ -83,8 +127,9 @@ public class HomeResourceProvider implements ResourceProvider {
     return null;
   }
 
-  private Resource resolveMappedResource(ResourceResolver resourceResolver, String path)
-      throws AccessDeniedException, StorageClientException {
+  private Resource resolveMappedResource(ResourceResolver resourceResolver,
+      HttpServletRequest request, String path) throws AccessDeniedException,
+      StorageClientException {
     String subPath = null;
     if (path.startsWith("/~")) {
       subPath = path.substring("/~".length());
@@ -101,9 +146,15 @@ public class HomeResourceProvider implements ResourceProvider {
       if (elements.length >= 1) {
         Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
         AuthorizableManager um = session.getAuthorizableManager();
-        Authorizable a = um.findAuthorizable(elements[0]);
-        if (a != null) {
-          String userPath = LitePersonalUtils.getHomePath(a.getId());
+        HomeResolutionCache.Resolution resolution = homeResolutionCache.resolve(um,
+            elements[0]);
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.debug("Got Resource URI [{}]  Path [{}] authorizable loaded {} ",
+              new Object[] { request == null ? null : request.getRequestURI(), path,
+                  resolution.isLoaded() });
+        }
+        String userPath = resolution.getHomePath();
+        if (userPath != null) {
           if (elements.length == 2) {
             userPath = userPath + "/" + elements[1];
           }
@@ -0,0 +1,127 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.resource.lite;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+
+public class HomeResolutionCacheTest {
+
+  @Mock
+  private AuthorizableManager authorizableManager;
+  @Mock
+  private Authorizable ieb;
+
+  private HomeResolutionCache cache;
+
+  @Before
+  public void before() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    Mockito.when(ieb.getId()).thenReturn("ieb");
+    Mockito.when(authorizableManager.findAuthorizable("ieb")).thenReturn(ieb);
+    cache = new HomeResolutionCache(2, 60000L);
+  }
+
+  @Test
+  public void testRepeatedResolutionLoadsOnce() throws Exception {
+    Assert.assertTrue(cache.resolve(authorizableManager, "ieb").isLoaded());
+    for (int i = 0; i < 4; i++) {
+      HomeResolutionCache.Resolution resolution = cache.resolve(authorizableManager, "ieb");
+      Assert.assertEquals("a:ieb", resolution.getHomePath());
+      Assert.assertFalse(resolution.isLoaded());
+    }
+    Mockito.verify(authorizableManager, Mockito.times(1)).findAuthorizable("ieb");
+    Assert.assertEquals(1, cache.getAuthorizableLoads());
+    Assert.assertEquals(4, cache.getHits());
+  }
+
+  @Test
+  public void testMissingAuthorizableIsRemembered() throws Exception {
+    Assert.assertNull(cache.getHomePath(authorizableManager, "nobody"));
+    Assert.assertNull(cache.getHomePath(authorizableManager, "nobody"));
+    Mockito.verify(authorizableManager, Mockito.times(1)).findAuthorizable("nobody");
+
+    // the authorizable is created, the add event drops the negative entry
+    Authorizable nobody = Mockito.mock(Authorizable.class);
+    Mockito.when(nobody.getId()).thenReturn("nobody");
+    Mockito.when(authorizableManager.findAuthorizable("nobody")).thenReturn(nobody);
+    cache.invalidate("nobody");
+    Assert.assertEquals("a:nobody", cache.getHomePath(authorizableManager, "nobody"));
+  }
+
+  @Test
+  public void testMissingAuthorizableExpires() throws Exception {
+    cache = new HomeResolutionCache(2, 1L);
+    Assert.assertNull(cache.getHomePath(authorizableManager, "nobody"));
+    Thread.sleep(10L);
+    // added on another server, so no add event was seen here
+    Authorizable nobody = Mockito.mock(Authorizable.class);
+    Mockito.when(nobody.getId()).thenReturn("nobody");
+    Mockito.when(authorizableManager.findAuthorizable("nobody")).thenReturn(nobody);
+    Assert.assertEquals("a:nobody", cache.getHomePath(authorizableManager, "nobody"));
+  }
+
+  @Test
+  public void testMissingAuthorizableIsNotRememberedWithoutTtl() throws Exception {
+    cache = new HomeResolutionCache(2, 0L);
+    Assert.assertNull(cache.getHomePath(authorizableManager, "nobody"));
+    Assert.assertNull(cache.getHomePath(authorizableManager, "nobody"));
+    Mockito.verify(authorizableManager, Mockito.times(2)).findAuthorizable("nobody");
+  }
+
+  @Test
+  public void testDeleteDropsEntry() throws Exception {
+    Assert.assertEquals("a:ieb", cache.getHomePath(authorizableManager, "ieb"));
+    Mockito.when(authorizableManager.findAuthorizable("ieb")).thenReturn(null);
+    cache.invalidate("ieb");
+    Assert.assertNull(cache.getHomePath(authorizableManager, "ieb"));
+  }
+
+  @Test
+  public void testAccessDeniedIsNotRemembered() throws Exception {
+    Mockito.when(authorizableManager.findAuthorizable("private")).thenThrow(
+        new AccessDeniedException("authorizables", "private", "denied", "anonymous"));
+    for (int i = 0; i < 2; i++) {
+      try {
+        cache.getHomePath(authorizableManager, "private");
+        Assert.fail();
+      } catch (AccessDeniedException e) {
+        // expected
+      }
+    }
+    Mockito.verify(authorizableManager, Mockito.times(2)).findAuthorizable("private");
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreDropped() throws AccessDeniedException,
+      StorageClientException {
+    cache.getHomePath(authorizableManager, "ieb");
+    cache.getHomePath(authorizableManager, "a");
+    cache.getHomePath(authorizableManager, "b");
+    cache.getHomePath(authorizableManager, "ieb");
+    Mockito.verify(authorizableManager, Mockito.times(2)).findAuthorizable("ieb");
+  }
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Base class for {@link BatchIndexingHandler}s. The window is collapsed and each
+ * surviving event is then handed to the subclass together with the
+ * {@link IndexingBatch} of the window, through which it reads content and
+ * authorizables. A single event is handled as a window of one.
+ */
+public abstract class AbstractBatchIndexingHandler implements BatchIndexingHandler {
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDocuments(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   *      org.osgi.service.event.Event)
+   */
+  public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
+      Event event) {
+    return getDocuments(repositorySession, Collections.singletonList(event));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.solr.IndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   *      org.osgi.service.event.Event)
+   */
+  public Collection<String> getDeleteQueries(RepositorySession repositorySession,
+      Event event) {
+    return getDeleteQueries(repositorySession, Collections.singletonList(event));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.BatchIndexingHandler#getDocuments(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   *      java.util.List)
+   */
+  public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
+      List<Event> events) {
+    List<Event> window = IndexingBatch.collapse(events);
+    IndexingBatch batch = new IndexingBatch(repositorySession);
+    List<SolrInputDocument> documents = new ArrayList<SolrInputDocument>();
+    for (Event event : window) {
+      documents.addAll(getDocuments(batch, event));
+    }
+    return documents;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.solr.BatchIndexingHandler#getDeleteQueries(org.sakaiproject.nakamura.api.solr.RepositorySession,
+   *      java.util.List)
+   */
+  public Collection<String> getDeleteQueries(RepositorySession repositorySession,
+      List<Event> events) {
+    List<Event> window = IndexingBatch.collapse(events);
+    IndexingBatch batch = new IndexingBatch(repositorySession);
+    List<String> queries = new ArrayList<String>();
+    for (Event event : window) {
+      queries.addAll(getDeleteQueries(batch, event));
+    }
+    return queries;
+  }
+
+  /**
+   * Get the documents for one event of a collapsed window.
+   *
+   * @param batch
+   *          the batch to read content and authorizables through.
+   * @param event
+   * @return the documents for the event, never null.
+   */
+  protected abstract Collection<SolrInputDocument> getDocuments(IndexingBatch batch,
+      Event event);
+
+  /**
+   * Get the delete queries for one event of a collapsed window.
+   *
+   * @param batch
+   *          the batch to read content and authorizables through.
+   * @param event
+   * @return the delete queries for the event, never null.
+   */
+  protected abstract Collection<String> getDeleteQueries(IndexingBatch batch, Event event);
+
+}
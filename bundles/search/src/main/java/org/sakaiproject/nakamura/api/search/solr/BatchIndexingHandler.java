@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An {@link IndexingHandler} that can process a window of events in one call. Repeated
+ * events for the same path inside a window are collapsed to the latest one and the
+ * content and authorizables the window needs are looked up once, rather than once per
+ * event. The single event methods of {@link IndexingHandler} must behave exactly as a
+ * window of one, as they are what the queue dispatcher of the solr bundle calls until it
+ * checks for this interface.
+ */
+public interface BatchIndexingHandler extends IndexingHandler {
+
+  /**
+   * Get the documents to add or update for a window of events.
+   *
+   * @param repositorySession
+   *          the session to read content and authorizables with.
+   * @param events
+   *          the events in the order they were raised.
+   * @return the documents for the collapsed window, never null.
+   */
+  Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession,
+      List<Event> events);
+
+  /**
+   * Get the delete queries for a window of events.
+   *
+   * @param repositorySession
+   *          the session to read content and authorizables with.
+   * @param events
+   *          the events in the order they were raised.
+   * @return the delete queries for the collapsed window, never null.
+   */
+  Collection<String> getDeleteQueries(RepositorySession repositorySession,
+      List<Event> events);
+
+}
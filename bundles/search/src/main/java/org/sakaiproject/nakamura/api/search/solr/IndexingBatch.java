@@ -0,0 +1,145 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state shared by all events of one window handed to a {@link BatchIndexingHandler}.
+ * Content and authorizables are read when a handler first asks for them and remembered
+ * for the rest of the window, including the ones that turn out not to exist. Sparse has
+ * no multi-get, so this saves the repeated reads of a window rather than making fewer
+ * round trips for the first ones. A batch is only ever used by the thread that created
+ * it and must not outlive the window, so nothing it holds can go stale.
+ */
+public class IndexingBatch {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexingBatch.class);
+
+  private final RepositorySession repositorySession;
+  private final Map<String, Content> contents = new HashMap<String, Content>();
+  private final Map<String, Authorizable> authorizables = new HashMap<String, Authorizable>();
+  private final Set<String> claimed = new HashSet<String>();
+  private Session session;
+
+  public IndexingBatch(RepositorySession repositorySession) {
+    this.repositorySession = repositorySession;
+  }
+
+  /**
+   * Collapse a window of events so that each path is represented only by the last event
+   * raised for it. Since that event describes the final state of the path the earlier
+   * ones would only produce documents that are immediately replaced. Events without a
+   * path are kept as they are.
+   *
+   * @param events
+   *          the events in the order they were raised.
+   * @return the surviving events, ordered by the position of the event that survived.
+   */
+  public static List<Event> collapse(List<Event> events) {
+    if (events.size() < 2) {
+      return events;
+    }
+    Map<Object, Event> latest = new LinkedHashMap<Object, Event>(events.size());
+    for (Event event : events) {
+      Object path = event.getProperty(IndexingHandler.FIELD_PATH);
+      Object key = (path == null) ? new Object() : path;
+      // remove first so the key moves to the position of the latest event.
+      latest.remove(key);
+      latest.put(key, event);
+    }
+    if (LOGGER.isDebugEnabled() && latest.size() < events.size()) {
+      LOGGER.debug("Collapsed {} events to {} ", events.size(), latest.size());
+    }
+    return new ArrayList<Event>(latest.values());
+  }
+
+  public RepositorySession getRepositorySession() {
+    return repositorySession;
+  }
+
+  public Session getSession() {
+    if (session == null) {
+      session = repositorySession.adaptTo(Session.class);
+    }
+    return session;
+  }
+
+  /**
+   * @param path
+   *          the path of the content.
+   * @return the content at the path or null if there is none, read once per batch.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public Content getContent(String path) throws StorageClientException,
+      AccessDeniedException {
+    if (contents.containsKey(path)) {
+      return contents.get(path);
+    }
+    Content content = getSession().getContentManager().get(path);
+    contents.put(path, content);
+    return content;
+  }
+
+  /**
+   * @param id
+   *          the id of the authorizable.
+   * @return the authorizable or null if there is none, read once per batch.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public Authorizable getAuthorizable(String id) throws StorageClientException,
+      AccessDeniedException {
+    if (authorizables.containsKey(id)) {
+      return authorizables.get(id);
+    }
+    Authorizable authorizable = getSession().getAuthorizableManager().findAuthorizable(id);
+    authorizables.put(id, authorizable);
+    return authorizable;
+  }
+
+  /**
+   * Claim a document id for this batch. Handlers that map several paths onto one
+   * document use this to build that document only once per window.
+   *
+   * @param id
+   *          the id of the document.
+   * @return true if this is the first claim on the id in this batch.
+   */
+  public boolean claim(String id) {
+    return claimed.add(id);
+  }
+}
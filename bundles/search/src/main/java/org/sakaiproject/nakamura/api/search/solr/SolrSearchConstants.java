@@ -112,6 +112,10 @@ public interface SolrSearchConstants {
   *
   */
   public static final String TOTAL = "total";
+  /**
+   * Present and true when the total is a lower bound rather than a count.
+   */
+  public static final String TOTAL_APPROXIMATE = "totalApproximate";
   /**
    *
    */
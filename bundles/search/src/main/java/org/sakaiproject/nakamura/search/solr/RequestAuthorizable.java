@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+
+/**
+ * Loads the authorizable of the user making a search request once per request, so that
+ * the readers restriction and the count cache of every query in the request share it.
+ */
+final class RequestAuthorizable {
+
+  private static final String ATTRIBUTE = RequestAuthorizable.class.getName();
+
+  private RequestAuthorizable() {
+  }
+
+  /**
+   * @return the authorizable of the session user, loaded on the first call in the request,
+   *         or null if it does not exist.
+   */
+  static Authorizable get(SlingHttpServletRequest request, Session session)
+      throws StorageClientException, AccessDeniedException {
+    String userId = session.getUserId();
+    Object cached = request.getAttribute(ATTRIBUTE);
+    if (cached instanceof Authorizable && userId.equals(((Authorizable) cached).getId())) {
+      return (Authorizable) cached;
+    }
+    Authorizable user = session.getAuthorizableManager().findAuthorizable(userId);
+    if (user != null) {
+      request.setAttribute(ATTRIBUTE, user);
+    }
+    return user;
+  }
+}
@@ -30,14 +30,27 @@ import java.util.Iterator;
 public class SearchResultSetSizeWrapper implements SolrSearchResultSet {
   private SolrSearchResultSet wrappedSearchResultSet;
   private long size;
+  private boolean approximate;
 
   /**
    * @param wrappedSearchResultSet
    * @param size
    */
   public SearchResultSetSizeWrapper(SolrSearchResultSet wrappedSearchResultSet, long size) {
+    this(wrappedSearchResultSet, size, false);
+  }
+
+  /**
+   * @param wrappedSearchResultSet
+   * @param size
+   * @param approximate
+   *          true if counting stopped early and size is only a lower bound.
+   */
+  public SearchResultSetSizeWrapper(SolrSearchResultSet wrappedSearchResultSet, long size,
+      boolean approximate) {
     this.wrappedSearchResultSet = wrappedSearchResultSet;
     this.size = size;
+    this.approximate = approximate;
   }
 
   /**
@@ -52,4 +65,11 @@ public class SearchResultSetSizeWrapper implements SolrSearchResultSet {
     return size;
   }
 
+  /**
+   * @return true if the size is only a lower bound on the number of matches.
+   */
+  public boolean isApproximate() {
+    return approximate;
+  }
+
 }
@@ -62,6 +62,7 @@ import org.sakaiproject.nakamura.api.cluster.ClusterServer;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -204,6 +205,24 @@ import java.util.ArrayList;
       
 
 
+  /**
+   * Restrict a query to documents readable by the user or one of the groups.
+   *
+   * @param queryString
+   * @param userId
+   * @param groupIds
+   * @return the restricted query.
+   */
+  static String addReadersRestriction(String queryString, String userId,
+      Collection<String> groupIds) {
+    Set<String> readers = Sets.newHashSet();
+    for (String groupId : groupIds) {
+      readers.add(SearchUtil.escapeString(groupId, Query.SOLR));
+    }
+    readers.add(userId);
+    return "(" + queryString + ") AND readers:(" + StringUtils.join(readers," OR ") + ")";
+  }
+
   /**
    * Process a query string to search using Solr.
    *
@@ -225,13 +244,12 @@ import java.util.ArrayList;
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         if (!User.ADMIN_USER.equals(session.getUserId())) {
           AuthorizableManager am = session.getAuthorizableManager();
-          Authorizable user = am.findAuthorizable(session.getUserId());
-          Set<String> readers = Sets.newHashSet();
+          Authorizable user = RequestAuthorizable.get(request, session);
+          List<String> groupIds = new ArrayList<String>();
           for (Iterator<Group> gi = user.memberOf(am); gi.hasNext();) {
-            readers.add(SearchUtil.escapeString(gi.next().getId(), Query.SOLR));
+            groupIds.add(gi.next().getId());
           }
-          readers.add(session.getUserId());
-          queryString = "(" + queryString + ") AND readers:(" + StringUtils.join(readers," OR ") + ")";
+          queryString = addReadersRestriction(queryString, session.getUserId(), groupIds);
         }
       }
 
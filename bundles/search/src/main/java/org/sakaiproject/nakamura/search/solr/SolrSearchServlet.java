@@ -36,6 +36,7 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEAR
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SEARCH_RESULT_PROCESSOR;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TIDY;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TOTAL;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.TOTAL_APPROXIMATE;
 
 import com.google.common.collect.Maps;
 
@@ -324,6 +325,11 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         // a chance to walk the results then report how many there were.
         write.key(TOTAL);
         write.value(rs.getSize());
+        if (rs instanceof SearchResultSetSizeWrapper
+            && ((SearchResultSetSizeWrapper) rs).isApproximate()) {
+          write.key(TOTAL_APPROXIMATE);
+          write.value(true);
+        }
 
         // additional search feed output can be applied here
         if (useBatch && searchBatchProcessor instanceof SearchResponseDecorator) {
@@ -0,0 +1,260 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Remembers the results of the counting queries made by {@link SparseResultSetFactory},
+ * so that paging through the same sparse query does not repeat the count on every click.
+ * Keys combine the normalized query, the principals of the user and the generations of
+ * the resource types the query is restricted to. A change to content of one resource
+ * type starts a new generation of that type only, so counts of queries on other types
+ * survive it. Queries that are not restricted to a resource type start over on any
+ * change. Changes made on other servers are not seen, so counts also expire after a
+ * short time.
+ */
+class SparseCountCache {
+
+  private static final String[] RESOURCE_TYPE_FIELDS = { "resourceType",
+      "sling:resourceType" };
+
+  private static class Count {
+    private final long count;
+    private final long expires;
+
+    Count(long count, long expires) {
+      this.count = count;
+      this.expires = expires;
+    }
+  }
+
+  private final Map<String, Count> counts;
+  private final long ttl;
+  /** Changes with no known resource type, seen by every key. */
+  private final AtomicLong generation = new AtomicLong();
+  /** Changes of any resource type, seen by keys of queries with no resource type. */
+  private final AtomicLong anyTypeGeneration = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> typeGenerations = new ConcurrentHashMap<String, AtomicLong>();
+
+  /**
+   * @param maxSize
+   *          the number of counts to remember.
+   * @param ttl
+   *          ms a count is served for.
+   */
+  SparseCountCache(final int maxSize, long ttl) {
+    this.ttl = ttl;
+    counts = new LinkedHashMap<String, Count>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Count> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * @param props
+   *          the sparse query properties, including the paging options.
+   * @param principals
+   *          the user and the groups the user is a member of.
+   * @param countStartPage
+   *          the page of the counting query.
+   * @param countPageSize
+   *          the page size of the counting query.
+   * @return a key for the count, bound to the current generations of the resource types
+   *         the query is restricted to.
+   */
+  String getKey(Map<String, Object> props, Collection<String> principals,
+      long countStartPage, int countPageSize) {
+    List<String> sortedPrincipals = Lists.newArrayList(principals);
+    Collections.sort(sortedPrincipals);
+    StringBuilder sb = new StringBuilder();
+    sb.append(generation.get()).append('|');
+    Set<String> resourceTypes = getResourceTypes(props);
+    if (resourceTypes.isEmpty()) {
+      sb.append('*').append(anyTypeGeneration.get());
+    } else {
+      for (String resourceType : resourceTypes) {
+        AtomicLong typeGeneration = typeGenerations.get(resourceType);
+        sb.append(resourceType).append('=')
+            .append(typeGeneration == null ? 0 : typeGeneration.get()).append(',');
+      }
+    }
+    sb.append('|');
+    sb.append(sortedPrincipals).append('|');
+    sb.append(countStartPage).append('x').append(countPageSize).append('|');
+    sb.append(normalize(props));
+    return sb.toString();
+  }
+
+  /**
+   * @return the count stored under the key, or null.
+   */
+  Long get(String key) {
+    synchronized (counts) {
+      Count count = counts.get(key);
+      if (count == null) {
+        return null;
+      }
+      if (count.expires < System.currentTimeMillis()) {
+        counts.remove(key);
+        return null;
+      }
+      return count.count;
+    }
+  }
+
+  void put(String key, long count) {
+    synchronized (counts) {
+      counts.put(key, new Count(count, System.currentTimeMillis() + ttl));
+    }
+  }
+
+  /**
+   * Start a new generation for every query, forgetting all counts.
+   */
+  void invalidate() {
+    generation.incrementAndGet();
+    synchronized (counts) {
+      counts.clear();
+    }
+  }
+
+  /**
+   * Start a new generation for the queries that may match content of a resource type.
+   * Counts of queries on other resource types stay valid; stale keys are left for the
+   * least recently used eviction.
+   *
+   * @param resourceType
+   *          the resource type of the content that changed, null if not known.
+   */
+  void invalidate(String resourceType) {
+    if (resourceType == null) {
+      invalidate();
+      return;
+    }
+    AtomicLong typeGeneration = typeGenerations.get(resourceType);
+    if (typeGeneration == null) {
+      AtomicLong newGeneration = new AtomicLong();
+      typeGeneration = typeGenerations.putIfAbsent(resourceType, newGeneration);
+      if (typeGeneration == null) {
+        typeGeneration = newGeneration;
+      }
+    }
+    typeGeneration.incrementAndGet();
+    anyTypeGeneration.incrementAndGet();
+  }
+
+  /**
+   * @return the resource types a query is restricted to, in order, empty if it is not
+   *         restricted to any.
+   */
+  @SuppressWarnings("unchecked")
+  static Set<String> getResourceTypes(Map<String, Object> props) {
+    Set<String> resourceTypes = new TreeSet<String>();
+    addResourceTypes(resourceTypes, props);
+    if (resourceTypes.isEmpty()) {
+      // an or set restricts the query only if all of its terms are resource types
+      for (Entry<String, Object> e : props.entrySet()) {
+        if (e.getValue() instanceof Map) {
+          Map<String, Object> ors = (Map<String, Object>) e.getValue();
+          Set<String> orTypes = new TreeSet<String>();
+          addResourceTypes(orTypes, ors);
+          if (!orTypes.isEmpty() && ors.size() == countResourceTypeFields(ors)) {
+            return orTypes;
+          }
+        }
+      }
+    }
+    return resourceTypes;
+  }
+
+  private static int countResourceTypeFields(Map<String, Object> props) {
+    int n = 0;
+    for (String field : RESOURCE_TYPE_FIELDS) {
+      if (props.containsKey(field)) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void addResourceTypes(Set<String> resourceTypes, Map<String, Object> props) {
+    for (String field : RESOURCE_TYPE_FIELDS) {
+      Object value = props.get(field);
+      if (value instanceof Collection) {
+        for (Object o : (Collection<Object>) value) {
+          resourceTypes.add(String.valueOf(o));
+        }
+      } else if (value != null) {
+        resourceTypes.add(String.valueOf(value));
+      }
+    }
+  }
+
+  /**
+   * @return the query properties as a string that does not depend on the paging options,
+   *         the map iteration order or the order terms were parsed in.
+   */
+  static String normalize(Map<String, Object> props) {
+    Map<String, Object> withoutPaging = new TreeMap<String, Object>(props);
+    withoutPaging.remove("_" + PARAMS_PAGE);
+    withoutPaging.remove("_" + PARAMS_ITEMS_PER_PAGE);
+    return normalizeValue(withoutPaging);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static String normalizeValue(Object value) {
+    if (value instanceof Map) {
+      StringBuilder sb = new StringBuilder("{");
+      for (Entry<String, Object> e : new TreeMap<String, Object>((Map<String, Object>) value)
+          .entrySet()) {
+        sb.append(e.getKey()).append('=').append(normalizeValue(e.getValue())).append(';');
+      }
+      return sb.append('}').toString();
+    } else if (value instanceof Collection) {
+      List<String> values = Lists.newArrayList();
+      for (Object o : (Collection<Object>) value) {
+        values.add(normalizeValue(o));
+      }
+      Collections.sort(values);
+      return values.toString();
+    }
+    return String.valueOf(value);
+  }
+}
@@ -23,6 +23,7 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARA
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -31,6 +32,7 @@ import java.util.Set;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.lucene.index.Term;
@@ -43,11 +45,14 @@ import org.apache.lucene.util.Version;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.solr.schema.TextField;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.StorageConstants;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.search.solr.Query;
@@ -66,18 +71,41 @@ import com.google.common.collect.Sets;
  */
 @Component(metatype = true)
 @Service
-@Property(name = "type", value = Query.SPARSE)
-public class SparseResultSetFactory implements ResultSetFactory {
+@Properties(value = {
+    @Property(name = "type", value = Query.SPARSE),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE"})})
+public class SparseResultSetFactory implements ResultSetFactory, EventHandler {
   @Property(longValue = 100L)
   private static final String VERY_SLOW_QUERY_TIME = "verySlowQueryTime";
   @Property(longValue = 10L)
   private static final String SLOW_QUERY_TIME = "slowQueryTime";
   @Property(intValue = 100)
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
+  @Property(intValue = 1000)
+  private static final String COUNT_CACHE_SIZE = "countCacheSize";
+  @Property(longValue = 60L)
+  private static final String COUNT_CACHE_TTL = "countCacheTtl";
+  @Property(boolValue = false)
+  private static final String APPROXIMATE_TOTALS = "approximateTotals";
+  @Property(intValue = 50)
+  private static final String APPROXIMATE_TOTAL_CAP = "approximateTotalCap";
 
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
+  /**
+   * Counts of the matches beyond the current page, null when caching is disabled.
+   */
+  private SparseCountCache countCache = new SparseCountCache(1000, 60000L);
+  /**
+   * When true, counting stops after approximateTotalCap further matches and the total is
+   * reported as a lower bound.
+   */
+  private boolean approximateTotals;
+  private int approximateTotalCap = 50;
 
   /** only used to mark the logger */
   private final class SlowQueryLogger { }
@@ -91,6 +119,29 @@ public class SparseResultSetFactory implements ResultSetFactory {
         defaultMaxResults);
     slowQueryThreshold = OsgiUtil.toLong(props.get(SLOW_QUERY_TIME), 10L);
     verySlowQueryThreshold = OsgiUtil.toLong(props.get(VERY_SLOW_QUERY_TIME), 100L);
+    int countCacheSize = OsgiUtil.toInteger(props.get(COUNT_CACHE_SIZE), 1000);
+    long countCacheTtl = OsgiUtil.toLong(props.get(COUNT_CACHE_TTL), 60L) * 1000L;
+    countCache = (countCacheSize > 0 && countCacheTtl > 0) ? new SparseCountCache(
+        countCacheSize, countCacheTtl) : null;
+    approximateTotals = OsgiUtil.toBoolean(props.get(APPROXIMATE_TOTALS), false);
+    approximateTotalCap = Math.max(1,
+        OsgiUtil.toInteger(props.get(APPROXIMATE_TOTAL_CAP), approximateTotalCap));
+  }
+
+  /**
+   * A content change may change the counts of the queries on its resource type, so start
+   * a new generation for that type. Changes without a resource type forget all counts.
+   *
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    SparseCountCache cache = countCache;
+    if (cache != null) {
+      Object resourceType = event.getProperty("resourceType");
+      cache.invalidate(resourceType == null ? null : String.valueOf(resourceType));
+    }
   }
 
   /**
@@ -169,7 +220,7 @@ public class SparseResultSetFactory implements ResultSetFactory {
       LOGGER.debug(e.getLocalizedMessage(), e);
     }
     SolrSearchResultSet rs = new SparseSearchResultSet(items, defaultMaxResults);
-    return getResultSetWithCount(rs, props, cm);
+    return getResultSetWithCount(rs, props, request, session);
     } catch (AccessDeniedException e) {
       throw new SolrSearchException(500, e.getMessage());
     } catch (StorageClientException e) {
@@ -202,16 +253,22 @@ public class SparseResultSetFactory implements ResultSetFactory {
    * to hint at the remaining count. We try to retrieve a maximum-page-size's worth of results
    * as a compromise between speed and accuracy.
    * </ul>
+   * The second query is cached per query, user principals and the content generation of
+   * the resource types it is restricted to, for countCacheTtl seconds, so paging through
+   * the same query only counts once. With approximateTotals set the second
+   * query stops after approximateTotalCap matches, and a total reached that way is
+   * reported as approximate, meaning at least that many.
    *
    * @param queryResultSet
    * @param props
-   * @param cm
+   * @param request
+   * @param session
    * @return
    * @throws StorageClientException
    * @throws AccessDeniedException
    */
   private SolrSearchResultSet getResultSetWithCount(SolrSearchResultSet queryResultSet,
-      Map<String, Object> props, ContentManager cm) throws StorageClientException, AccessDeniedException {
+      Map<String, Object> props, SlingHttpServletRequest request, Session session) throws StorageClientException, AccessDeniedException {
     final SolrSearchResultSet finalResultSet;
     final long queryCount = queryResultSet.getSize();
 
@@ -224,6 +281,7 @@ public class SparseResultSetFactory implements ResultSetFactory {
       // of matches. Sparse queries only return the requested page of results, with no
       // other information.
       final long count;
+      boolean approximate = false;
       long nitems = Long.valueOf(String.valueOf(props.get("_" + PARAMS_ITEMS_PER_PAGE)));
       long page = Long.valueOf(String.valueOf(props.get("_" + PARAMS_PAGE)));
       long offset = page * nitems;
@@ -245,39 +303,82 @@ public class SparseResultSetFactory implements ResultSetFactory {
         // mean that a very inaccurate count is still very likely (as compared to
         // a "count()" query in SQL).
         if (queryCount == nitems) {
+          int countPageSize = approximateTotals ? approximateTotalCap : defaultMaxResults;
           long nextOffset = offset + nitems;
-          long countStartPage = nextOffset / defaultMaxResults;
-          long countOffset = countStartPage * defaultMaxResults;
-          props.put("_" + PARAMS_PAGE, Long.toString(countStartPage));
-          props.put("_" + PARAMS_ITEMS_PER_PAGE, Integer.toString(defaultMaxResults));
-          long tquery = System.currentTimeMillis();
-          Iterable<Content> countItems = cm.find(props);
-          tquery = System.currentTimeMillis() - tquery;
-          try {
-            if ( tquery > verySlowQueryThreshold ) {
-              SLOW_QUERY_LOGGER.error("Very slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
-            } else if ( tquery > slowQueryThreshold ) {
-              SLOW_QUERY_LOGGER.warn("Slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
-            }
-          } catch (UnsupportedEncodingException e) {
-            LOGGER.debug(e.getLocalizedMessage(), e);
+          long countStartPage = nextOffset / countPageSize;
+          long countOffset = countStartPage * countPageSize;
+          SparseCountCache cache = countCache;
+          String cacheKey = null;
+          Long additionalCount = null;
+          if (cache != null) {
+            cacheKey = cache.getKey(props, getPrincipals(request, session), countStartPage,
+                countPageSize);
+            additionalCount = cache.get(cacheKey);
           }
-          long additionalCount = 0;
-          final Iterator<Content> countIterator = countItems.iterator();
-          while (countIterator.hasNext()) {
-            countIterator.next();
-            additionalCount++;
+          if (additionalCount == null) {
+            additionalCount = countMatches(props, session.getContentManager(),
+                countStartPage, countPageSize);
+            if (cache != null) {
+              cache.put(cacheKey, additionalCount);
+            }
+          } else {
+            LOGGER.debug("Using cached count {} for {} ", additionalCount, cacheKey);
           }
           count = countOffset + additionalCount;
+          approximate = approximateTotals && additionalCount >= countPageSize;
         } else {
           count = offset + queryCount;
         }
       }
-      finalResultSet = new SearchResultSetSizeWrapper(queryResultSet, count);
+      finalResultSet = new SearchResultSetSizeWrapper(queryResultSet, count, approximate);
     }
     return finalResultSet;
   }
 
+  /**
+   * Run the counting query, stopping once a full page has been counted.
+   *
+   * @return the number of matches on the counting page.
+   */
+  private long countMatches(Map<String, Object> props, ContentManager cm,
+      long countStartPage, int countPageSize) throws StorageClientException,
+      AccessDeniedException {
+    props.put("_" + PARAMS_PAGE, Long.toString(countStartPage));
+    props.put("_" + PARAMS_ITEMS_PER_PAGE, Integer.toString(countPageSize));
+    long tquery = System.currentTimeMillis();
+    Iterable<Content> countItems = cm.find(props);
+    tquery = System.currentTimeMillis() - tquery;
+    try {
+      if ( tquery > verySlowQueryThreshold ) {
+        SLOW_QUERY_LOGGER.error("Very slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
+      } else if ( tquery > slowQueryThreshold ) {
+        SLOW_QUERY_LOGGER.warn("Slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
+      }
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.debug(e.getLocalizedMessage(), e);
+    }
+    long additionalCount = 0;
+    final Iterator<Content> countIterator = countItems.iterator();
+    while (additionalCount < countPageSize && countIterator.hasNext()) {
+      countIterator.next();
+      additionalCount++;
+    }
+    return additionalCount;
+  }
+
+  /**
+   * @return the principals whose access decides which content a query can see.
+   */
+  private Collection<String> getPrincipals(SlingHttpServletRequest request, Session session)
+      throws StorageClientException, AccessDeniedException {
+    Set<String> principals = Sets.newHashSet(session.getUserId());
+    Authorizable user = RequestAuthorizable.get(request, session);
+    if (user != null) {
+      Collections.addAll(principals, user.getPrincipals());
+    }
+    return principals;
+  }
+
   /**
    * @param clause
    * @param clauseQuery
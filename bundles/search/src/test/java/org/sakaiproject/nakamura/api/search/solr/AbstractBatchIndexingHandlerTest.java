@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.search.solr;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AbstractBatchIndexingHandlerTest {
+
+  private static final String UPDATED = StoreListener.TOPIC_BASE + "content/"
+      + StoreListener.UPDATED_TOPIC;
+
+  @Mock
+  private RepositorySession repositorySession;
+
+  @Mock
+  private Session session;
+
+  @Mock
+  private ContentManager contentManager;
+
+  @Mock
+  private AuthorizableManager authorizableManager;
+
+  @Mock
+  private Authorizable authorizable;
+
+  private AtomicInteger contentReads = new AtomicInteger();
+
+  private AtomicInteger authorizableReads = new AtomicInteger();
+
+  private TestHandler handler = new TestHandler();
+
+  public AbstractBatchIndexingHandlerTest() {
+    MockitoAnnotations.initMocks(this);
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    when(repositorySession.adaptTo(Session.class)).thenReturn(session);
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    when(contentManager.get(anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) throws Throwable {
+        contentReads.incrementAndGet();
+        String path = (String) invocation.getArguments()[0];
+        return new Content(path, new HashMap<String, Object>());
+      }
+    });
+    when(authorizableManager.findAuthorizable(anyString())).thenAnswer(
+        new Answer<Authorizable>() {
+          public Authorizable answer(InvocationOnMock invocation) throws Throwable {
+            authorizableReads.incrementAndGet();
+            return authorizable;
+          }
+        });
+  }
+
+  @Test
+  public void testCollapseKeepsLatestEventPerPath() {
+    Event a1 = event(UPDATED, "a");
+    Event b1 = event(UPDATED, "b");
+    Event a2 = event(UPDATED, "a");
+    Event noPath1 = new Event(UPDATED, new Hashtable<String, Object>());
+    Event noPath2 = new Event(UPDATED, new Hashtable<String, Object>());
+
+    List<Event> window = IndexingBatch.collapse(ImmutableList.of(a1, b1, noPath1, a2,
+        noPath2));
+
+    Assert.assertEquals(ImmutableList.of(b1, noPath1, a2, noPath2), window);
+  }
+
+  @Test
+  public void testWindowReadsEachPathOnce() {
+    List<Event> events = ImmutableList.of(event(UPDATED, "a:user1/x"),
+        event(UPDATED, "a:user1/y"), event(UPDATED, "a:user1/x"),
+        event(UPDATED, "a:user2/x"));
+
+    Collection<SolrInputDocument> docs = handler.getDocuments(repositorySession, events);
+
+    Assert.assertEquals(3, docs.size());
+    Assert.assertEquals(3, contentReads.get());
+    Assert.assertEquals(2, authorizableReads.get());
+  }
+
+  @Test
+  public void testMissingContentIsReadOnce() throws Exception {
+    when(contentManager.get("a:user1/gone")).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) throws Throwable {
+        contentReads.incrementAndGet();
+        return null;
+      }
+    });
+    IndexingBatch batch = new IndexingBatch(repositorySession);
+    Assert.assertNull(batch.getContent("a:user1/gone"));
+    Assert.assertNull(batch.getContent("a:user1/gone"));
+    Assert.assertEquals(1, contentReads.get());
+  }
+
+  @Test
+  public void testClaimOncePerBatch() {
+    IndexingBatch batch = new IndexingBatch(repositorySession);
+    Assert.assertTrue(batch.claim("doc"));
+    Assert.assertFalse(batch.claim("doc"));
+    Assert.assertTrue(new IndexingBatch(repositorySession).claim("doc"));
+  }
+
+  @Test
+  public void testSingleEventIsAWindowOfOne() {
+    Collection<SolrInputDocument> docs = handler.getDocuments(repositorySession,
+        event(UPDATED, "a:user1/x"));
+    Collection<String> queries = handler.getDeleteQueries(repositorySession,
+        event(UPDATED, "a:user1/x"));
+
+    Assert.assertEquals(1, docs.size());
+    Assert.assertEquals(1, contentReads.get());
+    Assert.assertEquals(ImmutableList.of("id:a:user1/x"), queries);
+  }
+
+  private Event event(String topic, String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(TestHandler.FIELD_PATH, path);
+    return new Event(topic, properties);
+  }
+
+  /**
+   * Indexes every path it is given together with the user that owns it.
+   */
+  private static class TestHandler extends AbstractBatchIndexingHandler {
+
+    @Override
+    protected Collection<SolrInputDocument> getDocuments(IndexingBatch batch, Event event) {
+      String path = (String) event.getProperty(FIELD_PATH);
+      try {
+        Content content = batch.getContent(path);
+        Authorizable owner = batch.getAuthorizable(path.substring(2, path.indexOf('/')));
+        if (content != null && owner != null) {
+          SolrInputDocument doc = new SolrInputDocument();
+          doc.addField(FIELD_ID, path);
+          return ImmutableList.of(doc);
+        }
+      } catch (StorageClientException e) {
+        throw new IllegalStateException(e);
+      } catch (AccessDeniedException e) {
+        throw new IllegalStateException(e);
+      }
+      return Collections.emptyList();
+    }
+
+    @Override
+    protected Collection<String> getDeleteQueries(IndexingBatch batch, Event event) {
+      return ImmutableList.of("id:" + event.getProperty(FIELD_PATH));
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class SparseCountCacheTest {
+
+  private static final List<String> IEB = ImmutableList.of("ieb", "group-a");
+
+  @Test
+  public void testPagingDoesNotChangeKey() {
+    SparseCountCache cache = new SparseCountCache(10, 60000L);
+    Map<String, Object> page0 = query("0");
+    Map<String, Object> page3 = query("3");
+    Assert.assertEquals(cache.getKey(page0, IEB, 0, 100), cache.getKey(page3, IEB, 0, 100));
+    Assert.assertFalse(cache.getKey(page0, IEB, 0, 100).equals(
+        cache.getKey(page0, IEB, 1, 100)));
+  }
+
+  @Test
+  public void testTermOrderDoesNotChangeKey() {
+    Map<String, Object> a = query("0");
+    a.put("tag", Lists.newArrayList("x", "y"));
+    Map<String, Object> b = query("0");
+    b.put("tag", Lists.newArrayList("y", "x"));
+    Assert.assertEquals(SparseCountCache.normalize(a), SparseCountCache.normalize(b));
+  }
+
+  @Test
+  public void testPrincipalsAreNormalizedAndPartOfTheKey() {
+    SparseCountCache cache = new SparseCountCache(10, 60000L);
+    Map<String, Object> q = query("0");
+    Assert.assertEquals(cache.getKey(q, IEB, 0, 100),
+        cache.getKey(q, ImmutableList.of("group-a", "ieb"), 0, 100));
+    Assert.assertFalse(cache.getKey(q, IEB, 0, 100).equals(
+        cache.getKey(q, ImmutableList.of("anonymous"), 0, 100)));
+  }
+
+  @Test
+  public void testInvalidateStartsNewGeneration() {
+    SparseCountCache cache = new SparseCountCache(10, 60000L);
+    String key = cache.getKey(query("0"), IEB, 0, 100);
+    cache.put(key, 42);
+    Assert.assertEquals(Long.valueOf(42), cache.get(key));
+
+    cache.invalidate();
+    Assert.assertNull(cache.get(key));
+    String newKey = cache.getKey(query("0"), IEB, 0, 100);
+    Assert.assertFalse(key.equals(newKey));
+    // a count made before the change and stored after it is never served
+    cache.put(key, 42);
+    Assert.assertNull(cache.get(newKey));
+  }
+
+  @Test
+  public void testInvalidateIsScopedByResourceType() {
+    SparseCountCache cache = new SparseCountCache(10, 60000L);
+    Map<String, Object> untyped = query("0");
+    untyped.remove("sling:resourceType");
+    String pooledKey = cache.getKey(query("0"), IEB, 0, 100);
+    String untypedKey = cache.getKey(untyped, IEB, 0, 100);
+    cache.put(pooledKey, 42);
+    cache.put(untypedKey, 7);
+
+    cache.invalidate("sakai/page");
+    Assert.assertEquals(pooledKey, cache.getKey(query("0"), IEB, 0, 100));
+    Assert.assertEquals(Long.valueOf(42), cache.get(pooledKey));
+    // a query on any resource type may match the changed content
+    Assert.assertFalse(untypedKey.equals(cache.getKey(untyped, IEB, 0, 100)));
+
+    cache.invalidate("sakai/pooled-content");
+    Assert.assertFalse(pooledKey.equals(cache.getKey(query("0"), IEB, 0, 100)));
+  }
+
+  @Test
+  public void testResourceTypes() {
+    Map<String, Object> q = query("0");
+    Assert.assertEquals(ImmutableList.of("sakai/pooled-content"),
+        Lists.newArrayList(SparseCountCache.getResourceTypes(q)));
+
+    q.remove("sling:resourceType");
+    Assert.assertTrue(SparseCountCache.getResourceTypes(q).isEmpty());
+
+    // an or set of resource types restricts the query to them
+    Map<String, Object> ors = Maps.newHashMap();
+    ors.put("resourceType", Lists.newArrayList("sakai/page", "sakai/pooled-content"));
+    q.put("orset1", ors);
+    Assert.assertEquals(ImmutableList.of("sakai/page", "sakai/pooled-content"),
+        Lists.newArrayList(SparseCountCache.getResourceTypes(q)));
+
+    // but not when it is or'ed with other terms
+    ors.put("path", "a/b");
+    Assert.assertTrue(SparseCountCache.getResourceTypes(q).isEmpty());
+  }
+
+  @Test
+  public void testExpires() throws Exception {
+    SparseCountCache cache = new SparseCountCache(10, 1L);
+    String key = cache.getKey(query("0"), IEB, 0, 100);
+    cache.put(key, 42);
+    Thread.sleep(10);
+    Assert.assertNull(cache.get(key));
+  }
+
+  @Test
+  public void testBounded() {
+    SparseCountCache cache = new SparseCountCache(2, 60000L);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    cache.put("c", 3);
+    Assert.assertNull(cache.get("a"));
+    Assert.assertEquals(Long.valueOf(3), cache.get("c"));
+  }
+
+  private Map<String, Object> query(String page) {
+    Map<String, Object> props = Maps.newHashMap();
+    props.put("sling:resourceType", "sakai/pooled-content");
+    Map<String, Object> ors = Maps.newHashMap();
+    ors.put("sakai:pooled-content-manager", "ieb");
+    ors.put("sakai:pooled-content-viewer", "ieb");
+    props.put("orset0", ors);
+    props.put("_page", page);
+    props.put("_items", "10");
+    props.put("_sortOn", "_lastModified");
+    return props;
+  }
+}
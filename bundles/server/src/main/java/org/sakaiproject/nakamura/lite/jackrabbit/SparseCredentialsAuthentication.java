@@ -20,7 +20,9 @@ package org.sakaiproject.nakamura.lite.jackrabbit;
 import org.apache.jackrabbit.core.security.authentication.Authentication;
 import org.apache.jackrabbit.util.Text;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Authenticator;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.lite.jackrabbit.SparseCredentialsCache.Scheme;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,16 +33,29 @@ import javax.jcr.Credentials;
 import javax.jcr.RepositoryException;
 import javax.jcr.SimpleCredentials;
 
+/**
+ * Checks a password against the store once per login: by the scheme the stored password
+ * is known to use, or, the first time a user logs in, by each scheme until one matches.
+ * Credentials verified within the last minute are accepted without going to the store,
+ * as long as the user has not been modified since.
+ */
 public class SparseCredentialsAuthentication implements Authentication {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(SparseCredentialsAuthentication.class);
   private Authenticator authenticator;
   private User user;
+  private SparseCredentialsCache cache;
 
   public SparseCredentialsAuthentication(User user, Authenticator authenticator) {
+    this(user, authenticator, SparseCredentialsCache.getInstance());
+  }
+
+  SparseCredentialsAuthentication(User user, Authenticator authenticator,
+      SparseCredentialsCache cache) {
     this.user = user;
     this.authenticator = authenticator;
+    this.cache = cache;
   }
 
   public boolean canHandle(Credentials credentials) {
@@ -53,13 +68,29 @@ public class SparseCredentialsAuthentication implements Authentication {
       String testUserId = simpleCredentials.getUserID();
       if (testUserId != null && testUserId.equals(user.getId())) {
         String password = new String(simpleCredentials.getPassword());
-        User user = authenticator.authenticate(simpleCredentials.getUserID(),
-            digestPassword(password));
-        if (user == null) {
-          user = authenticator.authenticate(simpleCredentials.getUserID(), password);
-
+        Object stamp = user.getProperty(Authorizable.LASTMODIFIED_FIELD);
+        if (cache.isVerified(testUserId, password, stamp)) {
+          LOGGER.debug("+++++++++++ Login to {} OK from verified credentials", testUserId);
+          return true;
         }
-        LOGGER.debug("+++++++++++ Login to {} {}", simpleCredentials.getUserID(),
+        long generation = cache.getGeneration();
+        Scheme scheme = cache.getScheme(testUserId, stamp);
+        User user = null;
+        if (scheme != null) {
+          user = authenticate(testUserId, password, scheme);
+        } else {
+          for (Scheme candidate : Scheme.values()) {
+            user = authenticate(testUserId, password, candidate);
+            if (user != null) {
+              scheme = candidate;
+              break;
+            }
+          }
+        }
+        if (user != null) {
+          cache.setVerified(testUserId, password, scheme, stamp, generation);
+        }
+        LOGGER.debug("+++++++++++ Login to {} {}", testUserId,
             user == null ? "FAILED Password was " : "OK " + user.getId());
         return user != null;
       }
@@ -68,6 +99,13 @@ public class SparseCredentialsAuthentication implements Authentication {
     return false;
   }
 
+  private User authenticate(String userId, String password, Scheme scheme) {
+    if (scheme == Scheme.DIGEST) {
+      return authenticator.authenticate(userId, digestPassword(password));
+    }
+    return authenticator.authenticate(userId, password);
+  }
+
   protected String digestPassword(String pwd) throws IllegalArgumentException {
     try {
       StringBuffer password = new StringBuffer();
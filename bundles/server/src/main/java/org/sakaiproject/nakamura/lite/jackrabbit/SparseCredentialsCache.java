@@ -0,0 +1,227 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Remembers, per user, how the stored password was written and the last credentials
+ * that were verified against it. Credentials are held only as an HMAC under a key that
+ * never leaves this JVM, and both expire after a short time. Each entry is tied to the
+ * last modified time of the user as read from the store at login, so a password changed
+ * on another server is noticed at the next login here. Local updates to a user also drop
+ * everything held for that user.
+ */
+public class SparseCredentialsCache {
+
+  /**
+   * How a stored password was written: digested by the user servlets before it was
+   * handed to the store, or handed over as typed.
+   */
+  public enum Scheme {
+    DIGEST, PLAIN
+  }
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(SparseCredentialsCache.class);
+
+  private static final String HMAC = "HmacSHA1";
+
+  public static final long DEFAULT_TTL = 60000L;
+
+  public static final int DEFAULT_SIZE = 10000;
+
+  private static final SparseCredentialsCache INSTANCE = new SparseCredentialsCache(
+      DEFAULT_TTL, DEFAULT_SIZE);
+
+  private static class Verified {
+    private final byte[] fingerprint;
+    private final Scheme scheme;
+    private final Object stamp;
+    private final long expires;
+
+    private Verified(byte[] fingerprint, Scheme scheme, Object stamp, long expires) {
+      this.fingerprint = fingerprint;
+      this.scheme = scheme;
+      this.stamp = stamp;
+      this.expires = expires;
+    }
+  }
+
+  private final SecretKeySpec key;
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+  private Map<String, Verified> verified;
+  private Map<String, Verified> schemes;
+  private long ttl;
+  private long generation;
+
+  SparseCredentialsCache(long ttl, int size) {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    key = new SecretKeySpec(secret, HMAC);
+    configure(ttl, size);
+  }
+
+  public static SparseCredentialsCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Replace the cache with an empty one of the given shape.
+   *
+   * @param ttl
+   *          milliseconds verified credentials and schemes are trusted for, 0 to disable.
+   * @param size
+   *          the number of users to remember.
+   */
+  public synchronized void configure(long ttl, int size) {
+    this.ttl = ttl;
+    this.verified = newLruMap(size);
+    this.schemes = newLruMap(size);
+  }
+
+  /**
+   * @param stamp
+   *          the last modified time of the user in the store.
+   * @return true if these credentials were verified for the user, as it was stamped,
+   *         within the TTL.
+   */
+  public boolean isVerified(String userId, String password, Object stamp) {
+    Verified entry = getCurrent(verified, userId, stamp);
+    if (entry == null) {
+      return false;
+    }
+    byte[] fingerprint = fingerprint(userId, password);
+    return fingerprint != null && Arrays.equals(entry.fingerprint, fingerprint);
+  }
+
+  /**
+   * @return a token to pass to {@link #setVerified(String, String, Scheme, Object, long)}, taken
+   *         before the credentials are checked against the store.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Record a successful verification, unless a user was invalidated while it ran.
+   *
+   * @param scheme
+   *          the scheme the stored password turned out to use.
+   * @param stamp
+   *          the last modified time of the user in the store, nothing is remembered if
+   *          this is null.
+   * @param generation
+   *          the value of {@link #getGeneration()} before the verification started.
+   */
+  public void setVerified(String userId, String password, Scheme scheme, Object stamp,
+      long generation) {
+    if (ttl <= 0 || stamp == null) {
+      return;
+    }
+    byte[] fingerprint = fingerprint(userId, password);
+    long expires = System.currentTimeMillis() + ttl;
+    synchronized (this) {
+      if (generation != this.generation) {
+        return;
+      }
+      schemes.put(userId, new Verified(null, scheme, stamp, expires));
+      if (fingerprint != null) {
+        verified.put(userId, new Verified(fingerprint, scheme, stamp, expires));
+      }
+    }
+  }
+
+  /**
+   * @param stamp
+   *          the last modified time of the user in the store.
+   * @return the scheme of the stored password of the user, null if not known for the
+   *         user as it was stamped.
+   */
+  public Scheme getScheme(String userId, Object stamp) {
+    Verified entry = getCurrent(schemes, userId, stamp);
+    return entry == null ? null : entry.scheme;
+  }
+
+  private Verified getCurrent(Map<String, Verified> entries, String userId, Object stamp) {
+    if (stamp == null) {
+      return null;
+    }
+    synchronized (this) {
+      Verified entry = entries.get(userId);
+      if (entry == null) {
+        return null;
+      }
+      if (entry.expires < System.currentTimeMillis() || !stamp.equals(entry.stamp)) {
+        entries.remove(userId);
+        return null;
+      }
+      return entry;
+    }
+  }
+
+  /**
+   * Forget everything about the user, called when the user or its password changes.
+   */
+  public synchronized void invalidate(String userId) {
+    generation++;
+    verified.remove(userId);
+    schemes.remove(userId);
+  }
+
+  private byte[] fingerprint(String userId, String password) {
+    try {
+      Mac mac = macs.get();
+      if (mac == null) {
+        mac = Mac.getInstance(HMAC);
+        mac.init(key);
+        macs.set(mac);
+      }
+      mac.update(userId.getBytes("UTF-8"));
+      mac.update((byte) 0);
+      return mac.doFinal(password.getBytes("UTF-8"));
+    } catch (GeneralSecurityException e) {
+      LOGGER.warn("Unable to fingerprint credentials, not caching them: {}", e.getMessage());
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.warn("Unable to fingerprint credentials, not caching them: {}", e.getMessage());
+    }
+    return null;
+  }
+
+  private static <V> Map<String, V> newLruMap(final int maxSize) {
+    return new LinkedHashMap<String, V>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Dictionary;
+
+/**
+ * Drops what {@link SparseCredentialsCache} holds for a user whenever the user is
+ * updated or deleted in the store, which covers password changes made outside this
+ * bundle. Declared in <code>OSGI-INF/serviceComponents.xml</code>, which also carries
+ * the cache settings.
+ */
+public class SparseCredentialsInvalidator implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(SparseCredentialsInvalidator.class);
+
+  static final String TTL = "sakai.credentials.cache.ttl";
+
+  static final String SIZE = "sakai.credentials.cache.size";
+
+  protected void activate(ComponentContext context) {
+    Dictionary<?, ?> properties = context.getProperties();
+    long ttl = toLong(properties.get(TTL), SparseCredentialsCache.DEFAULT_TTL / 1000L);
+    int size = (int) toLong(properties.get(SIZE), SparseCredentialsCache.DEFAULT_SIZE);
+    SparseCredentialsCache.getInstance().configure(ttl * 1000L, size);
+    LOGGER.info("Verified credentials are trusted for {}s, for up to {} users", ttl, size);
+  }
+
+  protected void deactivate(ComponentContext context) {
+    SparseCredentialsCache.getInstance().configure(0L, 0);
+  }
+
+  public void handleEvent(Event event) {
+    Object userId = event.getProperty(StoreListener.PATH_PROPERTY);
+    if (userId != null) {
+      SparseCredentialsCache.getInstance().invalidate(String.valueOf(userId));
+    }
+  }
+
+  private long toLong(Object value, long defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    if (value != null) {
+      try {
+        return Long.parseLong(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        LOGGER.warn("Ignoring invalid setting {} ", value);
+      }
+    }
+    return defaultValue;
+  }
+}
@@ -97,6 +97,7 @@ public class SparseUser extends SparseAuthorizable implements User {
   public void changePassword(String password) throws RepositoryException {
     try {
       authorizableManager.changePassword(getSparseUser(), password, oldPassword);
+      SparseCredentialsCache.getInstance().invalidate(getID());
     } catch (StorageClientException e) {
       throw new RepositoryException(e.getMessage(), e);
     } catch (AccessDeniedException e) {
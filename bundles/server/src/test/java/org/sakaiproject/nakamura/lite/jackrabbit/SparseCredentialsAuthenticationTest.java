@@ -0,0 +1,161 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.lite.jackrabbit;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Authenticator;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+
+import javax.jcr.SimpleCredentials;
+
+@RunWith(MockitoJUnitRunner.class)
+public class SparseCredentialsAuthenticationTest {
+
+  @Mock
+  private Authenticator authenticator;
+
+  @Mock
+  private User user;
+
+  private SparseCredentialsAuthentication authentication;
+
+  private SparseCredentialsCache cache;
+
+  private String digested;
+
+  @Before
+  public void setUp() {
+    when(user.getId()).thenReturn("alice");
+    when(user.getProperty(Authorizable.LASTMODIFIED_FIELD)).thenReturn(1000L);
+    cache = new SparseCredentialsCache(60000L, 100);
+    authentication = new SparseCredentialsAuthentication(user, authenticator, cache);
+    digested = authentication.digestPassword("secret");
+  }
+
+  @Test
+  public void testDigestedPasswordIsCheckedOnce() throws Exception {
+    when(authenticator.authenticate("alice", digested)).thenReturn(user);
+
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+
+    verify(authenticator, times(1)).authenticate("alice", digested);
+    verify(authenticator, never()).authenticate("alice", "secret");
+  }
+
+  @Test
+  public void testKnownSchemeTakesOnePathOnFailure() throws Exception {
+    when(authenticator.authenticate("alice", digested)).thenReturn(user);
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+
+    Assert.assertFalse(authentication.authenticate(credentials("alice", "wrong")));
+
+    verify(authenticator, times(1)).authenticate(eq("alice"),
+        eq(authentication.digestPassword("wrong")));
+    verify(authenticator, never()).authenticate("alice", "wrong");
+  }
+
+  @Test
+  public void testPlainSchemeIsLearned() throws Exception {
+    when(authenticator.authenticate("alice", "secret")).thenReturn(user);
+
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+    Assert.assertFalse(authentication.authenticate(credentials("alice", "wrong")));
+
+    verify(authenticator, times(1)).authenticate("alice", digested);
+    verify(authenticator, times(1)).authenticate("alice", "secret");
+    verify(authenticator, never()).authenticate(eq("alice"),
+        eq(authentication.digestPassword("wrong")));
+  }
+
+  @Test
+  public void testModifiedUserIsCheckedAgain() throws Exception {
+    when(authenticator.authenticate("alice", digested)).thenReturn(user);
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+
+    // the password was changed to a plain one on another server
+    when(user.getProperty(Authorizable.LASTMODIFIED_FIELD)).thenReturn(2000L);
+    when(authenticator.authenticate("alice", digested)).thenReturn(null);
+    when(authenticator.authenticate("alice", "secret")).thenReturn(user);
+
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+    verify(authenticator, times(2)).authenticate("alice", digested);
+    verify(authenticator, times(1)).authenticate("alice", "secret");
+  }
+
+  @Test
+  public void testNothingIsRememberedWithoutAStamp() throws Exception {
+    when(user.getProperty(Authorizable.LASTMODIFIED_FIELD)).thenReturn(null);
+    when(authenticator.authenticate("alice", digested)).thenReturn(user);
+
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+
+    verify(authenticator, times(2)).authenticate("alice", digested);
+  }
+
+  @Test
+  public void testSchemesExpire() throws Exception {
+    cache.configure(1L, 100);
+    when(authenticator.authenticate("alice", "secret")).thenReturn(user);
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+
+    Thread.sleep(10);
+    Assert.assertFalse(authentication.authenticate(credentials("alice", "wrong")));
+
+    verify(authenticator, times(1)).authenticate(eq("alice"),
+        eq(authentication.digestPassword("wrong")));
+    verify(authenticator, times(1)).authenticate("alice", "wrong");
+  }
+
+  @Test
+  public void testInvalidateForgetsVerifiedCredentials() throws Exception {
+    when(authenticator.authenticate("alice", digested)).thenReturn(user);
+    Assert.assertTrue(authentication.authenticate(credentials("alice", "secret")));
+
+    cache.invalidate("alice");
+    when(authenticator.authenticate("alice", digested)).thenReturn(null);
+
+    Assert.assertFalse(authentication.authenticate(credentials("alice", "secret")));
+    verify(authenticator, times(2)).authenticate("alice", digested);
+  }
+
+  @Test
+  public void testOtherUsersAreRejected() throws Exception {
+    Assert.assertFalse(authentication.authenticate(credentials("bob", "secret")));
+
+    verify(authenticator, never()).authenticate(anyString(), anyString());
+  }
+
+  private SimpleCredentials credentials(String userId, String password) {
+    return new SimpleCredentials(userId, password.toCharArray());
+  }
+}
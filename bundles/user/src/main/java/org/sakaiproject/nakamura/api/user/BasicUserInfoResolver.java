@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.user;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.ServletRequest;
+
+/**
+ * Resolves authorizables and their basic user info for the life of a single request.
+ * Search result processors that write the same authors over and over, such as the
+ * posts in a discussion, can {@link #require(Collection) declare} all the ids a page
+ * needs up front, which are then loaded in one pass the first time any of them is asked
+ * for. Every authorizable and basic info map is only loaded once per request.
+ * <p>
+ * A resolver belongs to one request and one session and is not thread safe.
+ */
+public class BasicUserInfoResolver {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BasicUserInfoResolver.class);
+
+  /**
+   * The request attribute the resolver for a request is held in.
+   */
+  public static final String REQUEST_ATTRIBUTE = BasicUserInfoResolver.class.getName();
+
+  private final Session session;
+  private final BasicUserInfoService basicUserInfoService;
+  private final Map<String, Authorizable> authorizables = new HashMap<String, Authorizable>();
+  private final Map<String, Map<String, Object>> properties = new HashMap<String, Map<String, Object>>();
+  private final Set<String> pending = new LinkedHashSet<String>();
+  private int lookups;
+  private int loads;
+  private int batches;
+
+  public BasicUserInfoResolver(Session session, BasicUserInfoService basicUserInfoService) {
+    this.session = session;
+    this.basicUserInfoService = basicUserInfoService;
+  }
+
+  /**
+   * Get the resolver for a request, creating it if this is the first use in the request.
+   *
+   * @param request
+   *          the request the resolver lives for.
+   * @param session
+   *          the session of the request.
+   * @param basicUserInfoService
+   * @return the resolver for this request.
+   */
+  public static BasicUserInfoResolver getResolver(ServletRequest request, Session session,
+      BasicUserInfoService basicUserInfoService) {
+    Object o = request.getAttribute(REQUEST_ATTRIBUTE);
+    if (o instanceof BasicUserInfoResolver && ((BasicUserInfoResolver) o).session == session) {
+      return (BasicUserInfoResolver) o;
+    }
+    BasicUserInfoResolver resolver = new BasicUserInfoResolver(session, basicUserInfoService);
+    request.setAttribute(REQUEST_ATTRIBUTE, resolver);
+    return resolver;
+  }
+
+  /**
+   * Declare ids that will be needed, so they are loaded together with the next lookup.
+   *
+   * @param ids
+   */
+  public void require(Collection<String> ids) {
+    for (String id : ids) {
+      require(id);
+    }
+  }
+
+  /**
+   * Declare an id that will be needed, so it is loaded together with the next lookup.
+   *
+   * @param id
+   */
+  public void require(String id) {
+    if (id != null && !authorizables.containsKey(id)) {
+      pending.add(id);
+    }
+  }
+
+  /**
+   * @param id
+   * @return the authorizable with this id, or null if it does not exist or can't be seen
+   *         by the session.
+   * @throws StorageClientException
+   */
+  public Authorizable getAuthorizable(String id) throws StorageClientException {
+    lookups++;
+    if (!authorizables.containsKey(id)) {
+      pending.add(id);
+      resolvePending();
+    }
+    return authorizables.get(id);
+  }
+
+  /**
+   * @param id
+   * @return the basic info map for the authorizable with this id, see
+   *         {@link BasicUserInfoService#getProperties(Authorizable)}. The same map is
+   *         returned for every call in a request, so it must not be modified.
+   * @throws StorageClientException
+   */
+  public Map<String, Object> getProperties(String id) throws StorageClientException {
+    Map<String, Object> basicInfo = properties.get(id);
+    if (basicInfo == null) {
+      basicInfo = basicUserInfoService.getProperties(getAuthorizable(id));
+      properties.put(id, basicInfo);
+    } else {
+      lookups++;
+    }
+    return basicInfo;
+  }
+
+  /**
+   * @return the number of authorizables asked for.
+   */
+  public int getLookups() {
+    return lookups;
+  }
+
+  /**
+   * @return the number of authorizables loaded from the repository.
+   */
+  public int getLoads() {
+    return loads;
+  }
+
+  private void resolvePending() throws StorageClientException {
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    for (String id : pending) {
+      if (!authorizables.containsKey(id)) {
+        Authorizable authorizable = null;
+        try {
+          authorizable = authorizableManager.findAuthorizable(id);
+        } catch (AccessDeniedException e) {
+          LOGGER.debug("Unable to read authorizable {} ", id);
+        }
+        loads++;
+        authorizables.put(id, authorizable);
+      }
+    }
+    pending.clear();
+    batches++;
+    LOGGER.debug("Loaded {} authorizables in {} batches for {} lookups", new Object[] {
+        loads, batches, lookups });
+  }
+}
@@ -0,0 +1,40 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.user;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+
+/**
+ * Compiles the pages templates that are copied into new homes. A home created without a
+ * request can only get pages from a template that was compiled before.
+ */
+public interface PagesTemplateService {
+
+  /**
+   * Compile the default user and group pages templates, unless they are already
+   * compiled and have not expired.
+   *
+   * @param resourceResolver
+   *          a resolver that can read the templates.
+   * @throws StorageClientException
+   */
+  void preparePagesTemplates(ResourceResolver resourceResolver)
+      throws StorageClientException;
+
+}
@@ -0,0 +1,535 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.servlets.post.ModificationType;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.user.LiteAuthorizablePostProcessService;
+import org.sakaiproject.nakamura.user.lite.resource.LiteNameSanitizer;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bulk import of authorizables. The entries are split into batches which are
+ * provisioned in parallel, each in its own administrative session. The ids of the
+ * entries, the set of completed batches and the entries that failed are stored under
+ * {@link #JOBS_PATH}, so an interrupted import can be resumed. A batch is only complete
+ * once every one of its entries was imported; a resume retries the failed entries of a
+ * batch that ran to its end and replays any other batch that is not complete. Passwords
+ * and properties are only held in memory; they are never stored, and the stored ids are
+ * removed once every batch is complete. Importing an entry is idempotent: authorizables
+ * that already exist only get a home if they are missing one, so replaying a batch is
+ * harmless. Entries are checked and passwords digested as the create servlets do.
+ */
+final class BulkImportJob {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkImportJob.class);
+
+  static final String JOBS_PATH = "/var/userManager/bulkimport/";
+
+  static final String STATUS_RUNNING = "running";
+  static final String STATUS_COMPLETE = "complete";
+  static final String STATUS_INCOMPLETE = "incomplete";
+
+  private static final String PROP_STATUS = "status";
+  private static final String PROP_TOTAL = "total";
+  private static final String PROP_BATCH_SIZE = "batchSize";
+  private static final String PROP_CREATED = "created";
+  private static final String PROP_PROVISIONED = "provisioned";
+  private static final String PROP_SKIPPED = "skipped";
+  private static final String PROP_FAILED = "failed";
+  private static final String PROP_COMPLETED_BATCHES = "completedBatches";
+  private static final String PROP_FAILED_ENTRIES = "failedEntries";
+  private static final String PROP_STARTED = "started";
+  private static final String PROP_UPDATED = "updated";
+
+  private static final String[] STORED_KEYS = { "id", "type" };
+
+  private final String id;
+  private final JSONArray entries;
+  private final int total;
+  private final int batchSize;
+  private final int batchCount;
+  private final long started;
+  /**
+   * Batches whose entries were all imported, guards {@link #failedEntries} as well.
+   */
+  private final Set<Integer> completedBatches = new TreeSet<Integer>();
+  /**
+   * Indices of the entries that failed in batches that ran to their end.
+   */
+  private final SortedSet<Integer> failedEntries = new TreeSet<Integer>();
+  private final AtomicInteger created = new AtomicInteger();
+  private final AtomicInteger provisioned = new AtomicInteger();
+  private final AtomicInteger skipped = new AtomicInteger();
+  private volatile String status = STATUS_RUNNING;
+
+  BulkImportJob(String id, JSONArray entries, int batchSize) {
+    this(id, entries, entries.length(), batchSize, System.currentTimeMillis());
+  }
+
+  private BulkImportJob(String id, JSONArray entries, int total, int batchSize,
+      long started) {
+    this.id = id;
+    this.entries = entries;
+    this.total = total;
+    this.batchSize = Math.max(1, batchSize);
+    this.batchCount = (total + this.batchSize - 1) / this.batchSize;
+    this.started = started;
+  }
+
+  /**
+   * Load a job that was stored by an earlier run.
+   *
+   * @param id
+   * @param session
+   *          an administrative session.
+   * @return the job or null if there is no job with this id.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws IOException
+   * @throws JSONException
+   */
+  static BulkImportJob load(String id, Session session) throws StorageClientException,
+      AccessDeniedException, IOException, JSONException {
+    ContentManager contentManager = session.getContentManager();
+    Content content = contentManager.get(JOBS_PATH + id);
+    if (content == null) {
+      return null;
+    }
+    JSONArray entries = new JSONArray();
+    if (contentManager.hasBody(JOBS_PATH + id, null)) {
+      InputStream in = contentManager.getInputStream(JOBS_PATH + id);
+      try {
+        entries = new JSONArray(read(in));
+      } finally {
+        in.close();
+      }
+    }
+    BulkImportJob job = new BulkImportJob(id, entries, toInt(content
+        .getProperty(PROP_TOTAL)), toInt(content.getProperty(PROP_BATCH_SIZE)),
+        toLong(content.getProperty(PROP_STARTED)));
+    job.status = (String) content.getProperty(PROP_STATUS);
+    job.created.set(toInt(content.getProperty(PROP_CREATED)));
+    job.provisioned.set(toInt(content.getProperty(PROP_PROVISIONED)));
+    job.skipped.set(toInt(content.getProperty(PROP_SKIPPED)));
+    toIntegers(content.getProperty(PROP_COMPLETED_BATCHES), job.completedBatches);
+    toIntegers(content.getProperty(PROP_FAILED_ENTRIES), job.failedEntries);
+    return job;
+  }
+
+  /**
+   * Store the job and the ids of its entries so it can be resumed. Passwords and
+   * properties are not stored.
+   *
+   * @param session
+   *          an administrative session.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  void store(Session session) throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = session.getContentManager();
+    contentManager.update(new Content(JOBS_PATH + id, getJobProperties()));
+    try {
+      contentManager.writeBody(JOBS_PATH + id, new ByteArrayInputStream(toStored(entries)
+          .toString().getBytes("UTF-8")));
+    } catch (JSONException e) {
+      throw new StorageClientException(e.getMessage(), e);
+    } catch (UnsupportedEncodingException e) {
+      throw new StorageClientException(e.getMessage(), e);
+    } catch (IOException e) {
+      throw new StorageClientException(e.getMessage(), e);
+    }
+    checkpoint(session);
+  }
+
+  /**
+   * Put back the passwords and properties of a resumed job. The stored job only knows the
+   * ids of its entries, so users that were not created before the interruption can only
+   * be created if the original entries are posted again.
+   *
+   * @param original
+   *          the entries the job was started with.
+   * @return false if the entries are not the ones this job was started with.
+   * @throws JSONException
+   */
+  boolean restoreEntries(JSONArray original) throws JSONException {
+    if (original.length() != entries.length()) {
+      return false;
+    }
+    for (int i = 0; i < entries.length(); i++) {
+      JSONObject stored = entries.optJSONObject(i);
+      JSONObject entry = original.optJSONObject(i);
+      String storedId = stored == null ? null : stored.optString("id", null);
+      String entryId = entry == null ? null : entry.optString("id", null);
+      if (storedId == null ? entryId != null : !storedId.equals(entryId)) {
+        return false;
+      }
+    }
+    for (int i = 0; i < entries.length(); i++) {
+      entries.put(i, original.get(i));
+    }
+    return true;
+  }
+
+  /**
+   * Submit every batch that has not completed yet. Only the failed entries of a batch that
+   * ran to its end are retried.
+   *
+   * @param executor
+   * @param repository
+   * @param postProcessService
+   * @param passwordDigest
+   *          the algorithm user passwords are digested with.
+   * @param onComplete
+   *          run once every batch has completed, may be null.
+   */
+  void submit(ExecutorService executor, final Repository repository,
+      final LiteAuthorizablePostProcessService postProcessService,
+      final String passwordDigest, final Runnable onComplete) {
+    status = STATUS_RUNNING;
+    final AtomicInteger remaining = new AtomicInteger();
+    for (int b = 0; b < batchCount; b++) {
+      synchronized (completedBatches) {
+        if (completedBatches.contains(b)) {
+          continue;
+        }
+      }
+      remaining.incrementAndGet();
+      final int batch = b;
+      executor.execute(new Runnable() {
+        public void run() {
+          runBatch(batch, repository, postProcessService, passwordDigest);
+          if (remaining.decrementAndGet() == 0) {
+            complete(repository, onComplete);
+            LOGGER.info("Bulk import {} complete, {} ", id, BulkImportJob.this);
+          }
+        }
+      });
+    }
+    if (remaining.get() == 0) {
+      complete(repository, onComplete);
+    }
+  }
+
+  private void complete(Repository repository, Runnable onComplete) {
+    boolean allCompleted;
+    synchronized (completedBatches) {
+      allCompleted = completedBatches.size() == batchCount;
+    }
+    status = allCompleted ? STATUS_COMPLETE : STATUS_INCOMPLETE;
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      // drop the stored ids once nothing is left to retry, only the progress is kept
+      ContentManager contentManager = session.getContentManager();
+      if (allCompleted && contentManager.exists(JOBS_PATH + id)) {
+        contentManager.delete(JOBS_PATH + id);
+        contentManager.update(new Content(JOBS_PATH + id, getJobProperties()));
+      }
+      checkpoint(session);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to complete bulk import {}: {}", id, e.getMessage());
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+    if (onComplete != null) {
+      onComplete.run();
+    }
+  }
+
+  private void runBatch(int batch, Repository repository,
+      LiteAuthorizablePostProcessService postProcessService, String passwordDigest) {
+    Session session = null;
+    try {
+      session = repository.loginAdministrative();
+      int start = batch * batchSize;
+      int end = Math.min(entries.length(), start + batchSize);
+      Set<Integer> retry;
+      synchronized (completedBatches) {
+        retry = new TreeSet<Integer>(failedEntries.subSet(start, end));
+      }
+      // failures are only recorded for a batch that ran to its end
+      Set<Integer> failures = new TreeSet<Integer>();
+      for (int i = start; i < end; i++) {
+        if (!retry.isEmpty() && !retry.contains(i)) {
+          continue;
+        }
+        JSONObject entry = entries.optJSONObject(i);
+        try {
+          importEntry(entry, session, postProcessService, passwordDigest);
+        } catch (Exception e) {
+          failures.add(i);
+          LOGGER.warn("Bulk import {} failed to import entry {}: {}", new Object[] { id, i,
+              e.getMessage() });
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+      synchronized (completedBatches) {
+        failedEntries.removeAll(retry);
+        failedEntries.addAll(failures);
+        if (failures.isEmpty()) {
+          completedBatches.add(batch);
+        }
+      }
+      checkpoint(session);
+    } catch (Exception e) {
+      LOGGER.error("Bulk import " + id + " failed on batch " + batch, e);
+    } finally {
+      if (session != null) {
+        try {
+          session.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  private void importEntry(JSONObject entry, Session session,
+      LiteAuthorizablePostProcessService postProcessService, String passwordDigest)
+      throws Exception {
+    if (entry == null || !entry.has("id")) {
+      throw new IllegalArgumentException("Entry has no id");
+    }
+    String authorizableId = entry.getString("id");
+    boolean isGroup = "group".equals(entry.optString("type", "user"));
+    new LiteNameSanitizer(authorizableId, !isGroup).validate();
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    Authorizable authorizable = authorizableManager.findAuthorizable(authorizableId);
+    boolean isNew = false;
+    if (authorizable == null) {
+      Map<String, Object> properties = toProperties(entry.optJSONObject("properties"));
+      if (isGroup) {
+        isNew = authorizableManager.createGroup(authorizableId, authorizableId, properties);
+      } else {
+        if (!entry.has("password")) {
+          throw new IllegalArgumentException("User " + authorizableId + " has no password");
+        }
+        String password = entry.getString("password");
+        if (entry.has("pwdConfirm") && !password.equals(entry.getString("pwdConfirm"))) {
+          throw new IllegalArgumentException(
+              "Password value does not match the confirmation password");
+        }
+        isNew = authorizableManager.createUser(authorizableId, authorizableId,
+            LiteAbstractUserPostServlet.digestPassword(password, passwordDigest), properties);
+      }
+      authorizable = authorizableManager.findAuthorizable(authorizableId);
+      if (authorizable == null) {
+        throw new IllegalStateException("Failed to create " + authorizableId);
+      }
+      created.incrementAndGet();
+    }
+    if (isNew
+        || !session.getContentManager().exists(
+            LitePersonalUtils.getHomePath(authorizableId))) {
+      postProcessService.process(authorizable, session, ModificationType.CREATE, null);
+      provisioned.incrementAndGet();
+    } else {
+      skipped.incrementAndGet();
+    }
+  }
+
+  private Map<String, Object> toProperties(JSONObject json) throws JSONException {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    if (json != null) {
+      for (Iterator<String> keys = json.keys(); keys.hasNext();) {
+        String key = keys.next();
+        Object value = json.get(key);
+        if (value instanceof JSONArray) {
+          JSONArray array = (JSONArray) value;
+          String[] values = new String[array.length()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = array.getString(i);
+          }
+          properties.put(key, values);
+        } else {
+          properties.put(key, String.valueOf(value));
+        }
+      }
+    }
+    return properties;
+  }
+
+  private Map<String, Object> getJobProperties() {
+    return ImmutableMap.of(PROP_TOTAL, (Object) total, PROP_BATCH_SIZE, batchSize,
+        PROP_STARTED, started);
+  }
+
+  private void checkpoint(Session session) {
+    try {
+      ContentManager contentManager = session.getContentManager();
+      Content content = contentManager.get(JOBS_PATH + id);
+      if (content == null) {
+        return;
+      }
+      String[] completed;
+      String[] failed;
+      synchronized (completedBatches) {
+        completed = toStrings(completedBatches);
+        failed = toStrings(failedEntries);
+      }
+      content.setProperty(PROP_STATUS, status);
+      content.setProperty(PROP_COMPLETED_BATCHES, completed);
+      content.setProperty(PROP_FAILED_ENTRIES, failed);
+      content.setProperty(PROP_CREATED, created.get());
+      content.setProperty(PROP_PROVISIONED, provisioned.get());
+      content.setProperty(PROP_SKIPPED, skipped.get());
+      content.setProperty(PROP_FAILED, failed.length);
+      content.setProperty(PROP_UPDATED, System.currentTimeMillis());
+      contentManager.update(content);
+    } catch (Exception e) {
+      LOGGER.warn("Unable to checkpoint bulk import {}: {}", id, e.getMessage());
+    }
+  }
+
+  /**
+   * Write the progress of this job.
+   *
+   * @param write
+   * @throws JSONException
+   */
+  void writeProgress(JSONWriter write) throws JSONException {
+    int completed;
+    int failed;
+    synchronized (completedBatches) {
+      completed = completedBatches.size();
+      failed = failedEntries.size();
+    }
+    write.object();
+    write.key("id").value(id);
+    write.key(PROP_STATUS).value(status);
+    write.key(PROP_TOTAL).value(total);
+    write.key(PROP_BATCH_SIZE).value(batchSize);
+    write.key("batches").value(batchCount);
+    write.key(PROP_COMPLETED_BATCHES).value(completed);
+    write.key(PROP_CREATED).value(created.get());
+    write.key(PROP_PROVISIONED).value(provisioned.get());
+    write.key(PROP_SKIPPED).value(skipped.get());
+    write.key(PROP_FAILED).value(failed);
+    write.key(PROP_STARTED).value(started);
+    write.endObject();
+  }
+
+  String getId() {
+    return id;
+  }
+
+  boolean isRunning() {
+    return STATUS_RUNNING.equals(status);
+  }
+
+  @Override
+  public String toString() {
+    int failed;
+    synchronized (completedBatches) {
+      failed = failedEntries.size();
+    }
+    return "created=" + created + " provisioned=" + provisioned + " skipped=" + skipped
+        + " failed=" + failed;
+  }
+
+  private static JSONArray toStored(JSONArray entries) throws JSONException {
+    JSONArray stored = new JSONArray();
+    for (int i = 0; i < entries.length(); i++) {
+      JSONObject entry = entries.optJSONObject(i);
+      JSONObject ids = new JSONObject();
+      if (entry != null) {
+        for (String key : STORED_KEYS) {
+          if (entry.has(key)) {
+            ids.put(key, entry.get(key));
+          }
+        }
+      }
+      stored.put(ids);
+    }
+    return stored;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    Reader reader = new InputStreamReader(in, "UTF-8");
+    StringWriter out = new StringWriter();
+    char[] buffer = new char[4096];
+    for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    return out.toString();
+  }
+
+  private static String[] toStrings(Set<Integer> values) {
+    String[] strings = new String[values.size()];
+    int i = 0;
+    for (Integer value : values) {
+      strings[i++] = String.valueOf(value);
+    }
+    return strings;
+  }
+
+  private static void toIntegers(Object o, Set<Integer> values) {
+    if (o instanceof String[]) {
+      for (String value : (String[]) o) {
+        values.add(Integer.valueOf(value));
+      }
+    }
+  }
+
+  private static int toInt(Object o) {
+    return o instanceof Number ? ((Number) o).intValue() : 0;
+  }
+
+  private static long toLong(Object o) {
+    return o instanceof Number ? ((Number) o).longValue() : 0L;
+  }
+}
@@ -81,7 +81,7 @@ public abstract class LiteAbstractUserPostServlet extends
      * @return the digested value
      * @throws IllegalArgumentException
      */
-    protected String digestPassword(String pwd, String digest) throws IllegalArgumentException {
+    protected static String digestPassword(String pwd, String digest) throws IllegalArgumentException {
         try {
             StringBuffer password = new StringBuffer();
             password.append("{").append(digest).append("}");
@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.user.postprocessors;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.ImmutableSet;
@@ -31,9 +32,9 @@ import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.jackrabbit.JcrConstants;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.OsgiUtil;
@@ -58,6 +59,7 @@ import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.user.LiteAuthorizablePostProcessor;
+import org.sakaiproject.nakamura.api.user.PagesTemplateService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ActivityUtils;
 import org.sakaiproject.nakamura.util.LitePersonalUtils;
@@ -67,7 +69,6 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -75,14 +76,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.Node;
-import javax.jcr.NodeIterator;
-import javax.jcr.PropertyIterator;
-import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
-import javax.jcr.Value;
-import javax.jcr.nodetype.PropertyDefinition;
 
 /**
  * 
@@ -160,9 +158,10 @@ import javax.jcr.nodetype.PropertyDefinition;
  * </pre>
  */
 @Component(immediate = true, metatype = true)
-@Service(value = LiteAuthorizablePostProcessor.class)
+@Service(value = { LiteAuthorizablePostProcessor.class, PagesTemplateService.class })
 @Properties(value = { @Property(name = "default", value = "true") })
-public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
+public class DefaultPostProcessor implements LiteAuthorizablePostProcessor,
+    PagesTemplateService {
 
   private static final String PAGES_FOLDER = "/pages";
 
@@ -231,8 +230,18 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
   public static final String DEFAULT_GROUP_PAGES_TEMPLATE = "default.group.template";
   private String defaultGroupPagesTemplate;
 
+  @Property(longValue = DefaultPostProcessor.DEFAULT_PAGES_TEMPLATE_CACHE_TTL, label = "Pages template cache TTL", description = "Seconds a compiled pages template is reused before it is read from the repository again, 0 to keep it until the component is reconfigured.")
+  static final String PAGES_TEMPLATE_CACHE_TTL = "pages.template.cache.ttl";
+  static final long DEFAULT_PAGES_TEMPLATE_CACHE_TTL = 300;
+  private long pagesTemplateCacheTtl;
+
+  /**
+   * Compiled pages templates by template path.
+   */
+  private final ConcurrentMap<String, PagesTemplate> pagesTemplates = new ConcurrentHashMap<String, PagesTemplate>();
+
   private String defaultProfileTemplate;
-  private ArrayList<String> profileParams = new ArrayList<String>();
+  private List<String> profileParams = ImmutableList.of();
   static final String VISIBILITY_PREFERENCE = "visibility.preference";
   static final String VISIBILITY_PREFERENCE_DEFAULT = VISIBILITY_PUBLIC;
 
@@ -248,6 +257,24 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
 
   private static final String JOINREQUESTS_RT = "sparse/joinrequests";
 
+  private static final AclModification DENY_ANON_ALL = new AclModification(
+      AclModification.denyKey(User.ANON_USER), Permissions.ALL.getPermission(),
+      Operation.OP_REPLACE);
+
+  private static final AclModification DENY_EVERYONE_ALL = new AclModification(
+      AclModification.denyKey(Group.EVERYONE), Permissions.ALL.getPermission(),
+      Operation.OP_REPLACE);
+
+  /**
+   * The home ACL of the anonymous user, which is always readable.
+   */
+  private static final List<AclModification> ANON_HOME_ACL = compileHomeAcl(VISIBILITY_PUBLIC);
+
+  /**
+   * The home ACL for the configured visibility, compiled when the component is configured.
+   */
+  private List<AclModification> homeAcl = compileHomeAcl(VISIBILITY_PREFERENCE_DEFAULT);
+
   @Reference
   protected Repository repository;
 
@@ -264,8 +291,11 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
     visibilityPreference = OsgiUtil.toString(props.get(VISIBILITY_PREFERENCE),
         VISIBILITY_PREFERENCE_DEFAULT);
 
+    homeAcl = compileHomeAcl(visibilityPreference);
+
     defaultProfileTemplate = PROFILE_IMPORT_TEMPLATE_DEFAULT;
 
+    List<String> profileParams = new ArrayList<String>();
     int startPos = defaultProfileTemplate.indexOf("@@");
     while (startPos > -1) {
       int endPos = defaultProfileTemplate.indexOf("@@", startPos + 2);
@@ -277,11 +307,15 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
       }
       startPos = endPos;
     }
+    this.profileParams = ImmutableList.copyOf(profileParams);
 
     defaultUserPagesTemplate = OsgiUtil.toString(props.get(DEFAULT_USER_PAGES_TEMPLATE),
         "");
     defaultGroupPagesTemplate = OsgiUtil.toString(
         props.get(DEFAULT_GROUP_PAGES_TEMPLATE), "");
+    pagesTemplateCacheTtl = OsgiUtil.toLong(props.get(PAGES_TEMPLATE_CACHE_TTL),
+        DEFAULT_PAGES_TEMPLATE_CACHE_TTL) * 1000L;
+    pagesTemplates.clear();
 
     createDefaultUsers();
 
@@ -398,31 +432,14 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
             props.put(SAKAI_SEARCH_EXCLUDE_TREE_PROP,
                 authorizable.getProperty(SAKAI_SEARCH_EXCLUDE_TREE_PROP));
           }
+          // Nothing below a home that has no children can exist yet, so none of the
+          // standard paths need to be checked before they are written.
+          final boolean fresh = !contentManager.listChildPaths(homePath).hasNext();
           contentManager.update(new Content(homePath, props.build()));
 
-          List<AclModification> aclModifications = new ArrayList<AclModification>();
           // KERN-886 : Depending on the profile preference we set some ACL's on the profile.
-          if (User.ANON_USER.equals(authId)) {
-            AclModification.addAcl(true, Permissions.CAN_READ, User.ANON_USER,
-                aclModifications);
-            AclModification.addAcl(true, Permissions.CAN_READ, Group.EVERYONE,
-                aclModifications);
-          } else if (VISIBILITY_PUBLIC.equals(visibilityPreference)) {
-            AclModification.addAcl(true, Permissions.CAN_READ, User.ANON_USER,
-                aclModifications);
-            AclModification.addAcl(true, Permissions.CAN_READ, Group.EVERYONE,
-                aclModifications);
-          } else if (VISIBILITY_LOGGED_IN.equals(visibilityPreference)) {
-            AclModification.addAcl(false, Permissions.CAN_READ, User.ANON_USER,
-                aclModifications);
-            AclModification.addAcl(true, Permissions.CAN_READ, Group.EVERYONE,
-                aclModifications);
-          } else if (VISIBILITY_PRIVATE.equals(visibilityPreference)) {
-            AclModification.addAcl(false, Permissions.CAN_READ, User.ANON_USER,
-                aclModifications);
-            AclModification.addAcl(false, Permissions.CAN_READ, Group.EVERYONE,
-                aclModifications);
-          }
+          List<AclModification> aclModifications = new ArrayList<AclModification>(
+              User.ANON_USER.equals(authId) ? ANON_HOME_ACL : homeAcl);
 
           Map<String, Object> acl = Maps.newHashMap();
           syncOwnership(authorizable, acl, aclModifications);
@@ -436,26 +453,26 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
 
           // Create standard Home subpaths
           createPath(authId, LitePersonalUtils.getPublicPath(authId), SAKAI_PUBLIC_RT, false,
-              contentManager, accessControlManager, null);
+              fresh, contentManager, accessControlManager, null);
           createPath(authId, LitePersonalUtils.getPrivatePath(authId), SAKAI_PRIVATE_RT, true,
-              contentManager, accessControlManager, null);
+              fresh, contentManager, accessControlManager, null);
 
           // Message PostProcessor
           createPath(authId, homePath + MESSAGE_FOLDER, SAKAI_MESSAGESTORE_RT, true,
-              contentManager, accessControlManager, null);
+              fresh, contentManager, accessControlManager, null);
           // Calendar
           createPath(authId, homePath + CALENDAR_FOLDER, SAKAI_CALENDAR_RT, false,
-              contentManager, accessControlManager, null);
+              fresh, contentManager, accessControlManager, null);
           // Connections
           createPath(authId, homePath + CONTACTS_FOLDER, SAKAI_CONTACTSTORE_RT, true,
-              contentManager, accessControlManager, null);
+              fresh, contentManager, accessControlManager, null);
           authorizableManager.createGroup("g-contacts-" + authorizable.getId(), "g-contacts-"
               + authorizable.getId(), null);
           // Pages
           boolean createdPages = createPath(authId, homePath + PAGES_FOLDER, SAKAI_PAGES_RT,
-              false, contentManager, accessControlManager, null);
+              false, fresh, contentManager, accessControlManager, null);
           createPath(authId, homePath + PAGES_DEFAULT_FILE, SAKAI_PAGES_RT, false,
-              contentManager, accessControlManager, null);
+              fresh, contentManager, accessControlManager, null);
           if (createdPages) {
             intitializeContent(request, authorizable, session, homePath + PAGES_FOLDER,
                 parameters);
@@ -475,13 +492,13 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
               }
             }
             createPath(authId, LitePersonalUtils.getPublicPath(authId) + PROFILE_FOLDER,
-                profileType, false, contentManager, accessControlManager,
+                profileType, false, fresh, contentManager, accessControlManager,
                 sakaiAuthzProperties);
             createPath(authId, homePath + JOINREQUESTS_FOLDER, JOINREQUESTS_RT, false,
-                contentManager, accessControlManager, null);
+                fresh, contentManager, accessControlManager, null);
           } else {
             createPath(authId, LitePersonalUtils.getPublicPath(authId) + PROFILE_FOLDER,
-                profileType, false, contentManager, accessControlManager, sakaiAuthzProperties);
+                profileType, false, fresh, contentManager, accessControlManager, sakaiAuthzProperties);
           }
           // end KERN-1569 hackaround
           // createPath(authId, LitePersonalUtils.getPublicPath(authId) + PROFILE_FOLDER,
@@ -490,10 +507,10 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
           Map<String, Object> profileProperties = processProfileParameters(
               defaultProfileTemplate, authorizable, parameters);
           createPath(authId, LitePersonalUtils.getProfilePath(authId) + PROFILE_BASIC,
-              "nt:unstructured", false, contentManager, accessControlManager, null);
+              "nt:unstructured", false, fresh, contentManager, accessControlManager, null);
           for (String propName : profileProperties.keySet()) {
             createPath(authId, LitePersonalUtils.getProfilePath(authId) + PROFILE_BASIC + "/" + propName,
-                "nt:unstructured", false, contentManager, accessControlManager, ImmutableMap.of("value", profileProperties.get(propName)));
+                "nt:unstructured", false, fresh, contentManager, accessControlManager, ImmutableMap.of("value", profileProperties.get(propName)));
             authorizable.setProperty(propName, profileProperties.get(propName));
           }
           authorizableManager.updateAuthorizable(authorizable);
@@ -608,112 +625,63 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
       }
     }
 
-    if (request != null) {
-      Resource resource = request.getResourceResolver().resolve(templatePath);
-      Node node = resource.adaptTo(Node.class);
-      if (node != null) {
-        try {
-          recursiveCopy(node, pagesPath, session.getContentManager());
-        } catch (RepositoryException e) {
-          LOGGER.warn("Failed to Copy JCR Template ", e);
-          throw new StorageClientException(e.getMessage(), e);
-        }
-      } else {
-        session.getContentManager().copy(templatePath, pagesPath, true);
-      }
+    PagesTemplate template = getPagesTemplate(
+        request == null ? null : request.getResourceResolver(), templatePath);
+    if (template != null) {
+      template.replay(pagesPath, session.getContentManager(),
+          ImmutableSet.of(pagesPath, pagesPath + PAGES_DEFAULT_FILE.substring(PAGES_FOLDER.length())));
+    } else if (request != null) {
+      session.getContentManager().copy(templatePath, pagesPath, true);
     }
   }
 
-  private void recursiveCopy(Node node, String thisPath, ContentManager contentManager)
-      throws RepositoryException, StorageClientException, AccessDeniedException,
-      IOException {
-    Builder<String, Object> builder = ImmutableMap.builder();
-    PropertyIterator pi = node.getProperties();
-    while (pi.hasNext()) {
-      javax.jcr.Property p = pi.nextProperty();
-      LOGGER.debug("Setting property {}:{} ", thisPath, p.getName());
-      PropertyDefinition pd = p.getDefinition();
-      int type = pd.getRequiredType();
-      if (pd.isMultiple()) {
-        Value[] v = p.getValues();
-        switch (type) {
-        case PropertyType.DATE: {
-          Calendar[] s = new Calendar[v.length];
-          for (int i = 0; i < v.length; i++) {
-            s[i] = v[i].getDate();
-          }
-          builder.put(p.getName(), s);
-          break;
-        }
-        default: {
-          String[] s = new String[v.length];
-          for (int i = 0; i < v.length; i++) {
-            s[i] = v[i].getString();
-          }
-          builder.put(p.getName(), s);
-          break;
-        }
-        }
-
-      } else {
-        Value v = p.getValue();
-        switch (type) {
-        case PropertyType.BOOLEAN:
-          builder.put(p.getName(), v.getBoolean());
-          break;
-        case PropertyType.DATE:
-          builder.put(p.getName(), v.getDate());
-          break;
-        case PropertyType.DECIMAL:
-          builder.put(p.getName(), v.getDecimal());
-          break;
-        case PropertyType.LONG:
-          builder.put(p.getName(), v.getLong());
-          break;
-        case PropertyType.STRING:
-          builder.put(p.getName(), v.getString());
-          break;
-        default:
-          builder.put(p.getName(), v.getString());
-          break;
-        }
-      }
-    }
-    Content content = contentManager.get(thisPath);
-    if (content == null) {
-      contentManager.update(new Content(thisPath, builder.build()));
-    } else {
-      Map<String, Object> props = builder.build();
-      for (Entry<String, Object> e : props.entrySet()) {
-        content.setProperty(e.getKey(), e.getValue());
-      }
-    }
+  /**
+   * {@inheritDoc}
+   *
+   * Homes created without a request, such as by a bulk import, get their pages from these.
+   *
+   * @see org.sakaiproject.nakamura.api.user.PagesTemplateService#preparePagesTemplates(org.apache.sling.api.resource.ResourceResolver)
+   */
+  public void preparePagesTemplates(ResourceResolver resourceResolver)
+      throws StorageClientException {
+    getPagesTemplate(resourceResolver, defaultUserPagesTemplate);
+    getPagesTemplate(resourceResolver, defaultGroupPagesTemplate);
+  }
 
-    if (JcrConstants.NT_FILE.equals(node.getPrimaryNodeType().getName())) {
-      Node contentNode = node.getNode(JcrConstants.JCR_CONTENT);
-      javax.jcr.Property data = contentNode.getProperty(JcrConstants.JCR_DATA);
-      contentManager.writeBody(thisPath, data.getBinary().getStream());
-      if (content == null) {
-        content = contentManager.get(thisPath);
-        if (contentNode.hasProperty(JcrConstants.JCR_MIMETYPE)) {
-          content.setProperty(Content.MIMETYPE_FIELD,
-              contentNode.getProperty(JcrConstants.JCR_MIMETYPE).getString());
-        }
-        if (contentNode.hasProperty(JcrConstants.JCR_LASTMODIFIED)) {
-          content.setProperty(Content.LASTMODIFIED_FIELD,
-              contentNode.getProperty(JcrConstants.JCR_LASTMODIFIED).getLong());
-        }
-      }
+  /**
+   * Get the compiled pages template, compiling it if it is not cached or has expired.
+   * Without a resolver only an already compiled template can be returned.
+   *
+   * @param resourceResolver
+   * @param templatePath
+   * @return the template or null if the template is not a JCR node.
+   * @throws StorageClientException
+   */
+  private PagesTemplate getPagesTemplate(ResourceResolver resourceResolver,
+      String templatePath) throws StorageClientException {
+    PagesTemplate template = pagesTemplates.get(templatePath);
+    if (resourceResolver == null
+        || (template != null && !template.isExpired(pagesTemplateCacheTtl))) {
+      return template;
     }
-    if (content != null) {
-      contentManager.update(content);
+    Resource resource = resourceResolver.resolve(templatePath);
+    Node node = resource.adaptTo(Node.class);
+    if (node == null) {
+      pagesTemplates.remove(templatePath);
+      return null;
     }
-    NodeIterator ni = node.getNodes();
-    while (ni.hasNext()) {
-      Node n = ni.nextNode();
-      if (!JcrConstants.NT_FILE.equals(n.getPrimaryNodeType().getName())) {
-        recursiveCopy(n, thisPath + "/" + n.getName(), contentManager);
-      }
+    try {
+      template = PagesTemplate.compile(templatePath, node);
+      LOGGER.debug("Compiled pages template {} into {} writes", templatePath,
+          template.size());
+      pagesTemplates.put(templatePath, template);
+      return template;
+    } catch (RepositoryException e) {
+      LOGGER.warn("Failed to Copy JCR Template ", e);
+      throw new StorageClientException(e.getMessage(), e);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to Copy JCR Template ", e);
+      throw new StorageClientException(e.getMessage(), e);
     }
   }
 
@@ -847,7 +815,7 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
   }
 
   private boolean createPath(String authId, String path, String resourceType,
-      boolean isPrivate, ContentManager contentManager,
+      boolean isPrivate, boolean fresh, ContentManager contentManager,
       AccessControlManager accessControlManager, Map<String, Object> additionalProperties)
       throws AccessDeniedException, StorageClientException {
     Builder<String, Object> propertyBuilder = ImmutableMap.builder();
@@ -855,17 +823,15 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
     if (additionalProperties != null) {
       propertyBuilder.putAll(additionalProperties);
     }
-    if (!contentManager.exists(path)) {
+    if (fresh || !contentManager.exists(path)) {
       contentManager.update(new Content(path, propertyBuilder.build()));
       if (isPrivate) {
         accessControlManager.setAcl(
             Security.ZONE_CONTENT,
             path,
             new AclModification[] {
-                new AclModification(AclModification.denyKey(User.ANON_USER),
-                    Permissions.ALL.getPermission(), Operation.OP_REPLACE),
-                new AclModification(AclModification.denyKey(Group.EVERYONE),
-                    Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+                DENY_ANON_ALL,
+                DENY_EVERYONE_ALL,
                 new AclModification(AclModification.grantKey(authId), Permissions.ALL
                     .getPermission(), Operation.OP_REPLACE) });
       }
@@ -874,6 +840,32 @@ public class DefaultPostProcessor implements LiteAuthorizablePostProcessor {
     return false;
   }
 
+  /**
+   * @param visibility
+   *          one of the visibility preferences.
+   * @return the anonymous and everyone ACL for a new home with this visibility.
+   */
+  private static List<AclModification> compileHomeAcl(String visibility) {
+    List<AclModification> aclModifications = new ArrayList<AclModification>();
+    if (VISIBILITY_PUBLIC.equals(visibility)) {
+      AclModification.addAcl(true, Permissions.CAN_READ, User.ANON_USER,
+          aclModifications);
+      AclModification.addAcl(true, Permissions.CAN_READ, Group.EVERYONE,
+          aclModifications);
+    } else if (VISIBILITY_LOGGED_IN.equals(visibility)) {
+      AclModification.addAcl(false, Permissions.CAN_READ, User.ANON_USER,
+          aclModifications);
+      AclModification.addAcl(true, Permissions.CAN_READ, Group.EVERYONE,
+          aclModifications);
+    } else if (VISIBILITY_PRIVATE.equals(visibility)) {
+      AclModification.addAcl(false, Permissions.CAN_READ, User.ANON_USER,
+          aclModifications);
+      AclModification.addAcl(false, Permissions.CAN_READ, Group.EVERYONE,
+          aclModifications);
+    }
+    return ImmutableList.copyOf(aclModifications);
+  }
+
   private void syncOwnership(Authorizable authorizable, Map<String, Object> acl,
       List<AclModification> aclModifications) throws StorageClientException, AccessDeniedException {
     boolean alreadySpecifiedAnonymousAcl = false;
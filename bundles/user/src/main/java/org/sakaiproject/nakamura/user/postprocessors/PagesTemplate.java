@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.postprocessors;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMap.Builder;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PropertyIterator;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+
+/**
+ * A JCR pages template compiled into an immutable list of content writes. The template
+ * tree is walked once, and every new home replays the writes without touching JCR again.
+ * Instances are immutable and safe to share between threads.
+ */
+final class PagesTemplate {
+
+  /**
+   * A single content write, relative to the pages folder.
+   */
+  static final class Write {
+    final String relativePath;
+    final Map<String, Object> properties;
+    final byte[] body;
+    final String mimeType;
+    final Long lastModified;
+
+    Write(String relativePath, Map<String, Object> properties, byte[] body,
+        String mimeType, Long lastModified) {
+      this.relativePath = relativePath;
+      this.properties = properties;
+      this.body = body;
+      this.mimeType = mimeType;
+      this.lastModified = lastModified;
+    }
+  }
+
+  private final String templatePath;
+  private final List<Write> writes;
+  private final long compiled;
+
+  private PagesTemplate(String templatePath, List<Write> writes) {
+    this.templatePath = templatePath;
+    this.writes = writes;
+    this.compiled = System.currentTimeMillis();
+  }
+
+  /**
+   * Compile the template rooted at node. Children that are nt:file nodes are not part of
+   * the template, only the body of the root node when that is a file.
+   *
+   * @param templatePath
+   * @param node
+   * @return the compiled template.
+   * @throws RepositoryException
+   * @throws IOException
+   */
+  static PagesTemplate compile(String templatePath, Node node) throws RepositoryException,
+      IOException {
+    ImmutableList.Builder<Write> writes = ImmutableList.builder();
+    compile(node, "", writes);
+    return new PagesTemplate(templatePath, writes.build());
+  }
+
+  private static void compile(Node node, String relativePath,
+      ImmutableList.Builder<Write> writes) throws RepositoryException, IOException {
+    Builder<String, Object> builder = ImmutableMap.builder();
+    PropertyIterator pi = node.getProperties();
+    while (pi.hasNext()) {
+      javax.jcr.Property p = pi.nextProperty();
+      PropertyDefinition pd = p.getDefinition();
+      int type = pd.getRequiredType();
+      if (pd.isMultiple()) {
+        Value[] v = p.getValues();
+        if (type == PropertyType.DATE) {
+          Calendar[] s = new Calendar[v.length];
+          for (int i = 0; i < v.length; i++) {
+            s[i] = v[i].getDate();
+          }
+          builder.put(p.getName(), s);
+        } else {
+          String[] s = new String[v.length];
+          for (int i = 0; i < v.length; i++) {
+            s[i] = v[i].getString();
+          }
+          builder.put(p.getName(), s);
+        }
+      } else {
+        Value v = p.getValue();
+        switch (type) {
+        case PropertyType.BOOLEAN:
+          builder.put(p.getName(), v.getBoolean());
+          break;
+        case PropertyType.DATE:
+          builder.put(p.getName(), v.getDate());
+          break;
+        case PropertyType.DECIMAL:
+          builder.put(p.getName(), v.getDecimal());
+          break;
+        case PropertyType.LONG:
+          builder.put(p.getName(), v.getLong());
+          break;
+        default:
+          builder.put(p.getName(), v.getString());
+          break;
+        }
+      }
+    }
+
+    byte[] body = null;
+    String mimeType = null;
+    Long lastModified = null;
+    if (JcrConstants.NT_FILE.equals(node.getPrimaryNodeType().getName())) {
+      Node contentNode = node.getNode(JcrConstants.JCR_CONTENT);
+      InputStream in = contentNode.getProperty(JcrConstants.JCR_DATA).getBinary()
+          .getStream();
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+          out.write(buffer, 0, n);
+        }
+        body = out.toByteArray();
+      } finally {
+        in.close();
+      }
+      if (contentNode.hasProperty(JcrConstants.JCR_MIMETYPE)) {
+        mimeType = contentNode.getProperty(JcrConstants.JCR_MIMETYPE).getString();
+      }
+      if (contentNode.hasProperty(JcrConstants.JCR_LASTMODIFIED)) {
+        lastModified = contentNode.getProperty(JcrConstants.JCR_LASTMODIFIED).getLong();
+      }
+    }
+    writes.add(new Write(relativePath, builder.build(), body, mimeType, lastModified));
+
+    NodeIterator ni = node.getNodes();
+    while (ni.hasNext()) {
+      Node n = ni.nextNode();
+      if (!JcrConstants.NT_FILE.equals(n.getPrimaryNodeType().getName())) {
+        compile(n, relativePath + "/" + n.getName(), writes);
+      }
+    }
+  }
+
+  /**
+   * Replay the template under pagesPath. Only the paths in existingPaths are read
+   * before they are written, every other path is assumed to be new, which holds for
+   * the pages folder of a home that has just been created.
+   *
+   * @param pagesPath
+   *          the path to copy the template to.
+   * @param contentManager
+   * @param existingPaths
+   *          paths that may already exist, their properties are merged.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws IOException
+   */
+  void replay(String pagesPath, ContentManager contentManager, Set<String> existingPaths)
+      throws StorageClientException, AccessDeniedException, IOException {
+    for (Write write : writes) {
+      String path = pagesPath + write.relativePath;
+      Content content = null;
+      if (existingPaths.contains(path)) {
+        content = contentManager.get(path);
+      }
+      if (content == null) {
+        contentManager.update(new Content(path, write.properties));
+      } else {
+        for (Entry<String, Object> e : write.properties.entrySet()) {
+          content.setProperty(e.getKey(), e.getValue());
+        }
+      }
+      if (write.body != null) {
+        contentManager.writeBody(path, new ByteArrayInputStream(write.body));
+        if (content == null) {
+          content = contentManager.get(path);
+          if (write.mimeType != null) {
+            content.setProperty(Content.MIMETYPE_FIELD, write.mimeType);
+          }
+          if (write.lastModified != null) {
+            content.setProperty(Content.LASTMODIFIED_FIELD, write.lastModified);
+          }
+        }
+      }
+      if (content != null) {
+        contentManager.update(content);
+      }
+    }
+  }
+
+  String getTemplatePath() {
+    return templatePath;
+  }
+
+  int size() {
+    return writes.size();
+  }
+
+  /**
+   * @param ttl
+   *          time to live in ms, 0 or less never expires.
+   * @return true if the template was compiled more than ttl ms ago.
+   */
+  boolean isExpired(long ttl) {
+    return ttl > 0 && System.currentTimeMillis() - compiled > ttl;
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoResolver;
+import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
+
+import java.util.Map;
+
+import javax.servlet.ServletRequest;
+
+public class BasicUserInfoResolverTest {
+
+  private Session session;
+  private AuthorizableManager authorizableManager;
+  private BasicUserInfoService basicUserInfoService;
+  private Authorizable alice;
+  private Authorizable bob;
+
+  @Before
+  public void before() throws Exception {
+    session = mock(Session.class);
+    authorizableManager = mock(AuthorizableManager.class);
+    basicUserInfoService = mock(BasicUserInfoService.class);
+    alice = mock(Authorizable.class);
+    bob = mock(Authorizable.class);
+    when(session.getAuthorizableManager()).thenReturn(authorizableManager);
+    when(authorizableManager.findAuthorizable("alice")).thenReturn(alice);
+    when(authorizableManager.findAuthorizable("bob")).thenReturn(bob);
+    when(authorizableManager.findAuthorizable("secret")).thenThrow(
+        new AccessDeniedException("", "", "", ""));
+    Map<String, Object> aliceInfo = ImmutableMap.of("userid", (Object) "alice");
+    when(basicUserInfoService.getProperties(alice)).thenReturn(aliceInfo);
+  }
+
+  @Test
+  public void testLoadsEachIdOnce() throws Exception {
+    BasicUserInfoResolver resolver = new BasicUserInfoResolver(session,
+        basicUserInfoService);
+    resolver.require(ImmutableList.of("alice", "bob", "alice", "secret"));
+    assertSame(bob, resolver.getAuthorizable("bob"));
+    assertSame(alice, resolver.getAuthorizable("alice"));
+    assertNull(resolver.getAuthorizable("secret"));
+    Map<String, Object> info = resolver.getProperties("alice");
+    assertSame(info, resolver.getProperties("alice"));
+
+    assertEquals(3, resolver.getLoads());
+    assertEquals(5, resolver.getLookups());
+    verify(authorizableManager, times(1)).findAuthorizable("alice");
+    verify(basicUserInfoService, times(1)).getProperties(alice);
+  }
+
+  @Test
+  public void testResolverIsSharedWithinRequest() throws Exception {
+    ServletRequest request = mock(ServletRequest.class);
+    BasicUserInfoResolver resolver = BasicUserInfoResolver.getResolver(request, session,
+        basicUserInfoService);
+    when(request.getAttribute(BasicUserInfoResolver.REQUEST_ATTRIBUTE)).thenReturn(resolver);
+    assertSame(resolver, BasicUserInfoResolver.getResolver(request, session,
+        basicUserInfoService));
+    verify(request).setAttribute(BasicUserInfoResolver.REQUEST_ATTRIBUTE, resolver);
+  }
+}
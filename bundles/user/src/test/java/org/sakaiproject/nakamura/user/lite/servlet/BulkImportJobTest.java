@@ -0,0 +1,218 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.user.LiteAuthorizablePostProcessService;
+import org.sakaiproject.nakamura.user.lite.resource.RepositoryHelper;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BulkImportJobTest {
+
+  private Repository repository;
+  private Session adminSession;
+  private LiteAuthorizablePostProcessService postProcessService;
+
+  @Before
+  public void before() throws Exception {
+    repository = RepositoryHelper.getRepository(new String[] {}, new String[] {});
+    adminSession = repository.loginAdministrative();
+    postProcessService = Mockito.mock(LiteAuthorizablePostProcessService.class);
+  }
+
+  @After
+  public void after() throws Exception {
+    adminSession.logout();
+  }
+
+  @Test
+  public void neverStoresPasswords() throws Exception {
+    BulkImportJob job = new BulkImportJob("nopasswords", getEntries(), 1);
+    job.store(adminSession);
+
+    String body = readBody("nopasswords");
+    assertTrue(body.contains("alice"));
+    assertFalse(body.contains("password"));
+    assertFalse(body.contains("pwd"));
+    assertFalse(body.contains("secret"));
+    assertFalse(body.contains("firstName"));
+  }
+
+  @Test
+  public void resumesAfterRestart() throws Exception {
+    JSONArray entries = getEntries();
+    new BulkImportJob("resume", entries, 1).store(adminSession);
+    // the first batch completed before the server went down
+    ContentManager contentManager = adminSession.getContentManager();
+    Content content = contentManager.get(BulkImportJob.JOBS_PATH + "resume");
+    content.setProperty("completedBatches", new String[] { "0" });
+    contentManager.update(content);
+
+    BulkImportJob job = BulkImportJob.load("resume", adminSession);
+    assertNotNull(job);
+    assertTrue(job.restoreEntries(entries));
+    final AtomicBoolean completed = new AtomicBoolean();
+    run(job, new Runnable() {
+      public void run() {
+        completed.set(true);
+      }
+    });
+
+    assertTrue(completed.get());
+    assertFalse(job.isRunning());
+    assertNull(adminSession.getAuthorizableManager().findAuthorizable("alice"));
+    assertNotNull(adminSession.getAuthorizableManager().findAuthorizable("bob"));
+    assertNotNull(adminSession.getAuthorizableManager().findAuthorizable("g-course"));
+
+    // only the progress is kept once the job is complete
+    assertFalse(contentManager.hasBody(BulkImportJob.JOBS_PATH + "resume", null));
+    content = contentManager.get(BulkImportJob.JOBS_PATH + "resume");
+    assertEquals(BulkImportJob.STATUS_COMPLETE, content.getProperty("status"));
+    assertEquals(3, ((Number) content.getProperty("total")).intValue());
+    assertEquals(2, ((Number) content.getProperty("created")).intValue());
+  }
+
+  @Test
+  public void retriesFailedEntriesOnResume() throws Exception {
+    new BulkImportJob("noentries", getEntries(), 10).store(adminSession);
+
+    // users can not be created without the restored passwords
+    BulkImportJob job = BulkImportJob.load("noentries", adminSession);
+    run(job, null);
+
+    assertFalse(job.isRunning());
+    assertNull(adminSession.getAuthorizableManager().findAuthorizable("alice"));
+    assertNotNull(adminSession.getAuthorizableManager().findAuthorizable("g-course"));
+    ContentManager contentManager = adminSession.getContentManager();
+    Content content = contentManager.get(BulkImportJob.JOBS_PATH + "noentries");
+    assertEquals(BulkImportJob.STATUS_INCOMPLETE, content.getProperty("status"));
+    assertEquals(2, ((Number) content.getProperty("failed")).intValue());
+    assertArrayEquals(new String[] { "0", "1" },
+        (String[]) content.getProperty("failedEntries"));
+    // the ids are kept so the failed entries can be retried
+    assertTrue(contentManager.hasBody(BulkImportJob.JOBS_PATH + "noentries", null));
+
+    job = BulkImportJob.load("noentries", adminSession);
+    assertTrue(job.restoreEntries(getEntries()));
+    run(job, null);
+
+    assertNotNull(adminSession.getAuthorizableManager().findAuthorizable("alice"));
+    assertNotNull(adminSession.getAuthorizableManager().findAuthorizable("bob"));
+    content = contentManager.get(BulkImportJob.JOBS_PATH + "noentries");
+    assertEquals(BulkImportJob.STATUS_COMPLETE, content.getProperty("status"));
+    assertEquals(0, ((Number) content.getProperty("failed")).intValue());
+    assertEquals(3, ((Number) content.getProperty("created")).intValue());
+    // only the failed entries were retried
+    assertEquals(0, ((Number) content.getProperty("skipped")).intValue());
+    assertFalse(contentManager.hasBody(BulkImportJob.JOBS_PATH + "noentries", null));
+  }
+
+  @Test
+  public void checksEntriesAsTheCreateServletsDo() throws Exception {
+    JSONArray entries = new JSONArray();
+    entries.put(new JSONObject(ImmutableMap.of("id", "g-contacts-alice", "type", "group")));
+    entries.put(new JSONObject(ImmutableMap.of("id", "al", "password", "secret")));
+    entries.put(new JSONObject(ImmutableMap.of("id", "carol", "password", "secret",
+        "pwdConfirm", "other")));
+    entries.put(new JSONObject(ImmutableMap.of("id", "dave", "password", "secret")));
+    BulkImportJob job = new BulkImportJob("checked", entries, 10);
+    job.store(adminSession);
+    run(job, null);
+
+    AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+    assertNull(authorizableManager.findAuthorizable("g-contacts-alice"));
+    assertNull(authorizableManager.findAuthorizable("al"));
+    assertNull(authorizableManager.findAuthorizable("carol"));
+    assertNotNull(authorizableManager.findAuthorizable("dave"));
+    Content content = adminSession.getContentManager().get(
+        BulkImportJob.JOBS_PATH + "checked");
+    assertEquals(3, ((Number) content.getProperty("failed")).intValue());
+    // the password is stored digested, as by the create user servlet
+    repository.login("dave", LiteAbstractUserPostServlet.digestPassword("secret", "sha1"))
+        .logout();
+  }
+
+  @Test
+  public void rejectsOtherEntries() throws Exception {
+    new BulkImportJob("other", getEntries(), 1).store(adminSession);
+    BulkImportJob job = BulkImportJob.load("other", adminSession);
+
+    JSONArray other = getEntries();
+    other.getJSONObject(1).put("id", "mallory");
+    assertFalse(job.restoreEntries(other));
+    assertFalse(job.restoreEntries(new JSONArray()));
+  }
+
+  private void run(BulkImportJob job, Runnable onComplete) throws InterruptedException {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    job.submit(executor, repository, postProcessService, "sha1", onComplete);
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+  }
+
+  private JSONArray getEntries() throws Exception {
+    JSONArray entries = new JSONArray();
+    entries.put(new JSONObject(ImmutableMap.of("id", "alice", "password", "secret",
+        "pwdConfirm", "secret", "properties", new JSONObject(ImmutableMap.of("firstName", "Alice")))));
+    entries.put(new JSONObject(ImmutableMap.of("id", "bob", "password", "secret")));
+    entries.put(new JSONObject(ImmutableMap.of("id", "g-course", "type", "group")));
+    return entries;
+  }
+
+  private String readBody(String id) throws Exception {
+    InputStream in = adminSession.getContentManager().getInputStream(
+        BulkImportJob.JOBS_PATH + id);
+    try {
+      InputStreamReader reader = new InputStreamReader(in, "UTF-8");
+      StringWriter out = new StringWriter();
+      char[] buffer = new char[1024];
+      for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+        out.write(buffer, 0, n);
+      }
+      return out.toString();
+    } finally {
+      in.close();
+    }
+  }
+}
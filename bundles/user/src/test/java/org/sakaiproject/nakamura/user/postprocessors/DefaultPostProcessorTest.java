@@ -18,6 +18,9 @@
 package org.sakaiproject.nakamura.user.postprocessors;
 
 import com.google.common.collect.ImmutableMap;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.servlets.post.Modification;
 import org.apache.sling.servlets.post.ModificationType;
 import org.junit.Before;
@@ -42,6 +45,9 @@ import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import java.util.HashMap;
 import java.util.Map;
 
+import javax.jcr.Node;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
@@ -206,4 +212,47 @@ public class DefaultPostProcessorTest {
 
 
   }
+
+  @Test
+  public void provisionsFreshUserHome() throws Exception {
+    assertTrue(adminAuthorizableManager.createUser("bob", "bob", "secret", ImmutableMap.of("firstName", (Object) "Bob", "lastName", "Builder")));
+    defaultPostProcessor.modified(ImmutableMap.of("visibility.preference", "logged_in",
+        DefaultPostProcessor.DEFAULT_USER_PAGES_TEMPLATE, "/var/templates/pages/systemuser"));
+    when(mockChange.getType()).thenReturn(ModificationType.CREATE);
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    Resource resource = mock(Resource.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.resolve("/var/templates/pages/systemuser")).thenReturn(resource);
+    Node template = PagesTemplateTest.getTemplate();
+    when(resource.adaptTo(Node.class)).thenReturn(template);
+
+    Authorizable bob = adminAuthorizableManager.findAuthorizable("bob");
+    defaultPostProcessor.process(request, bob, adminSession, mockChange, parameters);
+
+    // the home is new, so the standard folders are written without an exists check and
+    // the compiled pages template is replayed into its pages folder
+    assertTrue(adminContentManager.exists("a:bob/message"));
+    assertTrue(adminContentManager.exists("a:bob/contacts"));
+    assertTrue(adminContentManager.exists("a:bob/pages/index.html"));
+    assertTrue(adminContentManager.exists("a:bob/public/authprofile/basic/elements/firstName"));
+    assertEquals("Welcome", adminContentManager.get("a:bob/pages/_pages/welcome").getProperty("pageTitle"));
+    Authorizable everyone = adminAuthorizableManager.findAuthorizable(Group.EVERYONE);
+    Authorizable anon = adminAuthorizableManager.findAuthorizable(User.ANON_USER);
+    assertFalse(adminAccessControlManager.can(everyone, "CO", "a:bob/message", Permissions.CAN_READ));
+    assertTrue(adminAccessControlManager.can(bob, "CO", "a:bob/message", Permissions.CAN_WRITE));
+    assertTrue(adminAccessControlManager.can(everyone, "CO", "a:bob", Permissions.CAN_READ));
+    assertFalse(adminAccessControlManager.can(anon, "CO", "a:bob", Permissions.CAN_READ));
+    // the replayed pages take the compiled home ACL
+    assertTrue(adminAccessControlManager.can(bob, "CO", "a:bob/pages/_pages/welcome", Permissions.CAN_WRITE));
+    assertTrue(adminAccessControlManager.can(everyone, "CO", "a:bob/pages/_pages/welcome", Permissions.CAN_READ));
+    assertFalse(adminAccessControlManager.can(anon, "CO", "a:bob/pages/_pages/welcome", Permissions.CAN_READ));
+
+    // a home created without a request, as by a bulk import, gets the compiled pages
+    assertTrue(adminAuthorizableManager.createUser("carol", "carol", "secret", ImmutableMap.of("firstName", (Object) "Carol", "lastName", "Singer")));
+    Authorizable carol = adminAuthorizableManager.findAuthorizable("carol");
+    defaultPostProcessor.process(null, carol, adminSession, mockChange, parameters);
+    assertEquals("Welcome", adminContentManager.get("a:carol/pages/_pages/welcome").getProperty("pageTitle"));
+    assertFalse(adminAccessControlManager.can(anon, "CO", "a:carol/pages/_pages/welcome", Permissions.CAN_READ));
+  }
 }
@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.postprocessors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.commons.iterator.NodeIteratorAdapter;
+import org.apache.jackrabbit.commons.iterator.PropertyIteratorAdapter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.PropertyDefinition;
+
+public class PagesTemplateTest {
+
+  private Session session;
+  private ContentManager contentManager;
+
+  @Before
+  public void before() throws Exception {
+    Repository repository = (Repository) new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+  }
+
+  @After
+  public void after() throws Exception {
+    session.logout();
+  }
+
+  @Test
+  public void replaysTheTemplateTree() throws Exception {
+    PagesTemplate template = PagesTemplate.compile("/var/templates/pages/systemuser",
+        getTemplate());
+    assertEquals("/var/templates/pages/systemuser", template.getTemplatePath());
+    // the root, _pages and welcome, the attached file is not part of the template
+    assertEquals(3, template.size());
+
+    template.replay("a:bob/pages", contentManager, Collections.<String> emptySet());
+
+    assertEquals("sakai/pages", contentManager.get("a:bob/pages").getProperty(
+        "sling:resourceType"));
+    Content welcome = contentManager.get("a:bob/pages/_pages/welcome");
+    assertEquals("Welcome", welcome.getProperty("pageTitle"));
+    assertArrayEquals(new String[] { "intro", "help" },
+        (String[]) welcome.getProperty("tags"));
+    assertTrue(contentManager.exists("a:bob/pages/_pages"));
+    assertFalse(contentManager.exists("a:bob/pages/_pages/welcome/logo.png"));
+
+    // the compiled template is replayed without reading the template again
+    template.replay("a:alice/pages", contentManager, Collections.<String> emptySet());
+    assertEquals("Welcome", contentManager.get("a:alice/pages/_pages/welcome").getProperty(
+        "pageTitle"));
+  }
+
+  @Test
+  public void mergesIntoExistingPaths() throws Exception {
+    contentManager.update(new Content("a:bob/pages", ImmutableMap.of("sling:resourceType",
+        (Object) "sakai/pages", "owner", "bob")));
+    PagesTemplate template = PagesTemplate.compile("/var/templates/pages/systemuser",
+        getTemplate());
+
+    template.replay("a:bob/pages", contentManager, ImmutableSet.of("a:bob/pages"));
+
+    Content pages = contentManager.get("a:bob/pages");
+    assertEquals("bob", pages.getProperty("owner"));
+    assertEquals("sakai/pages", pages.getProperty("sling:resourceType"));
+    assertTrue(contentManager.exists("a:bob/pages/_pages/welcome"));
+  }
+
+  @Test
+  public void replaysTheBodyOfAFile() throws Exception {
+    Node file = node("index.html", JcrConstants.NT_FILE, ImmutableMap.<String, Object> of());
+    Node contentNode = node(JcrConstants.JCR_CONTENT, JcrConstants.NT_RESOURCE,
+        ImmutableMap.<String, Object> of());
+    Property data = mock(Property.class);
+    Binary binary = mock(Binary.class);
+    InputStream in = new ByteArrayInputStream("<h1>Welcome</h1>".getBytes("UTF-8"));
+    when(binary.getStream()).thenReturn(in);
+    when(data.getBinary()).thenReturn(binary);
+    when(contentNode.getProperty(JcrConstants.JCR_DATA)).thenReturn(data);
+    Property mimeType = property(JcrConstants.JCR_MIMETYPE, "text/html");
+    when(contentNode.hasProperty(JcrConstants.JCR_MIMETYPE)).thenReturn(true);
+    when(contentNode.getProperty(JcrConstants.JCR_MIMETYPE)).thenReturn(mimeType);
+    when(file.getNode(JcrConstants.JCR_CONTENT)).thenReturn(contentNode);
+
+    PagesTemplate template = PagesTemplate.compile("/var/templates/index.html", file);
+    template.replay("a:bob/pages/index.html", contentManager,
+        Collections.<String> emptySet());
+
+    assertEquals("text/html", contentManager.get("a:bob/pages/index.html").getProperty(
+        Content.MIMETYPE_FIELD));
+    InputStream body = contentManager.getInputStream("a:bob/pages/index.html");
+    try {
+      byte[] buffer = new byte[64];
+      int n = body.read(buffer);
+      assertEquals("<h1>Welcome</h1>", new String(buffer, 0, n, "UTF-8"));
+    } finally {
+      body.close();
+    }
+  }
+
+  @Test
+  public void expiresAfterTheTtl() throws Exception {
+    PagesTemplate template = PagesTemplate.compile("/var/templates/pages/systemuser",
+        getTemplate());
+    assertFalse(template.isExpired(0));
+    assertFalse(template.isExpired(60000));
+    Thread.sleep(5);
+    assertTrue(template.isExpired(1));
+  }
+
+  /**
+   * @return a pages template with a page, a multi valued property and an attached file
+   *         that is not part of the template.
+   */
+  static Node getTemplate() throws RepositoryException {
+    Node logo = node("logo.png", JcrConstants.NT_FILE, ImmutableMap.<String, Object> of());
+    Node welcome = node("welcome", JcrConstants.NT_UNSTRUCTURED, ImmutableMap.of(
+        "pageTitle", (Object) "Welcome", "tags", new String[] { "intro", "help" }), logo);
+    Node pages = node("_pages", JcrConstants.NT_UNSTRUCTURED,
+        ImmutableMap.<String, Object> of(), welcome);
+    return node("systemuser", JcrConstants.NT_UNSTRUCTURED, ImmutableMap.of(
+        "sling:resourceType", (Object) "sakai/pages"), pages);
+  }
+
+  private static Node node(String name, String type, Map<String, Object> properties,
+      Node... children) throws RepositoryException {
+    Node node = mock(Node.class);
+    when(node.getName()).thenReturn(name);
+    NodeType nodeType = mock(NodeType.class);
+    when(nodeType.getName()).thenReturn(type);
+    when(node.getPrimaryNodeType()).thenReturn(nodeType);
+    List<Property> list = new ArrayList<Property>();
+    for (Entry<String, Object> e : properties.entrySet()) {
+      list.add(property(e.getKey(), e.getValue()));
+    }
+    when(node.getProperties()).thenReturn(new PropertyIteratorAdapter(list));
+    when(node.getNodes()).thenReturn(new NodeIteratorAdapter(Arrays.asList(children)));
+    return node;
+  }
+
+  private static Property property(String name, Object value) throws RepositoryException {
+    Property property = mock(Property.class);
+    when(property.getName()).thenReturn(name);
+    PropertyDefinition definition = mock(PropertyDefinition.class);
+    when(definition.getRequiredType()).thenReturn(PropertyType.STRING);
+    when(property.getDefinition()).thenReturn(definition);
+    if (value instanceof String[]) {
+      String[] strings = (String[]) value;
+      Value[] values = new Value[strings.length];
+      for (int i = 0; i < strings.length; i++) {
+        values[i] = value(strings[i]);
+      }
+      when(definition.isMultiple()).thenReturn(true);
+      when(property.getValues()).thenReturn(values);
+    } else {
+      Value v = value(String.valueOf(value));
+      when(property.getValue()).thenReturn(v);
+      when(property.getString()).thenReturn(String.valueOf(value));
+    }
+    return property;
+  }
+
+  private static Value value(String string) throws RepositoryException {
+    Value value = mock(Value.class);
+    when(value.getString()).thenReturn(string);
+    return value;
+  }
+}
@@ -19,15 +19,18 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
@@ -40,7 +43,10 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -76,6 +82,11 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
   *
   */
   public static final String PARAMS_PAGE = "page";
+  /**
+   * Selector that lists the version summaries from the version index instead of the full
+   * contents of each version.
+   */
+  public static final String SUMMARY_SELECTOR = "summary";
 
   /**
    *
@@ -83,6 +94,9 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
   private static final long serialVersionUID = 764192946800357626L;
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseListVersionsServletHandler.class);
 
+  @Reference
+  protected transient Repository repository;
+
   public void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
     Resource resource = request.getResource();
@@ -111,14 +125,28 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       response.setCharacterEncoding("UTF-8");
 
       boolean tidy = false;
+      boolean summary = false;
       String[] selectors = request.getRequestPathInfo().getSelectors();
       for (String selector : selectors) {
         if ("tidy".equals(selector)) {
           tidy = true;
-          break;
+        } else if (SUMMARY_SELECTOR.equals(selector)) {
+          summary = true;
         }
       }
 
+      Map<String, VersionIndex.Entry> index = Collections.emptyMap();
+      if (summary) {
+        // the user can read the item, so may read the summaries of its versions
+        Session adminSession = repository.loginAdministrative();
+        try {
+          index = VersionIndex.load(adminSession, path);
+        } finally {
+          adminSession.logout();
+        }
+      }
+      Map<String, Map<String, Object>> editors = new HashMap<String, Map<String, Object>>();
+
       Writer writer = response.getWriter();
       ExtendedJSONWriter write = new ExtendedJSONWriter(writer);
       write.setTidy(tidy);
@@ -138,9 +166,22 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
         write.key("versionId");
         String versionId = versionList.get(j);
         write.value(versionId);
-        Content vContent = contentManager.getVersion(path, versionId);
-        writeEditorDetails(vContent, write, authorizableManager);
-        ExtendedJSONWriter.writeNodeContentsToWriter(write, vContent);
+        VersionIndex.Entry entry = index.get(versionId);
+        if (summary && entry != null) {
+          writeEditorDetails(entry.getEditor(), write, authorizableManager, editors);
+          write.key(Content.LASTMODIFIED_FIELD);
+          write.value(entry.getTimestamp());
+          write.key(Content.LENGTH_FIELD);
+          write.value(entry.getSize());
+        } else {
+          Content vContent = contentManager.getVersion(path, versionId);
+          String editor = null;
+          if (vContent.hasProperty(Content.VERSION_SAVEDBY_FIELD)) {
+            editor = (String) vContent.getProperty(Content.VERSION_SAVEDBY_FIELD);
+          }
+          writeEditorDetails(editor, write, authorizableManager, editors);
+          ExtendedJSONWriter.writeNodeContentsToWriter(write, vContent);
+        }
         write.endObject();
       }
       write.endObject();
@@ -163,18 +204,25 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
     }
   }
 
-  private void writeEditorDetails(Content content, ExtendedJSONWriter write, AuthorizableManager authorizableManager)
+  /**
+   * Writes the safe properties of the editor, looking each editor up only once per
+   * request since the same few users usually save most of the versions of an item.
+   */
+  private void writeEditorDetails(String user, ExtendedJSONWriter write,
+      AuthorizableManager authorizableManager, Map<String, Map<String, Object>> editors)
       throws JSONException, AccessDeniedException, StorageClientException {
-    String user = null;
-    if (content.hasProperty(Content.VERSION_SAVEDBY_FIELD)) {
-      user = (String) content.getProperty(Content.VERSION_SAVEDBY_FIELD);
-    }
-    
-
     if (user != null) {
-      org.sakaiproject.nakamura.api.lite.authorizable.Authorizable authorizable = authorizableManager.findAuthorizable(user);
+      Map<String, Object> editor = editors.get(user);
+      if (editor == null) {
+        Authorizable authorizable = authorizableManager.findAuthorizable(user);
+        if (authorizable == null) {
+          return;
+        }
+        editor = authorizable.getSafeProperties();
+        editors.put(user, editor);
+      }
       write.key(Content.VERSION_SAVEDBY_FIELD);
-      write.valueMap(authorizable.getSafeProperties());
+      write.valueMap(editor);
     }
   }
 
@@ -19,11 +19,14 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
@@ -57,6 +60,9 @@ public class SparseSaveVersionServletHandler extends AbstractAllMethodsServletRe
   private static final long serialVersionUID = -7513481862698805983L;
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseSaveVersionServletHandler.class);
 
+  @Reference
+  protected transient Repository repository;
+
   /**
    * {@inheritDoc}
    * 
@@ -75,6 +81,15 @@ public class SparseSaveVersionServletHandler extends AbstractAllMethodsServletRe
       String versionId  = contentManager.saveVersion(content.getPath());
       Content savedVersion = contentManager.getVersion(content.getPath(), versionId);
       LOGGER.info("Saved Version as {} got as {} ", versionId, savedVersion);
+      Session session = resource.adaptTo(Session.class);
+      // the user may save versions of the item, so may add them to its index
+      Session adminSession = repository.loginAdministrative();
+      try {
+        VersionIndex.record(adminSession, content.getPath(), VersionIndex.summarize(
+            versionId, savedVersion, session == null ? null : session.getUserId()));
+      } finally {
+        adminSession.logout();
+      }
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
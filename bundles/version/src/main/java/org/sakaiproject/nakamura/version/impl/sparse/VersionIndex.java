@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact summary of the saved versions of a content item, kept in a single content
+ * item so that a version history can be listed without loading every version. Each
+ * property of the index is keyed by version id and holds
+ * <code>timestamp;size;editor</code>.
+ * <p>
+ * Indexes live under {@link #ROOT}, outside the tree of the item, so they never appear
+ * in listings, exports, copies or deletes of it. The root can only be read and written
+ * by an administrative session; callers check access to the item first. An index may
+ * outlive its item, but only the ids in the version history of an item are ever looked
+ * up in it.
+ */
+class VersionIndex {
+
+  /**
+   * The hidden root under which the index of each item is kept, at the path of the item.
+   */
+  static final String ROOT = "/var/versionindex";
+
+  private static final String SEPARATOR = ";";
+
+  /**
+   * The summary of a single saved version.
+   */
+  static class Entry {
+    private final String versionId;
+    private final long timestamp;
+    private final long size;
+    private final String editor;
+
+    Entry(String versionId, long timestamp, long size, String editor) {
+      this.versionId = versionId;
+      this.timestamp = timestamp;
+      this.size = size;
+      this.editor = editor;
+    }
+
+    String getVersionId() {
+      return versionId;
+    }
+
+    long getTimestamp() {
+      return timestamp;
+    }
+
+    long getSize() {
+      return size;
+    }
+
+    String getEditor() {
+      return editor;
+    }
+
+    String encode() {
+      return timestamp + SEPARATOR + size + SEPARATOR + (editor == null ? "" : editor);
+    }
+
+    static Entry decode(String versionId, String encoded) {
+      String[] parts = encoded.split(SEPARATOR, 3);
+      if (parts.length != 3) {
+        return null;
+      }
+      try {
+        return new Entry(versionId, Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+            parts[2].length() == 0 ? null : parts[2]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+
+  private VersionIndex() {
+  }
+
+  static String getIndexPath(String path) {
+    return StorageClientUtils.newPath(ROOT, path);
+  }
+
+  /**
+   * Builds the summary of a version from the content returned by
+   * {@link ContentManager#getVersion(String, String)}.
+   */
+  static Entry summarize(String versionId, Content version, String defaultEditor) {
+    long timestamp = toLong(version.getProperty(Content.LASTMODIFIED_FIELD),
+        System.currentTimeMillis());
+    long size = toLong(version.getProperty(Content.LENGTH_FIELD), 0L);
+    String editor = defaultEditor;
+    if (version.hasProperty(Content.VERSION_SAVEDBY_FIELD)) {
+      editor = String.valueOf(version.getProperty(Content.VERSION_SAVEDBY_FIELD));
+    }
+    return new Entry(versionId, timestamp, size, editor);
+  }
+
+  /**
+   * Adds a version to the index of the item at path.
+   *
+   * @param adminSession
+   *          an administrative session.
+   */
+  static void record(Session adminSession, String path, Entry entry)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = adminSession.getContentManager();
+    if (!contentManager.exists(ROOT)) {
+      contentManager.update(new Content(ROOT, null));
+      adminSession.getAccessControlManager().setAcl(
+          Security.ZONE_CONTENT,
+          ROOT,
+          new AclModification[] {
+              new AclModification(AclModification.denyKey(User.ANON_USER),
+                  Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+              new AclModification(AclModification.denyKey(Group.EVERYONE),
+                  Permissions.ALL.getPermission(), Operation.OP_REPLACE) });
+    }
+    String indexPath = getIndexPath(path);
+    Content index = contentManager.get(indexPath);
+    if (index == null) {
+      Map<String, Object> properties = new HashMap<String, Object>();
+      properties.put(entry.getVersionId(), entry.encode());
+      index = new Content(indexPath, properties);
+    } else {
+      index.setProperty(entry.getVersionId(), entry.encode());
+    }
+    contentManager.update(index);
+  }
+
+  /**
+   * @param adminSession
+   *          an administrative session.
+   * @return the indexed versions of the item at path keyed by version id, empty if the
+   *         item has no index.
+   */
+  static Map<String, Entry> load(Session adminSession, String path)
+      throws StorageClientException, AccessDeniedException {
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    Content index = adminSession.getContentManager().get(getIndexPath(path));
+    if (index != null) {
+      for (Map.Entry<String, Object> e : index.getProperties().entrySet()) {
+        if (e.getValue() instanceof String) {
+          Entry entry = Entry.decode(e.getKey(), (String) e.getValue());
+          if (entry != null) {
+            entries.put(e.getKey(), entry);
+          }
+        }
+      }
+    }
+    return entries;
+  }
+
+  private static long toLong(Object value, long defaultValue) {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    if (value != null) {
+      try {
+        return Long.parseLong(String.valueOf(value));
+      } catch (NumberFormatException e) {
+        // fall through to the default
+      }
+    }
+    return defaultValue;
+  }
+}
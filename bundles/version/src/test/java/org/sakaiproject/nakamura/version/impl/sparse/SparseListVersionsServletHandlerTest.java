@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ *
+ */
+public class SparseListVersionsServletHandlerTest {
+
+  private static final String PATH = "/a/doc";
+
+  private SparseListVersionsServletHandler handler;
+  private Session session;
+  private ContentManager contentManager;
+  private List<String> history;
+
+  @Before
+  public void setUp() throws Exception {
+    Repository repository = new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+    contentManager = session.getContentManager();
+    contentManager.update(new Content(PATH, null));
+    for (int i = 0; i < 3; i++) {
+      String versionId = contentManager.saveVersion(PATH);
+      VersionIndex.record(session, PATH, new VersionIndex.Entry(versionId, 1000L + i,
+          10L * i, "admin"));
+    }
+    history = contentManager.getVersionHistory(PATH);
+    handler = new SparseListVersionsServletHandler();
+    handler.repository = repository;
+  }
+
+  @Test
+  public void testSummaryPage() throws Exception {
+    JSONObject json = list("2", "1", "summary");
+    assertEquals(3, json.getInt("total"));
+    assertEquals(1, json.getInt("items"));
+    JSONObject versions = json.getJSONObject("versions");
+    assertEquals(1, versions.length());
+    JSONObject version = versions.getJSONObject("1.0");
+    String versionId = history.get(2);
+    assertEquals(versionId, version.getString("versionId"));
+    VersionIndex.Entry entry = VersionIndex.load(session, PATH).get(versionId);
+    assertEquals(entry.getTimestamp(), version.getLong(Content.LASTMODIFIED_FIELD));
+    assertEquals(entry.getSize(), version.getLong(Content.LENGTH_FIELD));
+  }
+
+  @Test
+  public void testFullPage() throws Exception {
+    JSONObject json = list("2", "0", null);
+    assertEquals(3, json.getInt("total"));
+    assertEquals(2, json.getInt("items"));
+    JSONObject versions = json.getJSONObject("versions");
+    assertEquals(history.get(0), versions.getJSONObject("1.2").getString("versionId"));
+    assertEquals(history.get(1), versions.getJSONObject("1.1").getString("versionId"));
+    assertFalse(versions.has("1.0"));
+  }
+
+  @Test
+  public void testPageBeyondTheEnd() throws Exception {
+    JSONObject json = list("2", "5", "summary");
+    assertEquals(3, json.getInt("total"));
+    assertEquals(0, json.getInt("items"));
+    assertEquals(0, json.getJSONObject("versions").length());
+  }
+
+  @Test
+  public void testSummaryWithoutIndexFallsBackToVersions() throws Exception {
+    contentManager.update(new Content("/a/old", null));
+    String versionId = contentManager.saveVersion("/a/old");
+    JSONObject json = list("25", "0", "summary", "/a/old");
+    JSONObject version = json.getJSONObject("versions").getJSONObject("1.0");
+    assertEquals(versionId, version.getString("versionId"));
+    // the properties of the version itself are written instead
+    assertTrue(version.length() > 1);
+  }
+
+  private JSONObject list(String items, String page, String selector) throws Exception {
+    return list(items, page, selector, PATH);
+  }
+
+  private JSONObject list(String items, String page, String selector, String path)
+      throws Exception {
+    Resource resource = mock(Resource.class);
+    when(resource.adaptTo(Content.class)).thenReturn(contentManager.get(path));
+    when(resource.adaptTo(ContentManager.class)).thenReturn(contentManager);
+    when(resource.adaptTo(Session.class)).thenReturn(session);
+
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class, RETURNS_DEEP_STUBS);
+    when(request.getResource()).thenReturn(resource);
+    when(request.getRequestPathInfo().getSelectors()).thenReturn(
+        selector == null ? new String[0] : new String[] { selector });
+    RequestParameter itemsParam = mock(RequestParameter.class);
+    when(itemsParam.getString()).thenReturn(items);
+    when(request.getRequestParameter("items")).thenReturn(itemsParam);
+    RequestParameter pageParam = mock(RequestParameter.class);
+    when(pageParam.getString()).thenReturn(page);
+    when(request.getRequestParameter("page")).thenReturn(pageParam);
+
+    StringWriter out = new StringWriter();
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    when(response.getWriter()).thenReturn(new PrintWriter(out));
+
+    handler.doGet(request, response);
+    return new JSONObject(out.toString());
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl.sparse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ *
+ */
+public class VersionIndexTest {
+
+  private Repository repository;
+  private Session adminSession;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    adminSession = repository.loginAdministrative();
+    ContentManager contentManager = adminSession.getContentManager();
+    contentManager.update(new Content("/a/doc", null));
+    contentManager.update(new Content("/a/doc/child", null));
+  }
+
+  @Test
+  public void testRecordAndLoad() throws Exception {
+    VersionIndex.record(adminSession, "/a/doc", new VersionIndex.Entry("v1", 100L, 10L,
+        "alice"));
+    VersionIndex.record(adminSession, "/a/doc", new VersionIndex.Entry("v2", 200L, 20L,
+        null));
+
+    Map<String, VersionIndex.Entry> index = VersionIndex.load(adminSession, "/a/doc");
+    assertEquals(2, index.size());
+    assertEquals(100L, index.get("v1").getTimestamp());
+    assertEquals(10L, index.get("v1").getSize());
+    assertEquals("alice", index.get("v1").getEditor());
+    assertNull(index.get("v2").getEditor());
+
+    assertTrue(VersionIndex.load(adminSession, "/a/other").isEmpty());
+  }
+
+  @Test
+  public void testIndexIsNotAChildOfTheItem() throws Exception {
+    VersionIndex.record(adminSession, "/a/doc", new VersionIndex.Entry("v1", 100L, 10L,
+        "alice"));
+    ContentManager contentManager = adminSession.getContentManager();
+    assertTrue(contentManager.exists(VersionIndex.getIndexPath("/a/doc")));
+    assertTrue(VersionIndex.getIndexPath("/a/doc").startsWith(VersionIndex.ROOT + "/"));
+
+    Iterator<String> children = contentManager.listChildPaths("/a/doc");
+    assertEquals("/a/doc/child", children.next());
+    assertFalse(children.hasNext());
+  }
+
+  @Test
+  public void testUsersCantReadTheIndex() throws Exception {
+    VersionIndex.record(adminSession, "/a/doc", new VersionIndex.Entry("v1", 100L, 10L,
+        "alice"));
+    adminSession.getAuthorizableManager().createUser("alice", "alice", "alice", null);
+    Session session = repository.login("alice", "alice");
+    try {
+      assertNull(session.getContentManager().get(VersionIndex.getIndexPath("/a/doc")));
+    } catch (AccessDeniedException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testSummarize() {
+    Content version = new Content("/a/doc", ImmutableMap.of(Content.LASTMODIFIED_FIELD,
+        (Object) 100L, Content.LENGTH_FIELD, "10", Content.VERSION_SAVEDBY_FIELD, "bob"));
+    VersionIndex.Entry entry = VersionIndex.summarize("v1", version, "alice");
+    assertEquals("v1", entry.getVersionId());
+    assertEquals(100L, entry.getTimestamp());
+    assertEquals(10L, entry.getSize());
+    assertEquals("bob", entry.getEditor());
+
+    entry = VersionIndex.summarize("v1", new Content("/a/doc", null), "alice");
+    assertEquals(0L, entry.getSize());
+    assertEquals("alice", entry.getEditor());
+  }
+
+  @Test
+  public void testDecodeIgnoresGarbage() {
+    assertNull(VersionIndex.Entry.decode("v1", "nonsense"));
+    assertNull(VersionIndex.Entry.decode("v1", "x;1;alice"));
+    VersionIndex.Entry entry = VersionIndex.Entry.decode("v1", "1;2;al;ice");
+    assertEquals("al;ice", entry.getEditor());
+  }
+}
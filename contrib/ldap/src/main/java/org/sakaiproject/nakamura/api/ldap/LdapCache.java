@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.ldap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small bounded cache for the results of directory lookups. Entries expire after a
+ * time to live, and lookups that found nothing can be cached with their own, usually
+ * shorter, time to live so a missing entry does not hit the directory on every request.
+ * When the cache is full the least recently used entry is dropped. All methods are
+ * thread safe.
+ *
+ * @param <V>
+ *          the type of the cached values.
+ */
+public class LdapCache<V> {
+
+  private static final class Entry<V> {
+    private final V value;
+    private final long expires;
+
+    private Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  private final long ttl;
+  private final long negativeTtl;
+  private final Map<String, Entry<V>> entries;
+
+  /**
+   * @param maxEntries
+   *          the most entries kept.
+   * @param ttl
+   *          ms an entry is kept for, 0 or less disables the cache.
+   * @param negativeTtl
+   *          ms an entry for a lookup that found nothing is kept for, 0 or less does not
+   *          cache those.
+   */
+  public LdapCache(final int maxEntries, long ttl, long negativeTtl) {
+    this.ttl = ttl;
+    this.negativeTtl = negativeTtl;
+    this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param key
+   * @return the cached value, or null if there is none or it has expired.
+   */
+  public synchronized V get(String key) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.expires < System.currentTimeMillis()) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.value;
+  }
+
+  /**
+   * Cache the result of a lookup that found something.
+   *
+   * @param key
+   * @param value
+   */
+  public synchronized void put(String key, V value) {
+    if (ttl > 0) {
+      entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+    }
+  }
+
+  /**
+   * Cache the result of a lookup that found nothing.
+   *
+   * @param key
+   * @param value
+   *          the value that stands for nothing found.
+   */
+  public synchronized void putMissing(String key, V value) {
+    if (negativeTtl > 0) {
+      entries.put(key, new Entry<V>(value, System.currentTimeMillis() + negativeTtl));
+    }
+  }
+
+  public synchronized void remove(String key) {
+    entries.remove(key);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+}
@@ -0,0 +1,57 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class LdapCacheTest {
+
+  @Test
+  public void testExpiry() throws Exception {
+    LdapCache<String> cache = new LdapCache<String>(10, 60000, 1);
+    cache.put("found", "yes");
+    cache.putMissing("missing", "");
+    assertEquals("yes", cache.get("found"));
+    Thread.sleep(10);
+    assertNull(cache.get("missing"));
+    assertEquals("yes", cache.get("found"));
+  }
+
+  @Test
+  public void testBounded() {
+    LdapCache<String> cache = new LdapCache<String>(2, 60000, 60000);
+    cache.put("a", "a");
+    cache.put("b", "b");
+    cache.get("a");
+    cache.put("c", "c");
+    assertEquals(2, cache.size());
+    assertNull(cache.get("b"));
+    assertEquals("a", cache.get("a"));
+  }
+
+  @Test
+  public void testDisabled() {
+    LdapCache<String> cache = new LdapCache<String>(10, 0, 0);
+    cache.put("a", "a");
+    cache.putMissing("b", "b");
+    assertEquals(0, cache.size());
+  }
+}
@@ -18,6 +18,9 @@
 package org.sakaiproject.nakamura.auth.ldap;
 
 import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -39,6 +42,7 @@ import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.jackrabbit.server.security.AuthenticationPlugin;
 import org.apache.sling.servlets.post.ModificationType;
+import org.sakaiproject.nakamura.api.ldap.LdapCache;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
 import org.sakaiproject.nakamura.api.ldap.LdapUtil;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -58,7 +62,9 @@ import com.novell.ldap.LDAPException;
 import com.novell.ldap.LDAPSearchResults;
 
 /**
- * Authentication plugin for verifying a user against an LDAP instance.
+ * Authentication plugin for verifying a user against an LDAP instance. A login that was
+ * verified a moment ago, the DN of a user and users that can't be found are cached so
+ * repeated logins don't have to go back to the server every time.
  */
 @Component(metatype = true)
 @Service(value = LdapAuthenticationPlugin.class)
@@ -93,6 +99,29 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
   static final String USER_PROPS = "sakai.auth.ldap.user.props";
   private HashMap<String, String> attrsProps;
 
+  @Property(intValue = 1000, label = "Cache size", description = "The most users cached.")
+  static final String CACHE_SIZE = "sakai.auth.ldap.cache.size";
+
+  @Property(longValue = 60, label = "Verified login TTL", description = "Seconds a verified user name and password are trusted without asking LDAP again, 0 to disable.")
+  static final String CACHE_CREDENTIALS_TTL = "sakai.auth.ldap.cache.credentials.ttl";
+
+  @Property(longValue = 300, label = "User DN TTL", description = "Seconds the DN of an authorized user is cached for, 0 to disable.")
+  static final String CACHE_DN_TTL = "sakai.auth.ldap.cache.dn.ttl";
+
+  @Property(longValue = 60, label = "Unknown user TTL", description = "Seconds a user name that can't be found is cached for, 0 to disable.")
+  static final String CACHE_NEGATIVE_TTL = "sakai.auth.ldap.cache.negative.ttl";
+
+  /** Salted digests of passwords that were verified, by user id. */
+  private LdapCache<byte[]> verifiedCredentials;
+
+  /** DNs of users that passed the authz filter, by user id. */
+  private LdapCache<String> userDns;
+
+  /** User ids that can't be found. */
+  private LdapCache<Boolean> missingUsers;
+
+  private final byte[] salt = newSalt();
+
   @Reference
   private LdapConnectionManager connMgr;
 
@@ -130,6 +159,14 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
     createAccount = OsgiUtil.toBoolean(props.get(CREATE_ACCOUNT), CREATE_ACCOUNT_DEFAULT);
 
     parseUserProps(props);
+
+    int cacheSize = OsgiUtil.toInteger(props.get(CACHE_SIZE), 1000);
+    verifiedCredentials = new LdapCache<byte[]>(cacheSize, OsgiUtil.toLong(
+        props.get(CACHE_CREDENTIALS_TTL), 60) * 1000L, 0);
+    userDns = new LdapCache<String>(cacheSize, OsgiUtil.toLong(props.get(CACHE_DN_TTL),
+        300) * 1000L, 0);
+    missingUsers = new LdapCache<Boolean>(cacheSize, 0, OsgiUtil.toLong(
+        props.get(CACHE_NEGATIVE_TTL), 60) * 1000L);
   }
 
   protected boolean canDecorateUser() {
@@ -196,18 +233,29 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
   public boolean authenticate(Credentials credentials) {
     boolean auth = false;
     if (credentials instanceof SimpleCredentials) {
+      // get user credentials
+      SimpleCredentials sc = (SimpleCredentials) credentials;
+      String userId = sc.getUserID();
+      String userPass = new String(sc.getPassword());
+
+      byte[] digest = digest(userId, userPass);
+      byte[] verified = verifiedCredentials.get(userId);
+      if (verified != null && MessageDigest.isEqual(verified, digest)) {
+        log.debug("User [{}] authenticated from cache", userId);
+        return true;
+      }
+      if (missingUsers.get(userId) != null) {
+        log.info("Can't find user [{}] (cached)", userId);
+        return false;
+      }
+
       // get application user credentials
       String appUser = connMgr.getConfig().getLdapUser();
       String appPass = connMgr.getConfig().getLdapPassword();
 
-      // get user credentials
-      SimpleCredentials sc = (SimpleCredentials) credentials;
-
       long timeStart = System.currentTimeMillis();
 
-      String userDn = LdapUtil.escapeLDAPSearchFilter(userFilter.replace("{}",
-          sc.getUserID()));
-      String userPass = new String(sc.getPassword());
+      String userDn = LdapUtil.escapeLDAPSearchFilter(userFilter.replace("{}", userId));
 
       LDAPConnection conn = null;
       Exception ldapTrouble = null;
@@ -220,50 +268,71 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
           // 0) Get a connection to the server
           conn = connMgr.getConnection();
           log.debug("Connected to LDAP server");
-          bindAppUser(appUser, appPass, conn);
-          // 2) Search for username (not authz).
-          // If search fails, log/report invalid username or password.
-          LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
-              userDn, null, true);
-          if (results.hasMore()) {
-            log.debug("Found user via search");
-          } else {
-            throw new IllegalArgumentException("Can't find user [" + userDn + "]");
-          }
-
-          // 3) Bind as user.
-          // If bind fails, log/report invalid username or password.
 
           // value is set below. define here for use in authz check.
-          String userEntryDn = null;
-          // KERN-776 Resolve the user DN from the search results and check for an aliased
-          // entry
-          LDAPEntry userEntry = results.next();
-          LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
-
-          if ("aliasObject".equals(objectClass.getStringValue())) {
-            LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
-            userEntryDn = aliasDN.getStringValue();
+          String userEntryDn = userDns.get(userId);
+          if (userEntryDn != null) {
+            // the user was found and authorized a moment ago, just check the password
+            try {
+              conn.bind(LDAPConnection.LDAP_V3, userEntryDn, userPass.getBytes(UTF8));
+            } catch (LDAPException e) {
+              // the entry may have moved, look it up again on the next try
+              userDns.remove(userId);
+              throw e;
+            }
+            log.debug("Bound as user with cached DN");
+            if (authzFilter.length() > 0 && attrsProps != null) {
+              // decorate as the application user, as below
+              bindAppUser(appUser, appPass, conn);
+            }
           } else {
-            userEntryDn = userEntry.getDN();
-          }
-
-          conn.bind(LDAPConnection.LDAP_V3, userEntryDn, userPass.getBytes(UTF8));
-          log.debug("Bound as user");
-
-          if (authzFilter.length() > 0) {
-            // 4) Return to app user
-            conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
-            log.debug("Rebound as application user");
-            // 5) Search user DN with authz filter
-            // If search fails, log/report that user is not authorized
-            String userAuthzFilter = "(&(" + userEntryDn + ")(" + authzFilter + "))";
-            results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userAuthzFilter,
-                null, true);
+            bindAppUser(appUser, appPass, conn);
+            // 2) Search for username (not authz).
+            // If search fails, log/report invalid username or password.
+            LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+                userDn, null, true);
             if (results.hasMore()) {
-              log.debug("Found user + authz filter via search");
+              log.debug("Found user via search");
+            } else {
+              missingUsers.putMissing(userId, Boolean.TRUE);
+              throw new IllegalArgumentException("Can't find user [" + userDn + "]");
+            }
+
+            // 3) Bind as user.
+            // If bind fails, log/report invalid username or password.
+
+            // KERN-776 Resolve the user DN from the search results and check for an
+            // aliased entry
+            LDAPEntry userEntry = results.next();
+            LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
+
+            if ("aliasObject".equals(objectClass.getStringValue())) {
+              LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
+              userEntryDn = aliasDN.getStringValue();
             } else {
-              throw new IllegalArgumentException("User not authorized [" + userDn + "]");
+              userEntryDn = userEntry.getDN();
+            }
+
+            conn.bind(LDAPConnection.LDAP_V3, userEntryDn, userPass.getBytes(UTF8));
+            log.debug("Bound as user");
+
+            if (authzFilter.length() > 0) {
+              // 4) Return to app user
+              conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
+              log.debug("Rebound as application user");
+              // 5) Search user DN with authz filter
+              // If search fails, log/report that user is not authorized
+              String userAuthzFilter = "(&(" + userEntryDn + ")(" + authzFilter + "))";
+              results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userAuthzFilter,
+                  null, true);
+              if (results.hasMore()) {
+                log.debug("Found user + authz filter via search");
+              } else {
+                throw new IllegalArgumentException("User not authorized [" + userDn + "]");
+              }
+            }
+            if (userEntryDn != null) {
+              userDns.put(userId, userEntryDn);
             }
           }
 
@@ -274,15 +343,24 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
 
           // provision & decorate the user
           Session session = repository.loginAdministrative();
-          Authorizable authorizable = getJcrUser(session, sc.getUserID());
+          try {
+            Authorizable authorizable = getJcrUser(session, userId);
 
-          if (authorizable != null && attrsProps != null) {
-            log.debug("Decorating user [{}] with props from {}", userDn, USER_PROPS);
-            decorateUser(session, authorizable, conn);
+            if (authorizable != null && attrsProps != null) {
+              log.debug("Decorating user [{}] with props from {}", userDn, USER_PROPS);
+              decorateUser(session, authorizable, conn);
+            }
+          } finally {
+            logout(session);
           }
+          verifiedCredentials.put(userId, digest);
           // if we made it this far, we can exit the retry loop
           didLdapSucceed = true;
           break;
+        } catch (IllegalArgumentException e) {
+          // the user is unknown or not authorized, asking again won't change that
+          log.info(e.getMessage());
+          return false;
         } catch (Exception e) {
           ldapTrouble = e;
           log.warn(e.getMessage(), e);
@@ -301,6 +379,39 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
     return auth;
   }
 
+  /**
+   * Digest the credentials with the salt of this instance so that passwords are never
+   * kept in memory.
+   */
+  private byte[] digest(String userId, String password) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("SHA-256");
+      md.update(salt);
+      md.update(userId.getBytes(UTF8));
+      md.update((byte) 0);
+      md.update(password.getBytes(UTF8));
+      return md.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] newSalt() {
+    byte[] salt = new byte[16];
+    new SecureRandom().nextBytes(salt);
+    return salt;
+  }
+
+  private void logout(Session session) {
+    try {
+      session.logout();
+    } catch (Exception e) {
+      log.warn("Failed to logout of administrative session {} ", e.getMessage());
+    }
+  }
+
   private void bindAppUser(String appUser, String appPass, LDAPConnection conn)
       throws LDAPException, UnsupportedEncodingException {
     conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
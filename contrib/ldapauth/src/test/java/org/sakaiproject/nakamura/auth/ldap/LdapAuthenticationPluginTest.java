@@ -30,6 +30,7 @@ import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -182,6 +183,68 @@ public class LdapAuthenticationPluginTest {
     verify(ldapEntry).getDN();
   }
 
+  @Test
+  public void authenticateTwiceUsesCache() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    ldapAuthenticationPlugin.activate(props);
+
+    when(connMgr.getConnection()).thenReturn(conn);
+    when(
+        conn.search(isA(String.class), anyInt(), isA(String.class),
+            any(String[].class), anyBoolean())).thenReturn(results);
+    when(results.hasMore()).thenReturn(true);
+
+    LDAPEntry ldapEntry = mock(LDAPEntry.class, RETURNS_DEEP_STUBS.get());
+    when(results.next()).thenReturn(ldapEntry);
+    when(ldapEntry.getAttribute("objectClass").getStringValue()).thenReturn(
+        "inetOrgPerson");
+    String userEntryDn = USER_FILTER.replace("{}", USER) + ", " + LDAP_BASE_DN;
+    when(ldapEntry.getDN()).thenReturn(userEntryDn);
+
+    // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    verify(connMgr, times(1)).getConnection();
+    verify(session, times(1)).logout();
+
+    // a different password goes back to LDAP but skips the user search
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER,
+        "other".toCharArray())));
+    verify(connMgr, times(2)).getConnection();
+    verify(conn, times(1)).search(isA(String.class), anyInt(), isA(String.class),
+        any(String[].class), anyBoolean());
+    verify(conn).bind(LDAPConnection.LDAP_V3, userEntryDn, "other".getBytes("UTF-8"));
+  }
+
+  @Test
+  public void unknownUserIsCached() throws Exception {
+    // given
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    ldapAuthenticationPlugin.activate(props);
+
+    when(connMgr.getConnection()).thenReturn(conn);
+    when(
+        conn.search(isA(String.class), anyInt(), isA(String.class),
+            any(String[].class), anyBoolean())).thenReturn(results);
+    when(results.hasMore()).thenReturn(false);
+
+    // then
+    assertFalse(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    assertFalse(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    verify(connMgr, times(1)).getConnection();
+  }
+
   @Test
   public void useAliasObject() throws Exception {
     // given
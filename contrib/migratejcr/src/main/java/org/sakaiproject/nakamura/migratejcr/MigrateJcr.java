@@ -34,10 +34,8 @@ import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
-import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
-import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
@@ -54,17 +52,22 @@ import org.osgi.service.component.ComponentContext;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Dictionary;
 import java.util.GregorianCalendar;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import javax.jcr.Binary;
 import javax.jcr.ImportUUIDBehavior;
@@ -78,10 +81,13 @@ import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 
 /**
- *
+ * Moves users, groups, pooled content and tags from Jackrabbit to sparse. Each phase
+ * reads the nodes to move a page at a time in name order and hands the pages to a pool
+ * of workers that write them to sparse, each page with its own sessions. How far each
+ * phase got is kept in a checkpoint file so a migration that stops can be restarted
+ * where it left off.
  */
 @Component
 @Reference(name = "SlingRepository", referenceInterface = SlingRepository.class, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC, bind = "addRepo", unbind = "removeRepo")
@@ -103,14 +109,12 @@ public class MigrateJcr {
   private Logger LOGGER = LoggerFactory.getLogger(MigrateJcr.class);
 
   @Reference(target="(name=presparse)")
-  private SlingRepository slingRepository;
+  protected SlingRepository slingRepository;
 
   private SlingRepository newSlingRepository;
 
   @Reference
-  private Repository sparseRepository;
-  
-  private Map<String, Set<String>> groupMemberRetries = new ConcurrentHashMap<String, Set<String>>();
+  protected Repository sparseRepository;
   
   /**
    * This will contain Sling repositories.
@@ -121,7 +125,7 @@ public class MigrateJcr {
   private Set<String> ignoreProps = ImmutableSet.of("jcr:content", "jcr:data",
       "jcr:mixinTypes", "rep:policy", "jcr:created", "jcr:primaryType");
   private Object visibilityPreference;
-  private boolean shouldAbort = false;
+  private volatile boolean shouldAbort = false;
   
   private static final String VISIBILITY_PRIVATE = "private";
   private static final String VISIBILITY_LOGGED_IN = "logged_in";
@@ -132,8 +136,52 @@ public class MigrateJcr {
       @PropertyOption(name = VISIBILITY_PUBLIC, value = "The home is completely public.") })
   static final String VISIBILITY_PREFERENCE = "visibility.preference";
 
+  @org.apache.felix.scr.annotations.Property(intValue = 4, description = "The number of workers writing to sparse.")
+  static final String THREADS = "migration.threads";
+  protected int threads;
+
+  @org.apache.felix.scr.annotations.Property(intValue = 100, description = "The number of nodes read from Jackrabbit and written by a worker at a time.")
+  static final String PAGE_SIZE = "migration.page.size";
+  protected int pageSize;
+
+  @org.apache.felix.scr.annotations.Property(value = "migratejcr.checkpoint", description = "The file recording how far the migration got. Delete it to start over.")
+  static final String CHECKPOINT_FILE = "migration.checkpoint.file";
+
+  @org.apache.felix.scr.annotations.Property(boolValue = false, description = "Read and convert everything without writing to sparse, to measure throughput.")
+  static final String DRY_RUN = "migration.dryrun";
+  private boolean dryRun;
+
+  private static final String PHASE_USERS = "users";
+  private static final String PHASE_GROUPS = "groups";
+  private static final String PHASE_MEMBERS = "members";
+  private static final String PHASE_CONTENT = "content";
+  private static final String PHASE_TAGS = "tags";
+
+  private static final String USERS_QUERY = "//*[@sling:resourceType='sakai/user-home'] order by fn:name() ascending";
+  private static final String GROUPS_QUERY = "//*[@sling:resourceType='sakai/group-home'] order by fn:name() ascending";
+  private static final String CONTENT_POOL_QUERY = "//element(*, sakai:pooled-content) order by fn:name() ascending";
+
+  protected MigrationCheckpoint checkpoint;
+
+  protected ExecutorService executor;
+
+  /**
+   * Migrates one node read by a phase. A migration must complete whatever is missing of a
+   * node that was partly migrated before, since failed nodes are migrated again.
+   */
+  interface NodeMigration {
+    void migrate(Node node, javax.jcr.Session jcrSession, Session sparseSession)
+        throws Exception;
+  }
+
   @Activate
   protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
+    threads = Math.max(1, toInt(props.get(THREADS), 4));
+    pageSize = Math.max(1, toInt(props.get(PAGE_SIZE), 100));
+    dryRun = props.get(DRY_RUN) != null && Boolean.parseBoolean(String.valueOf(props.get(DRY_RUN)));
+    Object checkpointFile = props.get(CHECKPOINT_FILE);
+    executor = Executors.newFixedThreadPool(threads);
     try {
       for (Entry<SlingRepository, SlingRepository> repo : repositories.entrySet()) {
         if (!repo.equals(slingRepository)) {
@@ -141,12 +189,187 @@ public class MigrateJcr {
           break;
         }
       }
+      checkpoint = new MigrationCheckpoint(new File(checkpointFile == null ? "migratejcr.checkpoint"
+          : String.valueOf(checkpointFile)), dryRun);
+      if (dryRun) {
+        LOGGER.info("Dry run: reading and converting everything without writing to sparse.");
+      }
       migrateAuthorizables();
       migrateContentPool();
-      migrateTags();
+      if (!dryRun && !shouldAbort && !checkpoint.isDone(PHASE_TAGS)) {
+        migrateTags();
+        checkpoint.done(PHASE_TAGS);
+      }
       cleanup();
     } catch (Exception e) {
       LOGGER.error("Failed data migration from JCR to Sparse.", e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static int toInt(Object value, int defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(String.valueOf(value));
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Read the nodes matched by a query a page at a time and migrate the pages on the
+   * workers, committing each page to the checkpoint once it is written. Nodes that failed
+   * are recorded in the checkpoint and retried once the pages are done; the phase is only
+   * done once none are left.
+   */
+  @SuppressWarnings("deprecation")
+  void runPhase(final String phase, String statement, final NodeMigration migration)
+      throws Exception {
+    if (checkpoint.isDone(phase)) {
+      LOGGER.info("Migration of {} is already done. Skipping it.", phase);
+      return;
+    }
+    javax.jcr.Session jcrSession = null;
+    try {
+      jcrSession = slingRepository.loginAdministrative("default");
+      QueryManager qm = jcrSession.getWorkspace().getQueryManager();
+      long total = qm.createQuery(statement, Query.XPATH).execute().getNodes().getSize();
+      long offset = checkpoint.getOffset(phase);
+      LOGGER.info("found {} {} nodes in Jackrabbit, starting at {}.", new Object[] { total,
+          phase, offset });
+      final MigrationProgress progress = new MigrationProgress(phase, total, offset);
+
+      // at most two pages per worker are read ahead of the workers
+      final Semaphore inFlight = new Semaphore(threads * 2);
+      while (!shouldAbort) {
+        Query q = qm.createQuery(statement, Query.XPATH);
+        q.setOffset(offset);
+        q.setLimit(pageSize);
+        NodeIterator resultNodes = q.execute().getNodes();
+        final List<String> paths = new ArrayList<String>(pageSize);
+        while (resultNodes.hasNext()) {
+          paths.add(resultNodes.nextNode().getPath());
+        }
+        if (paths.isEmpty()) {
+          break;
+        }
+        inFlight.acquire();
+        final long pageStart = offset;
+        executor.execute(new Runnable() {
+          public void run() {
+            try {
+              migratePage(phase, paths, migration, progress);
+              if (!shouldAbort) {
+                checkpoint.commit(phase, pageStart, pageStart + paths.size());
+              }
+            } catch (Exception e) {
+              LOGGER.error("Failed migrating " + phase + " from " + pageStart, e);
+              shouldAbort = true;
+            } finally {
+              inFlight.release();
+            }
+          }
+        });
+        offset += paths.size();
+        if (paths.size() < pageSize) {
+          break;
+        }
+      }
+      // wait for the workers to finish
+      inFlight.acquire(threads * 2);
+      inFlight.release(threads * 2);
+      progress.report();
+      if (!shouldAbort && !dryRun) {
+        retryFailures(phase, migration);
+      }
+      if (shouldAbort) {
+        LOGGER.error("Stopped migrating {}. Restart to resume from the checkpoint.", phase);
+      } else if (!dryRun) {
+        int failed = checkpoint.getFailures(phase).size();
+        if (failed == 0) {
+          checkpoint.done(phase);
+        } else {
+          LOGGER.error("{} {} nodes could not be migrated. Restart to retry them.", failed,
+              phase);
+        }
+      }
+    } finally {
+      if (jcrSession != null) {
+        jcrSession.logout();
+      }
+    }
+  }
+
+  /**
+   * Migrate again the nodes of a phase that failed, on this thread.
+   */
+  private void retryFailures(String phase, NodeMigration migration) throws Exception {
+    List<String> failed = new ArrayList<String>(checkpoint.getFailures(phase));
+    if (failed.isEmpty()) {
+      return;
+    }
+    LOGGER.info("Retrying {} {} nodes that failed.", failed.size(), phase);
+    migratePage(phase, failed, migration, new MigrationProgress(phase + " retries",
+        failed.size(), 0));
+  }
+
+  /**
+   * Migrate one page of nodes with sessions of its own, since neither JCR nor sparse
+   * sessions can be shared between workers. A node that fails is recorded in the
+   * checkpoint and the rest of the page carries on.
+   */
+  private void migratePage(String phase, List<String> paths, NodeMigration migration,
+      MigrationProgress progress) throws Exception {
+    javax.jcr.Session jcrSession = null;
+    Session sparseSession = null;
+    try {
+      jcrSession = slingRepository.loginAdministrative("default");
+      if (!dryRun) {
+        sparseSession = sparseRepository.loginAdministrative();
+      }
+      for (String path : paths) {
+        if (shouldAbort) {
+          return;
+        }
+        LOGGER.debug(path);
+        try {
+          Node node = jcrSession.getNode(path);
+          if (dryRun) {
+            readTree(node);
+          } else {
+            migration.migrate(node, jcrSession, sparseSession);
+          }
+        } catch (Exception e) {
+          LOGGER.error("Failed migrating " + path + ", it will be retried.", e);
+          checkpoint.addFailure(phase, path);
+          progress.add(1);
+          continue;
+        }
+        checkpoint.removeFailure(phase, path);
+        progress.add(1);
+      }
+    } finally {
+      if (jcrSession != null) {
+        jcrSession.logout();
+      }
+      if (sparseSession != null) {
+        sparseSession.logout();
+      }
+    }
+  }
+
+  /**
+   * Read and convert the properties of a tree the same way a migration would, without
+   * writing anything.
+   */
+  private void readTree(Node node) throws Exception {
+    readProperties(node).build();
+    NodeIterator nodeIter = node.getNodes();
+    while (nodeIter.hasNext()) {
+      readTree(nodeIter.nextNode());
     }
   }
 
@@ -178,38 +401,17 @@ public class MigrateJcr {
 
   }
 
-  @SuppressWarnings("deprecation")
   private void migrateContentPool() throws Exception {
-    LOGGER.info("beginning users and groups migration.");
-    String contentPoolQuery = "//element(*, sakai:pooled-content) order by @jcr:score descending";
-    javax.jcr.Session jcrSession = null;
-    Session sparseSession = null;
-    javax.jcr.security.AccessControlManager accessManager = null;
-    try {
-      jcrSession = slingRepository.loginAdministrative("default");
-      sparseSession = sparseRepository.loginAdministrative();
-      accessManager = AccessControlUtil.getAccessControlManager(jcrSession);
-      QueryManager qm = jcrSession.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(contentPoolQuery, Query.XPATH);
-      QueryResult result = q.execute();
-      NodeIterator resultNodes = result.getNodes();
-      String nodeWord = resultNodes.getSize() == 1 ? "node" : "nodes";
-      LOGGER.info("found {} pooled content {} in Jackrabbit.", resultNodes.getSize(),
-          nodeWord);
-      while (resultNodes.hasNext() && !shouldAbort) {
-        Node contentNode = resultNodes.nextNode();
+    LOGGER.info("beginning pooled content migration.");
+    runPhase(PHASE_CONTENT, CONTENT_POOL_QUERY, new NodeMigration() {
+      @SuppressWarnings("deprecation")
+      public void migrate(Node contentNode, javax.jcr.Session jcrSession,
+          Session sparseSession) throws Exception {
         LOGGER.info(contentNode.getPath());
-        copyNodeToSparse(contentNode, contentNode.getName(), sparseSession, accessManager, true, false);
-      }
-    } finally {
-      if (jcrSession != null) {
-        jcrSession.logout();
-      }
-      if (sparseSession != null) {
-        sparseSession.logout();
+        copyNodeToSparse(contentNode, contentNode.getName(), sparseSession,
+            AccessControlUtil.getAccessControlManager(jcrSession), true, false);
       }
-    }
-
+    });
   }
 
   private void copyNodeToSparse(Node contentNode, String path, Session session, 
@@ -217,67 +419,14 @@ public class MigrateJcr {
       boolean shouldProcessACLs, boolean shouldProcessChildren)
       throws Exception {
     ContentManager contentManager = session.getContentManager();
-    if (contentManager.exists(path)) {
-      LOGGER
-          .warn("Ignoring migration of content at path which already exists in sparsemap: "
-              + path);
-      return;
-    }
-    PropertyIterator propIter = contentNode.getProperties();
-    Builder<String, Object> propBuilder = ImmutableMap.builder();
-    while (propIter.hasNext()) {
-      Property prop = propIter.nextProperty();
-      if (ignoreProps.contains(prop.getName())) {
-        continue;
-      }
-      Object value;
-      if (prop.isMultiple()) {
-        Value[] values = prop.getValues();
-        if (values.length > 0 && values[0].getType() == PropertyType.STRING) {
-          String[] valueStrings = new String[values.length];
-          for (int i = 0; i < values.length; i++) {
-            valueStrings[i] = values[i].getString();
-          }
-          value = valueStrings;
-        } else {
-          // TODO handle multi-value properties of other types
-          continue;
-        }
-      } else {
-        switch (prop.getType()) {
-        case PropertyType.BINARY:
-          value = prop.getBinary();
-          break;
-        case PropertyType.BOOLEAN:
-          value = prop.getBoolean();
-          break;
-        case PropertyType.DATE:
-          value = prop.getDate();
-          break;
-        case PropertyType.DECIMAL:
-          value = prop.getDecimal();
-          break;
-        case PropertyType.DOUBLE:
-          value = prop.getDouble();
-          break;
-        case PropertyType.LONG:
-          value = prop.getLong();
-          break;
-        case PropertyType.STRING:
-          value = prop.getString();
-          break;
-        default:
-          value = "";
-          break;
-        }
-      }
-      if (!(contentNode.hasProperty(SLING_RESOURCE_TYPE) && "sakai/contactstore".equals(contentNode.getProperty(SLING_RESOURCE_TYPE).getString()))) {
-        propBuilder.put(prop.getName(), value);
-      }
-    }
+    Builder<String, Object> propBuilder = readProperties(contentNode);
     path = applyAdditionalProperties(propBuilder, contentNode, path);
     Content sparseContent = new Content(path, propBuilder.build());
-    if (contentNode.hasNode("jcr:content")) {
+    // content is written before its body, so content without its body is half migrated
+    if (contentManager.exists(path)
+        && (!contentNode.hasNode("jcr:content") || contentManager.hasBody(path, null))) {
+      LOGGER.debug("Content at {} is already in sparsemap, completing the rest.", path);
+    } else if (contentNode.hasNode("jcr:content")) {
       Node fileContentNode = contentNode.getNode("jcr:content");
       if (fileContentNode.hasProperty("jcr:mimeType")) {
         sparseContent.setProperty("_mimeType", fileContentNode.getProperty("jcr:mimeType").getString());
@@ -304,9 +453,8 @@ public class MigrateJcr {
         contentManager.writeBody(sparseContent.getPath(), binaryStream);
       } catch (Exception e) {
         contentManager.delete(sparseContent.getPath());
-        LOGGER.error("Unable to write binary content from JCR path {} to sparse path {}"
-            + fileContentNode.getPath(), sparseContent.getPath(), e);
-        return;
+        throw new Exception("Unable to write binary content from JCR path "
+            + fileContentNode.getPath() + " to sparse path " + sparseContent.getPath(), e);
       }
     } else {
       contentManager.update(sparseContent);
@@ -421,6 +569,62 @@ public class MigrateJcr {
 
   }
 
+  private Builder<String, Object> readProperties(Node contentNode) throws Exception {
+    PropertyIterator propIter = contentNode.getProperties();
+    Builder<String, Object> propBuilder = ImmutableMap.builder();
+    while (propIter.hasNext()) {
+      Property prop = propIter.nextProperty();
+      if (ignoreProps.contains(prop.getName())) {
+        continue;
+      }
+      Object value;
+      if (prop.isMultiple()) {
+        Value[] values = prop.getValues();
+        if (values.length > 0 && values[0].getType() == PropertyType.STRING) {
+          String[] valueStrings = new String[values.length];
+          for (int i = 0; i < values.length; i++) {
+            valueStrings[i] = values[i].getString();
+          }
+          value = valueStrings;
+        } else {
+          // TODO handle multi-value properties of other types
+          continue;
+        }
+      } else {
+        switch (prop.getType()) {
+        case PropertyType.BINARY:
+          value = prop.getBinary();
+          break;
+        case PropertyType.BOOLEAN:
+          value = prop.getBoolean();
+          break;
+        case PropertyType.DATE:
+          value = prop.getDate();
+          break;
+        case PropertyType.DECIMAL:
+          value = prop.getDecimal();
+          break;
+        case PropertyType.DOUBLE:
+          value = prop.getDouble();
+          break;
+        case PropertyType.LONG:
+          value = prop.getLong();
+          break;
+        case PropertyType.STRING:
+          value = prop.getString();
+          break;
+        default:
+          value = "";
+          break;
+        }
+      }
+      if (!(contentNode.hasProperty(SLING_RESOURCE_TYPE) && "sakai/contactstore".equals(contentNode.getProperty(SLING_RESOURCE_TYPE).getString()))) {
+        propBuilder.put(prop.getName(), value);
+      }
+    }
+    return propBuilder;
+  }
+
   private String applyAdditionalProperties(Builder<String, Object> propBuilder,
       Node contentNode, String path) throws Exception {
     String contentPath = path;
@@ -511,44 +715,34 @@ public class MigrateJcr {
     return contentPath;
   }
 
-  @SuppressWarnings("deprecation")
   private void migrateAuthorizables() throws Exception {
     LOGGER.info("beginning users and groups migration.");
-    javax.jcr.Session jcrSession = null;
-    Session sparseSession = null;
-    try {
-      sparseSession = sparseRepository.loginAdministrative();
-      jcrSession = slingRepository.loginAdministrative("default");
-      String usersQuery = "//*[@sling:resourceType='sakai/user-home'] order by @jcr:score descending";
-      QueryManager qm = jcrSession.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(usersQuery, Query.XPATH);
-      QueryResult result = q.execute();
-      NodeIterator resultNodes = result.getNodes();
-      String folderWord = resultNodes.getSize() == 1 ? "folder" : "folders";
-      LOGGER.info("found {} user home {} in Jackrabbit.", resultNodes.getSize(),
-          folderWord);
-      while (resultNodes.hasNext()) {
-        Node authHomeNode = resultNodes.nextNode();
-        LOGGER.debug(authHomeNode.getPath());
+    NodeMigration authorizableMigration = new NodeMigration() {
+      public void migrate(Node authHomeNode, javax.jcr.Session jcrSession,
+          Session sparseSession) throws Exception {
         moveAuthorizableToSparse(authHomeNode,
-            AccessControlUtil.getUserManager(jcrSession));
+            AccessControlUtil.getUserManager(jcrSession), sparseSession);
       }
-      
+    };
+    runPhase(PHASE_USERS, USERS_QUERY, authorizableMigration);
+    if (!shouldAbort) {
+      runPhase(PHASE_GROUPS, GROUPS_QUERY, authorizableMigration);
+    }
+    if (!dryRun && !shouldAbort && !checkpoint.isDone(PHASE_MEMBERS)) {
+      retryGroupMembers();
+      checkpoint.done(PHASE_MEMBERS);
+    }
+  }
 
-      String groupsQuery = "//*[@sling:resourceType='sakai/group-home'] order by @jcr:score descending";
-      q = qm.createQuery(groupsQuery, Query.XPATH);
-      result = q.execute();
-      resultNodes = result.getNodes();
-      folderWord = resultNodes.getSize() == 1 ? "folder" : "folders";
-      LOGGER.info("found {} group home {} in Jackrabbit.", resultNodes.getSize(),
-          folderWord);
-      while (resultNodes.hasNext()) {
-        Node groupHomeNode = resultNodes.nextNode();
-        LOGGER.debug(groupHomeNode.getPath());
-        moveAuthorizableToSparse(groupHomeNode,
-            AccessControlUtil.getUserManager(jcrSession));
-      }
-      
+  /**
+   * Add the group members that were not in sparse yet when their group was migrated.
+   */
+  private void retryGroupMembers() throws Exception {
+    Map<String, Set<String>> groupMemberRetries = checkpoint.getRetries();
+    LOGGER.info("Retrying members of {} groups.", groupMemberRetries.size());
+    Session sparseSession = null;
+    try {
+      sparseSession = sparseRepository.loginAdministrative();
       AuthorizableManager sparseAuthManager = sparseSession.getAuthorizableManager();
       for (String sparseGroupId : groupMemberRetries.keySet()) {
         Authorizable group = sparseAuthManager.findAuthorizable(sparseGroupId);
@@ -567,22 +761,16 @@ public class MigrateJcr {
         }
       }
     } finally {
-      if (jcrSession != null) {
-        jcrSession.logout();
-      }
       if (sparseSession != null) {
         sparseSession.logout();
       }
     }
-
   }
 
-  private void moveAuthorizableToSparse(Node authHomeNode, UserManager userManager)
-      throws Exception {
-    Session sparseSession = null;
+  private void moveAuthorizableToSparse(Node authHomeNode, UserManager userManager,
+      Session sparseSession) throws Exception {
     javax.jcr.security.AccessControlManager accessManager = null;
     try {
-      sparseSession = sparseRepository.loginAdministrative();
       AuthorizableManager authManager = sparseSession.getAuthorizableManager();
       accessManager = AccessControlUtil
       .getAccessControlManager(authHomeNode.getSession());
@@ -624,22 +812,23 @@ public class MigrateJcr {
         if (authManager.createUser(userId, userId, "testuser", ImmutableMap.of(
             "firstName", (Object) firstName, "lastName", lastName, "email", email, "picture", picture, "sakai:tag-uuid", tagList.toArray(new String[tagList.size()])))) {
           LOGGER.info("Created user {} {} {} {}", new String[]{userId, firstName, lastName, email});
-          String contactsGroupName = "g-contacts-" + userId;
-          authManager.createGroup(contactsGroupName, contactsGroupName, null);
-          org.apache.jackrabbit.api.security.user.Authorizable contactGroup = userManager.getAuthorizable(contactsGroupName);
-          if (contactGroup != null) {
-            copyGroupMembers(authManager, (Group)contactGroup, authManager.findAuthorizable(contactsGroupName));
-            LOGGER.info("Added contacts to the contacts group.");
-          } else {
-            LOGGER.info("No contacts group for {} in Jackrabbit. Created empty group for contacts.", userId);
-          }
-          LOGGER.debug("Adding user home folder for " + userId);
-          copyNodeToSparse(authHomeNode, "a:" + userId, sparseSession, accessManager, false, true);
-          LOGGER.debug("Applying access rights to user {}", userId);
-          applyAuthorizableAccessRights(authManager.findAuthorizable(userId), sparseAccessManager);
         } else {
-          LOGGER.info("User {} exists in sparse. Skipping it.", userId);
+          LOGGER.info("User {} exists in sparse. Completing the rest of it.", userId);
+        }
+        // every step below can be repeated, to complete a user a previous run stopped on
+        String contactsGroupName = "g-contacts-" + userId;
+        authManager.createGroup(contactsGroupName, contactsGroupName, null);
+        org.apache.jackrabbit.api.security.user.Authorizable contactGroup = userManager.getAuthorizable(contactsGroupName);
+        if (contactGroup != null) {
+          copyGroupMembers(authManager, (Group)contactGroup, authManager.findAuthorizable(contactsGroupName));
+          LOGGER.info("Added contacts to the contacts group.");
+        } else {
+          LOGGER.info("No contacts group for {} in Jackrabbit. Created empty group for contacts.", userId);
         }
+        LOGGER.debug("Adding user home folder for " + userId);
+        copyNodeToSparse(authHomeNode, "a:" + userId, sparseSession, accessManager, false, true);
+        LOGGER.debug("Applying access rights to user {}", userId);
+        applyAuthorizableAccessRights(authManager.findAuthorizable(userId), sparseAccessManager);
       } else {
         // handling a group
         org.apache.jackrabbit.api.security.user.Authorizable group = null;
@@ -651,33 +840,31 @@ public class MigrateJcr {
         Builder<String,Object> propBuilder = getPropsFromGroup(group, userManager);
         if (authManager.createGroup(groupId, groupTitle, propBuilder.build())) {
           LOGGER.info("Created group {} {}", groupId, groupTitle);
-          Authorizable sparseGroup = authManager.findAuthorizable(groupId);
-          portManagersGroup(sparseGroup, authManager, sparseAccessManager, userManager);
-          if (group instanceof Group) {
-            // add all memberships
-            copyGroupMembers(authManager, group, sparseGroup);
-          }
-          LOGGER.debug("Adding group home folder for group {}", groupId);
-          copyNodeToSparse(authHomeNode, "a:" + groupId, sparseSession, accessManager, false, true);
-          LOGGER.debug("Applying access rights to group {}", groupId);
-          applyAuthorizableAccessRights(sparseGroup, sparseAccessManager);
         } else {
-          LOGGER.info("Group {} exists in sparse. Skipping it.", groupId);
+          LOGGER.info("Group {} exists in sparse. Completing the rest of it.", groupId);
         }
+        // every step below can be repeated, to complete a group a previous run stopped on
+        Authorizable sparseGroup = authManager.findAuthorizable(groupId);
+        portManagersGroup(sparseGroup, authManager, sparseAccessManager, userManager);
+        if (group instanceof Group) {
+          // add all memberships
+          copyGroupMembers(authManager, group, sparseGroup);
+        }
+        LOGGER.debug("Adding group home folder for group {}", groupId);
+        copyNodeToSparse(authHomeNode, "a:" + groupId, sparseSession, accessManager, false, true);
+        LOGGER.debug("Applying access rights to group {}", groupId);
+        applyAuthorizableAccessRights(sparseGroup, sparseAccessManager);
       }
     } catch (Exception e) {
       LOGGER.error("Failure moving authorizable {} to sparsemap: {}",
           authHomeNode.getPath(), e.getLocalizedMessage());
-    } finally {
-      if (sparseSession != null) {
-        sparseSession.logout();
-      }
+      throw e;
     }
 
   }
 
   private void applyAuthorizableAccessRights(Authorizable authorizable,
-      AccessControlManager sparseAccessManager) {
+      AccessControlManager sparseAccessManager) throws Exception {
     String authId = authorizable.getId();
     String homePath = LitePersonalUtils.getHomePath(authId);
     List<AclModification> aclModifications = new ArrayList<AclModification>();
@@ -713,6 +900,7 @@ public class MigrateJcr {
       sparseAccessManager.setAcl(Security.ZONE_CONTENT, homePath, aclMods);
     } catch (Exception e) {
       LOGGER.error("Failed setting ACLs on content path {} : {}", homePath, e.getLocalizedMessage());
+      throw e;
     }
 
     try {
@@ -720,6 +908,7 @@ public class MigrateJcr {
           aclMods);
     } catch (Exception e) {
       LOGGER.error("Failed setting ACLs on authorizable {} : {}", authorizable.getId(), e.getLocalizedMessage());
+      throw e;
     }
     
   }
@@ -827,14 +1016,14 @@ public class MigrateJcr {
 
   private void copyGroupMembers(AuthorizableManager authManager,
       org.apache.jackrabbit.api.security.user.Authorizable jcrGroup,
-      Authorizable sparseGroup) {
+      Authorizable sparseGroup) throws Exception {
     LOGGER.info("Adding members for group {}", sparseGroup.getId());
     Iterator<org.apache.jackrabbit.api.security.user.Authorizable> members;
     try {
       members = ((Group)jcrGroup).getDeclaredMembers();
     } catch (RepositoryException e1) {
       LOGGER.error("Could not get a list of members for group {} in Jackrabbit.", sparseGroup.getId());
-      return;
+      throw e1;
     }
     while (members.hasNext()) {
       org.apache.jackrabbit.api.security.user.Authorizable member = members.next();
@@ -854,16 +1043,18 @@ public class MigrateJcr {
         ((org.sakaiproject.nakamura.api.lite.authorizable.Group)sparseGroup).addMember(sparseMember.getId());
       } else {
         LOGGER.warn("Wanted to add member {} to group {} but couldn't find member in sparse.", jcrMemberId, sparseGroup.getId());
-        if (!groupMemberRetries.containsKey(sparseGroup.getId())) {
-          groupMemberRetries.put(sparseGroup.getId(), new HashSet<String>());
+        try {
+          checkpoint.addRetry(sparseGroup.getId(), jcrMemberId);
+        } catch (IOException e) {
+          LOGGER.error("Unable to record member {} of group {} to retry.", jcrMemberId, sparseGroup.getId());
         }
-        groupMemberRetries.get(sparseGroup.getId()).add(jcrMemberId);
       }
     }
     try {
       authManager.updateAuthorizable(sparseGroup);
     } catch (Exception e) {
       LOGGER.error("Failed to save membership information in sparsemap.", e);
+      throw e;
     }
   }
 
@@ -901,8 +1092,7 @@ public class MigrateJcr {
   }
   
   private void portManagersGroup (Authorizable managedGroup,
-      AuthorizableManager sparseAuthorizableManager, AccessControlManager sparseAccessControlManager, UserManager jcrUserManager) throws AccessDeniedException,
-      StorageClientException, ValueFormatException, IllegalStateException, RepositoryException {
+      AuthorizableManager sparseAuthorizableManager, AccessControlManager sparseAccessControlManager, UserManager jcrUserManager) throws Exception {
     if (managedGroup.hasProperty(PROP_MANAGERS_GROUP)) {
       boolean isUpdateNeeded = false;
       String managersGroupId = (String) managedGroup.getProperty(PROP_MANAGERS_GROUP);
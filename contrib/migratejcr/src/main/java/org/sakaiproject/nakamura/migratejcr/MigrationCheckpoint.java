@@ -0,0 +1,280 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.migratejcr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Durable record of how far each phase of the migration got, so that a migration that
+ * stops part way can pick up from the last committed position instead of starting over.
+ * Pages of a phase are committed out of order by the workers; the recorded offset of a
+ * phase only moves past pages that are all committed, so nodes that failed within a
+ * committed page are recorded in a failure log next to the checkpoint and retried at the
+ * end of the phase. Group members that could not be added yet are appended to a retry
+ * log next to the checkpoint.
+ */
+class MigrationCheckpoint {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MigrationCheckpoint.class);
+
+  private static final String OFFSET = ".offset";
+  private static final String DONE = ".done";
+
+  private final File file;
+  private final File retryFile;
+  private final File failureFile;
+  private final boolean readOnly;
+  private final Properties positions = new Properties();
+
+  /** Committed pages of each phase that are ahead of the offset, by start offset. */
+  private final Map<String, TreeMap<Long, Long>> pending = new HashMap<String, TreeMap<Long, Long>>();
+
+  /** Paths of each phase that failed and have not been migrated since, by phase. */
+  private final Map<String, Set<String>> failures = new HashMap<String, Set<String>>();
+
+  /**
+   * @param file
+   *          the checkpoint file, read if it exists.
+   * @param readOnly
+   *          true to never write the checkpoint, eg for a dry run.
+   * @throws IOException
+   */
+  MigrationCheckpoint(File file, boolean readOnly) throws IOException {
+    this.file = file;
+    this.retryFile = new File(file.getPath() + ".retries");
+    this.failureFile = new File(file.getPath() + ".failures");
+    this.readOnly = readOnly;
+    if (failureFile.exists()) {
+      BufferedReader r = new BufferedReader(new FileReader(failureFile));
+      try {
+        for (String line = r.readLine(); line != null; line = r.readLine()) {
+          int tab = line.indexOf('\t');
+          if (tab > 0) {
+            getFailureSet(line.substring(0, tab)).add(line.substring(tab + 1));
+          }
+        }
+      } finally {
+        r.close();
+      }
+    }
+    if (file.exists()) {
+      InputStream in = new FileInputStream(file);
+      try {
+        positions.load(in);
+      } finally {
+        in.close();
+      }
+      LOGGER.info("Resuming migration from checkpoint {} {} ", file.getAbsolutePath(),
+          positions);
+    }
+  }
+
+  synchronized boolean isDone(String phase) {
+    return Boolean.parseBoolean(positions.getProperty(phase + DONE));
+  }
+
+  synchronized long getOffset(String phase) {
+    return Long.parseLong(positions.getProperty(phase + OFFSET, "0"));
+  }
+
+  /**
+   * Record that the nodes from offset up to end of a phase are migrated.
+   *
+   * @return the offset the phase would resume from.
+   * @throws IOException
+   */
+  synchronized long commit(String phase, long offset, long end) throws IOException {
+    TreeMap<Long, Long> pages = pending.get(phase);
+    if (pages == null) {
+      pages = new TreeMap<Long, Long>();
+      pending.put(phase, pages);
+    }
+    pages.put(offset, end);
+    long committed = getOffset(phase);
+    long next = committed;
+    while (pages.containsKey(next)) {
+      next = pages.remove(next);
+    }
+    if (next != committed) {
+      positions.setProperty(phase + OFFSET, String.valueOf(next));
+      save();
+    }
+    return next;
+  }
+
+  /**
+   * Record that a node of a phase could not be migrated, so that it is retried at the end
+   * of the phase even though the page it was on is committed.
+   *
+   * @throws IOException
+   */
+  synchronized void addFailure(String phase, String path) throws IOException {
+    if (getFailureSet(phase).add(path)) {
+      saveFailures();
+    }
+  }
+
+  /**
+   * Record that a node of a phase has been migrated, clearing any earlier failure.
+   *
+   * @throws IOException
+   */
+  synchronized void removeFailure(String phase, String path) throws IOException {
+    Set<String> paths = failures.get(phase);
+    if (paths != null && paths.remove(path)) {
+      saveFailures();
+    }
+  }
+
+  /**
+   * @return the paths of a phase that failed and have not been migrated since.
+   */
+  synchronized Set<String> getFailures(String phase) {
+    Set<String> paths = failures.get(phase);
+    if (paths == null) {
+      return new HashSet<String>();
+    }
+    return new LinkedHashSet<String>(paths);
+  }
+
+  private Set<String> getFailureSet(String phase) {
+    Set<String> paths = failures.get(phase);
+    if (paths == null) {
+      paths = new LinkedHashSet<String>();
+      failures.put(phase, paths);
+    }
+    return paths;
+  }
+
+  synchronized void done(String phase) throws IOException {
+    pending.remove(phase);
+    positions.setProperty(phase + DONE, "true");
+    save();
+  }
+
+  /**
+   * Remember a member to add to a group once everything else is migrated.
+   *
+   * @throws IOException
+   */
+  synchronized void addRetry(String groupId, String memberId) throws IOException {
+    if (readOnly) {
+      return;
+    }
+    Writer w = new FileWriter(retryFile, true);
+    try {
+      w.write(groupId + "\t" + memberId + "\n");
+    } finally {
+      w.close();
+    }
+  }
+
+  /**
+   * @return the members to retry, by group id.
+   * @throws IOException
+   */
+  synchronized Map<String, Set<String>> getRetries() throws IOException {
+    Map<String, Set<String>> retries = new HashMap<String, Set<String>>();
+    if (!retryFile.exists()) {
+      return retries;
+    }
+    BufferedReader r = new BufferedReader(new FileReader(retryFile));
+    try {
+      for (String line = r.readLine(); line != null; line = r.readLine()) {
+        int tab = line.indexOf('\t');
+        if (tab < 1) {
+          continue;
+        }
+        String groupId = line.substring(0, tab);
+        Set<String> members = retries.get(groupId);
+        if (members == null) {
+          members = new HashSet<String>();
+          retries.put(groupId, members);
+        }
+        members.add(line.substring(tab + 1));
+      }
+    } finally {
+      r.close();
+    }
+    return retries;
+  }
+
+  /**
+   * Write to a temporary file and move it over the checkpoint so that a crash never
+   * leaves half a checkpoint behind.
+   */
+  private void save() throws IOException {
+    if (readOnly) {
+      return;
+    }
+    File tmp = new File(file.getPath() + ".tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      positions.store(out, "JCR to sparse migration checkpoint");
+    } finally {
+      out.close();
+    }
+    replace(tmp, file);
+  }
+
+  private void saveFailures() throws IOException {
+    if (readOnly) {
+      return;
+    }
+    File tmp = new File(failureFile.getPath() + ".tmp");
+    Writer w = new FileWriter(tmp);
+    try {
+      for (Entry<String, Set<String>> phase : failures.entrySet()) {
+        for (String path : phase.getValue()) {
+          w.write(phase.getKey() + "\t" + path + "\n");
+        }
+      }
+    } finally {
+      w.close();
+    }
+    replace(tmp, failureFile);
+  }
+
+  private void replace(File tmp, File target) throws IOException {
+    if (!tmp.renameTo(target)) {
+      target.delete();
+      if (!tmp.renameTo(target)) {
+        throw new IOException("Unable to write checkpoint " + target.getAbsolutePath());
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.migratejcr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress, throughput and an estimate of the time left for one phase of the migration.
+ */
+class MigrationProgress {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MigrationProgress.class);
+
+  private static final long REPORT_INTERVAL = 30000L;
+
+  private final String phase;
+  private final long total;
+  private final long resumedAt;
+  private final long started;
+  private final AtomicLong processed;
+  private final AtomicLong lastReport;
+
+  /**
+   * @param phase
+   *          the name of the phase.
+   * @param total
+   *          the number of nodes in the phase, -1 if not known.
+   * @param resumedAt
+   *          the number of nodes migrated before a restart.
+   */
+  MigrationProgress(String phase, long total, long resumedAt) {
+    this.phase = phase;
+    this.total = total;
+    this.resumedAt = resumedAt;
+    this.started = System.currentTimeMillis();
+    this.processed = new AtomicLong(resumedAt);
+    this.lastReport = new AtomicLong(started);
+  }
+
+  void add(long nodes) {
+    processed.addAndGet(nodes);
+    long now = System.currentTimeMillis();
+    long last = lastReport.get();
+    if (now - last > REPORT_INTERVAL && lastReport.compareAndSet(last, now)) {
+      report();
+    }
+  }
+
+  long getProcessed() {
+    return processed.get();
+  }
+
+  /**
+   * @return nodes per second since the phase started or resumed.
+   */
+  double getRate() {
+    long elapsed = Math.max(1L, System.currentTimeMillis() - started);
+    return (processed.get() - resumedAt) * 1000.0 / elapsed;
+  }
+
+  /**
+   * @return the estimated milliseconds left, -1 if not known.
+   */
+  long getEta() {
+    double rate = getRate();
+    if (total < 0 || rate <= 0) {
+      return -1;
+    }
+    return (long) (Math.max(0L, total - processed.get()) * 1000.0 / rate);
+  }
+
+  void report() {
+    long eta = getEta();
+    LOGGER.info("Migrating {}: {} of {} nodes, {} nodes/s, about {}s left",
+        new Object[] { phase, processed.get(), total < 0 ? "?" : total,
+            String.format("%.1f", getRate()), eta < 0 ? "?" : eta / 1000 });
+  }
+}
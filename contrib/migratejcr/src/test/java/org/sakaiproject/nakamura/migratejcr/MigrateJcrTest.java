@@ -0,0 +1,259 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.migratejcr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.Sets;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+
+/**
+ *
+ */
+public class MigrateJcrTest {
+
+  private static final String STATEMENT = "//*[@sling:resourceType='sakai/user-home']";
+
+  private static final int NODES = 45;
+
+  private File file;
+  private List<Node> nodes;
+  private ConcurrentHashMap<String, AtomicInteger> attempts;
+  private Set<String> failing;
+
+  @Before
+  public void before() throws Exception {
+    file = File.createTempFile("migratejcr", ".checkpoint");
+    file.delete();
+    nodes = new ArrayList<Node>();
+    for (int i = 0; i < NODES; i++) {
+      Node node = mock(Node.class);
+      when(node.getPath()).thenReturn("/n" + i);
+      nodes.add(node);
+    }
+    attempts = new ConcurrentHashMap<String, AtomicInteger>();
+    failing = Collections.synchronizedSet(new HashSet<String>());
+  }
+
+  @After
+  public void after() {
+    file.delete();
+    new File(file.getPath() + ".failures").delete();
+  }
+
+  @Test
+  public void testMigratesEveryPageAndRetriesFailures() throws Exception {
+    // fails on the first attempt only
+    failing.add("/n7");
+    MigrateJcr migrateJcr = newMigrateJcr();
+    migrateJcr.runPhase("users", STATEMENT, new CountingMigration(1));
+    migrateJcr.executor.shutdown();
+
+    assertEquals(NODES, attempts.size());
+    assertEquals(2, attempts.get("/n7").get());
+    assertEquals(1, attempts.get("/n44").get());
+    assertTrue(migrateJcr.checkpoint.isDone("users"));
+    assertEquals(NODES, migrateJcr.checkpoint.getOffset("users"));
+    assertTrue(migrateJcr.checkpoint.getFailures("users").isEmpty());
+  }
+
+  @Test
+  public void testResumesWithTheFailedNodesOnly() throws Exception {
+    failing.add("/n3");
+    MigrateJcr migrateJcr = newMigrateJcr();
+    migrateJcr.runPhase("users", STATEMENT, new CountingMigration(Integer.MAX_VALUE));
+    migrateJcr.executor.shutdown();
+
+    // the page of the failed node is committed but the phase is not done
+    assertFalse(migrateJcr.checkpoint.isDone("users"));
+    assertEquals(NODES, migrateJcr.checkpoint.getOffset("users"));
+    assertEquals(Sets.newHashSet("/n3"), migrateJcr.checkpoint.getFailures("users"));
+    assertEquals(2, attempts.get("/n3").get());
+
+    attempts.clear();
+    failing.clear();
+    migrateJcr = newMigrateJcr();
+    migrateJcr.runPhase("users", STATEMENT, new CountingMigration(Integer.MAX_VALUE));
+    migrateJcr.executor.shutdown();
+
+    assertEquals(Sets.newHashSet("/n3"), attempts.keySet());
+    assertTrue(migrateJcr.checkpoint.isDone("users"));
+    assertTrue(migrateJcr.checkpoint.getFailures("users").isEmpty());
+  }
+
+  private MigrateJcr newMigrateJcr() throws Exception {
+    MigrateJcr migrateJcr = new MigrateJcr();
+    migrateJcr.threads = 3;
+    migrateJcr.pageSize = 10;
+    migrateJcr.executor = Executors.newFixedThreadPool(migrateJcr.threads);
+    migrateJcr.checkpoint = new MigrationCheckpoint(file, false);
+    migrateJcr.slingRepository = mockSlingRepository();
+    migrateJcr.sparseRepository = mock(Repository.class);
+    when(migrateJcr.sparseRepository.loginAdministrative()).thenAnswer(new Answer<Session>() {
+      public Session answer(InvocationOnMock invocation) throws Throwable {
+        return mock(Session.class);
+      }
+    });
+    return migrateJcr;
+  }
+
+  private SlingRepository mockSlingRepository() throws Exception {
+    final QueryManager queryManager = mock(QueryManager.class);
+    when(queryManager.createQuery(anyString(), eq(Query.XPATH))).thenAnswer(
+        new Answer<Query>() {
+          public Query answer(InvocationOnMock invocation) throws Throwable {
+            return mockQuery();
+          }
+        });
+    SlingRepository slingRepository = mock(SlingRepository.class);
+    when(slingRepository.loginAdministrative("default")).thenAnswer(
+        new Answer<javax.jcr.Session>() {
+          public javax.jcr.Session answer(InvocationOnMock invocation) throws Throwable {
+            javax.jcr.Session jcrSession = mock(javax.jcr.Session.class);
+            Workspace workspace = mock(Workspace.class);
+            when(jcrSession.getWorkspace()).thenReturn(workspace);
+            when(workspace.getQueryManager()).thenReturn(queryManager);
+            for (int i = 0; i < NODES; i++) {
+              when(jcrSession.getNode("/n" + i)).thenReturn(nodes.get(i));
+            }
+            return jcrSession;
+          }
+        });
+    return slingRepository;
+  }
+
+  private Query mockQuery() throws Exception {
+    final long[] range = new long[] { 0, NODES };
+    Query query = mock(Query.class);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        range[0] = (Long) invocation.getArguments()[0];
+        return null;
+      }
+    }).when(query).setOffset(anyLong());
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        range[1] = (Long) invocation.getArguments()[0];
+        return null;
+      }
+    }).when(query).setLimit(anyLong());
+    when(query.execute()).thenAnswer(new Answer<QueryResult>() {
+      public QueryResult answer(InvocationOnMock invocation) throws Throwable {
+        int from = (int) Math.min(range[0], NODES);
+        int to = (int) Math.min(range[0] + range[1], NODES);
+        QueryResult result = mock(QueryResult.class);
+        when(result.getNodes()).thenReturn(new ListNodeIterator(nodes.subList(from, to)));
+        return result;
+      }
+    });
+    return query;
+  }
+
+  /**
+   * Counts the attempts on each node and fails the failing nodes a number of times.
+   */
+  private class CountingMigration implements MigrateJcr.NodeMigration {
+    private final int failures;
+
+    CountingMigration(int failures) {
+      this.failures = failures;
+    }
+
+    public void migrate(Node node, javax.jcr.Session jcrSession, Session sparseSession)
+        throws Exception {
+      String path = node.getPath();
+      AtomicInteger count = new AtomicInteger();
+      AtomicInteger previous = attempts.putIfAbsent(path, count);
+      int attempt = (previous == null ? count : previous).incrementAndGet();
+      if (failing.contains(path) && attempt <= failures) {
+        throw new IOException("Failing " + path);
+      }
+    }
+  }
+
+  private static class ListNodeIterator implements NodeIterator {
+    private final List<Node> nodes;
+    private int position;
+
+    ListNodeIterator(List<Node> nodes) {
+      this.nodes = nodes;
+    }
+
+    public Node nextNode() {
+      return nodes.get(position++);
+    }
+
+    public void skip(long skipNum) {
+      position += skipNum;
+    }
+
+    public long getSize() {
+      return nodes.size();
+    }
+
+    public long getPosition() {
+      return position;
+    }
+
+    public boolean hasNext() {
+      return position < nodes.size();
+    }
+
+    public Object next() {
+      return nextNode();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
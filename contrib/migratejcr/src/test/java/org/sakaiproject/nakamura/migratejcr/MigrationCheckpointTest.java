@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.migratejcr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ *
+ */
+public class MigrationCheckpointTest {
+
+  private File file;
+
+  @Before
+  public void before() throws IOException {
+    file = File.createTempFile("migratejcr", ".checkpoint");
+    file.delete();
+  }
+
+  @After
+  public void after() {
+    file.delete();
+    new File(file.getPath() + ".failures").delete();
+    new File(file.getPath() + ".retries").delete();
+  }
+
+  @Test
+  public void testOffsetOnlyMovesPastContiguousPages() throws IOException {
+    MigrationCheckpoint checkpoint = new MigrationCheckpoint(file, false);
+    assertEquals(0L, checkpoint.commit("users", 10, 20));
+    assertEquals(0L, checkpoint.commit("users", 20, 30));
+    assertEquals(30L, checkpoint.commit("users", 0, 10));
+    assertEquals(30L, checkpoint.getOffset("users"));
+    assertEquals(0L, checkpoint.getOffset("groups"));
+  }
+
+  @Test
+  public void testResumesFromTheFile() throws IOException {
+    MigrationCheckpoint checkpoint = new MigrationCheckpoint(file, false);
+    checkpoint.commit("users", 0, 10);
+    checkpoint.done("groups");
+    checkpoint.addFailure("users", "/a");
+    checkpoint.addFailure("users", "/b");
+    checkpoint.removeFailure("users", "/a");
+
+    checkpoint = new MigrationCheckpoint(file, false);
+    assertEquals(10L, checkpoint.getOffset("users"));
+    assertFalse(checkpoint.isDone("users"));
+    assertTrue(checkpoint.isDone("groups"));
+    assertEquals(1, checkpoint.getFailures("users").size());
+    assertTrue(checkpoint.getFailures("users").contains("/b"));
+    assertTrue(checkpoint.getFailures("groups").isEmpty());
+  }
+
+  @Test
+  public void testReadOnlyWritesNothing() throws IOException {
+    MigrationCheckpoint checkpoint = new MigrationCheckpoint(file, true);
+    checkpoint.commit("users", 0, 10);
+    checkpoint.addFailure("users", "/a");
+    checkpoint.addRetry("g", "u");
+    assertEquals(10L, checkpoint.getOffset("users"));
+    assertFalse(file.exists());
+    assertFalse(new File(file.getPath() + ".failures").exists());
+    assertTrue(checkpoint.getRetries().isEmpty());
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.persondirectory;
+
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link PersonProvider} that can look up the sections of many people at once.
+ */
+public interface BatchPersonProvider extends PersonProvider {
+
+  /**
+   * Get the sections of attributes for many people. The lookups run in the background;
+   * a section that can't be read fails its {@link Future} with a
+   * {@link PersonProviderException}.
+   *
+   * @param sections
+   *          The section nodes being accessed.
+   * @return A {@link Future} with the attributes of each section.
+   */
+  Map<Content, Future<Map<String, Object>>> getProfileSections(List<Content> sections);
+}
@@ -27,31 +27,52 @@ import com.novell.ldap.LDAPSearchResults;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.ConfigurationPolicy;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentException;
+import org.sakaiproject.nakamura.api.ldap.LdapCache;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
+import org.sakaiproject.nakamura.api.ldap.LdapUtil;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.persondirectory.BatchPersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
+import org.sakaiproject.nakamura.util.ImmediateFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.jcr.RepositoryException;
 
 /**
- * Person provider implementation that gets its information from an LDAP store.
+ * Person provider implementation that gets its information from an LDAP store. People
+ * are cached for a while, including the ones the directory does not know, and batches of
+ * people are looked up with a single OR filter search in the background.
  */
 @Component(metatype = true, configurationFactory = true, policy = ConfigurationPolicy.REQUIRE)
-@Service
-public class LdapPersonProvider implements PersonProvider {
+@Service(value = PersonProvider.class)
+public class LdapPersonProvider implements BatchPersonProvider {
   private static final Logger LOG = LoggerFactory.getLogger(LdapPersonProvider.class);
 
   /** Constant for the sling resource type property name */
@@ -65,6 +86,12 @@ public class LdapPersonProvider implements PersonProvider {
 
   public static final String SEPARATOR = "=>";
 
+  /** Matches a filter pattern of a single attribute, eg uid={} */
+  private static final Pattern SINGLE_ATTRIBUTE_FILTER = Pattern
+      .compile("^\\(?\\s*([\\w.;-]+)\\s*=\\s*\\{\\}\\s*\\)?$");
+
+  private static final Map<String, Object> NOT_FOUND = Collections.emptyMap();
+
   @Property(value = "o=sakai")
   protected static final String BASE_DN = "sakai.pd.ldap.baseDn.pattern";
   private String baseDn;
@@ -77,6 +104,29 @@ public class LdapPersonProvider implements PersonProvider {
   protected static final String PROP_ATTRIBUTES_MAP = "sakai.pd.ldap.attributes.map";
   private HashMap<String, String> attrsMap = new HashMap<String, String>();
 
+  @Property(longValue = 300, label = "Cache TTL", description = "Seconds a person is cached for, 0 to disable the cache.")
+  protected static final String PROP_CACHE_TTL = "sakai.pd.ldap.cache.ttl";
+
+  @Property(longValue = 60, label = "Negative cache TTL", description = "Seconds a person the directory does not know is cached for.")
+  protected static final String PROP_CACHE_NEGATIVE_TTL = "sakai.pd.ldap.cache.negative.ttl";
+
+  @Property(intValue = 5000, label = "Cache size", description = "The most people cached.")
+  protected static final String PROP_CACHE_SIZE = "sakai.pd.ldap.cache.size";
+
+  @Property(intValue = 50, label = "Batch size", description = "The most people looked up by one search.")
+  protected static final String PROP_BATCH_SIZE = "sakai.pd.ldap.batch.size";
+  private int batchSize;
+
+  @Property(intValue = 2, label = "Threads", description = "The number of searches that run in the background at the same time.")
+  protected static final String PROP_THREADS = "sakai.pd.ldap.threads";
+
+  /** The attribute the filter pattern matches on, null if it is not a simple filter. */
+  private String idAttribute;
+
+  private LdapCache<Map<String, Object>> cache;
+
+  private ExecutorService executor;
+
   @Reference
   private LdapConnectionManager connMgr;
 
@@ -122,10 +172,22 @@ public class LdapPersonProvider implements PersonProvider {
       attrsMap = new HashMap<String, String>();
     }
 
-    // create an attribute array for looking things up
-    Set<String> attrKeys = attrsMap.keySet();
-    String[] attrs = new String[attrKeys.size()];
-    attrKeys.toArray(attrs);
+    Matcher m = SINGLE_ATTRIBUTE_FILTER.matcher(filterPattern);
+    idAttribute = m.matches() ? m.group(1) : null;
+
+    cache = new LdapCache<Map<String, Object>>(OsgiUtil.toInteger(
+        props.get(PROP_CACHE_SIZE), 5000), OsgiUtil.toLong(props.get(PROP_CACHE_TTL), 300) * 1000L,
+        OsgiUtil.toLong(props.get(PROP_CACHE_NEGATIVE_TTL), 60) * 1000L);
+    batchSize = Math.max(1, OsgiUtil.toInteger(props.get(PROP_BATCH_SIZE), 50));
+    executor = Executors.newFixedThreadPool(Math.max(1,
+        OsgiUtil.toInteger(props.get(PROP_THREADS), 2)));
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
   }
 
   protected Map<String, String> getAttributesMap() {
@@ -135,48 +197,19 @@ public class LdapPersonProvider implements PersonProvider {
   public Map<String, Object> getProfileSection(Content parameters)
       throws PersonProviderException {
     try {
-      HashMap<String, Object> person = new HashMap<String, Object>();
-
       // get the user ID
       String uid = findUserId(parameters);
-
-      // set the properties
-      String filter = filterPattern.replace("{}", uid);
-
-      String[] attributes = attrsMap.keySet().toArray(new String[]{});
-
-      LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
-          new Object[] { baseDn, filter, attributes });
-
-      // get a connection bound to the application user
-      LDAPConnection conn = connMgr.getBoundConnection(null, null);
-      LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
-          filter, attributes, false);
-      if (searchResults.hasMore()) {
-        // pick off the first result returned
-        LDAPEntry entry = searchResults.next();
-
-        // get the attributes from the entry and loop through them
-        LDAPAttributeSet attrs = entry.getAttributeSet();
-        Iterator<?> attrIter = attrs.iterator();
-        while (attrIter.hasNext()) {
-          // get the key and values from the attribute
-          LDAPAttribute attr = (LDAPAttribute) attrIter.next();
-          String name = attr.getName();
-          String[] vals = attr.getStringValueArray();
-
-          // check for an aliased name
-          String mappingName = attrsMap.get(name);
-
-          // add the values under the appropriate key
-          if (vals.length == 1) {
-            person.put(mappingName, vals[0]);
-          } else if (vals.length > 1) {
-            person.put(mappingName, vals);
-          }
+      Map<String, Object> person = cache.get(uid);
+      if (person == null) {
+        LDAPConnection conn = connMgr.getBoundConnection(null, null);
+        try {
+          person = search(conn, uid);
+        } finally {
+          connMgr.returnConnection(conn);
         }
+        cacheResult(uid, person);
       }
-      return person;
+      return new HashMap<String, Object>(person);
     } catch (LDAPException e) {
       throw new PersonProviderException(e.getMessage(), e);
     } catch (RepositoryException e) {
@@ -184,6 +217,176 @@ public class LdapPersonProvider implements PersonProvider {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.persondirectory.BatchPersonProvider#getProfileSections(java.util.List)
+   */
+  public Map<Content, Future<Map<String, Object>>> getProfileSections(List<Content> sections) {
+    Map<Content, Future<Map<String, Object>>> futures = new HashMap<Content, Future<Map<String, Object>>>();
+    Map<Content, String> misses = new HashMap<Content, String>();
+    for (Content section : sections) {
+      try {
+        String uid = findUserId(section);
+        Map<String, Object> person = cache.get(uid);
+        if (person != null) {
+          futures.put(section, new ImmediateFuture<Map<String, Object>>(
+              new HashMap<String, Object>(person)));
+        } else {
+          misses.put(section, uid);
+        }
+      } catch (Exception e) {
+        futures.put(section, failedFuture(e));
+      }
+    }
+    if (!misses.isEmpty()) {
+      final List<String> uids = new ArrayList<String>(new LinkedHashSet<String>(misses.values()));
+      Future<Map<String, Map<String, Object>>> batch = executor
+          .submit(new Callable<Map<String, Map<String, Object>>>() {
+            public Map<String, Map<String, Object>> call() throws Exception {
+              return searchAll(uids);
+            }
+          });
+      for (Map.Entry<Content, String> miss : misses.entrySet()) {
+        futures.put(miss.getKey(), new SectionFuture(batch, miss.getValue()));
+      }
+    }
+    return futures;
+  }
+
+  /**
+   * Look up many people, with one OR filter search per batch if the filter pattern
+   * matches on a single attribute, otherwise with one search each.
+   *
+   * @param uids
+   * @return the people found by uid, people that were not found have an empty map.
+   * @throws LDAPException
+   */
+  private Map<String, Map<String, Object>> searchAll(List<String> uids)
+      throws LDAPException {
+    long start = System.currentTimeMillis();
+    Map<String, Map<String, Object>> people = new HashMap<String, Map<String, Object>>();
+    LDAPConnection conn = connMgr.getBoundConnection(null, null);
+    try {
+      if (idAttribute == null || uids.size() == 1) {
+        for (String uid : uids) {
+          people.put(uid, search(conn, uid));
+        }
+      } else {
+        Set<String> attributes = new LinkedHashSet<String>(attrsMap.keySet());
+        attributes.add(idAttribute);
+        String[] attributeArray = attributes.toArray(new String[attributes.size()]);
+        for (int i = 0; i < uids.size(); i += batchSize) {
+          List<String> chunk = uids.subList(i, Math.min(uids.size(), i + batchSize));
+          StringBuilder filter = new StringBuilder("(|");
+          for (String uid : chunk) {
+            String term = toFilter(uid);
+            filter.append(term.startsWith("(") ? term : "(" + term + ")");
+          }
+          filter.append(")");
+          LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+              filter.toString(), attributeArray, false);
+          while (searchResults.hasMore()) {
+            LDAPEntry entry = searchResults.next();
+            LDAPAttribute id = entry.getAttribute(idAttribute);
+            if (id == null) {
+              continue;
+            }
+            String entryId = id.getStringValue();
+            for (String uid : chunk) {
+              if (uid.equalsIgnoreCase(entryId) && !people.containsKey(uid)) {
+                people.put(uid, toPerson(entry));
+              }
+            }
+          }
+        }
+      }
+    } finally {
+      connMgr.returnConnection(conn);
+    }
+    for (String uid : uids) {
+      Map<String, Object> person = people.get(uid);
+      if (person == null) {
+        person = NOT_FOUND;
+        people.put(uid, person);
+      }
+      cacheResult(uid, person);
+    }
+    LOG.debug("Looked up {} people in {}ms ", uids.size(), System.currentTimeMillis()
+        - start);
+    return people;
+  }
+
+  private Map<String, Object> search(LDAPConnection conn, String uid)
+      throws LDAPException {
+    // set the properties
+    String filter = toFilter(uid);
+
+    String[] attributes = attrsMap.keySet().toArray(new String[]{});
+
+    LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
+        new Object[] { baseDn, filter, attributes });
+
+    LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
+        filter, attributes, false);
+    if (searchResults.hasMore()) {
+      // pick off the first result returned
+      return toPerson(searchResults.next());
+    }
+    return NOT_FOUND;
+  }
+
+  private Map<String, Object> toPerson(LDAPEntry entry) {
+    HashMap<String, Object> person = new HashMap<String, Object>();
+    // get the attributes from the entry and loop through them
+    LDAPAttributeSet attrs = entry.getAttributeSet();
+    Iterator<?> attrIter = attrs.iterator();
+    while (attrIter.hasNext()) {
+      // get the key and values from the attribute
+      LDAPAttribute attr = (LDAPAttribute) attrIter.next();
+      String name = attr.getName();
+      String[] vals = attr.getStringValueArray();
+
+      // check for an aliased name
+      String mappingName = attrsMap.get(name);
+      if (mappingName == null && name.equalsIgnoreCase(idAttribute)) {
+        // only asked for to match up a batch
+        continue;
+      }
+
+      // add the values under the appropriate key
+      if (vals.length == 1) {
+        person.put(mappingName, vals[0]);
+      } else if (vals.length > 1) {
+        person.put(mappingName, vals);
+      }
+    }
+    return person;
+  }
+
+  private String toFilter(String uid) {
+    return filterPattern.replace("{}", LdapUtil.escapeLDAPSearchFilter(uid));
+  }
+
+  private void cacheResult(String uid, Map<String, Object> person) {
+    if (person.isEmpty()) {
+      cache.putMissing(uid, NOT_FOUND);
+    } else {
+      cache.put(uid, Collections.unmodifiableMap(person));
+    }
+  }
+
+  private static Future<Map<String, Object>> failedFuture(final Exception e) {
+    FutureTask<Map<String, Object>> failed = new FutureTask<Map<String, Object>>(
+        new Callable<Map<String, Object>>() {
+          public Map<String, Object> call() throws Exception {
+            throw new PersonProviderException(e.getMessage(), e);
+          }
+        });
+    failed.run();
+    return failed;
+  }
+
   private String findUserId(Content content) throws RepositoryException, PersonProviderException {
     if (content.hasProperty(SLING_RESOURCE_TYPE)
         && SAKAI_USER_PROFILE.equals((String) content.getProperty(SLING_RESOURCE_TYPE))
@@ -198,4 +401,38 @@ public class LdapPersonProvider implements PersonProvider {
       throw new PersonProviderException("Could not retrieve userid.");
     }
   }
+
+  /**
+   * The section of one person out of the search for a batch of people.
+   */
+  private static final class SectionFuture implements Future<Map<String, Object>> {
+    private final Future<Map<String, Map<String, Object>>> batch;
+    private final String uid;
+
+    private SectionFuture(Future<Map<String, Map<String, Object>>> batch, String uid) {
+      this.batch = batch;
+      this.uid = uid;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return batch.isCancelled();
+    }
+
+    public boolean isDone() {
+      return batch.isDone();
+    }
+
+    public Map<String, Object> get() throws InterruptedException, ExecutionException {
+      return new HashMap<String, Object>(batch.get().get(uid));
+    }
+
+    public Map<String, Object> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return new HashMap<String, Object>(batch.get(timeout, unit).get(uid));
+    }
+  }
 }
@@ -21,18 +21,27 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.persondirectory.BatchPersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 import org.sakaiproject.nakamura.api.profile.ProfileProvider;
+import org.sakaiproject.nakamura.api.profile.ProfileProviderExecutionService;
 import org.sakaiproject.nakamura.api.profile.ProviderSettings;
 import org.sakaiproject.nakamura.util.ImmediateFuture;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  *
@@ -42,12 +51,21 @@ import java.util.concurrent.Future;
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
     @Property(name = "service.description", value = "A ProfileProvider that connects to a Person Provider"),
-    @Property(name = ProfileProvider.PROVIDER_NAME, value = "person") })
+    @Property(name = ProfileProvider.PROVIDER_NAME, value = PersonProfileProviderAdapter.NAME) })
 public class PersonProfileProviderAdapter implements ProfileProvider {
 
+  static final String NAME = "person";
+
   @Reference
   protected PersonProvider personProvider;
 
+  /**
+   * When present, single lookups run on the shared provider pool rather than on the
+   * thread resolving the profile.
+   */
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile ProfileProviderExecutionService executionService;
+
   /**
    * {@inheritDoc}
    *
@@ -58,19 +76,92 @@ public class PersonProfileProviderAdapter implements ProfileProvider {
 
     Map<Content, Future<Map<String, Object>>> resultMap = new HashMap<Content, Future<Map<String, Object>>>();
 
+    if (personProvider instanceof BatchPersonProvider) {
+      // look everyone up at once and let the profile service wait on the results
+      List<Content> sections = new ArrayList<Content>(list.size());
+      for (ProviderSettings s : list) {
+        sections.add(s.getNode());
+      }
+      Map<Content, Future<Map<String, Object>>> futures = ((BatchPersonProvider) personProvider)
+          .getProfileSections(sections);
+      for (Map.Entry<Content, Future<Map<String, Object>>> e : futures.entrySet()) {
+        resultMap.put(e.getKey(), new ErrorMapFuture(e.getValue()));
+      }
+      return resultMap;
+    }
+
+    ProfileProviderExecutionService executionService = this.executionService;
     for (ProviderSettings s : list) {
-      Content c = s.getNode();
-      try {
-        Map<String, Object> profile = personProvider.getProfileSection(c);
-        resultMap.put(c, new ImmediateFuture<Map<String, Object>>(profile));
-      } catch (PersonProviderException e) {
-        Map<String, Object> profileError = new HashMap<String, Object>();
-        profileError.put("error", e.getMessage());
-        resultMap.put(c, new ImmediateFuture<Map<String, Object>>(profileError));
+      final Content c = s.getNode();
+      if (executionService != null) {
+        resultMap.put(c, executionService.submit(NAME, new Callable<Map<String, Object>>() {
+          public Map<String, Object> call() {
+            return getProfileSection(c);
+          }
+        }));
+      } else {
+        resultMap.put(c, new ImmediateFuture<Map<String, Object>>(getProfileSection(c)));
       }
     }
 
     return resultMap;
   }
 
+  private Map<String, Object> getProfileSection(Content c) {
+    try {
+      return personProvider.getProfileSection(c);
+    } catch (PersonProviderException e) {
+      Map<String, Object> profileError = new HashMap<String, Object>();
+      profileError.put("error", e.getMessage());
+      return profileError;
+    }
+  }
+
+  private static Map<String, Object> profileError(ExecutionException e) {
+    Map<String, Object> profileError = new HashMap<String, Object>();
+    Throwable cause = e.getCause() == null ? e : e.getCause();
+    profileError.put("error", cause.getMessage());
+    return profileError;
+  }
+
+  /**
+   * Reports a failed lookup the same way as a {@link PersonProviderException} from a
+   * single lookup.
+   */
+  private static final class ErrorMapFuture implements Future<Map<String, Object>> {
+    private final Future<Map<String, Object>> future;
+
+    private ErrorMapFuture(Future<Map<String, Object>> future) {
+      this.future = future;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return future.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+      return future.isCancelled();
+    }
+
+    public boolean isDone() {
+      return future.isDone();
+    }
+
+    public Map<String, Object> get() throws InterruptedException {
+      try {
+        return future.get();
+      } catch (ExecutionException e) {
+        return profileError(e);
+      }
+    }
+
+    public Map<String, Object> get(long timeout, TimeUnit unit)
+        throws InterruptedException, TimeoutException {
+      try {
+        return future.get(timeout, unit);
+      } catch (ExecutionException e) {
+        return profileError(e);
+      }
+    }
+  }
 }
@@ -27,6 +27,8 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.novell.ldap.LDAPAttribute;
@@ -47,10 +49,13 @@ import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 @RunWith(MockitoJUnitRunner.class)
 public class LdapPersonProviderTest {
@@ -154,6 +159,89 @@ public class LdapPersonProviderTest {
     assertEquals(0, person.size());
   }
 
+  @Test
+  public void testProfileSectionIsCached() throws Exception {
+    String[] attrMap = new String[] { "firstname => called", "lastname" };
+
+    LDAPConnection connection = mock(LDAPConnection.class);
+    LDAPSearchResults results = mock(LDAPSearchResults.class);
+
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    when(mgr.getBoundConnection(anyString(), anyString())).thenReturn(connection);
+    when(
+        connection.search(anyString(), anyInt(), anyString(), any(String[].class),
+            anyBoolean())).thenReturn(results);
+
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    provider.activate(buildMap(attrMap));
+    provider.getProfileSection(hasAllProperties(content, "tUser"));
+    Map<String, Object> person = provider.getProfileSection(hasAllProperties(content,
+        "tUser"));
+
+    assertEquals(0, person.size());
+    verify(connection, times(1)).search(anyString(), anyInt(), anyString(),
+        any(String[].class), anyBoolean());
+    verify(mgr, times(1)).returnConnection(connection);
+  }
+
+  @Test
+  public void testGetProfileSections() throws Exception {
+    String[] attrMap = new String[] { "firstname => called" };
+
+    LDAPConnection connection = mock(LDAPConnection.class);
+    LDAPSearchResults results = mock(LDAPSearchResults.class);
+    LDAPEntry entry = mock(LDAPEntry.class);
+
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    when(mgr.getBoundConnection(anyString(), anyString())).thenReturn(connection);
+    when(
+        connection.search(anyString(), anyInt(), Mockito.eq("(|(uid=tUser)(uid=nobody))"),
+            any(String[].class), anyBoolean())).thenReturn(results);
+    when(results.hasMore()).thenReturn(true).thenReturn(false);
+    when(results.next()).thenReturn(entry);
+
+    LDAPAttribute uid = mock(LDAPAttribute.class);
+    when(uid.getName()).thenReturn("uid");
+    when(uid.getStringValue()).thenReturn("TUSER");
+    when(uid.getStringValueArray()).thenReturn(new String[] { "TUSER" });
+    when(entry.getAttribute("uid")).thenReturn(uid);
+    LDAPAttribute firstname = mock(LDAPAttribute.class);
+    when(firstname.getName()).thenReturn("firstname");
+    when(firstname.getStringValueArray()).thenReturn(new String[] { "Tester" });
+    LDAPAttributeSet attrSet = mock(LDAPAttributeSet.class);
+    when(entry.getAttributeSet()).thenReturn(attrSet);
+    when(attrSet.iterator()).thenReturn(Arrays.asList(uid, firstname).iterator());
+
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    provider.activate(buildMap(attrMap));
+    try {
+      Content found = hasAllProperties(new Content("a", null), "tUser");
+      Content missing = hasAllProperties(new Content("b", null), "nobody");
+      Content broken = new Content("c", null);
+      Map<Content, Future<Map<String, Object>>> sections = provider
+          .getProfileSections(Arrays.asList(found, missing, broken));
+
+      Map<String, Object> person = sections.get(found).get();
+      assertEquals(1, person.size());
+      assertEquals("Tester", person.get("called"));
+      assertEquals(0, sections.get(missing).get().size());
+      try {
+        sections.get(broken).get();
+        fail("A section without a user should fail.");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof PersonProviderException);
+      }
+
+      // served from the cache the second time around
+      assertEquals("Tester", provider.getProfileSections(Arrays.asList(found)).get(found)
+          .get().get("called"));
+      verify(connection, times(1)).search(anyString(), anyInt(), anyString(),
+          any(String[].class), anyBoolean());
+    } finally {
+      provider.deactivate();
+    }
+  }
+
   // TODO ignoring test until functionality returns. should be deleted if functionality is
   // not fixed.
   @Ignore
@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the principal cache map shared by all request threads. The keys cover four
+ * times the capacity, so puts regularly trigger eviction, which sorts the whole map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConcurrentLRUMapBenchmark {
+
+  @Param({ "100", "1000" })
+  private int capacity;
+
+  private ConcurrentLRUMap<String, String> map;
+  private String[] keys;
+
+  @Setup
+  public void setup() {
+    map = new ConcurrentLRUMap<String, String>(capacity);
+    keys = new String[capacity * 4];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "principal-" + i;
+    }
+    for (int i = 0; i < capacity; i++) {
+      map.put(keys[i], keys[i]);
+    }
+  }
+
+  private String randomKey() {
+    return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String get() {
+    return map.get(randomKey());
+  }
+
+  @Benchmark
+  @Threads(8)
+  public String put() {
+    String key = randomKey();
+    return map.put(key, key);
+  }
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(7)
+  public String readMostlyGet() {
+    return map.get(randomKey());
+  }
+
+  @Benchmark
+  @Group("readMostly")
+  @GroupThreads(1)
+  public String readMostlyPut() {
+    String key = randomKey();
+    return map.put(key, key);
+  }
+}
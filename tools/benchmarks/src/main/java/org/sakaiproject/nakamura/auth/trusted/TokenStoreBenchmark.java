@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.trusted;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.auth.trusted.TokenStore.SecureCookie;
+import org.sakaiproject.nakamura.benchmarks.MemoryCacheManagerService;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding and decoding the trusted token cookie, which happens on every
+ * authenticated request. The secret keys are kept in a temporary file and an in-memory
+ * cache manager.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TokenStoreBenchmark {
+
+  private TokenStore tokenStore;
+  private File tokenFile;
+  private String cookie;
+  private long expires;
+
+  @Setup
+  public void setup() throws Exception {
+    tokenFile = File.createTempFile("benchmark-tokens", ".bin");
+    tokenStore = new TokenStore();
+    tokenStore.doInit(new MemoryCacheManagerService(), tokenFile.getAbsolutePath(),
+        "benchmark-server", 20L * 60L * 1000L);
+    expires = System.currentTimeMillis() + 60L * 60L * 1000L;
+    cookie = tokenStore.getActiveToken().encode(expires, "ieb", "trusted");
+  }
+
+  @TearDown
+  public void tearDown() {
+    tokenFile.delete();
+    new File(tokenFile.getAbsolutePath() + ".tmp").delete();
+  }
+
+  @Benchmark
+  public String encode() throws Exception {
+    SecureCookie secureCookie = tokenStore.getActiveToken();
+    return secureCookie.encode(expires, "ieb", "trusted");
+  }
+
+  @Benchmark
+  public String[] decode() throws Exception {
+    return tokenStore.getSecureCookie().decode(cookie);
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.benchmarks;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An in-memory stand-in for the cache manager, one map per cache name whatever the scope.
+ * The caches are not thread safe, so only use it in single threaded benchmarks.
+ */
+public class MemoryCacheManagerService implements CacheManagerService {
+
+  private final Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
+
+  @SuppressWarnings("unchecked")
+  public synchronized <T> Cache<T> getCache(String name, CacheScope scope) {
+    Cache<T> cache = (Cache<T>) caches.get(name);
+    if (cache == null) {
+      cache = new MapCacheImpl<T>();
+      caches.put(name, cache);
+    }
+    return cache;
+  }
+
+  public synchronized void unbind(CacheScope scope) {
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Minimal stand-ins for container interfaces such as requests and component contexts.
+ * Methods answer from a map keyed by method name, or return the default value for the
+ * return type. This costs far less per call than a mocking library, so it does not drown
+ * out the code being measured.
+ */
+public final class Stubs {
+
+  /**
+   * A value computed on each call, for results the caller may modify.
+   */
+  public interface Value {
+    Object get();
+  }
+
+  /**
+   * A value computed from the arguments of each call.
+   */
+  public interface Answer {
+    Object answer(Object[] args);
+  }
+
+  private Stubs() {
+  }
+
+  public static <T> T stub(Class<T> type, final Map<String, ?> answers) {
+    return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(),
+        new Class<?>[] { type }, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            Object answer = answers.get(method.getName());
+            if (answer instanceof Value) {
+              return ((Value) answer).get();
+            }
+            if (answer instanceof Answer) {
+              return ((Answer) answer).answer(args);
+            }
+            if (answer != null) {
+              return answer;
+            }
+            return defaultValue(method.getReturnType());
+          }
+        }));
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (!type.isPrimitive() || type == void.class) {
+      return null;
+    } else if (type == boolean.class) {
+      return Boolean.FALSE;
+    } else if (type == char.class) {
+      return Character.valueOf((char) 0);
+    } else if (type == long.class) {
+      return Long.valueOf(0);
+    } else if (type == float.class) {
+      return Float.valueOf(0);
+    } else if (type == double.class) {
+      return Double.valueOf(0);
+    } else if (type == byte.class) {
+      return Byte.valueOf((byte) 0);
+    } else if (type == short.class) {
+      return Short.valueOf((short) 0);
+    }
+    return Integer.valueOf(0);
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.cluster;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.util.StringUtils;
+
+import java.math.BigInteger;
+import java.util.GregorianCalendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures minting ids from one generator shared by all threads, as every request thread
+ * shares the generator in the cluster tracking service. The synchronized BigInteger
+ * generator this replaced is kept here as the baseline. Runs with 8 threads, pass
+ * <code>-t</code> in <code>jmh.args</code> to try other counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class UniqueIdGeneratorBenchmark {
+
+  private UniqueIdGenerator generator;
+  private SynchronizedIdGenerator baseline;
+
+  @Setup
+  public void setup() {
+    generator = new UniqueIdGenerator(1);
+    baseline = new SynchronizedIdGenerator(1);
+  }
+
+  @Benchmark
+  public long nextLongId() {
+    return generator.nextLongId();
+  }
+
+  @Benchmark
+  public String nextId() {
+    return generator.nextId();
+  }
+
+  @Benchmark
+  public String synchronizedNextId() {
+    return baseline.nextId();
+  }
+
+  /**
+   * The generator as it was, one lock and three BigIntegers per id.
+   */
+  private static class SynchronizedIdGenerator {
+    private Object lockObject = new Object();
+    private long next = 0;
+    private long epoch;
+    private long last = 0;
+    private long micro = 0;
+    private int serverId;
+
+    private SynchronizedIdGenerator(int serverId) {
+      this.serverId = serverId;
+      epoch = new GregorianCalendar(2010, 8, 6).getTimeInMillis();
+    }
+
+    private String nextId() {
+      BigInteger idNum;
+      synchronized (lockObject) {
+        next = System.currentTimeMillis() - epoch;
+        if (next == last) {
+          micro++;
+        } else if (next < last) {
+          next = last;
+          micro++;
+        } else {
+          micro = 0;
+          last = next;
+        }
+        if (micro > 999) {
+          next++;
+          micro = 0;
+          last = next;
+        }
+        idNum = BigInteger.valueOf(next * 1000 + micro);
+      }
+      idNum = idNum.multiply(BigInteger.valueOf(10000));
+      idNum = idNum.add(BigInteger.valueOf(serverId));
+      return StringUtils.encode(idNum.toByteArray(), StringUtils.URL_SAFE_ENCODING);
+    }
+  }
+}
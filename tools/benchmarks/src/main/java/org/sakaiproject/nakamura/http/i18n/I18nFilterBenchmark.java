@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.i18n;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures replacing the message keys in a UI page, which the filter does for every
+ * html page under /dev and /devwidgets. Most keys come from the language bundle, some
+ * fall back to the default bundle, and each key appears several times in the page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class I18nFilterBenchmark {
+
+  @Param({ "50", "500" })
+  private int keys;
+
+  private I18nFilter filter;
+  private String page;
+  private Properties bundle;
+  private Properties defaultBundle;
+
+  @Setup
+  public void setup() {
+    filter = new I18nFilter();
+    filter.modified(new HashMap<String, Object>());
+    bundle = new Properties();
+    defaultBundle = new Properties();
+    StringBuilder sb = new StringBuilder("<html><body>\n");
+    for (int repeat = 0; repeat < 3; repeat++) {
+      for (int i = 0; i < keys; i++) {
+        sb.append("<div class=\"widget\"><span>__MSG__KEY_").append(i)
+            .append("__</span><button title=\"__MSG__KEY_").append(i)
+            .append("__\">ok</button></div>\n");
+      }
+    }
+    page = sb.append("</body></html>").toString();
+    for (int i = 0; i < keys; i++) {
+      if (i % 10 == 0) {
+        defaultBundle.setProperty("KEY_" + i, "Default message " + i);
+      } else {
+        bundle.setProperty("KEY_" + i, "Translated message number " + i);
+      }
+    }
+  }
+
+  @Benchmark
+  public StringBuilder substituteMessages() {
+    return filter.substituteMessages(page, bundle, defaultBundle);
+  }
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.usercontent;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestPathInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.benchmarks.Stubs;
+
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures isRequestSafe for a GET on the trusted host with hundreds of configured
+ * trusted paths. One request streams from a trusted path, the other is redirected to
+ * the content host with a signed transfer of the user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerProtectionServiceBenchmark {
+
+  @Param({ "4", "100", "500" })
+  private int trustedPaths;
+
+  private ServerProtectionServiceImpl serverProtectionService;
+  private SlingHttpServletRequest trustedRequest;
+  private SlingHttpServletRequest redirectedRequest;
+  private SlingHttpServletResponse response;
+
+  @Setup
+  public void setup() throws Exception {
+    String[] paths = new String[trustedPaths];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = "/devwidgets/widget" + i;
+    }
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("trusted.paths", paths);
+    properties.put("trusted.secret", "benchmark secret");
+    BundleContext bundleContext = Stubs.stub(BundleContext.class,
+        new HashMap<String, Object>());
+    ComponentContext componentContext = Stubs.stub(ComponentContext.class,
+        ImmutableMap.of("getProperties", properties, "getBundleContext", bundleContext));
+    serverProtectionService = new ServerProtectionServiceImpl();
+    serverProtectionService.activate(componentContext);
+
+    // matches the last configured path
+    trustedRequest = request("/devwidgets/widget" + (trustedPaths - 1) + "/index.js");
+    // matches none and has no resource, so it is redirected
+    redirectedRequest = request("/p/abcdefg/file.html");
+    response = Stubs.stub(SlingHttpServletResponse.class, new HashMap<String, Object>());
+  }
+
+  private SlingHttpServletRequest request(final String path) {
+    RequestPathInfo requestPathInfo = Stubs.stub(RequestPathInfo.class,
+        new HashMap<String, Object>());
+    Map<String, Object> answers = new HashMap<String, Object>();
+    answers.put("getMethod", "GET");
+    answers.put("getRequestURI", path);
+    answers.put("getRequestURL", new Stubs.Value() {
+      public Object get() {
+        return new StringBuffer("http://localhost:8080").append(path);
+      }
+    });
+    answers.put("getHeader", "localhost:8080");
+    answers.put("getScheme", "http");
+    answers.put("getServerName", "localhost");
+    answers.put("getServerPort", 8080);
+    answers.put("getRemoteUser", "ieb");
+    answers.put("getRequestPathInfo", requestPathInfo);
+    return Stubs.stub(SlingHttpServletRequest.class, answers);
+  }
+
+  @Benchmark
+  public boolean trustedPath() throws Exception {
+    return serverProtectionService.isRequestSafe(trustedRequest, response);
+  }
+
+  @Benchmark
+  public boolean redirectWithTransfer() throws Exception {
+    return serverProtectionService.isRequestSafe(redirectedRequest, response);
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.usercontent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+
+/**
+ * Measures signing a transfer to the content host with the per-thread Mac of the key
+ * ring, and with a Mac looked up and initialized for each request as before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferKeyRingBenchmark {
+
+  private TransferKeyRing ring;
+  private byte[] message;
+  private int next;
+
+  @Setup
+  public void setup() throws Exception {
+    ring = new TransferKeyRing("benchmark secret");
+    message = "//localhost:8082/p/abc;ieb;1300000000003".getBytes("UTF-8");
+  }
+
+  @Benchmark
+  public byte[] perThreadMac() throws Exception {
+    return ring.getMac(nextKey()).doFinal(message);
+  }
+
+  @Benchmark
+  public byte[] newMac() throws Exception {
+    Mac m = Mac.getInstance(TransferKeyRing.HMAC_SHA512);
+    m.init(ring.getKey(nextKey()));
+    return m.doFinal(message);
+  }
+
+  private int nextKey() {
+    next = (next + 1) % 10;
+    return next;
+  }
+}
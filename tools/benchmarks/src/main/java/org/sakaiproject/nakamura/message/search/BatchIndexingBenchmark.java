@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.search;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.solr.IndexingHandler;
+import org.sakaiproject.nakamura.api.solr.RepositorySession;
+import org.sakaiproject.nakamura.benchmarks.Stubs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures indexing a stream of message updates with MessageIndexingHandler, one event
+ * at a time as the queue dispatcher does today and in windows through the batch
+ * contract. A few hundred hot messages owned by a handful of users are updated over and
+ * over, so windows collapse repeated paths and share owner lookups. Storage is an
+ * in-memory stand-in, so this measures the handler and the reads it makes rather than
+ * the cost of a real read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchIndexingBenchmark {
+
+  private static final String UPDATED = StoreListener.TOPIC_BASE + "content/"
+      + StoreListener.UPDATED_TOPIC;
+  private static final int STREAM_SIZE = 2000;
+
+  @Param({ "1", "50", "200" })
+  private int window;
+
+  private MessageIndexingHandler handler;
+  private RepositorySession repositorySession;
+  private List<Event> stream;
+
+  @Setup
+  public void setup() throws Exception {
+    final Map<String, Content> contents = new HashMap<String, Content>();
+    Random random = new Random(42);
+    stream = new ArrayList<Event>(STREAM_SIZE);
+    for (int i = 0; i < STREAM_SIZE; i++) {
+      int message = random.nextInt(500);
+      String path = "a:user" + (message % 50) + "/message/inbox/m" + message;
+      if (!contents.containsKey(path)) {
+        contents.put(path, new Content(path, ImmutableMap.of("sling:resourceType",
+            (Object) MessageConstants.SAKAI_MESSAGE_RT, MessageConstants.PROP_SAKAI_SUBJECT,
+            "subject " + message, MessageConstants.PROP_SAKAI_BODY, "body " + message)));
+      }
+      Hashtable<String, Object> properties = new Hashtable<String, Object>();
+      properties.put(IndexingHandler.FIELD_PATH, path);
+      stream.add(new Event(UPDATED, properties));
+    }
+
+    Authorizable user = new User(ImmutableMap.of(User.ID_FIELD, (Object) "user"));
+    ContentManager contentManager = Stubs.stub(ContentManager.class, ImmutableMap.of(
+        "get", new Stubs.Answer() {
+          public Object answer(Object[] args) {
+            return contents.get(args[0]);
+          }
+        }));
+    AuthorizableManager authorizableManager = Stubs.stub(AuthorizableManager.class,
+        ImmutableMap.of("findAuthorizable", user));
+    Session session = Stubs.stub(Session.class, ImmutableMap.of("getContentManager",
+        contentManager, "getAuthorizableManager", authorizableManager));
+    repositorySession = Stubs.stub(RepositorySession.class, ImmutableMap.of("adaptTo",
+        session));
+    handler = new MessageIndexingHandler();
+  }
+
+  @Benchmark
+  public void indexStream(Blackhole blackhole) {
+    if (window == 1) {
+      for (Event event : stream) {
+        blackhole.consume(handler.getDocuments(repositorySession, event));
+      }
+    } else {
+      for (int i = 0; i < stream.size(); i += window) {
+        blackhole.consume(handler.getDocuments(repositorySession,
+            stream.subList(i, Math.min(i + window, stream.size()))));
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.nakamura.benchmarks.MemoryCacheManagerService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the presence calls the UI makes on every poll: a ping, the user's own status
+ * and the status of a page of contacts. The presence caches are in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenceServiceBenchmark {
+
+  private static final int USERS = 1000;
+
+  private PresenceServiceImpl presenceService;
+  private List<String> contacts;
+  private int next;
+
+  @Setup
+  public void setup() {
+    presenceService = new PresenceServiceImpl();
+    presenceService.bindCacheManagerService(new MemoryCacheManagerService());
+    for (int i = 0; i < USERS; i++) {
+      presenceService.setStatus("user" + i, (i % 2 == 0) ? "online" : "busy");
+      presenceService.ping("user" + i, "/dev/me.html");
+    }
+    contacts = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      contacts.add("user" + (i * 7 % USERS));
+    }
+  }
+
+  private String nextUser() {
+    next = (next + 1) % USERS;
+    return "user" + next;
+  }
+
+  @Benchmark
+  public void ping() {
+    presenceService.ping(nextUser(), "/dev/me.html");
+  }
+
+  @Benchmark
+  public String getStatus() {
+    return presenceService.getStatus(nextUser());
+  }
+
+  @Benchmark
+  public Map<String, String> onlineContacts() {
+    return presenceService.online(contacts);
+  }
+}
@@ -0,0 +1,67 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the readers clause SolrResultSetFactory adds to every search by a
+ * logged in user, for users in a few groups up to users in many.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolrReadersRestrictionBenchmark {
+
+  @Param({ "10", "100", "1000" })
+  private int groups;
+
+  private List<String> groupIds;
+
+  @Setup
+  public void setup() {
+    groupIds = new ArrayList<String>();
+    for (int i = 0; i < groups; i++) {
+      // some ids need escaping, as course and managers groups do
+      groupIds.add((i % 3 == 0) ? "course:" + i + "-managers" : "group-" + i);
+    }
+  }
+
+  @Benchmark
+  public String addReadersRestriction() {
+    return SolrResultSetFactory.addReadersRestriction(
+        "resourceType:sakai/pooled-content AND title:(physics)", "ieb", groupIds);
+  }
+}
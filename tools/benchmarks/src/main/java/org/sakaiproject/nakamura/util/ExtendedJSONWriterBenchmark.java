@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.StringWriter;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing large content property maps, as the sparse content and search
+ * feeds do for each result. The maps mix the value types sparse content holds.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtendedJSONWriterBenchmark {
+
+  @Param({ "100", "1000" })
+  private int properties;
+
+  private Map<String, Object> content;
+
+  @Setup
+  public void setup() {
+    content = new HashMap<String, Object>();
+    Calendar now = Calendar.getInstance();
+    for (int i = 0; i < properties; i++) {
+      switch (i % 6) {
+      case 0:
+        content.put("sakai:title" + i, "A title with \"quotes\" and unicode \u00e9 " + i);
+        break;
+      case 1:
+        content.put("sakai:tags" + i, new String[] { "tag" + i, "other", "directory/a/b" });
+        break;
+      case 2:
+        content.put("sakai:size" + i, Long.valueOf(i * 1024L));
+        break;
+      case 3:
+        content.put("sakai:flag" + i, Boolean.valueOf(i % 4 == 0));
+        break;
+      case 4:
+        content.put("sakai:created" + i, now);
+        break;
+      default:
+        Map<String, Object> nested = new HashMap<String, Object>();
+        nested.put("id", "nested" + i);
+        nested.put("count", Integer.valueOf(i));
+        content.put("sakai:nested" + i, nested);
+      }
+    }
+  }
+
+  @Benchmark
+  public String writeValueMap() throws Exception {
+    StringWriter writer = new StringWriter();
+    ExtendedJSONWriter.writeValueMap(new ExtendedJSONWriter(writer), content);
+    return writer.toString();
+  }
+}